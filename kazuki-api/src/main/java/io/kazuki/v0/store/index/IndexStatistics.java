@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cardinality and distribution data for one secondary index table, as of the last collection.
+ */
+public interface IndexStatistics {
+  String getType();
+
+  String getIndexName();
+
+  long getRowCount();
+
+  /** Estimated number of distinct values per index attribute */
+  Map<String, Long> getDistinctCounts();
+
+  /**
+   * Equi-depth histogram of the leading index attribute: each bound closes a bucket holding
+   * roughly the same number of rows
+   */
+  List<String> getLeadingAttributeBounds();
+
+  long getCollectedAt();
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.index.query.QueryTerm;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Describes how a query without an explicit index will be executed: which index drives the scan,
+ * which other indexes are intersected with it, and which terms are evaluated against the entities
+ * themselves.
+ */
+public interface QueryPlan {
+  String getType();
+
+  /** Indexes probed by the plan, driving index first; empty for a full scan */
+  List<String> getIndexNames();
+
+  /** Terms satisfied by the given index */
+  List<QueryTerm> getIndexTerms(String indexName);
+
+  /**
+   * Indexes that apply to the query but are not intersected, because statistics do not show them
+   * to be selective enough; their terms are evaluated as residual terms
+   */
+  List<String> getSkippedIndexNames();
+
+  /** Terms evaluated against the retrieved entities */
+  List<QueryTerm> getResidualTerms();
+
+  boolean isFullScan();
+
+  /** Estimated rows read from the driving index, or null when no statistics are available */
+  @Nullable
+  Long getEstimatedRows();
+}
@@ -0,0 +1,30 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.management.KazukiComponent;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+public interface SecondaryIndexStatistics extends KazukiComponent<SecondaryIndexStatistics> {
+  /** Returns the most recently collected statistics, or null if none have been collected */
+  @Nullable
+  IndexStatistics getStatistics(String type, String indexName);
+
+  /** Collects (and persists) statistics for every index of the given type */
+  Map<String, IndexStatistics> collect(String type);
+}
@@ -42,6 +42,62 @@ public interface SecondaryIndexStore extends KazukiComponent<SecondaryIndexStore
       List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
       @Nullable Long limit);
 
+  /**
+   * Queries without naming an index: the store picks the most selective index for the terms,
+   * intersects with other applicable indexes known to be selective and filters the remaining terms
+   * against the entities.
+   * Results follow the order of the driving index (key order for a full scan).
+   */
+  <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String queryString, SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit);
+
+  <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit);
+
+  /**
+   * Runs an index query against the index tables of several partitions of the store at once and
+   * merges the ordered results, so a query spanning partitions streams in index order without
+   * materializing any partition's results. Stores without index tables do not support it.
+   */
+  <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      String queryString, Collection<String> partitionNames, SortDirection sortDirection,
+      @Nullable Long offset, @Nullable Long limit);
+
+  <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      List<QueryTerm> query, Collection<String> partitionNames, SortDirection sortDirection,
+      @Nullable Long offset, @Nullable Long limit);
+
+  /**
+   * Aggregates over the entries of an index matching the query. Unlike index queries, the query
+   * may constrain any of the index attributes (or none). Min and max return the attribute value as
+   * stored in the index (after its transform), or null if nothing matches; grouped counts are keyed
+   * by the value of the leading index attribute, in ascending order.
+   */
+  long count(String type, String indexName, String queryString);
+
+  long count(String type, String indexName, List<QueryTerm> query);
+
+  @Nullable
+  Object min(String type, String indexName, String attributeName, String queryString);
+
+  @Nullable
+  Object min(String type, String indexName, String attributeName, List<QueryTerm> query);
+
+  @Nullable
+  Object max(String type, String indexName, String attributeName, String queryString);
+
+  @Nullable
+  Object max(String type, String indexName, String attributeName, List<QueryTerm> query);
+
+  Map<Object, Long> countGroupedBy(String type, String indexName, String queryString);
+
+  Map<Object, Long> countGroupedBy(String type, String indexName, List<QueryTerm> query);
+
+  QueryPlan explain(String type, String queryString);
+
+  QueryPlan explain(String type, List<QueryTerm> query);
+
   Map<UniqueEntityDescription, Key> multiRetrieveUniqueKeys(
       Collection<UniqueEntityDescription> entityDefinitions);
 
@@ -15,8 +15,8 @@
 package io.kazuki.v0.store.index.query;
 
 /**
- * All the supported Query operators.
+ * All the supported Query operators. PREFIX matches string values starting with the given value.
  */
 public enum QueryOperator {
-  EQ, NE, GT, GE, LT, LE, IN;
+  EQ, NE, GT, GE, LT, LE, IN, PREFIX;
 }
@@ -22,6 +22,9 @@ import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.management.KazukiComponent;
 import io.kazuki.v0.store.schema.TypeValidation;
 
+import java.util.Collection;
+import java.util.List;
+
 import javax.annotation.Nullable;
 
 public interface JournalStore extends KazukiComponent<JournalStore> {
@@ -30,6 +33,27 @@ public interface JournalStore extends KazukiComponent<JournalStore> {
   <T> Key append(String type, Class<T> clazz, T inValue, TypeValidation typeSafety)
       throws KazukiException;
 
+  /**
+   * Appends the values in order as if by repeated append(), allocating their keys together and
+   * writing them in batches. Returns the keys in the order of the values.
+   */
+  <T> List<Key> appendAll(String type, Class<T> clazz, Collection<T> inValues,
+      TypeValidation typeSafety) throws KazukiException;
+
+  /**
+   * Returns a tail following the journal from the absolute offset (as for entriesAbsolute): its
+   * polls return entries with larger ids, waking up as new entries are appended.
+   */
+  <T> JournalTail<T> tail(String type, Class<T> clazz, long offset) throws KazukiException;
+
+  /**
+   * Replays the journal from the absolute offset (as for entriesAbsolute), reading up to
+   * parallelism partitions at once with at most readAhead entries buffered per partition. Ordered
+   * replays return entries in id order; unordered replays return them as they are read.
+   */
+  <T> KeyValueIterable<KeyValuePair<T>> replay(String type, Class<T> clazz, long offset,
+      int parallelism, int readAhead, boolean ordered) throws KazukiException;
+
   <T> KeyValueIterable<KeyValuePair<T>> entriesRelative(String type, Class<T> clazz,
       SortDirection sortDirection, Long offset, Long limit) throws KazukiException;
 
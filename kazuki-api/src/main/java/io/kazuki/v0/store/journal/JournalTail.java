@@ -0,0 +1,39 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a journal from a position: each poll returns the next entries in id order, waiting for
+ * appends when it has caught up. Partition boundaries are crossed transparently.
+ */
+public interface JournalTail<T> extends AutoCloseable {
+  /**
+   * Returns up to maxEntries entries following the current position, waiting up to the timeout
+   * for at least one to be appended; returns an empty list if none arrives in time.
+   */
+  List<KeyValuePair<T>> poll(int maxEntries, long timeout, TimeUnit unit)
+      throws KazukiException, InterruptedException;
+
+  /** Returns the id of the last entry returned (or the starting offset if none yet) */
+  long getPosition();
+
+  void close();
+}
@@ -14,6 +14,7 @@
  */
 package io.kazuki.v0.store.journal;
 
+import javax.annotation.Nullable;
 
 public interface PartitionInfo {
   String getPartitionId();
@@ -25,4 +26,23 @@ public interface PartitionInfo {
   long getSize();
 
   boolean isClosed();
+
+  /** Returns when the partition was opened (epoch millis), or 0 if unknown */
+  long getCreatedAt();
+
+  /** Returns when the partition was closed (epoch millis), or 0 if open or unknown */
+  long getClosedAt();
+
+  /** Returns the encoded size of the entries as of the last checkpoint, or 0 if unknown */
+  long getByteSize();
+
+  /** Whether the partition has been compacted (see compactionKey) since it was closed */
+  boolean isCompacted();
+
+  /** Returns the number of times compaction has rewritten the partition */
+  int getGeneration();
+
+  /** Returns the path of the sealed segment file holding the entries, or null if not sealed */
+  @Nullable
+  String getArchivePath();
 }
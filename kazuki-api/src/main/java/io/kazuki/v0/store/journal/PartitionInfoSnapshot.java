@@ -14,6 +14,8 @@
  */
 package io.kazuki.v0.store.journal;
 
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class PartitionInfoSnapshot implements PartitionInfo {
@@ -22,15 +24,36 @@ public class PartitionInfoSnapshot implements PartitionInfo {
   private final long minId;
   private final long size;
   private final boolean closed;
+  private final long createdAt;
+  private final long closedAt;
+  private final long byteSize;
+  private final boolean compacted;
+  private final int generation;
+  private final String archivePath;
+
+  public PartitionInfoSnapshot(String partitionId, long minId, long maxId, long size,
+      boolean closed) {
+    this(partitionId, minId, maxId, size, closed, 0L, 0L, 0L, false, 0, null);
+  }
 
   public PartitionInfoSnapshot(@JsonProperty("partitionId") String partitionId,
       @JsonProperty("minId") long minId, @JsonProperty("maxId") long maxId,
-      @JsonProperty("size") long size, @JsonProperty("closed") boolean closed) {
+      @JsonProperty("size") long size, @JsonProperty("closed") boolean closed,
+      @JsonProperty("createdAt") long createdAt, @JsonProperty("closedAt") long closedAt,
+      @JsonProperty("byteSize") long byteSize, @JsonProperty("compacted") boolean compacted,
+      @JsonProperty("generation") int generation,
+      @JsonProperty("archivePath") @Nullable String archivePath) {
     this.partitionId = partitionId;
     this.minId = minId;
     this.maxId = maxId;
     this.size = size;
     this.closed = closed;
+    this.createdAt = createdAt;
+    this.closedAt = closedAt;
+    this.byteSize = byteSize;
+    this.compacted = compacted;
+    this.generation = generation;
+    this.archivePath = archivePath;
   }
 
   @Override
@@ -57,4 +80,35 @@ public class PartitionInfoSnapshot implements PartitionInfo {
   public boolean isClosed() {
     return this.closed;
   }
+
+  @Override
+  public long getCreatedAt() {
+    return this.createdAt;
+  }
+
+  @Override
+  public long getClosedAt() {
+    return this.closedAt;
+  }
+
+  @Override
+  public long getByteSize() {
+    return this.byteSize;
+  }
+
+  @Override
+  public boolean isCompacted() {
+    return this.compacted;
+  }
+
+  @Override
+  public int getGeneration() {
+    return this.generation;
+  }
+
+  @Override
+  @Nullable
+  public String getArchivePath() {
+    return this.archivePath;
+  }
 }
@@ -36,18 +36,27 @@ public class IndexDefinition {
   private final List<IndexAttribute> indexColumns;
   private final List<String> attributeNames;
   private final boolean unique;
+  private final boolean hashed;
   private final Map<String, IndexAttribute> indexAttributeMap;
 
+  public IndexDefinition(String name, List<IndexAttribute> cols, @Nullable Boolean unique) {
+    this(name, cols, unique, null);
+  }
+
   @JsonCreator
   public IndexDefinition(@JsonProperty("name") String name,
       @JsonProperty("cols") List<IndexAttribute> cols,
-      @JsonProperty("unique") @Nullable Boolean unique) {
+      @JsonProperty("unique") @Nullable Boolean unique,
+      @JsonProperty("hashed") @Nullable Boolean hashed) {
     Preconditions.checkNotNull(name, "name");
     Preconditions.checkNotNull(cols, "cols");
     Preconditions.checkArgument(!cols.isEmpty(), "cols");
 
     this.name = name;
     this.unique = (unique != null && unique);
+    this.hashed = (hashed != null && hashed);
+
+    Preconditions.checkArgument(!this.hashed || this.unique, "only unique indexes may be hashed");
 
     List<String> newAttributeNames = new ArrayList<String>();
     Map<String, IndexAttribute> newIndexAttributeMap = new LinkedHashMap<String, IndexAttribute>();
@@ -81,6 +90,14 @@ public class IndexDefinition {
     return unique;
   }
 
+  /**
+   * Whether a unique index is keyed by a 64-bit hash of its attribute values, which is indexed in
+   * place of the attribute columns; matches on the hash are verified against the columns.
+   */
+  public boolean isHashed() {
+    return hashed;
+  }
+
   @JsonIgnore
   public List<String> getAttributeNames() {
     return attributeNames;
@@ -145,6 +145,13 @@ public class Schema {
       return this;
     }
 
+    public Builder addIndex(String name, List<IndexAttribute> cols, Boolean unique,
+        Boolean hashed) {
+      this.indexes.add(new IndexDefinition(name, cols, unique, hashed));
+
+      return this;
+    }
+
     public Schema build() {
       return new Schema(attributes, indexes);
     }
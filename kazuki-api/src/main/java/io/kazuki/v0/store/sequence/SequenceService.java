@@ -19,6 +19,8 @@ import io.kazuki.v0.store.Key;
 import io.kazuki.v0.store.Version;
 import io.kazuki.v0.store.management.KazukiComponent;
 
+import java.util.List;
+
 public interface SequenceService extends KazukiComponent<SequenceService> {
   String getTypeName(final Integer id) throws KazukiException;
 
@@ -28,6 +30,9 @@ public interface SequenceService extends KazukiComponent<SequenceService> {
 
   Key nextKey(String type) throws KazukiException;
 
+  /** Allocates count keys of the type, in ascending order */
+  List<Key> nextKeys(String type, int count) throws KazukiException;
+
   ResolvedKey resolveKey(Key key) throws KazukiException;
 
   Key unresolveKey(ResolvedKey key) throws KazukiException;
@@ -14,12 +14,14 @@ tokens {
   GT   = 'gt' ;
   GE   = 'ge' ;
   IN   = 'in' ;
+  PREFIX = 'prefix' ;
   TRUE = 'true' ;
   FALSE = 'false' ;
   NULL  = 'null' ;
   COMMA = ',' ;
   LPAREN = '(' ;
   RPAREN = ')' ; 
+  PARAM  = '?' ;
 }
 
 @lexer::header  {package io.kazuki.v0.store.index.query;}
@@ -34,6 +36,12 @@ tokens {
 @parser::header {package io.kazuki.v0.store.index.query;}
 
 @members {
+private int parameterCount = 0;
+
+public int getParameterCount() {
+    return parameterCount;
+}
+
 @Override
 public void reportError(RecognitionException e) {
     throw new RuntimeException(e);
@@ -64,6 +72,7 @@ op returns [QueryOperator value] :
         | LE                               { $value = QueryOperator.LE; }
         | GT                               { $value = QueryOperator.GT; }
         | GE                               { $value = QueryOperator.GE; }
+        | PREFIX                           { $value = QueryOperator.PREFIX; }
         ;
 
 value returns [ValueHolder value] :
@@ -73,6 +82,7 @@ value returns [ValueHolder value] :
         | TRUE                             { $value = new ValueHolder(ValueType.BOOLEAN, "true"); }
         | FALSE                            { $value = new ValueHolder(ValueType.BOOLEAN, "false"); }
         | NULL                             { $value = new ValueHolder(ValueType.NULL, "null"); }
+        | PARAM                            { $value = new ParameterValueHolder(parameterCount++); }
         ;
 
 value_in_list [List<ValueHolder> valueList] :
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.internal.hash;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bloom filter over the first k LongHash codes of a string. Additions are lock-free and may race
+ * with lookups; a lookup only answers false if the value was definitely never added. Once more
+ * values than expected have been added the false positive rate climbs, which owners detect with
+ * isSaturated() and answer by rebuilding a larger filter.
+ */
+public class BloomFilter {
+  private final LongHash longHash;
+  private final long expectedInsertions;
+  private final long bitCount;
+  private final int hashCount;
+  private final AtomicLongArray bits;
+  private final AtomicLong insertions = new AtomicLong();
+
+  public BloomFilter(LongHash longHash, long expectedInsertions, double falsePositiveRate) {
+    Preconditions.checkNotNull(longHash, "longHash");
+    Preconditions.checkArgument(expectedInsertions > 0, "invalid expectedInsertions");
+    Preconditions.checkArgument(falsePositiveRate > 0.0 && falsePositiveRate < 1.0,
+        "invalid falsePositiveRate");
+
+    double ln2 = Math.log(2.0);
+    long words =
+        Math.max(1L, (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate)
+            / (ln2 * ln2) / 64.0));
+
+    Preconditions.checkArgument(words <= Integer.MAX_VALUE, "filter too large");
+
+    this.longHash = longHash;
+    this.expectedInsertions = expectedInsertions;
+    this.bitCount = words * 64L;
+    this.hashCount =
+        Math.max(1, Math.min(16, (int) Math.round((double) bitCount / expectedInsertions * ln2)));
+    this.bits = new AtomicLongArray((int) words);
+  }
+
+  public void add(String value) {
+    for (long hash : longHash.getLongHashCodes(value, hashCount)) {
+      long bit = (hash & Long.MAX_VALUE) % bitCount;
+      int word = (int) (bit >>> 6);
+      long mask = 1L << bit;
+
+      while (true) {
+        long current = bits.get(word);
+
+        if ((current & mask) != 0L || bits.compareAndSet(word, current, current | mask)) {
+          break;
+        }
+      }
+    }
+
+    insertions.incrementAndGet();
+  }
+
+  public boolean mightContain(String value) {
+    for (long hash : longHash.getLongHashCodes(value, hashCount)) {
+      long bit = (hash & Long.MAX_VALUE) % bitCount;
+
+      if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0L) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public long getInsertions() {
+    return insertions.get();
+  }
+
+  public boolean isSaturated() {
+    return insertions.get() > expectedInsertions;
+  }
+
+  public long getBitCount() {
+    return bitCount;
+  }
+
+  public int getHashCount() {
+    return hashCount;
+  }
+}
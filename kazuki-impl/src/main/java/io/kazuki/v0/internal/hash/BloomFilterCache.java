@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.internal.hash;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.LogTranslation;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Named Bloom filters that let lookups skip the database for values that are definitely absent.
+ * A filter is loaded in the background the first time it is consulted; until it has loaded (and
+ * after it is invalidated or fills up) lookups report a possible match. Filters are registered
+ * under the store lock before loading starts, so a write either adds to the filter or committed
+ * before the load began and is seen by it. Removals are never applied: a deleted value just
+ * stays a false positive until the filter is next rebuilt.
+ */
+public class BloomFilterCache {
+  public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+  private static final long MIN_EXPECTED_INSERTIONS = 1024L;
+
+  public interface Loader {
+    /** Returns (an estimate of) the number of values of the named filter */
+    long estimateSize(String name) throws Exception;
+
+    /** Adds every value of the named filter currently in the store */
+    void load(String name, BloomFilter filter) throws Exception;
+  }
+
+  private final Logger log = LogTranslation.getLogger(getClass());
+  private final LongHash longHash;
+  private final LockManager lockManager;
+  private final Loader loader;
+  private final String threadNameFormat;
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final Set<String> pending = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private ExecutorService loadExecutor;
+
+  public BloomFilterCache(LongHash longHash, LockManager lockManager, Loader loader,
+      String threadNameFormat) {
+    this.longHash = longHash;
+    this.lockManager = lockManager;
+    this.loader = loader;
+    this.threadNameFormat = threadNameFormat;
+  }
+
+  /** Returns false only if the value was definitely never added to the named filter */
+  public boolean mightContain(String name, String value) {
+    Entry entry = entries.get(name);
+
+    if (entry == null) {
+      scheduleLoad(name);
+
+      return true;
+    }
+
+    return !entry.loaded || entry.filter.mightContain(value);
+  }
+
+  public void add(String name, String value) {
+    Entry entry = entries.get(name);
+
+    if (entry != null) {
+      entry.filter.add(value);
+
+      if (entry.filter.isSaturated()) {
+        // rebuilt at twice the size on the next lookup
+        entries.remove(name, entry);
+      }
+    }
+  }
+
+  public boolean isLoaded(String name) {
+    Entry entry = entries.get(name);
+
+    return entry != null && entry.loaded;
+  }
+
+  public void invalidate(String name) {
+    entries.remove(name);
+  }
+
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  public synchronized void shutdown() {
+    if (loadExecutor != null) {
+      loadExecutor.shutdownNow();
+      loadExecutor = null;
+    }
+
+    entries.clear();
+    pending.clear();
+  }
+
+  private synchronized void scheduleLoad(final String name) {
+    if (!pending.add(name)) {
+      return;
+    }
+
+    if (loadExecutor == null) {
+      loadExecutor =
+          Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat(threadNameFormat).build());
+    }
+
+    loadExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          load(name);
+        } catch (Exception e) {
+          log.warn("Unable to load bloom filter " + name, e);
+        } finally {
+          pending.remove(name);
+        }
+      }
+    });
+  }
+
+  private void load(String name) throws Exception {
+    long expected = Math.max(MIN_EXPECTED_INSERTIONS, 2L * loader.estimateSize(name));
+    Entry entry =
+        new Entry(new BloomFilter(longHash, expected, DEFAULT_FALSE_POSITIVE_RATE));
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (entries.putIfAbsent(name, entry) != null) {
+        return;
+      }
+    }
+
+    try {
+      loader.load(name, entry.filter);
+      entry.loaded = true;
+    } catch (Exception e) {
+      entries.remove(name, entry);
+
+      throw e;
+    }
+  }
+
+  private static class Entry {
+    private final BloomFilter filter;
+    private volatile boolean loaded = false;
+
+    private Entry(BloomFilter filter) {
+      this.filter = filter;
+    }
+  }
+}
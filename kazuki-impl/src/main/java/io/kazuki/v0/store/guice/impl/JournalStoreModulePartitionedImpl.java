@@ -16,7 +16,7 @@ package io.kazuki.v0.store.guice.impl;
 
 import io.kazuki.v0.internal.helper.LockManager;
 import io.kazuki.v0.store.journal.JournalStore;
-import io.kazuki.v0.store.journal.PartitionedJournalStore;
+import io.kazuki.v0.store.journal.JournalStoreProvider;
 import io.kazuki.v0.store.lifecycle.Lifecycle;
 import io.kazuki.v0.store.management.ComponentRegistrar;
 import io.kazuki.v0.store.sequence.SequenceService;
@@ -36,8 +36,8 @@ public class JournalStoreModulePartitionedImpl extends KeyValueStoreModuleJdbiH2
   }
 
   protected void includeInternal() {
-    bind(JournalStore.class).annotatedWith(Names.named(name)).to(PartitionedJournalStore.class)
-        .in(Scopes.SINGLETON);
+    bind(JournalStore.class).annotatedWith(Names.named(name))
+        .toProvider(JournalStoreProvider.class).in(Scopes.SINGLETON);
   }
 
   @Override
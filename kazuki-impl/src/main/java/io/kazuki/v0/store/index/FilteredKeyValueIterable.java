@@ -18,8 +18,6 @@ import io.kazuki.v0.store.keyvalue.KeyValueIterable;
 import io.kazuki.v0.store.keyvalue.KeyValueIterator;
 import io.kazuki.v0.store.keyvalue.KeyValuePair;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 import javax.annotation.Nullable;
 
 import com.google.common.base.Function;
@@ -57,10 +55,10 @@ public class FilteredKeyValueIterable<U> implements KeyValueIterable<U> {
     private final KeyValueIterator<?> innerIter;
     private final Predicate<Object> innerFilter;
     private final Function<KeyValuePair<?>, U> innerTransform;
-    private final Long offset;
-    private final AtomicLong toReturn;
+    private final long offset;
+    private long toReturn;
 
-    private volatile KeyValuePair<?> nextMatch = null;
+    private KeyValuePair<?> nextMatch = null;
 
     public FilteredKeyValueIterator(KeyValueIterator<?> innerIter, Predicate<Object> innerFilter,
         Function<KeyValuePair<?>, U> innerTransform, @Nullable Long offset, @Nullable Long limit) {
@@ -68,7 +66,7 @@ public class FilteredKeyValueIterable<U> implements KeyValueIterable<U> {
       this.innerFilter = innerFilter;
       this.innerTransform = innerTransform;
       this.offset = offset == null ? 0L : offset;
-      this.toReturn = new AtomicLong(limit == null ? -1L : limit);
+      this.toReturn = limit == null ? -1L : limit;
 
       for (long i = 0; i <= this.offset; i++) {
         this.nextMatch = (KeyValuePair<?>) advance();
@@ -79,39 +77,38 @@ public class FilteredKeyValueIterable<U> implements KeyValueIterable<U> {
     }
 
     @Override
-    public synchronized boolean hasNext() {
-      Long remaining = toReturn.get();
-
-      return nextMatch != null && (remaining == -1L || remaining > 0);
+    public boolean hasNext() {
+      return nextMatch != null && (toReturn == -1L || toReturn > 0);
     }
 
     @Override
-    public synchronized U next() {
+    public U next() {
       Preconditions.checkNotNull(nextMatch, "next");
 
       KeyValuePair<?> result = nextMatch;
-      Long remaining = toReturn.get();
 
-      if (remaining == 0L) {
+      if (toReturn == 0L) {
         nextMatch = null;
 
         return null;
-      } else if (remaining == -1L) {
+      } else if (toReturn == -1L) {
         nextMatch = advance();
-      } else if (remaining > 0L) {
-        toReturn.decrementAndGet();
+      } else if (--toReturn > 0L) {
+        nextMatch = advance();
+      } else {
+        nextMatch = null;
       }
 
       return innerTransform.apply(result);
     }
 
     @Override
-    public synchronized void remove() {
+    public void remove() {
       innerIter.remove();
     }
 
     @Override
-    public synchronized void close() {
+    public void close() {
       innerIter.close();
     }
 
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.SqlParamBindings;
+import io.kazuki.v0.store.KazukiException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+
+/**
+ * Collects the index row statements for one or more entity writes so that each distinct statement
+ * (one per index table and operation) goes out as a single JDBC batch. Deletes run before updates
+ * and updates before inserts, so a row may be replaced within the same batch.
+ */
+public class IndexRowBatch {
+  private final Handle handle;
+  private final SecondaryIndexTableHelper tableHelper;
+
+  private final Map<String, PreparedBatch> deletes = new LinkedHashMap<String, PreparedBatch>();
+  private final Map<String, PreparedBatch> updates = new LinkedHashMap<String, PreparedBatch>();
+  private final Map<String, PreparedBatch> inserts = new LinkedHashMap<String, PreparedBatch>();
+
+  public IndexRowBatch(Handle handle, SecondaryIndexTableHelper tableHelper) {
+    this.handle = handle;
+    this.tableHelper = tableHelper;
+  }
+
+  public void delete(String sql, SqlParamBindings bindings) {
+    add(deletes, sql, bindings);
+  }
+
+  public void update(String sql, SqlParamBindings bindings) {
+    add(updates, sql, bindings);
+  }
+
+  public void insert(String sql, SqlParamBindings bindings) {
+    add(inserts, sql, bindings);
+  }
+
+  public boolean isEmpty() {
+    return deletes.isEmpty() && updates.isEmpty() && inserts.isEmpty();
+  }
+
+  public void execute() throws KazukiException {
+    try {
+      execute(deletes);
+      execute(updates);
+      execute(inserts);
+    } catch (UnableToExecuteStatementException e) {
+      if (tableHelper.isConstraintViolation(e)) {
+        throw new KazukiException("unique index constraint violation");
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  private void add(Map<String, PreparedBatch> batches, String sql, SqlParamBindings bindings) {
+    PreparedBatch batch = batches.get(sql);
+
+    if (batch == null) {
+      batch = handle.prepareBatch(sql);
+      batches.put(sql, batch);
+    }
+
+    batch.add(bindings.asList().toArray());
+  }
+
+  private static void execute(Map<String, PreparedBatch> batches) {
+    for (PreparedBatch batch : batches.values()) {
+      batch.execute();
+    }
+
+    batches.clear();
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+
+public class IndexStatisticsImpl implements IndexStatistics {
+  private final String type;
+  private final String indexName;
+  private final long rowCount;
+  private final Map<String, Long> distinctCounts;
+  private final List<String> leadingAttributeBounds;
+  private final long collectedAt;
+
+  public IndexStatisticsImpl(@JsonProperty("type") String type,
+      @JsonProperty("indexName") String indexName, @JsonProperty("rowCount") long rowCount,
+      @JsonProperty("distinctCounts") Map<String, Long> distinctCounts,
+      @JsonProperty("leadingAttributeBounds") List<String> leadingAttributeBounds,
+      @JsonProperty("collectedAt") long collectedAt) {
+    this.type = type;
+    this.indexName = indexName;
+    this.rowCount = rowCount;
+    this.distinctCounts = Collections.unmodifiableMap(new LinkedHashMap<>(distinctCounts));
+    this.leadingAttributeBounds = ImmutableList.copyOf(leadingAttributeBounds);
+    this.collectedAt = collectedAt;
+  }
+
+  @Override
+  public String getType() {
+    return type;
+  }
+
+  @Override
+  public String getIndexName() {
+    return indexName;
+  }
+
+  @Override
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  @Override
+  public Map<String, Long> getDistinctCounts() {
+    return distinctCounts;
+  }
+
+  @Override
+  public List<String> getLeadingAttributeBounds() {
+    return leadingAttributeBounds;
+  }
+
+  @Override
+  public long getCollectedAt() {
+    return collectedAt;
+  }
+
+  @Override
+  public String toString() {
+    return "IndexStatistics[" + type + "." + indexName + ", rows=" + rowCount + ", distinct="
+        + distinctCounts + "]";
+  }
+
+  /** Persisted form: the statistics of every index of one type */
+  public static class TypeStatistics {
+    private final Map<String, IndexStatisticsImpl> indexes;
+
+    public TypeStatistics(@JsonProperty("indexes") Map<String, IndexStatisticsImpl> indexes) {
+      this.indexes = indexes;
+    }
+
+    public Map<String, IndexStatisticsImpl> getIndexes() {
+      return indexes;
+    }
+  }
+}
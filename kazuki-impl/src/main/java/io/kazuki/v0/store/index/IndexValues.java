@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+
+import java.math.BigDecimal;
+import java.util.Comparator;
+
+/**
+ * Ordering and transforms for index attribute values held in memory, following what the index
+ * tables store and how they sort.
+ */
+class IndexValues {
+  /** Nulls first, numbers numerically, anything else as text */
+  static final Comparator<Object> ORDER = new Comparator<Object>() {
+    @Override
+    public int compare(Object a, Object b) {
+      if (a == null || b == null) {
+        return (a == null) ? ((b == null) ? 0 : -1) : 1;
+      }
+
+      if (a instanceof Number && b instanceof Number) {
+        return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+      }
+
+      return a.toString().compareTo(b.toString());
+    }
+  };
+
+  private IndexValues() {}
+
+  /** Applies the attribute's case transform to string values */
+  static Object transform(Object value, IndexAttribute attribute) {
+    if (!(value instanceof String)) {
+      return value;
+    }
+
+    switch (attribute.getTransform()) {
+      case UPPERCASE:
+        return ((String) value).toUpperCase();
+      case LOWERCASE:
+        return ((String) value).toLowerCase();
+      default:
+        return value;
+    }
+  }
+}
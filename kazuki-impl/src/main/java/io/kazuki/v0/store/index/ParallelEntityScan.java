@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+
+/**
+ * Scans the entities of a type in chunks of existing keys, loading and evaluating up to
+ * {@code parallelism} chunks at a time on a thread pool. The keys are read from one key
+ * iteration, so the cost follows the number of entities rather than the span of their ids. Chunk
+ * results come back in key order, so callers can stop after any wave without reading the rest of
+ * the type.
+ */
+public class ParallelEntityScan {
+  public static final int CHUNK_SIZE = 500;
+
+  private final KeyValueStore kvStore;
+  private final ExecutorService executor;
+  private final int parallelism;
+
+  public ParallelEntityScan(KeyValueStore kvStore, ExecutorService executor, int parallelism) {
+    this.kvStore = kvStore;
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /** Opens a cursor over the keys of the type, which must be closed unless read to the end */
+  public Cursor open(String type, SortDirection sortDirection) {
+    return new Cursor(kvStore.iterators().keys(type, LinkedHashMap.class, sortDirection));
+  }
+
+  /** Keys of the entities matching the filter, in key order, with offset and limit applied */
+  public KeyValueIterable<Key> query(final String type, final Predicate<Map<String, Object>> filter,
+      final SortDirection sortDirection, @Nullable final Long offset, @Nullable final Long limit) {
+    return new KeyValueIterable<Key>() {
+      private final List<ScanIterator> opened =
+          Collections.synchronizedList(new ArrayList<ScanIterator>());
+
+      @Override
+      public KeyValueIterator<Key> iterator() {
+        ScanIterator iter = new ScanIterator(open(type, sortDirection), filter, offset, limit);
+        opened.add(iter);
+
+        return iter;
+      }
+
+      @Override
+      public void close() {
+        synchronized (opened) {
+          for (ScanIterator iter : opened) {
+            iter.close();
+          }
+
+          opened.clear();
+        }
+      }
+    };
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private List<KeyValuePair<LinkedHashMap>> load(List<Key> keys) throws KazukiException {
+    List<KeyValuePair<LinkedHashMap>> entities = new ArrayList<KeyValuePair<LinkedHashMap>>();
+
+    for (Map.Entry<Key, LinkedHashMap> entry : kvStore.multiRetrieve(keys, LinkedHashMap.class)
+        .entrySet()) {
+      if (entry.getValue() != null) {
+        entities.add(new KeyValuePair<LinkedHashMap>(entry.getKey(), null, null, entry.getValue()));
+      }
+    }
+
+    return entities;
+  }
+
+  /** Position of a scan over the keys of a type; it closes itself once the keys run out */
+  public class Cursor implements AutoCloseable {
+    private final KeyValueIterable<Key> keys;
+    private final KeyValueIterator<Key> keyIter;
+    private boolean closed = false;
+
+    private Cursor(KeyValueIterable<Key> keys) {
+      this.keys = keys;
+      this.keyIter = keys.iterator();
+    }
+
+    public boolean hasNext() {
+      if (!closed && !keyIter.hasNext()) {
+        close();
+      }
+
+      return !closed;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        keyIter.close();
+        keys.close();
+      }
+    }
+
+    /**
+     * Applies the function to the next {@code parallelism} chunks concurrently and returns the
+     * results in scan order.
+     */
+    @SuppressWarnings("rawtypes")
+    public <R> List<R> nextWave(final Function<List<KeyValuePair<LinkedHashMap>>, R> chunkFunction)
+        throws KazukiException {
+      List<Future<R>> futures = new ArrayList<Future<R>>();
+
+      for (int i = 0; i < parallelism && hasNext(); i++) {
+        final List<Key> keys = new ArrayList<Key>(CHUNK_SIZE);
+
+        for (int j = 0; j < CHUNK_SIZE && hasNext(); j++) {
+          keys.add(keyIter.next());
+        }
+
+        futures.add(executor.submit(new Callable<R>() {
+          @Override
+          public R call() throws Exception {
+            return chunkFunction.apply(load(keys));
+          }
+        }));
+      }
+
+      List<R> results = new ArrayList<R>(futures.size());
+
+      try {
+        for (Future<R> future : futures) {
+          results.add(future.get());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        throw Throwables.propagate(e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), KazukiException.class);
+
+        throw Throwables.propagate(e.getCause());
+      } finally {
+        for (Future<R> future : futures) {
+          future.cancel(true);
+        }
+      }
+
+      return results;
+    }
+  }
+
+  private static class ScanIterator implements KeyValueIterator<Key> {
+    private final Cursor cursor;
+    private final Predicate<Map<String, Object>> filter;
+    private final Deque<Key> buffer = new ArrayDeque<Key>();
+    private long toSkip;
+    private long remaining;
+
+    public ScanIterator(Cursor cursor, Predicate<Map<String, Object>> filter,
+        @Nullable Long offset, @Nullable Long limit) {
+      this.cursor = cursor;
+      this.filter = filter;
+      this.toSkip = offset == null ? 0L : offset;
+      this.remaining = limit == null ? -1L : limit;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (buffer.isEmpty() && remaining != 0L && cursor.hasNext()) {
+        fill();
+      }
+
+      return !buffer.isEmpty() && remaining != 0L;
+    }
+
+    @Override
+    public Key next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      if (remaining > 0L) {
+        remaining -= 1;
+      }
+
+      return buffer.poll();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove");
+    }
+
+    @Override
+    public void close() {
+      buffer.clear();
+      cursor.close();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void fill() {
+      List<List<Key>> wave;
+
+      try {
+        wave = cursor.nextWave(new Function<List<KeyValuePair<LinkedHashMap>>, List<Key>>() {
+          @SuppressWarnings("unchecked")
+          @Override
+          public List<Key> apply(List<KeyValuePair<LinkedHashMap>> chunk) {
+            List<Key> matches = new ArrayList<Key>();
+
+            for (KeyValuePair<LinkedHashMap> entity : chunk) {
+              if (filter.apply(entity.getValue())) {
+                matches.add(entity.getKey());
+              }
+            }
+
+            return matches;
+          }
+        });
+      } catch (KazukiException e) {
+        throw Throwables.propagate(e);
+      }
+
+      for (List<Key> matches : wave) {
+        for (Key key : matches) {
+          if (toSkip > 0L) {
+            toSkip -= 1;
+          } else {
+            buffer.add(key);
+          }
+        }
+      }
+    }
+  }
+}
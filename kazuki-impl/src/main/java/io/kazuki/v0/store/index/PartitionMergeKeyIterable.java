@@ -0,0 +1,275 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.sequence.KeyImpl;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nullable;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Merges index query results from several partitions into one ordered stream of keys. Each
+ * partition's rows arrive ordered by the index attributes and then id (see
+ * SecondaryIndexTableHelper.getMergeableIndexQuery); the queries are started concurrently and
+ * merged with a k-way heap merge, holding one row per partition at a time.
+ */
+public class PartitionMergeKeyIterable implements KeyValueIterable<Key> {
+  /** Maps a row to its column values: "_id" first, then the index attributes */
+  public static final ResultSetMapper<Object[]> ROW_MAPPER = new ResultSetMapper<Object[]>() {
+    @Override
+    public Object[] map(int index, ResultSet r, StatementContext ctx) throws SQLException {
+      Object[] row = new Object[r.getMetaData().getColumnCount()];
+
+      for (int i = 0; i < row.length; i++) {
+        row[i] = r.getObject(i + 1);
+      }
+
+      return row;
+    }
+  };
+
+  private final String type;
+  private final List<Callable<PartitionCursor>> sources;
+  private final ExecutorService executor;
+  private final SortDirection sortDirection;
+  private final Long offset;
+  private final Long limit;
+  private final List<MergeIterator> iterators = new ArrayList<MergeIterator>();
+
+  public PartitionMergeKeyIterable(String type, List<Callable<PartitionCursor>> sources,
+      ExecutorService executor, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    this.type = type;
+    this.sources = sources;
+    this.executor = executor;
+    this.sortDirection = sortDirection;
+    this.offset = offset;
+    this.limit = limit;
+  }
+
+  @Override
+  public KeyValueIterator<Key> iterator() {
+    MergeIterator iterator = new MergeIterator(open());
+
+    synchronized (iterators) {
+      iterators.add(iterator);
+    }
+
+    return iterator;
+  }
+
+  @Override
+  public void close() {
+    synchronized (iterators) {
+      for (MergeIterator iterator : iterators) {
+        iterator.close();
+      }
+
+      iterators.clear();
+    }
+  }
+
+  private List<PartitionCursor> open() {
+    List<Future<PartitionCursor>> futures = new ArrayList<Future<PartitionCursor>>();
+
+    for (Callable<PartitionCursor> source : sources) {
+      futures.add(executor.submit(source));
+    }
+
+    List<PartitionCursor> cursors = new ArrayList<PartitionCursor>();
+    Throwable failure = null;
+
+    for (Future<PartitionCursor> future : futures) {
+      try {
+        cursors.add(future.get());
+      } catch (ExecutionException e) {
+        failure = (failure == null) ? e.getCause() : failure;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = (failure == null) ? e : failure;
+      }
+    }
+
+    if (failure != null) {
+      for (PartitionCursor cursor : cursors) {
+        cursor.close();
+      }
+
+      throw Throwables.propagate(failure);
+    }
+
+    return cursors;
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private static int compareValues(Object a, Object b) {
+    if (a == null || b == null) {
+      // nulls sort first, as in the database
+      return (a == null) ? ((b == null) ? 0 : -1) : 1;
+    }
+
+    return ((Comparable) a).compareTo(b);
+  }
+
+  /** Open query against one partition; {@link #getHead()} is the next unmerged row */
+  public static class PartitionCursor {
+    private final Handle handle;
+    private final ResultIterator<Object[]> rows;
+    private Object[] head;
+
+    public PartitionCursor(Handle handle, ResultIterator<Object[]> rows) {
+      this.handle = handle;
+      this.rows = rows;
+    }
+
+    public Object[] getHead() {
+      return head;
+    }
+
+    private boolean advance() {
+      head = rows.hasNext() ? rows.next() : null;
+
+      return head != null;
+    }
+
+    private void close() {
+      head = null;
+      rows.close();
+      handle.close();
+    }
+  }
+
+  private class MergeIterator implements KeyValueIterator<Key> {
+    private final List<PartitionCursor> cursors;
+    private final PriorityQueue<PartitionCursor> heap;
+    private long toSkip;
+    private long remaining;
+
+    public MergeIterator(List<PartitionCursor> cursors) {
+      this.cursors = cursors;
+      this.heap =
+          new PriorityQueue<PartitionCursor>(Math.max(1, cursors.size()),
+              new Comparator<PartitionCursor>() {
+                private final int sign = SortDirection.ASCENDING.equals(sortDirection) ? 1 : -1;
+
+                @Override
+                public int compare(PartitionCursor a, PartitionCursor b) {
+                  Object[] rowA = a.getHead();
+                  Object[] rowB = b.getHead();
+
+                  for (int i = 1; i < rowA.length; i++) {
+                    int comparison = compareValues(rowA[i], rowB[i]);
+
+                    if (comparison != 0) {
+                      return sign * comparison;
+                    }
+                  }
+
+                  return sign * compareValues(rowA[0], rowB[0]);
+                }
+              });
+      this.toSkip = offset == null ? 0L : offset;
+      this.remaining = limit == null ? -1L : limit;
+
+      for (PartitionCursor cursor : cursors) {
+        if (cursor.advance()) {
+          heap.add(cursor);
+        } else {
+          cursor.close();
+        }
+      }
+
+      while (toSkip > 0L && !heap.isEmpty()) {
+        pop();
+        toSkip -= 1;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heap.isEmpty() && remaining != 0L;
+    }
+
+    @Override
+    public Key next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      if (remaining > 0L) {
+        remaining -= 1;
+      }
+
+      Key key = pop();
+
+      if (remaining == 0L) {
+        close();
+      }
+
+      return key;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove");
+    }
+
+    @Override
+    public void close() {
+      heap.clear();
+
+      for (PartitionCursor cursor : cursors) {
+        if (cursor.getHead() != null) {
+          cursor.close();
+        }
+      }
+    }
+
+    private Key pop() {
+      PartitionCursor cursor = heap.poll();
+      Key key = KeyImpl.createInternal(type, ((Number) cursor.getHead()[0]).longValue());
+
+      if (cursor.advance()) {
+        heap.add(cursor);
+      } else {
+        cursor.close();
+      }
+
+      return key;
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.query.QueryEvaluator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+
+/**
+ * Executes the non-driving part of a QueryPlan: keys from the driving index are checked against
+ * the key sets of the intersected indexes, then (in batches) the remaining keys are loaded and
+ * checked against the residual terms. Offset and limit apply to the filtered stream.
+ */
+public class PlannedQueryKeyIterable implements KeyValueIterable<Key> {
+  public static final int BATCH_SIZE = 100;
+
+  private final KeyValueIterable<Key> driver;
+  private final List<Set<Key>> intersect;
+  private final List<QueryTerm> residual;
+  private final Predicate<Map<String, Object>> residualFilter;
+  private final KeyValueStore kvStore;
+  private final Long offset;
+  private final Long limit;
+
+  public PlannedQueryKeyIterable(KeyValueIterable<Key> driver, List<Set<Key>> intersect,
+      List<QueryTerm> residual, KeyValueStore kvStore, @Nullable Long offset, @Nullable Long limit) {
+    this.driver = driver;
+    this.intersect = intersect;
+    this.residual = residual;
+    this.residualFilter = new QueryEvaluator().compile(residual);
+    this.kvStore = kvStore;
+    this.offset = offset;
+    this.limit = limit;
+  }
+
+  @Override
+  public KeyValueIterator<Key> iterator() {
+    return new PlannedQueryKeyIterator(driver.iterator());
+  }
+
+  @Override
+  public void close() {
+    driver.close();
+  }
+
+  private class PlannedQueryKeyIterator implements KeyValueIterator<Key> {
+    private final KeyValueIterator<Key> innerIter;
+    private final ArrayDeque<Key> buffer = new ArrayDeque<Key>();
+    private long toSkip;
+    private long remaining;
+
+    public PlannedQueryKeyIterator(KeyValueIterator<Key> innerIter) {
+      this.innerIter = innerIter;
+      this.toSkip = offset == null ? 0L : offset;
+      this.remaining = limit == null ? -1L : limit;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (remaining == 0L) {
+        return false;
+      }
+
+      while (buffer.isEmpty() && innerIter.hasNext()) {
+        fill();
+      }
+
+      return !buffer.isEmpty();
+    }
+
+    @Override
+    public Key next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+
+      if (remaining > 0L) {
+        remaining -= 1;
+      }
+
+      return buffer.poll();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove() not supported");
+    }
+
+    @Override
+    public void close() {
+      innerIter.close();
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void fill() {
+      List<Key> batch = new ArrayList<Key>();
+
+      while (batch.size() < BATCH_SIZE && innerIter.hasNext()) {
+        Key key = innerIter.next();
+
+        if (containedInAll(key)) {
+          batch.add(key);
+        }
+      }
+
+      if (!residual.isEmpty() && !batch.isEmpty()) {
+        Map<Key, LinkedHashMap> entities;
+
+        try {
+          entities = kvStore.multiRetrieve(batch, LinkedHashMap.class);
+        } catch (KazukiException e) {
+          throw Throwables.propagate(e);
+        }
+
+        List<Key> matched = new ArrayList<Key>();
+
+        for (Key key : batch) {
+          LinkedHashMap entity = entities.get(key);
+
+          if (entity != null && residualFilter.apply(entity)) {
+            matched.add(key);
+          }
+        }
+
+        batch = matched;
+      }
+
+      for (Key key : batch) {
+        if (toSkip > 0L) {
+          toSkip -= 1;
+        } else {
+          buffer.add(key);
+        }
+      }
+    }
+
+    private boolean containedInAll(Key key) {
+      for (Set<Key> keys : intersect) {
+        if (!keys.contains(key)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.index.query.QueryTerm;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+public class QueryPlanImpl implements QueryPlan {
+  private final String type;
+  private final Map<String, List<QueryTerm>> indexTerms;
+  private final List<String> skippedIndexNames;
+  private final List<QueryTerm> residualTerms;
+  private final Long estimatedRows;
+
+  public QueryPlanImpl(String type, Map<String, List<QueryTerm>> indexTerms,
+      List<String> skippedIndexNames, List<QueryTerm> residualTerms, @Nullable Long estimatedRows) {
+    this.type = type;
+    this.indexTerms = Collections.unmodifiableMap(new LinkedHashMap<>(indexTerms));
+    this.skippedIndexNames = ImmutableList.copyOf(skippedIndexNames);
+    this.residualTerms = ImmutableList.copyOf(residualTerms);
+    this.estimatedRows = estimatedRows;
+  }
+
+  public static QueryPlanImpl fullScan(String type, List<QueryTerm> query) {
+    return new QueryPlanImpl(type, Collections.<String, List<QueryTerm>>emptyMap(),
+        Collections.<String>emptyList(), query, null);
+  }
+
+  @Override
+  public String getType() {
+    return type;
+  }
+
+  @Override
+  public List<String> getIndexNames() {
+    return ImmutableList.copyOf(indexTerms.keySet());
+  }
+
+  @Override
+  public List<QueryTerm> getIndexTerms(String indexName) {
+    List<QueryTerm> terms = indexTerms.get(indexName);
+
+    return terms == null ? Collections.<QueryTerm>emptyList() : terms;
+  }
+
+  @Override
+  public List<String> getSkippedIndexNames() {
+    return skippedIndexNames;
+  }
+
+  @Override
+  public List<QueryTerm> getResidualTerms() {
+    return residualTerms;
+  }
+
+  @Override
+  @Nullable
+  public Long getEstimatedRows() {
+    return estimatedRows;
+  }
+
+  @Override
+  public boolean isFullScan() {
+    return indexTerms.isEmpty();
+  }
+
+  public String getDrivingIndexName() {
+    return isFullScan() ? null : indexTerms.keySet().iterator().next();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("QueryPlan[type=").append(type);
+
+    if (isFullScan()) {
+      builder.append(", full scan");
+    }
+
+    for (Map.Entry<String, List<QueryTerm>> entry : indexTerms.entrySet()) {
+      builder.append(", index ").append(entry.getKey()).append(entry.getValue());
+    }
+
+    if (!skippedIndexNames.isEmpty()) {
+      builder.append(", not intersected ").append(skippedIndexNames);
+    }
+
+    builder.append(", residual").append(residualTerms);
+
+    if (estimatedRows != null) {
+      builder.append(", estimated rows ").append(estimatedRows);
+    }
+
+    builder.append("]");
+
+    return builder.toString();
+  }
+}
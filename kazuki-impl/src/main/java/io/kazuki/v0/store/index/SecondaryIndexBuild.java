@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * State of an online index build for one type: the indexes being built into shadow tables, the
+ * id range still to be scanned, and how far the scan has progressed. Instances double as the
+ * persisted checkpoint that lets an interrupted build resume.
+ */
+public class SecondaryIndexBuild {
+  private final String type;
+  private final Schema schema;
+  private final Schema oldSchema;
+  private final List<String> indexNames;
+  private final long maxId;
+  private final AtomicLong nextId;
+  private final AtomicLong processed;
+  private final long startedAt;
+  private final NavigableSet<Long> written = new ConcurrentSkipListSet<Long>();
+  private volatile boolean done = false;
+
+  public SecondaryIndexBuild(@JsonProperty("type") String type,
+      @JsonProperty("schema") Schema schema, @JsonProperty("oldSchema") Schema oldSchema,
+      @JsonProperty("indexNames") List<String> indexNames, @JsonProperty("maxId") long maxId,
+      @JsonProperty("nextId") long nextId, @JsonProperty("processed") long processed,
+      @JsonProperty("startedAt") long startedAt) {
+    this.type = type;
+    this.schema = schema;
+    this.oldSchema = oldSchema;
+    this.indexNames = ImmutableList.copyOf(indexNames);
+    this.maxId = maxId;
+    this.nextId = new AtomicLong(nextId);
+    this.processed = new AtomicLong(processed);
+    this.startedAt = startedAt;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  /** The schema the indexes are being built for */
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /** The schema whose index tables keep serving queries until the swap */
+  public Schema getOldSchema() {
+    return oldSchema;
+  }
+
+  public List<String> getIndexNames() {
+    return indexNames;
+  }
+
+  /** Highest entity id that existed when the build started; later ids arrive via the listener */
+  public long getMaxId() {
+    return maxId;
+  }
+
+  /** First id not yet scanned */
+  public long getNextId() {
+    return nextId.get();
+  }
+
+  /** Number of entities copied into the shadow tables so far */
+  public long getProcessed() {
+    return processed.get();
+  }
+
+  public long getStartedAt() {
+    return startedAt;
+  }
+
+  @JsonIgnore
+  public boolean isDone() {
+    return done;
+  }
+
+  @JsonIgnore
+  public int getPercentComplete() {
+    if (done || maxId <= 0L) {
+      return done ? 100 : 0;
+    }
+
+    return (int) Math.min(99L, (nextId.get() * 100L) / (maxId + 1L));
+  }
+
+  public boolean isBuilding(String indexName) {
+    return !done && indexNames.contains(indexName);
+  }
+
+  /**
+   * Records an id the scan has yet to pass that a concurrent writer touched. The write may still
+   * roll back, so the scan re-reads such ids under the store lock rather than using its own copy.
+   */
+  public void markWritten(long id) {
+    if (id >= nextId.get() && id <= maxId) {
+      written.add(id);
+    }
+  }
+
+  /** Returns the ids between lo and hi (inclusive) touched by writers */
+  public List<Long> getWritten(long lo, long hi) {
+    return new ArrayList<Long>(written.subSet(lo, true, hi, true));
+  }
+
+  /** Moves the scan cursor, forgetting the written ids it has passed */
+  public void advance(long next, long count) {
+    nextId.set(next);
+    written.headSet(next).clear();
+    processed.addAndGet(count);
+  }
+
+  public void markDone() {
+    done = true;
+  }
+
+  @Override
+  public String toString() {
+    return "SecondaryIndexBuild[" + type + " " + indexNames + ", next=" + nextId.get() + "/"
+        + maxId + ", processed=" + processed.get() + (done ? ", done" : "") + "]";
+  }
+}
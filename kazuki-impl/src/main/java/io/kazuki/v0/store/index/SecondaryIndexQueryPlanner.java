@@ -0,0 +1,315 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.index.query.QueryEvaluator;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Chooses the indexes used to answer a query that does not name one. Each index whose first
+ * attribute is constrained by the query is a candidate; the candidate with the longest run of
+ * equality terms on its leading attributes drives the scan (a fully specified unique index always
+ * wins). Other candidates with an equality term on their first attribute are intersected with the
+ * driving index only when statistics estimate that they match at most MAX_INTERSECT_SELECTIVITY of
+ * the rows, since intersecting loads all of their keys; the terms of the other candidates, and any
+ * terms no chosen index covers, are left as residual terms. When statistics are available for both
+ * candidates being compared, the one with the lower estimated row count wins.
+ */
+public class SecondaryIndexQueryPlanner {
+  private static final double RANGE_SELECTIVITY = 1.0 / 3.0;
+  static final double MAX_INTERSECT_SELECTIVITY = 0.05;
+
+  private final SecondaryIndexStatistics statistics;
+  private final QueryEvaluator eval = new QueryEvaluator();
+
+  public SecondaryIndexQueryPlanner() {
+    this(null);
+  }
+
+  public SecondaryIndexQueryPlanner(@Nullable SecondaryIndexStatistics statistics) {
+    this.statistics = statistics;
+  }
+
+  public QueryPlanImpl plan(String type, Schema schema, List<QueryTerm> query) {
+    Preconditions.checkNotNull(query, "query");
+    Preconditions.checkNotNull(schema, "schema");
+
+    for (QueryTerm term : query) {
+      if (schema.getAttribute(term.getField()) == null) {
+        throw new IllegalArgumentException("unknown schema attribute: " + term.getField());
+      }
+    }
+
+    List<Candidate> candidates = new ArrayList<Candidate>();
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      Candidate candidate = evaluate(type, indexDef, query);
+
+      if (candidate != null) {
+        candidates.add(candidate);
+      }
+    }
+
+    if (candidates.isEmpty()) {
+      return QueryPlanImpl.fullScan(type, query);
+    }
+
+    Candidate best = null;
+
+    for (Candidate candidate : candidates) {
+      if (best == null || candidate.compareTo(best) > 0) {
+        best = candidate;
+      }
+    }
+
+    Map<String, List<QueryTerm>> indexTerms = new LinkedHashMap<String, List<QueryTerm>>();
+    Set<QueryTerm> covered = new HashSet<QueryTerm>();
+    List<String> skipped = new ArrayList<String>();
+
+    indexTerms.put(best.indexName, best.terms);
+    covered.addAll(best.terms);
+
+    if (!best.unique) {
+      for (Candidate candidate : candidates) {
+        if (candidate == best || candidate.leadingEquality == 0
+            || covered.containsAll(candidate.terms)) {
+          continue;
+        }
+
+        if (candidate.selectivity == null || candidate.selectivity > MAX_INTERSECT_SELECTIVITY) {
+          skipped.add(candidate.indexName);
+          continue;
+        }
+
+        indexTerms.put(candidate.indexName, candidate.terms);
+        covered.addAll(candidate.terms);
+      }
+    }
+
+    List<QueryTerm> residual = new ArrayList<QueryTerm>();
+
+    for (QueryTerm term : query) {
+      if (!covered.contains(term)) {
+        residual.add(term);
+      }
+    }
+
+    return new QueryPlanImpl(type, indexTerms, skipped, residual, best.estimatedRows);
+  }
+
+  private Candidate evaluate(String type, IndexDefinition indexDef, List<QueryTerm> query) {
+    List<String> attributeNames = indexDef.getAttributeNames();
+    List<QueryTerm> terms = new ArrayList<QueryTerm>();
+    Set<String> fields = new HashSet<String>();
+    boolean allEquality = true;
+
+    for (QueryTerm term : query) {
+      if (attributeNames.contains(term.getField())) {
+        terms.add(term);
+        fields.add(term.getField());
+        allEquality = allEquality && term.getOperator().equals(QueryOperator.EQ);
+      }
+    }
+
+    if (!fields.contains(attributeNames.get(0))) {
+      return null;
+    }
+
+    if (indexDef.isUnique()) {
+      if (!allEquality || fields.size() != indexDef.getIndexAttributeMap().size()) {
+        return null;
+      }
+
+      return new Candidate(indexDef.getName(), terms, true, attributeNames.size(), false, 1L,
+          null);
+    }
+
+    int leadingEquality = 0;
+    boolean range = false;
+
+    for (IndexAttribute attr : indexDef.getIndexAttributes()) {
+      if (hasTerm(terms, attr.getName(), true)) {
+        leadingEquality += 1;
+        continue;
+      }
+
+      range = hasTerm(terms, attr.getName(), false);
+      break;
+    }
+
+    IndexStatistics stats =
+        (statistics == null) ? null : statistics.getStatistics(type, indexDef.getName());
+
+    if (stats == null) {
+      return new Candidate(indexDef.getName(), terms, false, leadingEquality, range, null, null);
+    }
+
+    long estimatedRows = estimateRows(stats, indexDef, terms, leadingEquality, range);
+    Double selectivity =
+        stats.getRowCount() > 0L ? (double) estimatedRows / stats.getRowCount() : null;
+
+    return new Candidate(indexDef.getName(), terms, false, leadingEquality, range, estimatedRows,
+        selectivity);
+  }
+
+  private long estimateRows(IndexStatistics stats, IndexDefinition indexDef,
+      List<QueryTerm> terms, int leadingEquality, boolean range) {
+    double rows = stats.getRowCount();
+    List<IndexAttribute> attrs = indexDef.getIndexAttributes();
+
+    for (int i = 0; i < leadingEquality; i++) {
+      String attrName = attrs.get(i).getName();
+      Long distinct = stats.getDistinctCounts().get(attrName);
+
+      if (distinct != null && distinct > 0L) {
+        rows = rows * pointLookups(terms, attrName) / distinct;
+      }
+    }
+
+    if (range) {
+      rows *=
+          (leadingEquality == 0) ? histogramSelectivity(stats, attrs.get(0).getName(), terms)
+              : RANGE_SELECTIVITY;
+    }
+
+    return (long) Math.ceil(rows);
+  }
+
+  private static int pointLookups(List<QueryTerm> terms, String field) {
+    for (QueryTerm term : terms) {
+      if (term.getField().equals(field)) {
+        if (term.getOperator().equals(QueryOperator.IN)) {
+          return term.getValueList().getValueList().size();
+        } else if (term.getOperator().equals(QueryOperator.EQ)) {
+          return 1;
+        }
+      }
+    }
+
+    return 1;
+  }
+
+  private double histogramSelectivity(IndexStatistics stats, String field, List<QueryTerm> terms) {
+    List<String> bounds = stats.getLeadingAttributeBounds();
+
+    if (bounds.isEmpty()) {
+      return RANGE_SELECTIVITY;
+    }
+
+    int matching = 0;
+
+    BOUND: for (String bound : bounds) {
+      for (QueryTerm term : terms) {
+        if (term.getField().equals(field) && !term.getOperator().equals(QueryOperator.IN)
+            && !eval.evaluate(term.getOperator(), bound, term.getValue())) {
+          continue BOUND;
+        }
+      }
+
+      matching += 1;
+    }
+
+    return (matching + 1.0) / (bounds.size() + 1.0);
+  }
+
+  private static boolean hasTerm(List<QueryTerm> terms, String field, boolean equality) {
+    for (QueryTerm term : terms) {
+      if (!term.getField().equals(field)) {
+        continue;
+      }
+
+      switch (term.getOperator()) {
+        case EQ:
+        case IN:
+          if (equality) {
+            return true;
+          }
+          break;
+        case GT:
+        case GE:
+        case LT:
+        case LE:
+        case PREFIX:
+          if (!equality) {
+            return true;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+
+    return false;
+  }
+
+  private static class Candidate implements Comparable<Candidate> {
+    private final String indexName;
+    private final List<QueryTerm> terms;
+    private final boolean unique;
+    private final int leadingEquality;
+    private final boolean range;
+    private final Long estimatedRows;
+    private final Double selectivity;
+
+    public Candidate(String indexName, List<QueryTerm> terms, boolean unique,
+        int leadingEquality, boolean range, @Nullable Long estimatedRows,
+        @Nullable Double selectivity) {
+      this.indexName = indexName;
+      this.terms = terms;
+      this.unique = unique;
+      this.leadingEquality = leadingEquality;
+      this.range = range;
+      this.estimatedRows = estimatedRows;
+      this.selectivity = selectivity;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      if (unique != other.unique) {
+        return unique ? 1 : -1;
+      }
+
+      if (estimatedRows != null && other.estimatedRows != null
+          && !estimatedRows.equals(other.estimatedRows)) {
+        return estimatedRows < other.estimatedRows ? 1 : -1;
+      }
+
+      if (leadingEquality != other.leadingEquality) {
+        return leadingEquality - other.leadingEquality;
+      }
+
+      if (range != other.range) {
+        return range ? 1 : -1;
+      }
+
+      return terms.size() - other.terms.size();
+    }
+  }
+}
@@ -16,6 +16,7 @@ package io.kazuki.v0.store.index;
 
 import io.kazuki.v0.store.index.query.QueryOperator;
 import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueType;
 import io.kazuki.v0.store.schema.model.Attribute;
 import io.kazuki.v0.store.schema.model.IndexAttribute;
 import io.kazuki.v0.store.schema.model.IndexDefinition;
@@ -44,16 +45,7 @@ public class SecondaryIndexQueryValidation {
     for (QueryTerm term : query) {
       String attrName = term.getField();
 
-      Attribute existsSchema = schema.getAttribute(attrName);
-
-      if (existsSchema == null) {
-        throw new IllegalArgumentException("unknown schema attribute: " + attrName);
-      }
-
-      IndexAttribute existsIndex = indexDef.getIndexAttribute(attrName);
-      if (existsIndex == null) {
-        throw new IllegalArgumentException("unknown index attribute: " + attrName);
-      }
+      validateTerm(term, indexDef, schema);
 
       containsFirst = containsFirst || attrName.equals(firstIndexCol);
       allEquality = allEquality && term.getOperator().equals(QueryOperator.EQ);
@@ -78,4 +70,48 @@ public class SecondaryIndexQueryValidation {
       }
     }
   }
+
+  /**
+   * Validates the terms of an aggregate (count, min, max) query: unlike index queries, these may
+   * filter on any subset of the index attributes, including none.
+   */
+  public static void validateAggregateQuery(String indexName, List<QueryTerm> query,
+      Schema schema) {
+    Preconditions.checkNotNull(query, "query");
+    Preconditions.checkNotNull(schema, "schema");
+
+    IndexDefinition indexDef = schema.getIndex(indexName);
+    Preconditions.checkNotNull(indexDef, "index");
+
+    for (QueryTerm term : query) {
+      validateTerm(term, indexDef, schema);
+    }
+  }
+
+  private static void validateTerm(QueryTerm term, IndexDefinition indexDef, Schema schema) {
+    String attrName = term.getField();
+
+    Attribute existsSchema = schema.getAttribute(attrName);
+
+    if (existsSchema == null) {
+      throw new IllegalArgumentException("unknown schema attribute: " + attrName);
+    }
+
+    IndexAttribute existsIndex = indexDef.getIndexAttribute(attrName);
+    if (existsIndex == null) {
+      throw new IllegalArgumentException("unknown index attribute: " + attrName);
+    }
+
+    if (term.getOperator().equals(QueryOperator.PREFIX)) {
+      if (!isStringType(existsSchema.getType())
+          || !term.getValue().getValueType().equals(ValueType.STRING)) {
+        throw new IllegalArgumentException("prefix query requires string attribute and value: "
+            + attrName);
+      }
+    }
+  }
+
+  private static boolean isStringType(Attribute.Type type) {
+    return type.equals(Attribute.Type.UTF8_SMALLSTRING) || type.equals(Attribute.Type.UTF8_TEXT);
+  }
 }
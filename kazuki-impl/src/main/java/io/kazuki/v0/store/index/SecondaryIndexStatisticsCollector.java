@@ -0,0 +1,404 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.hash.HyperLogLog;
+import io.kazuki.v0.internal.hash.LongHash;
+import io.kazuki.v0.internal.hash.MurmurHash;
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.LogTranslation;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.IndexStatisticsImpl.TypeStatistics;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.management.KazukiComponent;
+import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreImpl;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.ResultSetMapper;
+import org.skife.jdbi.v2.util.LongMapper;
+import org.slf4j.Logger;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Collects row counts, HyperLogLog distinct-value estimates and an equi-depth histogram of the
+ * leading attribute for each secondary index table. Index tables above SAMPLE_ROWS rows are
+ * sampled by striding over blocks of ids, and the distinct counts of the sample are scaled up to
+ * the whole table.
+ * Statistics are persisted as one LAX entity per type (under the "$idxstats" type, keyed by type
+ * id) and cached in memory for the planner.
+ */
+public class SecondaryIndexStatisticsCollector implements SecondaryIndexStatistics {
+  public static final String STATS_PREFIX = "$idxstats";
+  public static final int HISTOGRAM_BUCKETS = 16;
+  public static final long DEFAULT_INTERVAL_SECONDS = 600L;
+  public static final long SAMPLE_ROWS = 20000L;
+  private static final int SAMPLE_PRECISION = 16;
+
+  private final Logger log = LogTranslation.getLogger(getClass());
+
+  private final IDBI database;
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final SecondaryIndexTableHelper tableHelper;
+  private final String groupName;
+  private final String storeName;
+  private final String partitionName;
+  private final LongHash longHash = new MurmurHash();
+  private final ConcurrentHashMap<String, IndexStatisticsImpl> statistics =
+      new ConcurrentHashMap<String, IndexStatisticsImpl>();
+  private final ConcurrentHashMap<String, Boolean> loaded =
+      new ConcurrentHashMap<String, Boolean>();
+  private final ComponentDescriptor<SecondaryIndexStatistics> componentDescriptor;
+
+  private volatile ScheduledExecutorService executor;
+
+  public SecondaryIndexStatisticsCollector(IDBI database, LockManager lockManager,
+      SequenceService sequence, SchemaStore schemaStore, KeyValueStore kvStore,
+      SecondaryIndexTableHelper tableHelper, String groupName, String storeName,
+      String partitionName) {
+    this.database = database;
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.tableHelper = tableHelper;
+    this.groupName = groupName;
+    this.storeName = storeName;
+    this.partitionName = partitionName;
+    this.componentDescriptor =
+        new ComponentDescriptorImpl<SecondaryIndexStatistics>("KZ:SecondaryIndexStatistics:"
+            + groupName + "-" + storeName + "-" + partitionName, SecondaryIndexStatistics.class,
+            (SecondaryIndexStatistics) this, new ImmutableList.Builder().add(
+                ((KazukiComponent) this.sequence).getComponentDescriptor(),
+                ((KazukiComponent) this.kvStore).getComponentDescriptor()).build());
+  }
+
+  @Override
+  public ComponentDescriptor<SecondaryIndexStatistics> getComponentDescriptor() {
+    return this.componentDescriptor;
+  }
+
+  @Override
+  public void registerAsComponent(ComponentRegistrar manager) {
+    manager.register(this.componentDescriptor);
+  }
+
+  @Override
+  @Nullable
+  public IndexStatistics getStatistics(String type, String indexName) {
+    if (loaded.putIfAbsent(type, Boolean.TRUE) == null) {
+      load(type);
+    }
+
+    return statistics.get(type + "." + indexName);
+  }
+
+  @Override
+  public Map<String, IndexStatistics> collect(String type) {
+    try {
+      KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+
+      if (schemaKv == null) {
+        return Collections.emptyMap();
+      }
+
+      Schema schema = schemaKv.getValue();
+      Map<String, IndexStatisticsImpl> collected = new LinkedHashMap<String, IndexStatisticsImpl>();
+
+      for (IndexDefinition indexDef : schema.getIndexes()) {
+        collected.put(indexDef.getName(), collectIndex(type, indexDef));
+      }
+
+      persist(type, collected);
+
+      for (IndexStatisticsImpl stats : collected.values()) {
+        statistics.put(type + "." + stats.getIndexName(), stats);
+      }
+
+      loaded.put(type, Boolean.TRUE);
+
+      return Collections.<String, IndexStatistics>unmodifiableMap(collected);
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /** Collects statistics for every type that has a schema */
+  public void collectAll() {
+    List<String> types = new ArrayList<String>();
+
+    try (KeyValueIterable<Key> schemaKeys =
+        kvStore.iterators().keys(SchemaStoreImpl.SCHEMA_PREFIX, Schema.class,
+            SortDirection.ASCENDING)) {
+      for (Key schemaKey : schemaKeys) {
+        types.add(sequence.getTypeName((int) sequence.resolveKey(schemaKey).getIdentifierLo()));
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    for (String type : types) {
+      collect(type);
+    }
+  }
+
+  /** Drops cached statistics for a type, e.g. after its indexes were rebuilt */
+  public void invalidate(String type) {
+    for (String key : statistics.keySet()) {
+      if (key.startsWith(type + ".")) {
+        statistics.remove(key);
+      }
+    }
+  }
+
+  public synchronized void start(long intervalSeconds) {
+    if (executor != null) {
+      return;
+    }
+
+    executor =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("kz-idxstats-" + groupName + "-" + storeName + "-%d").build());
+
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          collectAll();
+        } catch (Exception e) {
+          log.warn("Unable to collect secondary index statistics", e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  private IndexStatisticsImpl collectIndex(String type, IndexDefinition indexDef) {
+    final List<String> attrNames = new ArrayList<String>();
+
+    for (IndexAttribute attr : indexDef.getIndexAttributes()) {
+      if (!"id".equals(attr.getName())) {
+        attrNames.add(attr.getName());
+      }
+    }
+
+    List<HyperLogLog> estimators = new ArrayList<HyperLogLog>();
+    for (int i = 0; i < attrNames.size(); i++) {
+      // at most SAMPLE_ROWS rows are read, which the full precision counts almost exactly
+      estimators.add(new HyperLogLog(longHash, SAMPLE_PRECISION));
+    }
+
+    List<String> bounds = new ArrayList<String>();
+    long rowCount = 0L;
+    long sampledRows = 0L;
+
+    Handle handle = database.open();
+
+    try {
+      rowCount =
+          handle
+              .createQuery(
+                  tableHelper.getCountQuery(type, indexDef.getName(), groupName, storeName,
+                      partitionName)).map(LongMapper.FIRST).first();
+
+      long stride = Math.max(1L, (rowCount + SAMPLE_ROWS - 1L) / SAMPLE_ROWS);
+      long step = Math.max(1L, rowCount / stride / HISTOGRAM_BUCKETS);
+
+      ResultIterator<Object[]> rows =
+          handle
+              .createQuery(
+                  tableHelper.getScanQuery(type, indexDef.getName(), indexDef, stride,
+                      groupName, storeName, partitionName))
+              .map(new ResultSetMapper<Object[]>() {
+                @Override
+                public Object[] map(int index, ResultSet r, StatementContext ctx)
+                    throws SQLException {
+                  Object[] row = new Object[attrNames.size()];
+
+                  for (int i = 0; i < row.length; i++) {
+                    row[i] = r.getObject(i + 1);
+                  }
+
+                  return row;
+                }
+              }).iterator();
+
+      try {
+        Object last = null;
+
+        while (rows.hasNext()) {
+          Object[] row = rows.next();
+          sampledRows += 1;
+
+          for (int i = 0; i < row.length; i++) {
+            estimators.get(i).add(row[i] == null ? "$" : row[i].toString());
+          }
+
+          last = row[0];
+
+          if (sampledRows % step == 0 && last != null) {
+            bounds.add(last.toString());
+          }
+        }
+
+        if (sampledRows % step != 0 && last != null) {
+          bounds.add(last.toString());
+        }
+      } finally {
+        rows.close();
+      }
+    } finally {
+      handle.close();
+    }
+
+    Map<String, Long> distinctCounts = new LinkedHashMap<String, Long>();
+
+    for (int i = 0; i < attrNames.size(); i++) {
+      long sampledDistinct = Math.min(sampledRows, estimators.get(i).cardinality());
+
+      distinctCounts.put(attrNames.get(i),
+          scaleDistinct(sampledDistinct, sampledRows, rowCount));
+    }
+
+    IndexStatisticsImpl stats =
+        new IndexStatisticsImpl(type, indexDef.getName(), rowCount, distinctCounts, bounds,
+            System.currentTimeMillis());
+
+    log.debug("collected statistics: {}", stats);
+
+    return stats;
+  }
+
+  /**
+   * Scales the distinct count of a sample up to the whole table: assuming each value occurs
+   * equally often, finds the number of distinct values whose expected count in a sample of this
+   * size is the sampled count
+   */
+  static long scaleDistinct(long sampledDistinct, long sampledRows, long rowCount) {
+    if (sampledDistinct == 0L || sampledRows >= rowCount) {
+      return sampledDistinct;
+    }
+
+    double fraction = (double) sampledRows / rowCount;
+    double low = sampledDistinct;
+    double high = rowCount;
+
+    if (expectedDistinct(high, fraction, rowCount) <= sampledDistinct) {
+      return rowCount;
+    }
+
+    for (int i = 0; i < 64 && high - low > 0.5; i++) {
+      double middle = (low + high) / 2.0;
+
+      if (expectedDistinct(middle, fraction, rowCount) < sampledDistinct) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+
+    return Math.min(rowCount, Math.round(high));
+  }
+
+  /** Expected distinct values in a sample of the fraction, of a table with the given distinct */
+  private static double expectedDistinct(double distinct, double fraction, long rowCount) {
+    return distinct * (1.0 - Math.pow(1.0 - fraction, rowCount / distinct));
+  }
+
+  private void persist(String type, Map<String, IndexStatisticsImpl> collected)
+      throws KazukiException {
+    Integer typeId = sequence.getTypeId(type, false);
+    sequence.getTypeId(STATS_PREFIX, true);
+
+    Key statsKey = KeyImpl.createInternal(STATS_PREFIX, typeId.longValue());
+    TypeStatistics value = new TypeStatistics(collected);
+
+    // concurrent collections of the type would otherwise both find no entity and both create it
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (kvStore.retrieve(statsKey, TypeStatistics.class) == null) {
+        kvStore.create(STATS_PREFIX, TypeStatistics.class, value, sequence.resolveKey(statsKey),
+            TypeValidation.LAX);
+      } else {
+        kvStore.update(statsKey, TypeStatistics.class, value);
+      }
+    }
+  }
+
+  private void load(String type) {
+    try {
+      Integer typeId = sequence.getTypeId(type, false);
+
+      if (typeId == null || !sequence.hasType(STATS_PREFIX)) {
+        return;
+      }
+
+      TypeStatistics persisted =
+          kvStore.retrieve(KeyImpl.createInternal(STATS_PREFIX, typeId.longValue()),
+              TypeStatistics.class);
+
+      if (persisted == null || persisted.getIndexes() == null) {
+        return;
+      }
+
+      for (IndexStatisticsImpl stats : persisted.getIndexes().values()) {
+        statistics.putIfAbsent(type + "." + stats.getIndexName(), stats);
+      }
+    } catch (Exception e) {
+      log.debug("Unable to load persisted index statistics for {}", type, e);
+    }
+  }
+}
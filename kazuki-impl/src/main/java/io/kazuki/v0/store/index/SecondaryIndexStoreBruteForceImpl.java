@@ -28,12 +28,15 @@ import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
 import io.kazuki.v0.store.management.ComponentDescriptor;
 import io.kazuki.v0.store.management.ComponentRegistrar;
 import io.kazuki.v0.store.management.KazukiComponent;
 import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
 import io.kazuki.v0.store.schema.SchemaStore;
 import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
 import io.kazuki.v0.store.schema.model.IndexDefinition;
 import io.kazuki.v0.store.schema.model.Schema;
 import io.kazuki.v0.store.sequence.ResolvedKey;
@@ -44,11 +47,16 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 
 import org.skife.jdbi.v2.Handle;
@@ -59,12 +67,21 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport {
+  static final int SCAN_THREADS = Math.max(1,
+      Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
   private final SequenceService sequenceService;
   private final KeyValueStore kvStore;
   private final SchemaStore schemaStore;
   private final ComponentDescriptor<SecondaryIndexStore> componentDescriptor;
+  private final ParallelEntityScan inlineScanner;
+  private final String scanThreadPrefix;
+  private ExecutorService scanExecutor;
+  private ParallelEntityScan scanner;
 
   @Inject
   public SecondaryIndexStoreBruteForceImpl(KeyValueStoreConfiguration config,
@@ -72,6 +89,9 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
     this.sequenceService = sequenceService;
     this.kvStore = kvStore;
     this.schemaStore = schemaStore;
+    this.inlineScanner =
+        new ParallelEntityScan(kvStore, MoreExecutors.sameThreadExecutor(), 1);
+    this.scanThreadPrefix = "kz-idxscan-" + config.getGroupName() + "-" + config.getStoreName();
     this.componentDescriptor =
         new ComponentDescriptorImpl<SecondaryIndexStore>("KZ:SecondaryIndexStore:"
             + config.getGroupName() + "-" + config.getStoreName(), SecondaryIndexStore.class,
@@ -91,6 +111,35 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
     manager.register(this.componentDescriptor);
   }
 
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void shutdown() {
+        stopScanner();
+      }
+    });
+  }
+
+  private synchronized ParallelEntityScan getScanner() {
+    if (scanner == null) {
+      scanExecutor =
+          Executors.newFixedThreadPool(SCAN_THREADS, new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat(scanThreadPrefix + "-%d").build());
+      scanner = new ParallelEntityScan(kvStore, scanExecutor, SCAN_THREADS);
+    }
+
+    return scanner;
+  }
+
+  private synchronized void stopScanner() {
+    if (scanExecutor != null) {
+      scanExecutor.shutdownNow();
+      scanExecutor = null;
+      scanner = null;
+    }
+  }
+
   @Inject
   public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
     kvStore.addListener(this);
@@ -126,7 +175,10 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
       UniqueEntityDescription uniqueDesc =
           new UniqueEntityDescription(type, clazz, uniqueIndexDef.getName(), schema, values);
 
-      Key maybeExists = this.multiRetrieveUniqueKeys(ImmutableList.of(uniqueDesc)).get(uniqueDesc);
+      // the caller holds the store lock, which the scan workers would need to load entities
+      Key maybeExists =
+          this.findUniqueKeys(ImmutableList.<UniqueEntityDescription>of(uniqueDesc),
+              inlineScanner).get(uniqueDesc);
 
       if (maybeExists != null && !sequenceService.resolveKey(maybeExists).equals(resolvedKey)) {
         throw new KazukiException("unique index constraint violation");
@@ -150,6 +202,9 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
   @Override
   public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {}
 
+  @Override
+  public void afterTransaction(Handle handle, boolean committed) {}
+
   @SuppressWarnings({"rawtypes", "unchecked"})
   @Override
   public Map<UniqueEntityDescription, Object> multiRetrieveUniqueEntities(
@@ -175,6 +230,12 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
   @Override
   public Map<UniqueEntityDescription, Key> multiRetrieveUniqueKeys(
       Collection<UniqueEntityDescription> entityDefinitions) {
+    return findUniqueKeys(entityDefinitions, getScanner());
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private Map<UniqueEntityDescription, Key> findUniqueKeys(
+      Collection<UniqueEntityDescription> entityDefinitions, ParallelEntityScan scanner) {
     Map<String, Schema> schemaMap = new LinkedHashMap<String, Schema>();
     Map<String, Map<String, Set<String>>> todo = new HashMap<String, Map<String, Set<String>>>();
     Map<String, UniqueEntityDescription> backMap = new HashMap<String, UniqueEntityDescription>();
@@ -217,39 +278,55 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
 
     Map<UniqueEntityDescription, Key> resultMap = new LinkedHashMap<UniqueEntityDescription, Key>();
 
-    TYPE: for (String type : todo.keySet()) {
-      Schema schema = schemaMap.get(type);
-
-      try (KeyValueIterable<KeyValuePair<LinkedHashMap>> iter =
-          kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
-
-        for (KeyValuePair<LinkedHashMap> kvPair : iter) {
-          Key key = kvPair.getKey();
-          LinkedHashMap entity = kvPair.getValue();
-
-          Map<String, Set<String>> indexDesc = todo.get(type);
+    for (final String type : todo.keySet()) {
+      final Schema schema = schemaMap.get(type);
+      final Map<String, Set<String>> indexDesc = todo.get(type);
+
+      // workers only read indexDesc; found targets are removed here between waves
+      Function<List<KeyValuePair<LinkedHashMap>>, Map<String, Key>> findTargets =
+          new Function<List<KeyValuePair<LinkedHashMap>>, Map<String, Key>>() {
+            @Override
+            public Map<String, Key> apply(List<KeyValuePair<LinkedHashMap>> chunk) {
+              Map<String, Key> found = new LinkedHashMap<String, Key>();
+
+              for (KeyValuePair<LinkedHashMap> kvPair : chunk) {
+                for (Map.Entry<String, Set<String>> entry : indexDesc.entrySet()) {
+                  String candidate =
+                      SecondaryIndexTableHelper.getUniqueIndexKey(type, schema, entry.getKey(),
+                          kvPair.getValue());
+
+                  if (entry.getValue().contains(candidate) && !found.containsKey(candidate)) {
+                    found.put(candidate, kvPair.getKey());
+                  }
+                }
+              }
 
-          for (Map.Entry<String, Set<String>> entry : indexDesc.entrySet()) {
-            String indexName = entry.getKey();
-            Set<String> toFind = entry.getValue();
+              return found;
+            }
+          };
 
-            String candidate =
-                SecondaryIndexTableHelper.getUniqueIndexKey(type, schema, indexName, entity);
+      try (ParallelEntityScan.Cursor cursor = scanner.open(type, SortDirection.ASCENDING)) {
+        while (!indexDesc.isEmpty() && cursor.hasNext()) {
+          for (Map<String, Key> found : cursor.nextWave(findTargets)) {
+            for (Map.Entry<String, Key> match : found.entrySet()) {
+              Iterator<Set<String>> toFindIter = indexDesc.values().iterator();
 
-            if (toFind.contains(candidate)) {
-              resultMap.put(backMap.get(candidate), key);
-              toFind.remove(candidate);
+              while (toFindIter.hasNext()) {
+                Set<String> toFind = toFindIter.next();
 
-              if (toFind.isEmpty()) {
-                indexDesc.remove(type);
+                if (toFind.remove(match.getKey())) {
+                  resultMap.put(backMap.get(match.getKey()), match.getValue());
 
-                if (indexDesc.isEmpty()) {
-                  continue TYPE;
+                  if (toFind.isEmpty()) {
+                    toFindIter.remove();
+                  }
                 }
               }
             }
           }
         }
+      } catch (KazukiException e) {
+        throw Throwables.propagate(e);
       }
     }
 
@@ -276,21 +353,185 @@ public class SecondaryIndexStoreBruteForceImpl implements SecondaryIndexSupport
     Preconditions.checkNotNull(schema, "schema");
     SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
 
-    final QueryEvaluator eval = new QueryEvaluator();
+    return scan(type, query, sortDirection, offset, limit);
+  }
 
-    return new FilteredKeyValueIterable<Key>(kvStore.iterators().entries(type, LinkedHashMap.class,
-        sortDirection), new Predicate<Object>() {
-      @SuppressWarnings("unchecked")
-      @Override
-      public boolean apply(Object instance) {
-        return eval.matches((LinkedHashMap<String, Object>) instance, query);
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(final String type, final Class<T> clazz,
+      final List<QueryTerm> query, final SortDirection sortDirection, final Long offset,
+      final Long limit) {
+    QueryPlan plan = explain(type, query);
+
+    return scan(type, plan.getResidualTerms(), sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(final String type, final Class<T> clazz,
+      final String queryString, final SortDirection sortDirection, final Long offset,
+      final Long limit) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return queryWithoutPagination(type, clazz, QueryHelper.parseQuery(queryString), sortDirection,
+        offset, limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      String queryString, Collection<String> partitionNames, SortDirection sortDirection,
+      Long offset, Long limit) {
+    throw new UnsupportedOperationException("partition queries require secondaryIndex tables");
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      List<QueryTerm> query, Collection<String> partitionNames, SortDirection sortDirection,
+      Long offset, Long limit) {
+    throw new UnsupportedOperationException("partition queries require secondaryIndex tables");
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    return count(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    long count = 0L;
+
+    for (Long found : aggregate(type, indexName, null, query).values()) {
+      count += found;
+    }
+
+    return count;
+  }
+
+  @Override
+  public Object min(String type, String indexName, String attributeName, String queryString) {
+    return min(type, indexName, attributeName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public Object min(String type, String indexName, String attributeName, List<QueryTerm> query) {
+    TreeMap<Object, Long> values = aggregate(type, indexName, attributeName, query);
+    values.remove(null);
+
+    return values.isEmpty() ? null : values.firstKey();
+  }
+
+  @Override
+  public Object max(String type, String indexName, String attributeName, String queryString) {
+    return max(type, indexName, attributeName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public Object max(String type, String indexName, String attributeName, List<QueryTerm> query) {
+    TreeMap<Object, Long> values = aggregate(type, indexName, attributeName, query);
+    values.remove(null);
+
+    return values.isEmpty() ? null : values.lastKey();
+  }
+
+  @Override
+  public Map<Object, Long> countGroupedBy(String type, String indexName, String queryString) {
+    return countGroupedBy(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public Map<Object, Long> countGroupedBy(String type, String indexName, List<QueryTerm> query) {
+    return new LinkedHashMap<Object, Long>(aggregate(type, indexName, null, query));
+  }
+
+  /**
+   * Counts the matching entities per value of the attribute (the leading index attribute if
+   * null), transformed as the index would store it.
+   */
+  @SuppressWarnings("rawtypes")
+  private TreeMap<Object, Long> aggregate(String type, String indexName,
+      @Nullable String attributeName, List<QueryTerm> query) {
+    TreeMap<Object, Long> counts = new TreeMap<Object, Long>(IndexValues.ORDER);
+
+    try {
+      Schema schema = schemaStore.retrieveSchema(type).getValue();
+
+      Preconditions.checkNotNull(schema, "schema");
+      SecondaryIndexQueryValidation.validateAggregateQuery(indexName, query, schema);
+
+      IndexDefinition indexDef = schema.getIndex(indexName);
+      final IndexAttribute attribute =
+          indexDef.getIndexAttribute(attributeName == null ? indexDef.getAttributeNames().get(0)
+              : attributeName);
+
+      if (attribute == null) {
+        throw new IllegalArgumentException("unknown index attribute: " + attributeName);
       }
-    }, new Function<KeyValuePair<?>, Key>() {
-      @Override
-      public Key apply(KeyValuePair<?> instance) {
-        return instance.getKey();
+
+      final Predicate<Map<String, Object>> filter = new QueryEvaluator().compile(query);
+
+      try (ParallelEntityScan.Cursor cursor = getScanner().open(type, SortDirection.ASCENDING)) {
+        while (cursor.hasNext()) {
+          for (List<Object> values : cursor
+              .nextWave(new Function<List<KeyValuePair<LinkedHashMap>>, List<Object>>() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public List<Object> apply(List<KeyValuePair<LinkedHashMap>> chunk) {
+                  List<Object> values = new ArrayList<Object>();
+
+                  for (KeyValuePair<LinkedHashMap> entity : chunk) {
+                    if (filter.apply(entity.getValue())) {
+                      values.add(IndexValues.transform(entity.getValue().get(attribute.getName()),
+                          attribute));
+                    }
+                  }
+
+                  return values;
+                }
+              })) {
+            for (Object value : values) {
+              Long found = counts.get(value);
+              counts.put(value, found == null ? 1L : found + 1L);
+            }
+          }
+        }
       }
-    }, offset, limit);
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    return counts;
+  }
+
+  @Override
+  public QueryPlan explain(String type, List<QueryTerm> query) {
+    Schema schema = null;
+    try {
+      schema = schemaStore.retrieveSchema(type).getValue();
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    Preconditions.checkNotNull(schema, "schema");
+    Preconditions.checkNotNull(query, "query");
+
+    for (QueryTerm term : query) {
+      if (schema.getAttribute(term.getField()) == null) {
+        throw new IllegalArgumentException("unknown schema attribute: " + term.getField());
+      }
+    }
+
+    return QueryPlanImpl.fullScan(type, query);
+  }
+
+  @Override
+  public QueryPlan explain(String type, String queryString) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    return explain(type, QueryHelper.parseQuery(queryString));
+  }
+
+  private KeyValueIterable<Key> scan(final String type, final List<QueryTerm> query,
+      final SortDirection sortDirection, final Long offset, final Long limit) {
+    return getScanner().query(type, new QueryEvaluator().compile(query), sortDirection, offset,
+        limit);
   }
 
   @Override
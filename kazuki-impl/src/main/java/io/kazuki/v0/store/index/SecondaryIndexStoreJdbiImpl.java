@@ -15,6 +15,9 @@
 package io.kazuki.v0.store.index;
 
 import io.kazuki.v0.internal.availability.AvailabilityManager;
+import io.kazuki.v0.internal.hash.BloomFilter;
+import io.kazuki.v0.internal.hash.BloomFilterCache;
+import io.kazuki.v0.internal.hash.MurmurHash;
 import io.kazuki.v0.internal.helper.IoHelper;
 import io.kazuki.v0.internal.helper.JDBIHelper;
 import io.kazuki.v0.internal.helper.LockManager;
@@ -24,6 +27,8 @@ import io.kazuki.v0.internal.helper.SqlParamBindings;
 import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
 import io.kazuki.v0.store.KazukiException;
 import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.PartitionMergeKeyIterable.PartitionCursor;
+import io.kazuki.v0.store.index.query.QueryEvaluator;
 import io.kazuki.v0.store.index.query.QueryHelper;
 import io.kazuki.v0.store.index.query.QueryTerm;
 import io.kazuki.v0.store.index.query.ValueHolder;
@@ -35,25 +40,40 @@ import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteratorJdbiImpl.KeyValueIterableJdbiImpl;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
 import io.kazuki.v0.store.management.ComponentDescriptor;
 import io.kazuki.v0.store.management.ComponentRegistrar;
 import io.kazuki.v0.store.management.KazukiComponent;
 import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
 import io.kazuki.v0.store.schema.SchemaStore;
 import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.TypeValidation;
 import io.kazuki.v0.store.schema.model.Attribute;
 import io.kazuki.v0.store.schema.model.IndexAttribute;
 import io.kazuki.v0.store.schema.model.IndexDefinition;
 import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
 import io.kazuki.v0.store.sequence.ResolvedKey;
 import io.kazuki.v0.store.sequence.SequenceService;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
@@ -66,13 +86,25 @@ import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.skife.jdbi.v2.util.LongMapper;
 import org.slf4j.Logger;
 
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
+  static final String BUILD_PREFIX = "$idxbuild";
+  static final int BUILD_CHUNK_SIZE = 1000;
+  static final int QUEUE_BATCH_SIZE = 1000;
+  static final long QUEUE_RETRY_MILLIS = 1000L;
+  static final int BUILD_THREADS = Math.max(1,
+      Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
   private final Logger log = LogTranslation.getLogger(getClass());
 
   private final AvailabilityManager availability;
@@ -86,13 +118,34 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   private final String groupName;
   private final String storeName;
   private final String partitionName;
+  private final String shadowPartitionName;
+  private final boolean deferredIndexing;
+  private final SecondaryIndexStatisticsCollector statistics;
+  private final SecondaryIndexQueryPlanner planner;
   private final ComponentDescriptor<SecondaryIndexStore> componentDescriptor;
+  private final ConcurrentHashMap<String, SecondaryIndexBuild> builds =
+      new ConcurrentHashMap<String, SecondaryIndexBuild>();
+  private final Object buildSignal = new Object();
+  private final List<SecondaryIndexBuild> restoredBuilds = new ArrayList<SecondaryIndexBuild>();
+  private ExecutorService buildExecutor;
+  private ExecutorService buildWorkers;
+  private int buildThreads = BUILD_THREADS;
+  private ExecutorService queryExecutor;
+  private ExecutorService queueApplier;
+  private final Object queueSignal = new Object();
+  private final AtomicLong queueSeq = new AtomicLong();
+  private final AtomicLong committedWatermark = new AtomicLong();
+  private final AtomicLong appliedWatermark = new AtomicLong();
+  private final Map<Handle, Long> uncommittedSeqs =
+      Collections.synchronizedMap(new IdentityHashMap<Handle, Long>());
+  private final BloomFilterCache uniqueFilters;
 
   @Inject
   public SecondaryIndexStoreJdbiImpl(AvailabilityManager availability, LockManager lockManager,
       KazukiComponent<DataSource> dataSource, IDBI database, SequenceService sequence,
       SchemaStore schemaStore, KeyValueStore kvStore, SecondaryIndexTableHelper tableHelper,
-      String groupName, String storeName, String partitionName) {
+      String groupName, String storeName, String partitionName, boolean deferredIndexing,
+      boolean bloomFilters) {
     this.availability = availability;
     this.lockManager = lockManager;
     this.dataSource = dataSource;
@@ -104,6 +157,25 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
     this.groupName = groupName;
     this.storeName = storeName;
     this.partitionName = partitionName;
+    this.shadowPartitionName = partitionName + "_shadow";
+    this.deferredIndexing = deferredIndexing;
+    this.statistics =
+        new SecondaryIndexStatisticsCollector(database, lockManager, sequence, schemaStore,
+            kvStore, tableHelper, groupName, storeName, partitionName);
+    this.planner = new SecondaryIndexQueryPlanner(statistics);
+    this.uniqueFilters =
+        bloomFilters ? new BloomFilterCache(new MurmurHash(), lockManager,
+            new BloomFilterCache.Loader() {
+              @Override
+              public long estimateSize(String type) throws Exception {
+                return SecondaryIndexStoreJdbiImpl.this.kvStore.approximateSize(type);
+              }
+
+              @Override
+              public void load(String type, BloomFilter filter) throws Exception {
+                loadUniqueFilter(type, filter);
+              }
+            }, "kz-idxbloom-" + groupName + "-" + storeName + "-" + partitionName + "-%d") : null;
     this.componentDescriptor =
         new ComponentDescriptorImpl<SecondaryIndexStore>("KZ:SecondaryIndexStore:" + groupName
             + "-" + storeName + "-" + partitionName, SecondaryIndexStore.class,
@@ -111,7 +183,8 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
                 ((KazukiComponent) this.lockManager).getComponentDescriptor(),
                 this.dataSource.getComponentDescriptor(),
                 ((KazukiComponent) this.sequence).getComponentDescriptor(),
-                ((KazukiComponent) this.kvStore).getComponentDescriptor()).build());
+                ((KazukiComponent) this.kvStore).getComponentDescriptor(),
+                this.statistics.getComponentDescriptor()).build());
   }
 
   @Override
@@ -122,9 +195,50 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   @Override
   @Inject
   public void registerAsComponent(ComponentRegistrar manager) {
+    this.statistics.registerAsComponent(manager);
     manager.register(this.componentDescriptor);
   }
 
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void init() {
+        restoreBuilds();
+
+        if (deferredIndexing) {
+          initQueue();
+        }
+      }
+
+      @Override
+      public void start() {
+        statistics.start(SecondaryIndexStatisticsCollector.DEFAULT_INTERVAL_SECONDS);
+        resumeBuilds();
+
+        if (deferredIndexing) {
+          startQueueApplier();
+        }
+      }
+
+      @Override
+      public void shutdown() {
+        if (uniqueFilters != null) {
+          uniqueFilters.shutdown();
+        }
+
+        stopQueueApplier();
+        stopBuilds();
+        stopQueryExecutor();
+        statistics.stop();
+      }
+    });
+  }
+
+  public SecondaryIndexStatistics getStatistics() {
+    return statistics;
+  }
+
   @Inject
   public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
     kvStore.addListener(this);
@@ -156,6 +270,181 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
     return queryWithoutPagination(type, clazz, indexName, query, sortDirection, offset, limit);
   }
 
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    try {
+      Schema schema = getQueryableSchema(type, schemaStore.retrieveSchema(type).getValue());
+      QueryPlanImpl plan = planner.plan(type, schema, query);
+
+      log.debug("query plan : {}", plan);
+
+      return this.doPlannedQuery(type, plan, sortDirection, offset, limit, schema);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String queryString, SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    return queryWithoutPagination(type, clazz, QueryHelper.parseQuery(queryString), sortDirection,
+        offset, limit);
+  }
+
+  /** Each partition query is limited to offset + limit rows */
+  @Override
+  public <T> KeyValueIterable<Key> queryPartitions(final String type, Class<T> clazz,
+      String indexName, List<QueryTerm> query, Collection<String> partitionNames,
+      SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    availability.assertAvailable();
+
+    try {
+      Schema schema =
+          getIndexSchema(type, indexName, schemaStore.retrieveSchema(type).getValue());
+
+      SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+
+      IndexDefinition indexDefinition = schema.getIndex(indexName);
+      FieldTransform transform = new FieldTransform(schema);
+      Map<String, List<QueryTerm>> termMap = tableHelper.sortTerms(indexDefinition, query);
+      Long pageSize = (limit == null) ? null : ((offset == null) ? 0L : offset) + limit;
+
+      List<Callable<PartitionCursor>> sources = new ArrayList<Callable<PartitionCursor>>();
+
+      for (String partition : partitionNames) {
+        final SqlParamBindings bindings = new SqlParamBindings(true);
+        final String querySql =
+            tableHelper.getMergeableIndexQuery(type, indexName, termMap, sortDirection, pageSize,
+                indexDefinition, schema, transform, bindings, groupName, storeName, partition);
+
+        log.debug("partition index query : {} : bindings : {}", querySql, bindings.asMap());
+
+        sources.add(new Callable<PartitionCursor>() {
+          @Override
+          public PartitionCursor call() throws Exception {
+            Handle handle = database.open();
+
+            try {
+              Query<Map<String, Object>> select = handle.createQuery(querySql);
+              bindings.bindToStatement(select);
+
+              return new PartitionCursor(handle, select.map(PartitionMergeKeyIterable.ROW_MAPPER)
+                  .iterator());
+            } catch (RuntimeException e) {
+              handle.close();
+
+              throw e;
+            }
+          }
+        });
+      }
+
+      return new PartitionMergeKeyIterable(type, sources, getQueryExecutor(), sortDirection,
+          offset, limit);
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      String queryString, Collection<String> partitionNames, SortDirection sortDirection,
+      @Nullable Long offset, @Nullable Long limit) {
+    return queryPartitions(type, clazz, indexName, QueryHelper.parseQuery(queryString),
+        partitionNames, sortDirection, offset, limit);
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    return count(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    Number count = (Number) doAggregateQuery(type, indexName, null, "count(*)", query);
+
+    return count == null ? 0L : count.longValue();
+  }
+
+  @Override
+  public Object min(String type, String indexName, String attributeName, String queryString) {
+    return min(type, indexName, attributeName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public Object min(String type, String indexName, String attributeName, List<QueryTerm> query) {
+    return doAggregateQuery(type, indexName, attributeName, "min", query);
+  }
+
+  @Override
+  public Object max(String type, String indexName, String attributeName, String queryString) {
+    return max(type, indexName, attributeName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public Object max(String type, String indexName, String attributeName, List<QueryTerm> query) {
+    return doAggregateQuery(type, indexName, attributeName, "max", query);
+  }
+
+  @Override
+  public Map<Object, Long> countGroupedBy(String type, String indexName, String queryString) {
+    return countGroupedBy(type, indexName, QueryHelper.parseQuery(queryString));
+  }
+
+  @Override
+  public Map<Object, Long> countGroupedBy(final String type, final String indexName,
+      final List<QueryTerm> query) {
+    availability.assertAvailable();
+
+    try {
+      final Schema schema =
+          getIndexSchema(type, indexName, schemaStore.retrieveSchema(type).getValue());
+
+      SecondaryIndexQueryValidation.validateAggregateQuery(indexName, query, schema);
+
+      final IndexDefinition indexDefinition = schema.getIndex(indexName);
+      final SqlParamBindings bindings = new SqlParamBindings(true);
+      final String querySql =
+          tableHelper.getGroupCountQuery(type, indexName,
+              tableHelper.sortAggregateTerms(indexDefinition, query), indexDefinition, schema,
+              new FieldTransform(schema), bindings, groupName, storeName, partitionName);
+
+      log.debug("index group count query : {} : bindings : {}", querySql, bindings.asMap());
+
+      Map<Object, Long> counts = new LinkedHashMap<Object, Long>();
+
+      try (Handle handle = database.open()) {
+        Query<Map<String, Object>> select = handle.createQuery(querySql);
+        bindings.bindToStatement(select);
+
+        for (Object[] row : select.map(PartitionMergeKeyIterable.ROW_MAPPER)) {
+          counts.put(row[0], ((Number) row[1]).longValue());
+        }
+      }
+
+      return counts;
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public QueryPlan explain(String type, List<QueryTerm> query) {
+    try {
+      return planner.plan(type,
+          getQueryableSchema(type, schemaStore.retrieveSchema(type).getValue()), query);
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public QueryPlan explain(String type, String queryString) {
+    return explain(type, QueryHelper.parseQuery(queryString));
+  }
+
   @Override
   public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz, String indexName,
       List<QueryTerm> query, SortDirection sortDirection, Boolean loadResults, PageToken token,
@@ -213,6 +502,12 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
           schemaMap.put(type, schema);
         }
 
+        if (!mightHaveUniqueMatch(type, schema, desc)) {
+          inOrderResultMap.put(desc, null);
+
+          continue;
+        }
+
         List<QueryTerm> query = new ArrayList<QueryTerm>();
         query.addAll(desc.getColumnDefinitions().values());
 
@@ -252,6 +547,12 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
           schemaMap.put(type, schema);
         }
 
+        if (!mightHaveUniqueMatch(type, schema, desc)) {
+          inOrderResultMap.put(desc, null);
+
+          continue;
+        }
+
         List<QueryTerm> query = new ArrayList<QueryTerm>();
         query.addAll(desc.getColumnDefinitions().values());
 
@@ -276,6 +577,28 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
       ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
     IndexDefinition uniqueIndexDef = getUniqueIndexDef(schema);
+    SecondaryIndexBuild build = builds.get(type);
+    boolean building =
+        uniqueIndexDef != null && build != null && build.isBuilding(uniqueIndexDef.getName());
+
+    if (uniqueIndexDef != null && uniqueIndexDef.isHashed()) {
+      // while building, rows the scan has yet to copy are checked as it copies them
+      try (Handle handle = database.open()) {
+        for (Long id : probeUnique(handle, type, uniqueIndexDef, schema, instance,
+            building ? shadowPartitionName : partitionName)) {
+          if (id != resolvedKey.getIdentifierLo()) {
+            throw new KazukiException("unique index constraint violation");
+          }
+        }
+      }
+
+      return;
+    }
+
+    if (building) {
+      // the shadow table's unique constraint enforces this until the swap
+      return;
+    }
 
     if (uniqueIndexDef != null) {
       Map<String, ValueHolder> values = new LinkedHashMap<String, ValueHolder>();
@@ -300,10 +623,35 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> instance) {
     try (LockManager toRelease = lockManager.acquire()) {
       try {
+        SecondaryIndexBuild build = builds.get(type);
+        IndexRowBatch batch = new IndexRowBatch(handle, tableHelper);
+
         for (IndexDefinition indexDef : schema.getIndexes()) {
-          this.insertEntity(handle, resolvedKey.getIdentifierLo(), instance, type,
-              indexDef.getName(), schema);
+          String indexName = indexDef.getName();
+
+          if (build != null && build.isBuilding(indexName)) {
+            if (isMaintainedInline(indexDef)) {
+              build.markWritten(resolvedKey.getIdentifierLo());
+
+              this.insertEntity(batch, resolvedKey.getIdentifierLo(), instance, type, indexName,
+                  schema, shadowPartitionName);
+            }
+
+            if (isMaintainedInline(build.getOldSchema().getIndex(indexName))) {
+              this.insertEntity(batch, resolvedKey.getIdentifierLo(), instance, type, indexName,
+                  build.getOldSchema(), partitionName);
+            }
+          } else if (isMaintainedInline(indexDef)) {
+            this.insertEntity(batch, resolvedKey.getIdentifierLo(), instance, type, indexName,
+                schema, partitionName);
+          }
         }
+
+        enqueueDeferred(handle, batch, schema, build, resolvedKey);
+
+        batch.execute();
+
+        addUniqueKey(type, schema, instance);
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
       }
@@ -315,10 +663,38 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> newInstance, Map<String, Object> oldInstance) {
     try (LockManager toRelease = lockManager.acquire()) {
       try {
+        SecondaryIndexBuild build = builds.get(type);
+        IndexRowBatch batch = new IndexRowBatch(handle, tableHelper);
+
         for (IndexDefinition indexDef : schema.getIndexes()) {
-          this.updateEntity(handle, resolvedKey.getIdentifierLo(), newInstance, oldInstance, type,
-              indexDef.getName(), schema);
+          String indexName = indexDef.getName();
+
+          if (build != null && build.isBuilding(indexName)) {
+            if (isMaintainedInline(indexDef)) {
+              // the scan may not have reached this row yet, so replace rather than update
+              build.markWritten(resolvedKey.getIdentifierLo());
+
+              this.deleteEntity(batch, resolvedKey.getIdentifierLo(), type, oldInstance,
+                  indexName, schema, shadowPartitionName);
+              this.insertEntity(batch, resolvedKey.getIdentifierLo(), newInstance, type,
+                  indexName, schema, shadowPartitionName);
+            }
+
+            if (isMaintainedInline(build.getOldSchema().getIndex(indexName))) {
+              this.updateEntity(batch, resolvedKey.getIdentifierLo(), newInstance, oldInstance,
+                  type, indexName, build.getOldSchema(), partitionName);
+            }
+          } else if (isMaintainedInline(indexDef)) {
+            this.updateEntity(batch, resolvedKey.getIdentifierLo(), newInstance, oldInstance,
+                type, indexName, schema, partitionName);
+          }
         }
+
+        enqueueDeferred(handle, batch, schema, build, resolvedKey);
+
+        batch.execute();
+
+        addUniqueKey(type, schema, newInstance);
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
       }
@@ -330,10 +706,33 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
       ResolvedKey resolvedKey, Map<String, Object> oldInstance) {
     try (LockManager toRelease = lockManager.acquire()) {
       try {
+        SecondaryIndexBuild build = builds.get(type);
+        IndexRowBatch batch = new IndexRowBatch(handle, tableHelper);
+
         for (IndexDefinition indexDef : schema.getIndexes()) {
-          this.deleteEntity(handle, resolvedKey.getIdentifierLo(), type, oldInstance,
-              indexDef.getName(), schema);
+          String indexName = indexDef.getName();
+
+          if (build != null && build.isBuilding(indexName)) {
+            if (isMaintainedInline(indexDef)) {
+              build.markWritten(resolvedKey.getIdentifierLo());
+
+              this.deleteEntity(batch, resolvedKey.getIdentifierLo(), type, oldInstance,
+                  indexName, schema, shadowPartitionName);
+            }
+
+            if (isMaintainedInline(build.getOldSchema().getIndex(indexName))) {
+              this.deleteEntity(batch, resolvedKey.getIdentifierLo(), type, oldInstance,
+                  indexName, build.getOldSchema(), partitionName);
+            }
+          } else if (isMaintainedInline(indexDef)) {
+            this.deleteEntity(batch, resolvedKey.getIdentifierLo(), type, oldInstance,
+                indexName, schema, partitionName);
+          }
         }
+
+        enqueueDeferred(handle, batch, schema, build, resolvedKey);
+
+        batch.execute();
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
       }
@@ -347,14 +746,48 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
         String type = entry.getKey();
         Schema schema = entry.getValue();
 
+        SecondaryIndexBuild build = builds.get(type);
+
         for (IndexDefinition indexDef : schema.getIndexes()) {
+          String indexName = indexDef.getName();
+          boolean building = build != null && build.isBuilding(indexName);
+
           if (preserveSchema) {
-            this.truncateTable(handle, type, indexDef.getName(), groupName, storeName,
-                partitionName);
+            if (!building || build.getOldSchema().getIndex(indexName) != null) {
+              this.truncateTable(handle, type, indexName, groupName, storeName, partitionName);
+            }
+
+            if (building) {
+              this.truncateTable(handle, type, indexName, groupName, storeName,
+                  shadowPartitionName);
+            }
           } else {
-            this.dropTableAndIndex(handle, type, indexDef.getName());
+            this.dropTableAndIndex(handle, type, indexName, partitionName);
+            this.dropTableAndIndex(handle, type, indexName, shadowPartitionName);
           }
         }
+
+        if (!preserveSchema && build != null) {
+          builds.remove(type, build);
+          deleteBuildCheckpoint(type);
+          signalBuilds();
+        }
+
+        deleteQueuedChanges(handle, type);
+        invalidateUniqueFilter(type);
+      }
+    }
+  }
+
+  @Override
+  public void afterTransaction(Handle handle, boolean committed) {
+    // index rows are written in the entity transaction, only queued changes need tracking
+    Long seq = uncommittedSeqs.remove(handle);
+
+    if (seq != null && committed) {
+      synchronized (queueSignal) {
+        committedWatermark.set(seq);
+        queueSignal.notifyAll();
       }
     }
   }
@@ -363,213 +796,1068 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
   public void onSchemaCreate(String type, Schema schema) {
     try (LockManager toRelease = lockManager.acquire()) {
       for (IndexDefinition indexDef : schema.getIndexes()) {
-        createTable(database, type, indexDef.getName(), schema);
-        createIndex(database, type, indexDef.getName(), schema);
+        createTable(database, type, indexDef.getName(), schema, partitionName);
+        createIndex(database, type, indexDef.getName(), schema, partitionName);
       }
     }
   }
 
-
+  /**
+   * Indexes whose definition is unchanged keep their tables. Removed indexes are dropped. New and
+   * changed indexes are built online into shadow tables by a background task (see
+   * {@link #runBuild(SecondaryIndexBuild)}); until the swap, changed indexes keep serving queries
+   * from their old tables.
+   */
   @Override
   public void onSchemaUpdate(final String type, final Schema newSchema, final Schema oldSchema,
       final KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    entityCollection.close();
+
     try (LockManager toRelease = lockManager.acquire()) {
-      try {
-        for (final IndexDefinition indexDef : oldSchema.getIndexes()) {
-          database.inTransaction(new TransactionCallback<Void>() {
-            public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-              dropTableAndIndex(handle, type, indexDef.getName());
+      SecondaryIndexBuild previous = builds.remove(type);
+      final Schema servingSchema = (previous != null) ? previous.getOldSchema() : oldSchema;
+
+      final List<String> toBuild = new ArrayList<String>();
+
+      for (IndexDefinition indexDef : newSchema.getIndexes()) {
+        if (previous != null && previous.getIndexNames().contains(indexDef.getName())
+            || !tableHelper.isSameIndex(indexDef.getName(), servingSchema, newSchema)) {
+          toBuild.add(indexDef.getName());
+        }
+      }
 
-              return null;
-            };
-          });
+      database.inTransaction(new TransactionCallback<Void>() {
+        @Override
+        public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          for (IndexDefinition indexDef : servingSchema.getIndexes()) {
+            if (newSchema.getIndex(indexDef.getName()) == null) {
+              dropTableAndIndex(handle, type, indexDef.getName(), partitionName);
+            }
+          }
+
+          for (String indexName : toBuild) {
+            dropTableAndIndex(handle, type, indexName, shadowPartitionName);
+          }
+
+          return null;
         }
+      });
 
-        for (final IndexDefinition indexDef : oldSchema.getIndexes()) {
-          createTable(database, type, indexDef.getName(), newSchema);
-          createIndex(database, type, indexDef.getName(), newSchema);
+      if (!toBuild.isEmpty()) {
+        for (String indexName : toBuild) {
+          createTable(database, type, indexName, newSchema, shadowPartitionName);
+          createIndex(database, type, indexName, newSchema, shadowPartitionName);
         }
 
-        final FieldTransform fieldTransform = new FieldTransform(oldSchema);
+        SecondaryIndexBuild build =
+            new SecondaryIndexBuild(type, newSchema, servingSchema, toBuild, getMaxId(type), 0L,
+                0L, System.currentTimeMillis());
 
-        database.inTransaction(new TransactionCallback<Void>() {
-          @Override
-          public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-            for (KeyValuePair<LinkedHashMap> entity : entityCollection) {
-              Map<String, Object> fieldTransformed = fieldTransform.pack(entity.getValue());
+        builds.put(type, build);
+        saveBuildCheckpoint(build);
 
-              SecondaryIndexStoreJdbiImpl.this.onCreate(handle, type, LinkedHashMap.class,
-                  newSchema, sequence.resolveKey(entity.getKey()), entity.getValue());
-            }
+        log.info("Starting online index build {}", build);
 
-            return null;
-          }
-        });
-      } finally {
-        entityCollection.close();
+        submitBuild(build);
+      } else if (previous != null) {
+        deleteBuildCheckpoint(type);
       }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      signalBuilds();
+      invalidateUniqueFilter(type);
+      statistics.invalidate(type);
     }
   }
 
   @Override
   public void onSchemaDelete(final String type, final Schema oldSchema) {
+    statistics.invalidate(type);
+
     try (LockManager toRelease = lockManager.acquire()) {
+      final SecondaryIndexBuild build = builds.remove(type);
+
       for (final IndexDefinition indexDef : oldSchema.getIndexes()) {
         database.inTransaction(new TransactionCallback<Void>() {
           public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-            dropTableAndIndex(handle, type, indexDef.getName());
+            dropTableAndIndex(handle, type, indexDef.getName(), partitionName);
+            dropTableAndIndex(handle, type, indexDef.getName(), shadowPartitionName);
 
             return null;
           };
         });
       }
-    }
-  }
 
-  private void createTable(IDBI database, final String type, final String indexName,
-      final Schema schema) {
-    String tableDefinition =
-        tableHelper
-            .getTableDefinition(type, indexName, schema, groupName, storeName, partitionName);
+      if (build != null) {
+        deleteBuildCheckpoint(type);
+        signalBuilds();
+      }
 
-    log.debug("create table: {}" + tableDefinition);
+      database.inTransaction(new TransactionCallback<Void>() {
+        public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          deleteQueuedChanges(handle, type);
 
-    JDBIHelper.createTable(database,
-        tableHelper.getTableDrop(type, indexName, groupName, storeName, partitionName),
-        tableDefinition);
+          return null;
+        };
+      });
+
+      invalidateUniqueFilter(type);
+    }
   }
 
-  private void createIndex(IDBI database, final String type, final String indexName,
-      final Schema schemaDefinition) {
-    database.inTransaction(new TransactionCallback<Void>() {
-      @Override
-      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
-        try {
-          handle
-              .createStatement(tableHelper.getPrefix() + "drop_index")
-              .define("table_name",
-                  tableHelper.getTableName(type, indexName, groupName, storeName, partitionName))
-              .define("index_name",
-                  tableHelper.getIndexName(type, indexName, groupName, storeName, partitionName))
-              .execute();
-        } catch (UnableToExecuteStatementException ok) {
-          // expected case in mysql - this is just best-effort anyway
-        }
+  boolean isUniqueFilterLoaded(String type) {
+    return uniqueFilters != null && uniqueFilters.isLoaded(type);
+  }
 
-        String indexDefinition =
-            tableHelper.getIndexDefinition(type, indexName, schemaDefinition, groupName, storeName,
-                partitionName);
+  /** Returns the online index build in progress for the type, or null */
+  @Nullable
+  public SecondaryIndexBuild getIndexBuild(String type) {
+    return builds.get(type);
+  }
 
-        log.debug("create index: {}" + indexDefinition);
+  /** Waits for the online index build of the type (if any) to finish */
+  public boolean awaitIndexBuild(String type, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
 
-        handle.createStatement(indexDefinition).execute();
+    synchronized (buildSignal) {
+      while (builds.containsKey(type)) {
+        long remaining = deadline - System.nanoTime();
 
-        return null;
+        if (remaining <= 0L) {
+          return false;
+        }
+
+        TimeUnit.NANOSECONDS.timedWait(buildSignal, remaining);
       }
-    });
-  }
+    }
 
-  private void dropTableAndIndex(Handle handle, final String type, final String indexName) {
-    handle.createStatement(
-        tableHelper.getTableDrop(type, indexName, groupName, storeName, partitionName)).execute();
+    return true;
+  }
 
-    try {
-      handle
-          .createStatement(tableHelper.getPrefix() + "drop_index")
-          .define("table_name",
-              tableHelper.getTableName(type, indexName, groupName, storeName, partitionName))
-          .define("index_name",
-              tableHelper.getIndexName(type, indexName, groupName, storeName, partitionName))
-          .execute();
-    } catch (UnableToExecuteStatementException ok) {
-      // expected case in mysql - this is just best-effort anyway
+  /** Wakes awaitIndexBuild callers; called after a build is removed from builds */
+  private void signalBuilds() {
+    synchronized (buildSignal) {
+      buildSignal.notifyAll();
     }
   }
 
-  private void insertEntity(Handle handle, final Long id, final Map<String, Object> value,
-      final String type, final String indexName, final Schema schema) throws KazukiException {
-    SqlParamBindings bindings = new SqlParamBindings(true);
+  /** The sequence number of the last queued index change applied (with deferred indexing) */
+  public long getIndexWatermark() {
+    return appliedWatermark.get();
+  }
 
-    Update insert =
-        handle.createStatement(tableHelper.getInsertStatement(type, indexName, schema, bindings,
-            groupName, storeName, partitionName));
+  /**
+   * Waits until the deferred indexes reflect every write committed before the call, for readers
+   * that need to see their own writes. Returns immediately without deferred indexing.
+   */
+  public boolean awaitIndexes(long timeout, TimeUnit unit) throws InterruptedException {
+    if (!deferredIndexing) {
+      return true;
+    }
 
-    IndexDefinition indexDefinition = schema.getIndex(indexName);
-    bindings.bind("id", id, Attribute.Type.U64);
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    long target = committedWatermark.get();
 
-    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
-      String attrName = attr.getName();
-      if ("id".equals(attrName)) {
-        continue;
-      } else {
-        Object v = value.get(attrName) != null ? value.get(attrName).toString() : null;
+    synchronized (queueSignal) {
+      while (appliedWatermark.get() < target) {
+        long remaining = deadline - System.nanoTime();
+
+        if (remaining <= 0L) {
+          return false;
+        }
 
-        bindings.bind(attrName, tableHelper.transformAttributeValue(v, attr),
-            schema.getAttribute(attrName).getType());
+        TimeUnit.NANOSECONDS.timedWait(queueSignal, remaining);
       }
     }
 
-    bindings.bindToStatement(insert);
+    return true;
+  }
 
-    try {
-      insert.execute();
-    } catch (UnableToExecuteStatementException e) {
-      if (tableHelper.isConstraintViolation(e)) {
-        throw new KazukiException("unique index constraint violation");
-      } else {
-        throw e;
+  private boolean isMaintainedInline(@Nullable IndexDefinition indexDef) {
+    return indexDef != null && (!deferredIndexing || indexDef.isUnique());
+  }
+
+  private boolean hasDeferredIndex(Schema schema) {
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (!isMaintainedInline(indexDef)) {
+        return true;
       }
     }
+
+    return false;
   }
 
-  private void updateEntity(Handle handle, final Long id, final Map<String, Object> value,
-      final Map<String, Object> prev, final String type, final String indexName, final Schema schema)
-      throws KazukiException {
-    IndexDefinition indexDefinition = schema.getIndex(indexName);
+  /**
+   * Records a change to the entity in the queue table, as part of the entity transaction, if any
+   * of its indexes are maintained by the queue applier. Writers hold the store lock until their
+   * transaction ends, so queued changes commit in _seq order and afterTransaction can advance the
+   * committed watermark without gaps.
+   */
+  private void enqueueDeferred(Handle handle, IndexRowBatch batch, Schema schema,
+      @Nullable SecondaryIndexBuild build, ResolvedKey resolvedKey) {
+    if (!deferredIndexing || !hasDeferredIndex(schema)
+        && (build == null || !hasDeferredIndex(build.getOldSchema()))) {
+      return;
+    }
+
+    SqlParamBindings bindings = new SqlParamBindings(true);
+    String sql =
+        tableHelper.getQueueInsertStatement(bindings, groupName, storeName, partitionName);
+
+    long seq = queueSeq.incrementAndGet();
+
+    bindings.bind("seq", seq, Attribute.Type.I64);
+    bindings.bind("type_tag", resolvedKey.getTypeTag(), Attribute.Type.I32);
+    bindings.bind("id", resolvedKey.getIdentifierLo(), Attribute.Type.U64);
+
+    batch.insert(sql, bindings);
+    uncommittedSeqs.put(handle, seq);
+  }
+
+  private void deleteQueuedChanges(Handle handle, String type) {
+    if (!deferredIndexing) {
+      return;
+    }
+
+    try {
+      Integer typeId = sequence.getTypeId(type, false);
+
+      if (typeId != null) {
+        SqlParamBindings bindings = new SqlParamBindings(true);
+        Update delete =
+            handle.createStatement(tableHelper.getQueueTypeDelete(bindings, groupName, storeName,
+                partitionName));
+
+        bindings.bind("type_tag", typeId, Attribute.Type.I32);
+        bindings.bindToStatement(delete);
+
+        delete.execute();
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Creates the queue table and continues the _seq from the changes left queued (if any), which
+   * the applier will process first.
+   */
+  private void initQueue() {
+    try (LockManager toRelease = lockManager.acquire()) {
+      Handle handle = database.open();
+
+      try {
+        handle.createStatement(
+            tableHelper.getQueueTableDefinition(groupName, storeName, partitionName)).execute();
+
+        Long maxSeq =
+            handle.createQuery(tableHelper.getQueueMaxSeq(groupName, storeName, partitionName))
+                .map(LongMapper.FIRST).first();
+
+        queueSeq.set(maxSeq == null ? 0L : maxSeq);
+        committedWatermark.set(queueSeq.get());
+      } finally {
+        handle.close();
+      }
+    }
+  }
+
+  private synchronized void startQueueApplier() {
+    if (queueApplier == null) {
+      queueApplier =
+          Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kz-idxqueue-" + groupName + "-" + storeName + "-%d").build());
+
+      queueApplier.submit(new Runnable() {
+        @Override
+        public void run() {
+          runQueueApplier();
+        }
+      });
+    }
+  }
+
+  private synchronized void stopQueueApplier() {
+    if (queueApplier != null) {
+      queueApplier.shutdownNow();
+      queueApplier = null;
+    }
+  }
+
+  /**
+   * Applies queued changes up to the committed watermark, then waits for afterTransaction to
+   * advance it. Queue rows above the watermark may belong to a transaction still in progress.
+   */
+  private void runQueueApplier() {
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        long target = committedWatermark.get();
+
+        if (applyQueuedChanges(target) < QUEUE_BATCH_SIZE) {
+          advanceWatermark(target);
+
+          synchronized (queueSignal) {
+            while (committedWatermark.get() == target) {
+              queueSignal.wait();
+            }
+          }
+        }
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+
+        log.warn("Deferred index maintenance failed, will retry", e);
+
+        try {
+          synchronized (queueSignal) {
+            queueSignal.wait(QUEUE_RETRY_MILLIS);
+          }
+        } catch (InterruptedException e2) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** Records that every queued change up to seq is applied and wakes awaitIndexes callers */
+  private void advanceWatermark(long seq) {
+    synchronized (queueSignal) {
+      if (seq > appliedWatermark.get()) {
+        appliedWatermark.set(seq);
+      }
+
+      queueSignal.notifyAll();
+    }
+  }
+
+  /**
+   * Applies the oldest queued changes to the deferred indexes. Each change re-reads the current
+   * entity rather than carrying its values, so a change applied twice (after a crash) or with a
+   * newer state than it was queued with is harmless. The queue rows are removed in the same
+   * transaction as the index rows are written. Every change up to target has committed, so the
+   * batch holds all of the queued changes up to its last _seq.
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private int applyQueuedChanges(long target) throws Exception {
+    List<Object[]> queued;
+    Handle handle = database.open();
+
+    try {
+      SqlParamBindings bindings = new SqlParamBindings(true);
+      Query<Map<String, Object>> select =
+          handle.createQuery(tableHelper.getQueueSelect(bindings, QUEUE_BATCH_SIZE, groupName,
+              storeName, partitionName));
+
+      bindings.bind("seq", target, Attribute.Type.I64);
+      bindings.bindToStatement(select);
+
+      queued = select.map(PartitionMergeKeyIterable.ROW_MAPPER).list();
+    } finally {
+      handle.close();
+    }
+
+    if (queued.isEmpty()) {
+      return 0;
+    }
+
+    final long maxSeq = ((Number) queued.get(queued.size() - 1)[0]).longValue();
+    Map<String, List<Key>> keysByType = new LinkedHashMap<String, List<Key>>();
+
+    for (Object[] row : queued) {
+      String type = sequence.getTypeName(((Number) row[1]).intValue());
+      List<Key> keys = keysByType.get(type);
+
+      if (keys == null) {
+        keys = new ArrayList<Key>();
+        keysByType.put(type, keys);
+      }
+
+      keys.add(KeyImpl.createInternal(type, ((Number) row[2]).longValue()));
+    }
+
+    // the entities are loaded without holding the store lock
+    final Map<String, Map<Key, LinkedHashMap>> entities =
+        new LinkedHashMap<String, Map<Key, LinkedHashMap>>();
+
+    for (Map.Entry<String, List<Key>> entry : keysByType.entrySet()) {
+      Map<Key, LinkedHashMap> found = new LinkedHashMap<Key, LinkedHashMap>();
+      Map<Key, LinkedHashMap> retrieved =
+          kvStore.multiRetrieve(entry.getValue(), LinkedHashMap.class);
+
+      for (Key key : entry.getValue()) {
+        found.put(key, retrieved.get(key));
+      }
+
+      entities.put(entry.getKey(), found);
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      final Map<String, Schema> schemas = new LinkedHashMap<String, Schema>();
+
+      for (String type : entities.keySet()) {
+        KeyValuePair<Schema> schema = schemaStore.retrieveSchema(type);
+
+        if (schema != null) {
+          schemas.put(type, schema.getValue());
+        }
+      }
+
+      database.inTransaction(new TransactionCallback<Void>() {
+        @Override
+        public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          IndexRowBatch batch = new IndexRowBatch(handle, tableHelper);
+
+          for (Map.Entry<String, Schema> entry : schemas.entrySet()) {
+            applyDeferred(batch, entry.getKey(), entry.getValue(), entities.get(entry.getKey()));
+          }
+
+          SqlParamBindings bindings = new SqlParamBindings(true);
+          String sql = tableHelper.getQueueDelete(bindings, groupName, storeName, partitionName);
+          bindings.bind("seq", maxSeq, Attribute.Type.I64);
+          batch.delete(sql, bindings);
+
+          batch.execute();
+
+          return null;
+        }
+      });
+    }
+
+    advanceWatermark(maxSeq);
+
+    return queued.size();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private void applyDeferred(IndexRowBatch batch, String type, Schema schema,
+      Map<Key, LinkedHashMap> entities) throws KazukiException {
+    SecondaryIndexBuild build = builds.get(type);
+    FieldTransform fieldTransform = new FieldTransform(schema);
+
+    for (Map.Entry<Key, LinkedHashMap> entity : entities.entrySet()) {
+      Long id = sequence.resolveKey(entity.getKey()).getIdentifierLo();
+      Map<String, Object> value =
+          entity.getValue() == null ? null : fieldTransform.pack(entity.getValue());
+
+      for (IndexDefinition indexDef : schema.getIndexes()) {
+        String indexName = indexDef.getName();
+
+        if (build != null && build.isBuilding(indexName)) {
+          if (!isMaintainedInline(indexDef)) {
+            build.markWritten(id);
+
+            replaceEntity(batch, id, value, type, indexName, schema, shadowPartitionName);
+          }
+
+          IndexDefinition oldDef = build.getOldSchema().getIndex(indexName);
+
+          if (oldDef != null && !isMaintainedInline(oldDef)) {
+            replaceEntity(batch, id, value, type, indexName, build.getOldSchema(), partitionName);
+          }
+        } else if (!isMaintainedInline(indexDef)) {
+          replaceEntity(batch, id, value, type, indexName, schema, partitionName);
+        }
+      }
+    }
+  }
+
+  private void replaceEntity(IndexRowBatch batch, Long id, @Nullable Map<String, Object> value,
+      String type, String indexName, Schema schema, String tablePartition) throws KazukiException {
+    deleteEntity(batch, id, type, value, indexName, schema, tablePartition);
+
+    if (value != null) {
+      insertEntity(batch, id, value, type, indexName, schema, tablePartition);
+    }
+  }
+
+  private synchronized void submitBuild(final SecondaryIndexBuild build) {
+    if (buildExecutor == null) {
+      buildExecutor =
+          Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kz-idxbuild-" + groupName + "-" + storeName + "-%d").build());
+    }
+
+    if (buildWorkers == null) {
+      buildWorkers =
+          Executors.newFixedThreadPool(buildThreads, new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kz-idxbuild-worker-" + groupName + "-" + storeName + "-%d").build());
+    }
+
+    buildExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runBuild(build);
+        } catch (Exception e) {
+          log.warn("Online index build failed, will resume from checkpoint: " + build, e);
+        }
+      }
+    });
+  }
+
+  /** Sets the number of build workers, which takes effect when the worker pool is next created */
+  synchronized void setBuildThreads(int buildThreads) {
+    Preconditions.checkArgument(buildThreads > 0, "invalid buildThreads");
+
+    this.buildThreads = buildThreads;
+  }
+
+  private synchronized int getBuildThreads() {
+    return buildThreads;
+  }
+
+  private synchronized ExecutorService getQueryExecutor() {
+    if (queryExecutor == null) {
+      queryExecutor =
+          Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kz-idxquery-" + groupName + "-" + storeName + "-%d").build());
+    }
+
+    return queryExecutor;
+  }
+
+  private synchronized void stopQueryExecutor() {
+    if (queryExecutor != null) {
+      queryExecutor.shutdownNow();
+      queryExecutor = null;
+    }
+  }
+
+  private synchronized void stopBuilds() {
+    if (buildExecutor != null) {
+      buildExecutor.shutdownNow();
+      buildExecutor = null;
+    }
+
+    if (buildWorkers != null) {
+      buildWorkers.shutdownNow();
+      buildWorkers = null;
+    }
+  }
+
+  /**
+   * Copies entities into the shadow tables in id-range chunks. Each wave hands up to
+   * buildThreads consecutive chunks to the worker pool, and the checkpoint only moves past a wave
+   * once all of its chunks are in. Writers apply their changes to the shadow tables as well (see
+   * onCreate and friends), so once the scan passes the highest id that existed at the start, the
+   * shadow tables are complete and can be swapped in.
+   */
+  private void runBuild(final SecondaryIndexBuild build) throws Exception {
+    final String type = build.getType();
+
+    while (build.getNextId() <= build.getMaxId()) {
+      if (Thread.currentThread().isInterrupted() || builds.get(type) != build) {
+        return;
+      }
+
+      List<Future<Integer>> wave = new ArrayList<Future<Integer>>();
+      long lo = build.getNextId();
+      long waveEnd = lo - 1;
+
+      for (int i = 0; i < getBuildThreads() && lo <= build.getMaxId(); i++) {
+        final long chunkLo = lo;
+        final long chunkHi = Math.min(lo + BUILD_CHUNK_SIZE - 1, build.getMaxId());
+
+        wave.add(buildWorkers.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            return buildChunk(build, chunkLo, chunkHi);
+          }
+        }));
+
+        waveEnd = chunkHi;
+        lo = chunkHi + 1;
+      }
+
+      int copied = 0;
 
-    String origKey = tableHelper.computeIndexKey(type, indexName, indexDefinition, prev);
-    String newKey = tableHelper.computeIndexKey(type, indexName, indexDefinition, value);
+      for (Future<Integer> chunk : wave) {
+        copied += chunk.get();
+      }
+
+      try (LockManager toRelease = lockManager.acquire()) {
+        if (builds.get(type) != build) {
+          return;
+        }
+
+        build.advance(waveEnd + 1, copied);
+        saveBuildCheckpoint(build);
+      }
+
+      log.debug("Online index build progress: {}% {}", build.getPercentComplete(), build);
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (builds.get(type) != build) {
+        return;
+      }
+
+      database.inTransaction(new TransactionCallback<Void>() {
+        @Override
+        public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          for (String indexName : build.getIndexNames()) {
+            dropTableAndIndex(handle, type, indexName, partitionName);
+
+            handle.createStatement(
+                tableHelper.getTableRename(type, indexName, groupName, storeName,
+                    shadowPartitionName, partitionName)).execute();
+            handle.createStatement(
+                tableHelper.getIndexRename(type, indexName, groupName, storeName,
+                    shadowPartitionName, partitionName)).execute();
+          }
+
+          return null;
+        }
+      });
+
+      build.markDone();
+      builds.remove(type, build);
+      deleteBuildCheckpoint(type);
+      signalBuilds();
+      invalidateUniqueFilter(type);
+      statistics.invalidate(type);
+    }
+
+    log.info("Finished online index build {} in {} ms", build, System.currentTimeMillis()
+        - build.getStartedAt());
+  }
+
+  /**
+   * Loads and packs one chunk without holding the store lock, which is the part that runs in
+   * parallel, then writes the rows for all indexes being built in one batched transaction.
+   * Writers hold the store lock until their transaction ends, so the ids they touched meanwhile
+   * are re-read under the lock: their committed state replaces the possibly older copy, and a
+   * write that rolled back leaves the row as it was.
+   */
+  int buildChunk(final SecondaryIndexBuild build, long lo, long hi) throws KazukiException {
+    String type = build.getType();
+
+    List<Long> ids = new ArrayList<Long>();
+    for (long id = lo; id <= hi; id++) {
+      ids.add(id);
+    }
+
+    final Map<Long, Map<String, Object>> rows = new LinkedHashMap<Long, Map<String, Object>>();
+
+    loadShadowRows(build, ids, rows);
+
+    if (rows.isEmpty() && build.getWritten(lo, hi).isEmpty()) {
+      return 0;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (builds.get(type) != build) {
+        return 0;
+      }
 
-    if (origKey.equals(newKey)) {
+      List<Long> written = build.getWritten(lo, hi);
+
+      rows.keySet().removeAll(written);
+      loadShadowRows(build, written, rows);
+
+      if (rows.isEmpty()) {
+        return 0;
+      }
+
+      database.inTransaction(new TransactionCallback<Void>() {
+        @Override
+        public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          for (String indexName : build.getIndexNames()) {
+            writeShadowRows(handle, build, indexName, rows);
+          }
+
+          return null;
+        }
+      });
+    }
+
+    return rows.size();
+  }
+
+  /** Reads and packs the existing entities among the ids */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private void loadShadowRows(SecondaryIndexBuild build, List<Long> ids,
+      Map<Long, Map<String, Object>> rows) throws KazukiException {
+    if (ids.isEmpty()) {
       return;
     }
 
+    List<Key> keys = new ArrayList<Key>();
+    for (Long id : ids) {
+      keys.add(KeyImpl.createInternal(build.getType(), id));
+    }
+
+    Map<Key, LinkedHashMap> entities = kvStore.multiRetrieve(keys, LinkedHashMap.class);
+    FieldTransform fieldTransform = new FieldTransform(build.getSchema());
+
+    for (Map.Entry<Key, LinkedHashMap> entity : entities.entrySet()) {
+      if (entity.getValue() != null) {
+        rows.put(sequence.resolveKey(entity.getKey()).getIdentifierLo(),
+            fieldTransform.pack(entity.getValue()));
+      }
+    }
+  }
+
+  private void writeShadowRows(Handle handle, SecondaryIndexBuild build, String indexName,
+      Map<Long, Map<String, Object>> rows) throws KazukiException {
+    String type = build.getType();
+    Schema schema = build.getSchema();
+    IndexDefinition indexDefinition = schema.getIndex(indexName);
+    IndexRowBatch batch = new IndexRowBatch(handle, tableHelper);
+    Map<List<Object>, Long> uniqueKeys = new HashMap<List<Object>, Long>();
+
+    for (Map.Entry<Long, Map<String, Object>> row : rows.entrySet()) {
+      if (indexDefinition.isHashed()) {
+        // a hashed index has no unique constraint, so check the shadow table and the chunk
+        List<Object> values = getIndexValues(row.getValue(), indexDefinition);
+        Long previous = uniqueKeys.put(values, row.getKey());
+        boolean duplicate = previous != null;
+
+        for (Long id : probeUnique(handle, type, indexDefinition, schema, row.getValue(),
+            shadowPartitionName)) {
+          duplicate |= !id.equals(row.getKey());
+        }
+
+        if (duplicate) {
+          throw new KazukiException("unique index constraint violation");
+        }
+      }
+
+      // a concurrent writer or a wave interrupted before its checkpoint may have written it
+      deleteEntity(batch, row.getKey(), type, row.getValue(), indexName, schema,
+          shadowPartitionName);
+      insertEntity(batch, row.getKey(), row.getValue(), type, indexName, schema,
+          shadowPartitionName);
+    }
+
+    batch.execute();
+  }
+
+  private long getMaxId(String type) throws KazukiException {
+    try (KeyValueIterable<Key> last =
+        kvStore.iterators().keys(type, LinkedHashMap.class, SortDirection.DESCENDING, 0L, 1L)) {
+      for (Key key : last) {
+        return sequence.resolveKey(key).getIdentifierLo();
+      }
+    }
+
+    return -1L;
+  }
+
+  private void saveBuildCheckpoint(SecondaryIndexBuild build) throws KazukiException {
+    Integer typeId = sequence.getTypeId(build.getType(), false);
+    sequence.getTypeId(BUILD_PREFIX, true);
+
+    Key buildKey = KeyImpl.createInternal(BUILD_PREFIX, typeId.longValue());
+
+    if (kvStore.retrieve(buildKey, SecondaryIndexBuild.class) == null) {
+      kvStore.create(BUILD_PREFIX, SecondaryIndexBuild.class, build,
+          sequence.resolveKey(buildKey), TypeValidation.LAX);
+    } else {
+      kvStore.update(buildKey, SecondaryIndexBuild.class, build);
+    }
+  }
+
+  private void deleteBuildCheckpoint(String type) {
+    try {
+      Integer typeId = sequence.getTypeId(type, false);
+
+      if (typeId != null && sequence.hasType(BUILD_PREFIX)) {
+        kvStore.deleteHard(KeyImpl.createInternal(BUILD_PREFIX, typeId.longValue()));
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Restores builds interrupted by a shutdown or crash from their last checkpoint. This runs at
+   * init, before any write or query, so that writes reach the shadow tables and queries keep
+   * using the old index tables; the scans themselves resume at start.
+   */
+  private void restoreBuilds() {
+    try (LockManager toRelease = lockManager.acquire()) {
+      if (!sequence.hasType(BUILD_PREFIX)) {
+        return;
+      }
+
+      try (KeyValueIterable<SecondaryIndexBuild> checkpoints =
+          kvStore.iterators().values(BUILD_PREFIX, SecondaryIndexBuild.class,
+              SortDirection.ASCENDING)) {
+        for (SecondaryIndexBuild build : checkpoints) {
+          // replaces any build left over from before a shutdown, whose workers then stop
+          builds.put(build.getType(), build);
+
+          synchronized (this) {
+            restoredBuilds.add(build);
+          }
+        }
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /** Resumes the scans of the builds restored at init that are still current */
+  private synchronized void resumeBuilds() {
+    for (SecondaryIndexBuild build : restoredBuilds) {
+      if (builds.get(build.getType()) == build) {
+        log.info("Resuming online index build {}", build);
+
+        submitBuild(build);
+      }
+    }
+
+    restoredBuilds.clear();
+  }
+
+  private void createTable(IDBI database, final String type, final String indexName,
+      final Schema schema, final String tablePartition) {
+    String tableDefinition =
+        tableHelper.getTableDefinition(type, indexName, schema, groupName, storeName,
+            tablePartition);
+
+    log.debug("create table: {}" + tableDefinition);
+
+    JDBIHelper.createTable(database,
+        tableHelper.getTableDrop(type, indexName, groupName, storeName, tablePartition),
+        tableDefinition);
+  }
+
+  private void createIndex(IDBI database, final String type, final String indexName,
+      final Schema schemaDefinition, final String tablePartition) {
+    database.inTransaction(new TransactionCallback<Void>() {
+      @Override
+      public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        try {
+          handle
+              .createStatement(tableHelper.getPrefix() + "drop_index")
+              .define("table_name",
+                  tableHelper.getTableName(type, indexName, groupName, storeName, tablePartition))
+              .define("index_name",
+                  tableHelper.getIndexName(type, indexName, groupName, storeName, tablePartition))
+              .execute();
+        } catch (UnableToExecuteStatementException ok) {
+          // expected case in mysql - this is just best-effort anyway
+        }
+
+        String indexDefinition =
+            tableHelper.getIndexDefinition(type, indexName, schemaDefinition, groupName, storeName,
+                tablePartition);
+
+        log.debug("create index: {}" + indexDefinition);
+
+        handle.createStatement(indexDefinition).execute();
+
+        return null;
+      }
+    });
+  }
+
+  private void dropTableAndIndex(Handle handle, final String type, final String indexName,
+      final String tablePartition) {
+    handle.createStatement(
+        tableHelper.getTableDrop(type, indexName, groupName, storeName, tablePartition)).execute();
+
+    try {
+      handle
+          .createStatement(tableHelper.getPrefix() + "drop_index")
+          .define("table_name",
+              tableHelper.getTableName(type, indexName, groupName, storeName, tablePartition))
+          .define("index_name",
+              tableHelper.getIndexName(type, indexName, groupName, storeName, tablePartition))
+          .execute();
+    } catch (UnableToExecuteStatementException ok) {
+      // expected case in mysql - this is just best-effort anyway
+    }
+  }
+
+  private void insertEntity(IndexRowBatch batch, final Long id, final Map<String, Object> value,
+      final String type, final String indexName, final Schema schema, final String tablePartition) {
     SqlParamBindings bindings = new SqlParamBindings(true);
 
-    Update update =
-        handle.createStatement(tableHelper.getUpdateStatement(type, indexName, schema, bindings,
-            groupName, storeName, partitionName));
+    String sql =
+        tableHelper.getInsertStatement(type, indexName, schema, bindings, groupName, storeName,
+            tablePartition);
+
+    bindings.bind("id", id, Attribute.Type.U64);
+    bindIndexValues(bindings, value, schema.getIndex(indexName), schema);
+
+    batch.insert(sql, bindings);
+  }
+
+  private void bindIndexValues(SqlParamBindings bindings, Map<String, Object> value,
+      IndexDefinition indexDefinition, Schema schema) {
+    List<Object> values = getIndexValues(value, indexDefinition);
+    int i = 0;
 
     for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
       String attrName = attr.getName();
       if ("id".equals(attrName)) {
         continue;
       } else {
-        Object v = value.get(attrName) != null ? value.get(attrName).toString() : null;
-
-        bindings.bind(attrName, tableHelper.transformAttributeValue(v, attr),
-            schema.getAttribute(attrName).getType());
+        bindings.bind(attrName, values.get(i++), schema.getAttribute(attrName).getType());
       }
     }
 
-    bindings.bind("id", id, Attribute.Type.U64);
+    if (indexDefinition.isHashed()) {
+      bindings.bind(SecondaryIndexTableHelper.HASH_PARAM, tableHelper.computeUniqueKeyHash(values),
+          Attribute.Type.I64);
+    }
+  }
 
-    bindings.bindToStatement(update);
+  /** Returns the values of the index columns for the (packed) entity, in index order */
+  private List<Object> getIndexValues(Map<String, Object> value, IndexDefinition indexDefinition) {
+    List<Object> values = new ArrayList<Object>();
 
-    try {
-      update.execute();
-    } catch (UnableToExecuteStatementException e) {
-      if (tableHelper.isConstraintViolation(e)) {
-        throw new KazukiException("unique index constraint violation");
-      } else {
-        throw e;
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      String attrName = attr.getName();
+      if ("id".equals(attrName)) {
+        continue;
       }
+
+      Object v = value.get(attrName) != null ? value.get(attrName).toString() : null;
+
+      values.add(tableHelper.transformAttributeValue(v, attr));
     }
+
+    return values;
   }
 
-  private void deleteEntity(Handle handle, final Long id, final String type,
-      final Map<String, Object> value, final String indexName, final Schema schema)
+  /**
+   * Returns false if the Bloom filter of the type's unique index rules out a match for the
+   * description. Filters are only consulted for the unique index of the current schema and not
+   * while an online build is changing the type's indexes.
+   */
+  private boolean mightHaveUniqueMatch(String type, Schema schema, UniqueEntityDescription<?> desc)
       throws KazukiException {
+    if (uniqueFilters == null || builds.get(type) != null) {
+      return true;
+    }
+
+    IndexDefinition uniqueIndexDef = getUniqueIndexDef(schema);
+
+    if (uniqueIndexDef == null || !uniqueIndexDef.getName().equals(desc.getIndexName())) {
+      return true;
+    }
+
+    List<Object> values =
+        tableHelper.getUniqueKeyValues(schema, uniqueIndexDef, desc.getColumnDefinitions()
+            .values());
+
+    return values == null
+        || uniqueFilters.mightContain(type, tableHelper.getUniqueKeyString(values));
+  }
+
+  private void addUniqueKey(String type, Schema schema, Map<String, Object> instance) {
+    IndexDefinition uniqueIndexDef = getUniqueIndexDef(schema);
+
+    if (uniqueFilters != null && uniqueIndexDef != null) {
+      uniqueFilters.add(type,
+          tableHelper.getUniqueKeyString(getIndexValues(instance, uniqueIndexDef)));
+    }
+  }
+
+  private void invalidateUniqueFilter(String type) {
+    if (uniqueFilters != null) {
+      uniqueFilters.invalidate(type);
+    }
+  }
+
+  /** Adds the unique index values of every entity of the type, as written to the index */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private void loadUniqueFilter(String type, BloomFilter filter) throws Exception {
+    KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+    IndexDefinition uniqueIndexDef =
+        schemaKv == null ? null : getUniqueIndexDef(schemaKv.getValue());
+
+    if (uniqueIndexDef == null) {
+      return;
+    }
+
+    FieldTransform fieldTransform = new FieldTransform(schemaKv.getValue());
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> entries =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> entry : entries) {
+        filter.add(tableHelper.getUniqueKeyString(getIndexValues(
+            fieldTransform.pack(entry.getValue()), uniqueIndexDef)));
+      }
+    }
+  }
+
+  /** Returns the ids of the rows of a hashed unique index holding the entity's values */
+  private List<Long> probeUnique(Handle handle, String type, IndexDefinition indexDefinition,
+      Schema schema, Map<String, Object> value, String tablePartition) {
+    SqlParamBindings bindings = new SqlParamBindings(true);
+    String sql =
+        tableHelper.getUniqueProbeQuery(type, indexDefinition.getName(), schema, bindings,
+            groupName, storeName, tablePartition);
+
+    bindIndexValues(bindings, value, indexDefinition, schema);
+
+    Query<Map<String, Object>> probe = handle.createQuery(sql);
+    bindings.bindToStatement(probe);
+
+    return probe.map(LongMapper.FIRST).list();
+  }
+
+  /**
+   * Compares the packed values of the index attributes directly; values of differing boxed types
+   * (as after a round trip through storage) fall back to the string form that gets bound.
+   */
+  private static boolean isIndexUnchanged(IndexDefinition indexDefinition,
+      Map<String, Object> value, Map<String, Object> prev) {
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      String attrName = attr.getName();
+      if ("id".equals(attrName)) {
+        continue;
+      }
+
+      Object v = value.get(attrName);
+      Object p = prev.get(attrName);
+
+      if (v == null || p == null) {
+        if (v != p) {
+          return false;
+        }
+      } else if (!v.equals(p) && !v.toString().equals(p.toString())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private void updateEntity(IndexRowBatch batch, final Long id, final Map<String, Object> value,
+      final Map<String, Object> prev, final String type, final String indexName,
+      final Schema schema, final String tablePartition) {
+    IndexDefinition indexDefinition = schema.getIndex(indexName);
+
+    if (isIndexUnchanged(indexDefinition, value, prev)) {
+      return;
+    }
+
+    SqlParamBindings bindings = new SqlParamBindings(true);
+
+    String sql =
+        tableHelper.getUpdateStatement(type, indexName, schema, bindings, groupName, storeName,
+            tablePartition);
+
+    bindIndexValues(bindings, value, indexDefinition, schema);
+    bindings.bind("id", id, Attribute.Type.U64);
+
+    batch.update(sql, bindings);
+  }
+
+  private void deleteEntity(IndexRowBatch batch, final Long id, final String type,
+      final Map<String, Object> value, final String indexName, final Schema schema,
+      final String tablePartition) throws KazukiException {
     IndexDefinition indexDefinition = schema.getIndex(indexName);
     if (indexDefinition == null) {
       throw new KazukiException("schema or index not found " + type + "." + indexName);
@@ -577,14 +1865,13 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
 
     SqlParamBindings bindings = new SqlParamBindings(true);
 
-    Update delete =
-        handle.createStatement(tableHelper.getDeleteStatement(type, indexName, bindings, groupName,
-            storeName, partitionName));
+    String sql =
+        tableHelper.getDeleteStatement(type, indexName, bindings, groupName, storeName,
+            tablePartition);
 
     bindings.bind("id", id, Attribute.Type.U64);
-    bindings.bindToStatement(delete);
 
-    delete.execute();
+    batch.delete(sql, bindings);
   }
 
   /*
@@ -600,9 +1887,68 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
    * quarantine.execute(); }
    */
 
+  private Schema getIndexSchema(String type, String indexName, Schema currentSchema) {
+    SecondaryIndexBuild build = builds.get(type);
+
+    if (build != null && build.isBuilding(indexName)) {
+      if (build.getOldSchema().getIndex(indexName) == null) {
+        throw new IllegalStateException("index build in progress: " + type + "." + indexName);
+      }
+
+      // serve from the old table until the rebuilt one is swapped in
+      return build.getOldSchema();
+    }
+
+    return currentSchema;
+  }
+
+  /**
+   * Runs a single-value aggregate over the index table: the given SQL aggregate if attributeName
+   * is null, otherwise the named function (min / max) of the attribute's column.
+   */
+  private Object doAggregateQuery(String type, String indexName, @Nullable String attributeName,
+      String aggregate, List<QueryTerm> query) {
+    availability.assertAvailable();
+
+    try {
+      Schema schema = getIndexSchema(type, indexName, schemaStore.retrieveSchema(type).getValue());
+
+      SecondaryIndexQueryValidation.validateAggregateQuery(indexName, query, schema);
+
+      IndexDefinition indexDefinition = schema.getIndex(indexName);
+
+      if (attributeName != null) {
+        if (indexDefinition.getIndexAttribute(attributeName) == null) {
+          throw new IllegalArgumentException("unknown index attribute: " + attributeName);
+        }
+
+        aggregate = aggregate + "(" + tableHelper.getColumnName(attributeName) + ")";
+      }
+
+      SqlParamBindings bindings = new SqlParamBindings(true);
+      String querySql =
+          tableHelper.getAggregateQuery(type, indexName, aggregate,
+              tableHelper.sortAggregateTerms(indexDefinition, query), indexDefinition, schema,
+              new FieldTransform(schema), bindings, groupName, storeName, partitionName);
+
+      log.debug("index aggregate query : {} : bindings : {}", querySql, bindings.asMap());
+
+      try (Handle handle = database.open()) {
+        Query<Map<String, Object>> select = handle.createQuery(querySql);
+        bindings.bindToStatement(select);
+
+        return select.map(PartitionMergeKeyIterable.ROW_MAPPER).first()[0];
+      }
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
   private KeyValueIterable<Key> doIndexQuery(IDBI database, final String type, String indexName,
       List<QueryTerm> queryTerms, final SortDirection sortDirection, Long offset, Long pageSize,
-      boolean includeQuarantine, final Schema schema) throws Exception {
+      boolean includeQuarantine, Schema currentSchema) throws Exception {
+    final Schema schema = getIndexSchema(type, indexName, currentSchema);
+
     SecondaryIndexQueryValidation.validateQuery(indexName, queryTerms, schema);
 
     IndexDefinition indexDefinition = schema.getIndex(indexName);
@@ -671,6 +2017,58 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
     };
   }
 
+  private KeyValueIterable<Key> doPlannedQuery(final String type, QueryPlanImpl plan,
+      final SortDirection sortDirection, Long offset, Long limit, final Schema schema)
+      throws Exception {
+    if (plan.isFullScan()) {
+      final Predicate<Map<String, Object>> residual =
+          new QueryEvaluator().compile(plan.getResidualTerms());
+
+      return new FilteredKeyValueIterable<Key>(kvStore.iterators().entries(type,
+          LinkedHashMap.class, sortDirection), new Predicate<Object>() {
+        @SuppressWarnings("unchecked")
+        @Override
+        public boolean apply(Object instance) {
+          return residual.apply((LinkedHashMap<String, Object>) instance);
+        }
+      }, new Function<KeyValuePair<?>, Key>() {
+        @Override
+        public Key apply(KeyValuePair<?> instance) {
+          return instance.getKey();
+        }
+      }, offset, limit);
+    }
+
+    String drivingIndexName = plan.getDrivingIndexName();
+
+    if (plan.getIndexNames().size() == 1 && plan.getResidualTerms().isEmpty()) {
+      return this.doIndexQuery(database, type, drivingIndexName,
+          plan.getIndexTerms(drivingIndexName), sortDirection, offset, limit, false, schema);
+    }
+
+    List<Set<Key>> intersect = new ArrayList<Set<Key>>();
+
+    for (String indexName : plan.getIndexNames()) {
+      if (indexName.equals(drivingIndexName)) {
+        continue;
+      }
+
+      Set<Key> keys = new HashSet<Key>();
+
+      try (KeyValueIterable<Key> iter =
+          this.doIndexQuery(database, type, indexName, plan.getIndexTerms(indexName),
+              sortDirection, null, null, false, schema)) {
+        Iterables.addAll(keys, iter);
+      }
+
+      intersect.add(keys);
+    }
+
+    return new PlannedQueryKeyIterable(this.doIndexQuery(database, type, drivingIndexName,
+        plan.getIndexTerms(drivingIndexName), sortDirection, null, null, false, schema),
+        intersect, plan.getResidualTerms(), kvStore, offset, limit);
+  }
+
   private void truncateTable(Handle handle, final String type, final String indexName,
       final String groupName, String storeName, String partitionName) {
     String indexTableName =
@@ -679,6 +2077,30 @@ public class SecondaryIndexStoreJdbiImpl implements SecondaryIndexSupport {
         .define("table_name", indexTableName).execute();
   }
 
+  /**
+   * While an index build is in progress, the planner may only use indexes with a readable table:
+   * rebuilt indexes are planned with their old definition and new ones are left out.
+   */
+  private Schema getQueryableSchema(String type, Schema schema) {
+    SecondaryIndexBuild build = builds.get(type);
+
+    if (build == null) {
+      return schema;
+    }
+
+    List<IndexDefinition> indexes = new ArrayList<IndexDefinition>();
+
+    for (IndexDefinition indexDef : schema.getIndexes()) {
+      if (!build.isBuilding(indexDef.getName())) {
+        indexes.add(indexDef);
+      } else if (build.getOldSchema().getIndex(indexDef.getName()) != null) {
+        indexes.add(build.getOldSchema().getIndex(indexDef.getName()));
+      }
+    }
+
+    return new Schema(schema.getAttributes(), indexes);
+  }
+
   private IndexDefinition getUniqueIndexDef(Schema schema) {
     for (IndexDefinition indexDef : schema.getIndexes()) {
       if (indexDef.isUnique()) {
@@ -0,0 +1,934 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.LogTranslation;
+import io.kazuki.v0.internal.v2schema.compact.FieldTransform;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.index.query.QueryEvaluator;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.index.query.QueryOperator;
+import io.kazuki.v0.store.index.query.QueryTerm;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueHolderList;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreRegistration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.SchemaStoreRegistration;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.skife.jdbi.v2.Handle;
+import org.slf4j.Logger;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps the secondary indexes of selected (small, read-mostly) types in memory and answers index
+ * queries and unique lookups for them without going to the database. Each index is a sorted map
+ * from the leading attribute value to the entries sharing it, ordered by the remaining attribute
+ * values and then id. The mirror of a type is loaded from the entities in the background and kept
+ * current through the key-value store listener hooks, which buffer each transaction's changes
+ * until it commits; until it is loaded, and for every other type and operation, calls go to the
+ * durable (SQL) index store.
+ */
+public class SecondaryIndexStoreMemoryImpl implements SecondaryIndexSupport {
+  private final Logger log = LogTranslation.getLogger(getClass());
+
+  private final SecondaryIndexSupport durable;
+  private final LockManager lockManager;
+  private final SequenceService sequence;
+  private final SchemaStore schemaStore;
+  private final KeyValueStore kvStore;
+  private final Set<String> mirroredTypes;
+  private final String loadThreadPrefix;
+  private final ConcurrentHashMap<String, TypeMirror> mirrors =
+      new ConcurrentHashMap<String, TypeMirror>();
+  private final Map<Handle, List<PendingChange>> uncommitted = Collections
+      .synchronizedMap(new IdentityHashMap<Handle, List<PendingChange>>());
+  private ExecutorService loadExecutor;
+
+  public SecondaryIndexStoreMemoryImpl(SecondaryIndexSupport durable, LockManager lockManager,
+      SequenceService sequence, SchemaStore schemaStore, KeyValueStore kvStore,
+      Collection<String> mirroredTypes, String groupName, String storeName) {
+    this.durable = durable;
+    this.lockManager = lockManager;
+    this.sequence = sequence;
+    this.schemaStore = schemaStore;
+    this.kvStore = kvStore;
+    this.mirroredTypes = Collections.unmodifiableSet(new LinkedHashSet<String>(mirroredTypes));
+    this.loadThreadPrefix = "kz-idxmemory-" + groupName + "-" + storeName + "-%d";
+  }
+
+  @Override
+  public ComponentDescriptor<SecondaryIndexStore> getComponentDescriptor() {
+    return durable.getComponentDescriptor();
+  }
+
+  @Override
+  public void registerAsComponent(ComponentRegistrar manager) {
+    // the durable store registers itself
+  }
+
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void start() {
+        for (String type : mirroredTypes) {
+          scheduleLoad(type);
+        }
+      }
+
+      @Override
+      public void shutdown() {
+        stopLoads();
+        mirrors.clear();
+      }
+    });
+  }
+
+  @Inject
+  public void registerKeyValueStore(KeyValueStoreRegistration kvStore) {
+    kvStore.addListener(this);
+  }
+
+  @Inject
+  public void registerSchemaStore(SchemaStoreRegistration schemaStore) {
+    schemaStore.addListener(this);
+  }
+
+  /** Whether index queries for the type are currently answered from memory */
+  public boolean isMirrored(String type) {
+    TypeMirror mirror = mirrors.get(type);
+
+    return mirror != null && mirror.isReady();
+  }
+
+  /** Waits for the type's mirror to finish loading; returns whether it is ready */
+  public boolean awaitMirror(String type, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    while (!isMirrored(type)) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+
+      Thread.sleep(10L);
+    }
+
+    return true;
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String indexName, String queryString, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    return queryWithoutPagination(type, clazz, indexName, QueryHelper.parseQuery(queryString),
+        sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String indexName, List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    TypeMirror mirror = getMirror(type);
+
+    if (mirror == null) {
+      return durable.queryWithoutPagination(type, clazz, indexName, query, sortDirection, offset,
+          limit);
+    }
+
+    return keys(type, mirror.query(indexName, query, sortDirection, offset, limit));
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      String queryString, SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+    return durable.queryWithoutPagination(type, clazz, queryString, sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryWithoutPagination(String type, Class<T> clazz,
+      List<QueryTerm> query, SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    return durable.queryWithoutPagination(type, clazz, query, sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      String queryString, Collection<String> partitionNames, SortDirection sortDirection,
+      @Nullable Long offset, @Nullable Long limit) {
+    return durable.queryPartitions(type, clazz, indexName, queryString, partitionNames,
+        sortDirection, offset, limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<Key> queryPartitions(String type, Class<T> clazz, String indexName,
+      List<QueryTerm> query, Collection<String> partitionNames, SortDirection sortDirection,
+      @Nullable Long offset, @Nullable Long limit) {
+    return durable.queryPartitions(type, clazz, indexName, query, partitionNames, sortDirection,
+        offset, limit);
+  }
+
+  @Override
+  public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz,
+      String indexName, String queryString, SortDirection sortDirection,
+      @Nullable Boolean loadResults, @Nullable PageToken token, @Nullable Long limit) {
+    return durable.queryWithPagination(type, clazz, indexName, queryString, sortDirection,
+        loadResults, token, limit);
+  }
+
+  @Override
+  public <T> QueryResultsPage<T> queryWithPagination(String type, Class<T> clazz,
+      String indexName, List<QueryTerm> query, SortDirection sortDirection,
+      @Nullable Boolean loadResults, @Nullable PageToken token, @Nullable Long limit) {
+    return durable.queryWithPagination(type, clazz, indexName, query, sortDirection, loadResults,
+        token, limit);
+  }
+
+  @Override
+  public long count(String type, String indexName, String queryString) {
+    return durable.count(type, indexName, queryString);
+  }
+
+  @Override
+  public long count(String type, String indexName, List<QueryTerm> query) {
+    return durable.count(type, indexName, query);
+  }
+
+  @Override
+  public Object min(String type, String indexName, String attributeName, String queryString) {
+    return durable.min(type, indexName, attributeName, queryString);
+  }
+
+  @Override
+  public Object min(String type, String indexName, String attributeName, List<QueryTerm> query) {
+    return durable.min(type, indexName, attributeName, query);
+  }
+
+  @Override
+  public Object max(String type, String indexName, String attributeName, String queryString) {
+    return durable.max(type, indexName, attributeName, queryString);
+  }
+
+  @Override
+  public Object max(String type, String indexName, String attributeName, List<QueryTerm> query) {
+    return durable.max(type, indexName, attributeName, query);
+  }
+
+  @Override
+  public Map<Object, Long> countGroupedBy(String type, String indexName, String queryString) {
+    return durable.countGroupedBy(type, indexName, queryString);
+  }
+
+  @Override
+  public Map<Object, Long> countGroupedBy(String type, String indexName, List<QueryTerm> query) {
+    return durable.countGroupedBy(type, indexName, query);
+  }
+
+  @Override
+  public QueryPlan explain(String type, String queryString) {
+    return durable.explain(type, queryString);
+  }
+
+  @Override
+  public QueryPlan explain(String type, List<QueryTerm> query) {
+    return durable.explain(type, query);
+  }
+
+  @Override
+  public Map<UniqueEntityDescription, Key> multiRetrieveUniqueKeys(
+      Collection<UniqueEntityDescription> entityDefinitions) {
+    LinkedHashMap<UniqueEntityDescription, Key> inOrderResultMap = new LinkedHashMap<>();
+
+    for (UniqueEntityDescription<?> desc : entityDefinitions) {
+      List<Long> found = findUnique(desc);
+
+      if (found == null) {
+        inOrderResultMap.putAll(durable.multiRetrieveUniqueKeys(Collections
+            .<UniqueEntityDescription>singletonList(desc)));
+      } else {
+        inOrderResultMap.put(desc,
+            found.isEmpty() ? null : KeyImpl.createInternal(desc.getType(), found.get(0)));
+      }
+    }
+
+    return Collections.unmodifiableMap(inOrderResultMap);
+  }
+
+  @Override
+  public Map<UniqueEntityDescription, Object> multiRetrieveUniqueEntities(
+      Collection<UniqueEntityDescription> entityDefinitions) {
+    LinkedHashMap<UniqueEntityDescription, Object> inOrderResultMap = new LinkedHashMap<>();
+
+    try {
+      for (Map.Entry<UniqueEntityDescription, Key> entry : multiRetrieveUniqueKeys(
+          entityDefinitions).entrySet()) {
+        Key key = entry.getValue();
+
+        inOrderResultMap.put(entry.getKey(),
+            key == null ? null : kvStore.retrieve(key, entry.getKey().getClazz()));
+      }
+    } catch (KazukiException e) {
+      throw Throwables.propagate(e);
+    }
+
+    return Collections.unmodifiableMap(inOrderResultMap);
+  }
+
+  @Override
+  public <T> void enforceUnique(String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
+    // enforced by the durable store
+  }
+
+  @Override
+  public <T> void onCreate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> instance) throws KazukiException {
+    buffer(handle, type, resolvedKey.getIdentifierLo(), instance);
+  }
+
+  @Override
+  public <T> void onUpdate(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> newInstance, Map<String, Object> oldInstance)
+      throws KazukiException {
+    buffer(handle, type, resolvedKey.getIdentifierLo(), newInstance);
+  }
+
+  @Override
+  public <T> void onDelete(Handle handle, String type, Class<T> clazz, Schema schema,
+      ResolvedKey resolvedKey, Map<String, Object> oldInstance) {
+    buffer(handle, type, resolvedKey.getIdentifierLo(), null);
+  }
+
+  /** Applies the changes of a committed transaction to the mirrors, in the order they were made */
+  @Override
+  public void afterTransaction(Handle handle, boolean committed) {
+    List<PendingChange> changes = uncommitted.remove(handle);
+
+    if (!committed || changes == null) {
+      return;
+    }
+
+    for (PendingChange change : changes) {
+      TypeMirror mirror = mirrors.get(change.type);
+
+      if (mirror != null) {
+        mirror.apply(change.id, change.instance);
+      }
+    }
+  }
+
+  private void buffer(Handle handle, String type, long id, @Nullable Map<String, Object> instance) {
+    if (!mirroredTypes.contains(type)) {
+      return;
+    }
+
+    synchronized (uncommitted) {
+      List<PendingChange> changes = uncommitted.get(handle);
+
+      if (changes == null) {
+        changes = new ArrayList<PendingChange>();
+        uncommitted.put(handle, changes);
+      }
+
+      changes.add(new PendingChange(type, id, instance));
+    }
+  }
+
+  @Override
+  public void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema) {
+    for (Map.Entry<String, TypeMirror> entry : mirrors.entrySet()) {
+      if (preserveSchema) {
+        TypeMirror empty = new TypeMirror(entry.getValue().schema);
+        empty.finishLoading();
+
+        mirrors.put(entry.getKey(), empty);
+      } else {
+        mirrors.remove(entry.getKey());
+      }
+    }
+  }
+
+  @Override
+  public void onSchemaCreate(String type, Schema schema) {
+    if (mirroredTypes.contains(type)) {
+      scheduleLoad(type);
+    }
+  }
+
+  @Override
+  public void onSchemaUpdate(String type, Schema newSchema, Schema oldSchema,
+      KeyValueIterable<KeyValuePair<LinkedHashMap>> entityCollection) {
+    if (mirroredTypes.contains(type)) {
+      mirrors.remove(type);
+      scheduleLoad(type);
+    }
+  }
+
+  @Override
+  public void onSchemaDelete(String type, Schema oldSchema) {
+    mirrors.remove(type);
+  }
+
+  /** The ready mirror for a type, or null to use the durable store */
+  @Nullable
+  private TypeMirror getMirror(String type) {
+    if (!mirroredTypes.contains(type)) {
+      return null;
+    }
+
+    TypeMirror mirror = mirrors.get(type);
+
+    if (mirror == null) {
+      scheduleLoad(type);
+
+      return null;
+    }
+
+    return mirror.isReady() ? mirror : null;
+  }
+
+  /**
+   * Looks up a unique entity description in memory; returns the matching ids (at most one), or
+   * null if the type is not mirrored.
+   */
+  @Nullable
+  private List<Long> findUnique(UniqueEntityDescription<?> desc) {
+    TypeMirror mirror = getMirror(desc.getType());
+
+    if (mirror == null) {
+      return null;
+    }
+
+    List<QueryTerm> query = new ArrayList<QueryTerm>(desc.getColumnDefinitions().values());
+
+    return mirror.query(desc.getIndexName(), query, SortDirection.ASCENDING, 0L, 1L);
+  }
+
+  private static KeyValueIterable<Key> keys(final String type, final List<Long> ids) {
+    return new KeyValueIterable<Key>() {
+      @Override
+      public KeyValueIterator<Key> iterator() {
+        return new KeyValueIterator<Key>() {
+          private final Iterator<Long> inner = ids.iterator();
+
+          @Override
+          public boolean hasNext() {
+            return inner.hasNext();
+          }
+
+          @Override
+          public Key next() {
+            return KeyImpl.createInternal(type, inner.next());
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("remove");
+          }
+
+          @Override
+          public void close() {
+            // nothing held
+          }
+        };
+      }
+
+      @Override
+      public void close() {
+        // nothing held
+      }
+    };
+  }
+
+  private synchronized void scheduleLoad(final String type) {
+    if (loadExecutor == null) {
+      loadExecutor =
+          Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat(loadThreadPrefix).build());
+    }
+
+    loadExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          load(type);
+        } catch (Exception e) {
+          log.warn("Loading in-memory index failed, using index tables: " + type, e);
+        }
+      }
+    });
+  }
+
+  private synchronized void stopLoads() {
+    if (loadExecutor != null) {
+      loadExecutor.shutdownNow();
+      loadExecutor = null;
+    }
+  }
+
+  /**
+   * Loads a type's mirror from its entities. The mirror is published (and starts collecting
+   * changes) while holding the store lock, so no write is in flight; changes made during the scan
+   * are replayed on top of it once the scan completes.
+   */
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  private void load(String type) throws Exception {
+    TypeMirror existing = mirrors.get(type);
+
+    if (existing != null && existing.isReady()) {
+      return;
+    }
+
+    TypeMirror mirror;
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      KeyValuePair<Schema> schemaKv = schemaStore.retrieveSchema(type);
+
+      if (schemaKv == null || schemaKv.getValue() == null) {
+        return;
+      }
+
+      mirror = new TypeMirror(schemaKv.getValue());
+      mirrors.put(type, mirror);
+    }
+
+    FieldTransform fieldTransform = new FieldTransform(mirror.schema);
+
+    try (KeyValueIterable<KeyValuePair<LinkedHashMap>> entities =
+        kvStore.iterators().entries(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<LinkedHashMap> entity : entities) {
+        if (mirrors.get(type) != mirror) {
+          // dropped or superseded while loading
+          return;
+        }
+
+        mirror.load(sequence.resolveKey(entity.getKey()).getIdentifierLo(),
+            fieldTransform.pack(entity.getValue()));
+      }
+    }
+
+    mirror.finishLoading();
+
+    log.debug("loaded in-memory index for type {}", type);
+  }
+
+  /** In-memory copy of the indexes of one type, as of its schema when loaded */
+  private static class TypeMirror {
+    private final Schema schema;
+    private final FieldTransform fieldTransform;
+    private final Map<String, IndexMirror> indexes = new HashMap<String, IndexMirror>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private List<Object[]> pending = new ArrayList<Object[]>();
+    private volatile boolean ready = false;
+
+    public TypeMirror(Schema schema) {
+      this.schema = schema;
+      this.fieldTransform = new FieldTransform(schema);
+
+      for (IndexDefinition indexDefinition : schema.getIndexes()) {
+        indexes.put(indexDefinition.getName(), new IndexMirror(indexDefinition));
+      }
+    }
+
+    public boolean isReady() {
+      return ready;
+    }
+
+    /** Applies a change (null instance for a delete), or queues it while loading */
+    public void apply(long id, @Nullable Map<String, Object> instance) {
+      lock.writeLock().lock();
+
+      try {
+        if (pending != null) {
+          pending.add(new Object[] {id, instance});
+        } else {
+          put(id, instance);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    public void load(long id, Map<String, Object> instance) {
+      lock.writeLock().lock();
+
+      try {
+        put(id, instance);
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void finishLoading() {
+      lock.writeLock().lock();
+
+      try {
+        for (Object[] change : pending) {
+          put((Long) change[0], (Map<String, Object>) change[1]);
+        }
+
+        pending = null;
+        ready = true;
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+
+    public List<Long> query(String indexName, List<QueryTerm> query,
+        SortDirection sortDirection, @Nullable Long offset, @Nullable Long limit) {
+      SecondaryIndexQueryValidation.validateQuery(indexName, query, schema);
+
+      IndexMirror index = indexes.get(indexName);
+      List<QueryTerm> terms = new ArrayList<QueryTerm>(query.size());
+
+      try {
+        for (QueryTerm term : query) {
+          terms.add(transformTerm(term, index.definition.getIndexAttribute(term.getField())));
+        }
+      } catch (KazukiException e) {
+        throw Throwables.propagate(e);
+      }
+
+      lock.readLock().lock();
+
+      try {
+        return index.query(terms, sortDirection, offset == null ? 0L : offset,
+            limit == null ? -1L : limit);
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+
+    private void put(long id, @Nullable Map<String, Object> instance) {
+      for (IndexMirror index : indexes.values()) {
+        index.remove(id);
+
+        if (instance != null) {
+          index.add(id, instance);
+        }
+      }
+    }
+
+    /** Converts a term's values to the form stored in the index, as the SQL index binds them */
+    private QueryTerm transformTerm(QueryTerm term, IndexAttribute attribute)
+        throws KazukiException {
+      if (QueryOperator.IN.equals(term.getOperator())) {
+        List<ValueHolder> values = new ArrayList<ValueHolder>();
+
+        for (ValueHolder value : term.getValueList().getValueList()) {
+          values.add(transformValue(value, attribute));
+        }
+
+        return new QueryTerm(term.getOperator(), term.getField(), new ValueHolderList(values));
+      }
+
+      return new QueryTerm(term.getOperator(), term.getField(), transformValue(term.getValue(),
+          attribute));
+    }
+
+    private ValueHolder transformValue(ValueHolder value, IndexAttribute attribute)
+        throws KazukiException {
+      if (ValueType.NULL.equals(value.getValueType()) || "id".equals(attribute.getName())) {
+        return value;
+      }
+
+      Object transformed = fieldTransform.transformValue(attribute.getName(), value.getValue());
+
+      return QueryHelper.toValueHolder(IndexValues.transform(transformed, attribute));
+    }
+  }
+
+  /**
+   * One index: entries bucketed by leading attribute value (sorted map), each bucket sorted by the
+   * remaining attribute values and then the primitive id.
+   */
+  private static class IndexMirror {
+    private static final Comparator<Entry> ENTRY_ORDER =
+        new Comparator<Entry>() {
+          @Override
+          public int compare(Entry a, Entry b) {
+            for (int i = 1; i < a.values.length; i++) {
+              int comparison = IndexValues.ORDER.compare(a.values[i], b.values[i]);
+
+              if (comparison != 0) {
+                return comparison;
+              }
+            }
+
+            return a.id < b.id ? -1 : (a.id == b.id ? 0 : 1);
+          }
+        };
+
+    private final IndexDefinition definition;
+    private final List<IndexAttribute> attributes;
+    private final TreeMap<Object, TreeSet<Entry>> buckets = new TreeMap<Object, TreeSet<Entry>>(
+        IndexValues.ORDER);
+    private final Map<Long, Entry> byId = new HashMap<Long, Entry>();
+
+    public IndexMirror(IndexDefinition definition) {
+      this.definition = definition;
+      this.attributes = definition.getIndexAttributes();
+    }
+
+    public void add(long id, Map<String, Object> instance) {
+      Object[] values = new Object[attributes.size()];
+
+      for (int i = 0; i < values.length; i++) {
+        IndexAttribute attribute = attributes.get(i);
+
+        values[i] =
+            "id".equals(attribute.getName()) ? Long.valueOf(id) : IndexValues.transform(
+                instance.get(attribute.getName()), attribute);
+      }
+
+      Entry entry = new Entry(id, values);
+      byId.put(id, entry);
+
+      TreeSet<Entry> bucket = buckets.get(values[0]);
+
+      if (bucket == null) {
+        bucket = new TreeSet<Entry>(ENTRY_ORDER);
+        buckets.put(values[0], bucket);
+      }
+
+      bucket.add(entry);
+    }
+
+    public void remove(long id) {
+      Entry entry = byId.remove(id);
+
+      if (entry != null) {
+        TreeSet<Entry> bucket = buckets.get(entry.values[0]);
+        bucket.remove(entry);
+
+        if (bucket.isEmpty()) {
+          buckets.remove(entry.values[0]);
+        }
+      }
+    }
+
+    public List<Long> query(List<QueryTerm> terms, SortDirection sortDirection, long offset,
+        long limit) {
+      Predicate<Map<String, Object>> filter = new QueryEvaluator().compile(terms);
+      boolean ascending = SortDirection.ASCENDING.equals(sortDirection);
+      Map<String, Object> row = new HashMap<String, Object>();
+      List<Long> ids = new ArrayList<Long>();
+      long toSkip = offset;
+
+      for (NavigableSet<Entry> bucket : seek(terms, ascending)) {
+        for (Entry entry : ascending ? bucket : bucket.descendingSet()) {
+          for (int i = 0; i < attributes.size(); i++) {
+            row.put(attributes.get(i).getName(), entry.values[i]);
+          }
+
+          if (!filter.apply(row)) {
+            continue;
+          }
+
+          if (toSkip > 0L) {
+            toSkip -= 1;
+          } else if (limit < 0L || ids.size() < limit) {
+            ids.add(entry.id);
+          } else {
+            return ids;
+          }
+        }
+      }
+
+      return ids;
+    }
+
+    /**
+     * Buckets that may hold matches, in scan order: the values of an IN list, or the range the
+     * leading attribute's comparison terms allow. The filter still checks every term.
+     */
+    private Iterable<TreeSet<Entry>> seek(List<QueryTerm> terms, boolean ascending) {
+      String leading = attributes.get(0).getName();
+      Bound lower = new Bound(1);
+      Bound upper = new Bound(-1);
+
+      for (QueryTerm term : terms) {
+        if (!term.getField().equals(leading)) {
+          continue;
+        }
+
+        if (QueryOperator.IN.equals(term.getOperator())) {
+          TreeSet<Object> values = new TreeSet<Object>(IndexValues.ORDER);
+
+          for (ValueHolder value : term.getValueList().getValueList()) {
+            values.add(ValueType.NULL.equals(value.getValueType()) ? null : value.getValue());
+          }
+
+          List<TreeSet<Entry>> found = new ArrayList<TreeSet<Entry>>();
+
+          for (Object value : ascending ? values : values.descendingSet()) {
+            TreeSet<Entry> bucket = buckets.get(value);
+
+            if (bucket != null) {
+              found.add(bucket);
+            }
+          }
+
+          return found;
+        }
+
+        ValueHolder target = term.getValue();
+        boolean isNull = ValueType.NULL.equals(target.getValueType());
+        Object value = isNull ? null : target.getValue();
+
+        switch (term.getOperator()) {
+          case EQ:
+            lower.tighten(value, true);
+            upper.tighten(value, true);
+            break;
+          case GT:
+          case GE:
+            if (!isNull) {
+              lower.tighten(value, QueryOperator.GE.equals(term.getOperator()));
+            }
+            break;
+          case LT:
+          case LE:
+            if (!isNull) {
+              upper.tighten(value, QueryOperator.LE.equals(term.getOperator()));
+            }
+            break;
+          case PREFIX:
+            String prefix = (String) value;
+            String next = SecondaryIndexTableHelper.getPrefixUpperBound(prefix);
+
+            lower.tighten(prefix, true);
+
+            if (next != null) {
+              upper.tighten(next, false);
+            }
+            break;
+          default:
+            break;
+        }
+      }
+
+      NavigableMap<Object, TreeSet<Entry>> range = buckets;
+
+      if (lower.set && upper.set) {
+        int comparison = IndexValues.ORDER.compare(lower.value, upper.value);
+
+        if (comparison > 0 || (comparison == 0 && !(lower.inclusive && upper.inclusive))) {
+          return Collections.emptyList();
+        }
+
+        range = buckets.subMap(lower.value, lower.inclusive, upper.value, upper.inclusive);
+      } else if (lower.set) {
+        range = buckets.tailMap(lower.value, lower.inclusive);
+      } else if (upper.set) {
+        range = buckets.headMap(upper.value, upper.inclusive);
+      }
+
+      return ascending ? range.values() : range.descendingMap().values();
+    }
+  }
+
+  /** Tightest lower (direction 1) or upper (direction -1) bound seen so far */
+  private static class Bound {
+    private final int direction;
+    private boolean set = false;
+    private Object value;
+    private boolean inclusive;
+
+    public Bound(int direction) {
+      this.direction = direction;
+    }
+
+    public void tighten(Object newValue, boolean newInclusive) {
+      int comparison = set ? IndexValues.ORDER.compare(newValue, value) * direction : 1;
+
+      if (comparison > 0 || (comparison == 0 && !newInclusive)) {
+        set = true;
+        value = newValue;
+        inclusive = newInclusive;
+      }
+    }
+  }
+
+  /** A change to a mirrored entity made by a transaction that has yet to commit */
+  private static class PendingChange {
+    private final String type;
+    private final long id;
+    private final Map<String, Object> instance;
+
+    public PendingChange(String type, long id, @Nullable Map<String, Object> instance) {
+      this.type = type;
+      this.id = id;
+      this.instance = instance;
+    }
+  }
+
+  private static class Entry {
+    private final long id;
+    private final Object[] values;
+
+    public Entry(long id, Object[] values) {
+      this.id = id;
+      this.values = values;
+    }
+  }
+}
@@ -44,11 +44,26 @@ public class SecondaryIndexStoreProvider implements Provider<SecondaryIndexSuppo
       Injector injector) {
     this.inject = injector;
 
-    if (kvConfig.isSecondaryIndex()) {
+    if (kvConfig.isSecondaryIndex() && !kvConfig.getMemoryIndexTypes().isEmpty()) {
+      SecondaryIndexSupport durable =
+          new SecondaryIndexStoreJdbiImpl(availability, lockManager, dataSource, database,
+              sequences, schemaStore, kvStore, tableHelper, kvConfig.getGroupName(),
+              kvConfig.getStoreName(), kvConfig.getPartitionName(),
+              kvConfig.isDeferredIndexing(), kvConfig.isBloomFilters());
+
+      // the durable store is injected (and registers as a listener) first; the mirror applies
+      // changes only once their transaction has committed
+      this.inject.injectMembers(durable);
+
+      this.instance =
+          new SecondaryIndexStoreMemoryImpl(durable, lockManager, sequences, schemaStore, kvStore,
+              kvConfig.getMemoryIndexTypes(), kvConfig.getGroupName(), kvConfig.getStoreName());
+    } else if (kvConfig.isSecondaryIndex()) {
       this.instance =
           new SecondaryIndexStoreJdbiImpl(availability, lockManager, dataSource, database,
               sequences, schemaStore, kvStore, tableHelper, kvConfig.getGroupName(),
-              kvConfig.getStoreName(), kvConfig.getPartitionName());
+              kvConfig.getStoreName(), kvConfig.getPartitionName(),
+              kvConfig.isDeferredIndexing(), kvConfig.isBloomFilters());
     } else {
       this.instance =
           new SecondaryIndexStoreBruteForceImpl(kvConfig, sequences, kvStore, schemaStore);
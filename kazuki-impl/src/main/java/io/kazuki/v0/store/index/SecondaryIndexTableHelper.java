@@ -37,6 +37,7 @@ import io.kazuki.v0.store.sequence.SequenceService;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -52,9 +53,20 @@ import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 
 public class SecondaryIndexTableHelper {
+  /** Binding name of the unique-key hash of a hashed unique index */
+  public static final String HASH_PARAM = "__hash";
+
+  /**
+   * Consecutive ids read together by a sampling scan, so that values repeating with a shorter
+   * period are not aliased by the stride
+   */
+  public static final long SAMPLE_BLOCK_IDS = 64L;
+
   private final SqlTypeHelper typeHelper;
   private final LongHash longHash;
   private final SequenceService sequences;
@@ -150,6 +162,11 @@ public class SecondaryIndexTableHelper {
       params.add(bindings.bind(attr.getName(), schema.getAttribute(attr.getName()).getType()));
     }
 
+    if (indexDefinition.isHashed()) {
+      cols.add(typeHelper.quote("_hash"));
+      params.add(bindings.bind(HASH_PARAM, Attribute.Type.I64));
+    }
+
     cols.add(typeHelper.quote("quarantined"));
     params.add(bindings.bind("quarantined", "N", Attribute.Type.CHAR_ONE));
 
@@ -180,6 +197,10 @@ public class SecondaryIndexTableHelper {
           + bindings.bind(attr.getName(), schema.getAttribute(attr.getName()).getType()));
     }
 
+    if (indexDefinition.isHashed()) {
+      sets.add(typeHelper.quote("_hash") + " = " + bindings.bind(HASH_PARAM, Attribute.Type.I64));
+    }
+
     StringBuilder sqlBuilder = new StringBuilder();
     sqlBuilder.append("update ");
     sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
@@ -253,6 +274,24 @@ public class SecondaryIndexTableHelper {
     }
   }
 
+  /**
+   * Returns the smallest string greater than every string starting with the given prefix, or null
+   * if there is none (the prefix is empty or all U+FFFF).
+   */
+  public static String getPrefixUpperBound(String prefix) {
+    int end = prefix.length();
+
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end -= 1;
+    }
+
+    if (end == 0) {
+      return null;
+    }
+
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
   public Object transformAttributeValue(Object value, IndexAttribute attr) {
     Object toBind = value;
 
@@ -353,6 +392,183 @@ public class SecondaryIndexTableHelper {
     return sqlBuilder.toString();
   }
 
+  public String getTableRename(String type, String indexName, String groupName,
+      String storeName, String fromPartitionName, String toPartitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("alter table ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, fromPartitionName));
+    sqlBuilder.append(" rename to ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, toPartitionName));
+
+    return sqlBuilder.toString();
+  }
+
+  public String getIndexRename(String type, String indexName, String groupName,
+      String storeName, String fromPartitionName, String toPartitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("alter index ");
+    sqlBuilder.append(getIndexName(type, indexName, groupName, storeName, fromPartitionName));
+    sqlBuilder.append(" rename to ");
+    sqlBuilder.append(getIndexName(type, indexName, groupName, storeName, toPartitionName));
+
+    return sqlBuilder.toString();
+  }
+
+  /**
+   * Returns true if the index is stored identically under both schemas (same attributes, ordering,
+   * transforms and column types), so its table can be kept across a schema update
+   */
+  public boolean isSameIndex(String indexName, Schema oldSchema, Schema newSchema) {
+    IndexDefinition oldDef = oldSchema.getIndex(indexName);
+    IndexDefinition newDef = newSchema.getIndex(indexName);
+
+    if (oldDef == null || newDef == null || oldDef.isUnique() != newDef.isUnique()
+        || oldDef.isHashed() != newDef.isHashed()
+        || oldDef.getIndexAttributes().size() != newDef.getIndexAttributes().size()) {
+      return false;
+    }
+
+    for (int i = 0; i < oldDef.getIndexAttributes().size(); i++) {
+      IndexAttribute oldAttr = oldDef.getIndexAttributes().get(i);
+      IndexAttribute newAttr = newDef.getIndexAttributes().get(i);
+
+      if (!oldAttr.getName().equals(newAttr.getName())
+          || !oldAttr.getSortDirection().equals(newAttr.getSortDirection())
+          || !oldAttr.getTransform().equals(newAttr.getTransform())) {
+        return false;
+      }
+
+      Attribute oldType = oldSchema.getAttribute(oldAttr.getName());
+      Attribute newType = newSchema.getAttribute(newAttr.getName());
+
+      if (oldType == null || newType == null) {
+        if (oldType != newType) {
+          return false;
+        }
+
+        continue;
+      }
+
+      if (!oldType.getType().equals(newType.getType())
+          || !Objects.equal(oldType.getValues(), newType.getValues())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public String getQueueTableName(String groupName, String storeName, String partitionName) {
+    return typeHelper.quote("_" + groupName + "_" + storeName + "__idxq__" + partitionName);
+  }
+
+  /**
+   * The queue of pending changes for deferred index maintenance, applied in _seq order. The _seq
+   * is assigned by the index store under the store lock, so commits are in _seq order.
+   */
+  public String getQueueTableDefinition(String groupName, String storeName, String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("create table if not exists ");
+    sqlBuilder.append(getQueueTableName(groupName, storeName, partitionName));
+    sqlBuilder.append(" (");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.I64));
+    sqlBuilder.append(" NOT NULL PRIMARY KEY, ");
+    sqlBuilder.append(typeHelper.quote("_type_tag"));
+    sqlBuilder.append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.I32));
+    sqlBuilder.append(" NOT NULL, ");
+    sqlBuilder.append(typeHelper.quote("_id"));
+    sqlBuilder.append(" ");
+    sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.U64));
+    sqlBuilder.append(" NOT NULL)");
+    sqlBuilder.append(typeHelper.getTableOptions());
+
+    return sqlBuilder.toString();
+  }
+
+  public String getQueueInsertStatement(SqlParamBindings bindings, String groupName,
+      String storeName, String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("insert into ");
+    sqlBuilder.append(getQueueTableName(groupName, storeName, partitionName));
+    sqlBuilder.append(" (");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(", ");
+    sqlBuilder.append(typeHelper.quote("_type_tag"));
+    sqlBuilder.append(", ");
+    sqlBuilder.append(typeHelper.quote("_id"));
+    sqlBuilder.append(") values (");
+    sqlBuilder.append(bindings.bind("seq", Attribute.Type.I64));
+    sqlBuilder.append(", ");
+    sqlBuilder.append(bindings.bind("type_tag", Attribute.Type.I32));
+    sqlBuilder.append(", ");
+    sqlBuilder.append(bindings.bind("id", Attribute.Type.U64));
+    sqlBuilder.append(")");
+
+    return sqlBuilder.toString();
+  }
+
+  public String getQueueSelect(SqlParamBindings bindings, long limit, String groupName,
+      String storeName, String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select ");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(", ");
+    sqlBuilder.append(typeHelper.quote("_type_tag"));
+    sqlBuilder.append(", ");
+    sqlBuilder.append(typeHelper.quote("_id"));
+    sqlBuilder.append(" from ");
+    sqlBuilder.append(getQueueTableName(groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(" <= ");
+    sqlBuilder.append(bindings.bind("seq", Attribute.Type.I64));
+    sqlBuilder.append(" order by ");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(" limit ");
+    sqlBuilder.append(limit);
+
+    return sqlBuilder.toString();
+  }
+
+  public String getQueueMaxSeq(String groupName, String storeName, String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select max(");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(") from ");
+    sqlBuilder.append(getQueueTableName(groupName, storeName, partitionName));
+
+    return sqlBuilder.toString();
+  }
+
+  public String getQueueDelete(SqlParamBindings bindings, String groupName, String storeName,
+      String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("delete from ");
+    sqlBuilder.append(getQueueTableName(groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    sqlBuilder.append(typeHelper.quote("_seq"));
+    sqlBuilder.append(" <= ");
+    sqlBuilder.append(bindings.bind("seq", Attribute.Type.I64));
+
+    return sqlBuilder.toString();
+  }
+
+  public String getQueueTypeDelete(SqlParamBindings bindings, String groupName, String storeName,
+      String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("delete from ");
+    sqlBuilder.append(getQueueTableName(groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    sqlBuilder.append(typeHelper.quote("_type_tag"));
+    sqlBuilder.append(" = ");
+    sqlBuilder.append(bindings.bind("type_tag", Attribute.Type.I32));
+
+    return sqlBuilder.toString();
+  }
+
   public String getTableDefinition(String type, String indexName, Schema schema, String groupName,
       String storeName, String partitionName) {
     IndexDefinition indexDefinition = schema.getIndexMap().get(indexName);
@@ -386,6 +602,14 @@ public class SecondaryIndexTableHelper {
       sqlBuilder.append(typeHelper.getSqlType(attribute.getType()));
     }
 
+    if (indexDefinition.isHashed()) {
+      sqlBuilder.append(", ");
+      sqlBuilder.append(typeHelper.quote("_hash"));
+      sqlBuilder.append(" ");
+      sqlBuilder.append(typeHelper.getSqlType(Attribute.Type.I64));
+      sqlBuilder.append(" NOT NULL");
+    }
+
     sqlBuilder.append(", ");
     sqlBuilder.append(typeHelper.quote("quarantined"));
     sqlBuilder.append(" ");
@@ -431,10 +655,15 @@ public class SecondaryIndexTableHelper {
       colDefs.add(getColumnName("id") + " " + "ASC");
     }
 
+    if (indexDefinition.isHashed()) {
+      // uniqueness is checked by probing the hash (see getUniqueProbeQuery)
+      colDefs = ImmutableList.of(typeHelper.quote("_hash") + " ASC");
+    }
+
     StringBuilder sqlBuilder = new StringBuilder();
     sqlBuilder.append("create ");
 
-    if (indexDefinition.isUnique()) {
+    if (indexDefinition.isUnique() && !indexDefinition.isHashed()) {
       sqlBuilder.append("unique ");
     }
 
@@ -470,11 +699,88 @@ public class SecondaryIndexTableHelper {
       IndexDefinition indexDefinition, Schema schema, FieldTransform transform,
       SqlParamBindings bindings, String groupName, String storeName, String partitionName)
       throws Exception {
+    return getIndexQuery(type, indexName, termMap, sortDirection, offset, pageSize,
+        includeQuarantine, indexDefinition, schema, transform, bindings, groupName, storeName,
+        partitionName, false);
+  }
+
+  /**
+   * Like getIndexQuery, but selects the index attribute columns after "_id" so that ordered
+   * results from several partitions can be merged on the sort key
+   */
+  public String getMergeableIndexQuery(String type, String indexName,
+      Map<String, List<QueryTerm>> termMap, SortDirection sortDirection, Long pageSize,
+      IndexDefinition indexDefinition, Schema schema, FieldTransform transform,
+      SqlParamBindings bindings, String groupName, String storeName, String partitionName)
+      throws Exception {
+    return getIndexQuery(type, indexName, termMap, sortDirection, 0L, pageSize, false,
+        indexDefinition, schema, transform, bindings, groupName, storeName, partitionName, true);
+  }
+
+  private String getIndexQuery(String type, String indexName,
+      Map<String, List<QueryTerm>> termMap, SortDirection sortDirection, Long offset,
+      Long pageSize, boolean includeQuarantine, IndexDefinition indexDefinition, Schema schema,
+      FieldTransform transform, SqlParamBindings bindings, String groupName, String storeName,
+      String partitionName, boolean selectSortColumns) throws Exception {
     List<QueryTerm> firstTerm = termMap.get(indexDefinition.getIndexAttributes().get(0).getName());
     if (firstTerm == null || firstTerm.isEmpty()) {
       throw new IllegalArgumentException("missing query term for first attribute of index");
     }
 
+    List<String> clauses =
+        getWhereClauses(termMap, indexDefinition, schema, transform, bindings);
+
+    List<String> sortOrders = new ArrayList<String>();
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      String colName = getColumnName(attr.getName());
+
+      String colSortDirection = null;
+
+      if (sortDirection.equals(attr.getSortDirection())) {
+        colSortDirection = sortDirection.equals(SortDirection.ASCENDING) ? "ASC" : "DESC";
+      } else {
+        colSortDirection = sortDirection.equals(SortDirection.DESCENDING) ? "DESC" : "ASC";
+      }
+
+      sortOrders.add(colName + " " + colSortDirection);
+    }
+
+    sortOrders.add(getColumnName("id") + " "
+        + (sortDirection.equals(SortDirection.ASCENDING) ? "ASC" : "DESC"));
+
+    offset = offset != null ? offset : 0L;
+    Long limit = pageSize != null ? pageSize + 1L : -1;
+
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select ");
+    sqlBuilder.append(typeHelper.quote("_id"));
+    if (selectSortColumns) {
+      for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+        sqlBuilder.append(", ");
+        sqlBuilder.append(getColumnName(attr.getName()));
+      }
+    }
+    sqlBuilder.append(" from ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    if (!includeQuarantine) {
+      sqlBuilder.append(typeHelper.quote("quarantined"));
+      sqlBuilder.append(" = 'N' AND ");
+    }
+    sqlBuilder.append(StringHelper.join(" AND ", clauses));
+    sqlBuilder.append(" order by ");
+    sqlBuilder.append(StringHelper.join(", ", sortOrders));
+    sqlBuilder.append(" limit ");
+    sqlBuilder.append(limit);
+    sqlBuilder.append(" offset ");
+    sqlBuilder.append(offset);
+
+    return sqlBuilder.toString();
+  }
+
+  private List<String> getWhereClauses(Map<String, List<QueryTerm>> termMap,
+      IndexDefinition indexDefinition, Schema schema, FieldTransform transform,
+      SqlParamBindings bindings) throws Exception {
     List<String> clauses = new ArrayList<String>();
     int param = 0;
 
@@ -512,6 +818,25 @@ public class SecondaryIndexTableHelper {
 
           clauses.add(getColumnName(term.getField()) + " " + sqlOperator + "("
               + StringHelper.join(", ", paramNames) + ")");
+        } else if (op.equals(QueryOperator.PREFIX)) {
+          // seek the range [prefix, successor(prefix)) instead of scanning with LIKE
+          String lowerParam =
+              bindParam(attribute, schema, transform, bindings, param, attrName, term.getValue());
+          param += 1;
+
+          clauses.add(getColumnName(term.getField()) + " >= " + lowerParam);
+
+          String upper =
+              getPrefixUpperBound((String) transformAttributeValue(term.getValue().getValue(),
+                  attribute));
+
+          if (upper != null) {
+            String upperParam =
+                bindings.bind("p" + param, upper, schema.getAttribute(attrName).getType());
+            param += 1;
+
+            clauses.add(getColumnName(term.getField()) + " < " + upperParam);
+          }
         } else {
           String boundParam =
               bindParam(attribute, schema, transform, bindings, param, attrName, term.getValue());
@@ -527,26 +852,117 @@ public class SecondaryIndexTableHelper {
       }
     }
 
-    List<String> sortOrders = new ArrayList<String>();
-    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
-      String colName = getColumnName(attr.getName());
+    if (indexDefinition.isHashed()) {
+      List<Object> values = getUniqueKeyValues(termMap, indexDefinition, transform);
 
-      String colSortDirection = null;
+      if (values != null) {
+        clauses.add(typeHelper.quote("_hash") + " = "
+            + bindings.bind(HASH_PARAM, computeUniqueKeyHash(values), Attribute.Type.I64));
+      }
+    }
 
-      if (sortDirection.equals(attr.getSortDirection())) {
-        colSortDirection = sortDirection.equals(SortDirection.ASCENDING) ? "ASC" : "DESC";
-      } else {
-        colSortDirection = sortDirection.equals(SortDirection.DESCENDING) ? "DESC" : "ASC";
+    return clauses;
+  }
+
+  /**
+   * Returns the index values (as bound to the index columns) of a query consisting of exactly one
+   * equality term on every attribute of the index, in index order, or null for any other query
+   */
+  public List<Object> getUniqueKeyValues(Schema schema, IndexDefinition indexDefinition,
+      Collection<QueryTerm> query) throws KazukiException {
+    Map<String, List<QueryTerm>> termMap = new LinkedHashMap<String, List<QueryTerm>>();
+
+    for (QueryTerm term : query) {
+      List<QueryTerm> termList = termMap.get(term.getField());
+
+      if (termList == null) {
+        termList = new ArrayList<QueryTerm>();
+        termMap.put(term.getField(), termList);
       }
 
-      sortOrders.add(colName + " " + colSortDirection);
+      termList.add(term);
     }
 
-    sortOrders.add(getColumnName("id") + " "
-        + (sortDirection.equals(SortDirection.ASCENDING) ? "ASC" : "DESC"));
+    if (termMap.size() != indexDefinition.getAttributeNames().size()) {
+      return null;
+    }
 
-    offset = offset != null ? offset : 0L;
-    Long limit = pageSize != null ? pageSize + 1L : -1;
+    return getUniqueKeyValues(termMap, indexDefinition, new FieldTransform(schema));
+  }
+
+  /**
+   * Returns the index values of a query that fixes every attribute of the index with an equality
+   * term, in index order, or null if it does not
+   */
+  private List<Object> getUniqueKeyValues(Map<String, List<QueryTerm>> termMap,
+      IndexDefinition indexDefinition, FieldTransform transform) throws KazukiException {
+    List<Object> values = new ArrayList<Object>();
+
+    for (IndexAttribute attribute : indexDefinition.getIndexAttributes()) {
+      if ("id".equals(attribute.getName())) {
+        // not an index column, as on the write side
+        continue;
+      }
+
+      List<QueryTerm> termList = termMap.get(attribute.getName());
+
+      if (termList == null || termList.size() != 1
+          || !termList.get(0).getOperator().equals(QueryOperator.EQ)
+          || termList.get(0).getValue().getValueType().equals(ValueType.NULL)) {
+        return null;
+      }
+
+      values.add(toIndexValue(attribute, transform, attribute.getName(), termList.get(0)
+          .getValue()));
+    }
+
+    return values;
+  }
+
+  /** Hashes the index values (as bound to the index columns) of a hashed unique index */
+  public long computeUniqueKeyHash(List<Object> values) {
+    return longHash.getLongHashCodes(getUniqueKeyString(values), 1)[0];
+  }
+
+  /**
+   * Encodes the index values of a unique index as a single string. The values are length-prefixed
+   * so that different value lists cannot produce the same string.
+   */
+  public String getUniqueKeyString(List<Object> values) {
+    StringBuilder key = new StringBuilder();
+
+    for (Object value : values) {
+      if (value == null) {
+        key.append("$|");
+      } else {
+        String string = value.toString();
+
+        key.append(string.length());
+        key.append(":");
+        key.append(string);
+        key.append("|");
+      }
+    }
+
+    return key.toString();
+  }
+
+  /**
+   * Returns a query for the ids of the rows of a hashed unique index that hold the given values:
+   * the lookup goes through the hash index and the column comparisons weed out collisions. The
+   * attribute values and hash are bound by name, as for the insert statement.
+   */
+  public String getUniqueProbeQuery(String type, String indexName, Schema schema,
+      SqlParamBindings bindings, String groupName, String storeName, String partitionName) {
+    IndexDefinition indexDefinition = schema.getIndex(indexName);
+
+    List<String> clauses = new ArrayList<String>();
+    clauses.add(typeHelper.quote("_hash") + " = " + bindings.bind(HASH_PARAM, Attribute.Type.I64));
+
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      clauses.add(getColumnName(attr.getName()) + " = "
+          + bindings.bind(attr.getName(), schema.getAttribute(attr.getName()).getType()));
+    }
 
     StringBuilder sqlBuilder = new StringBuilder();
     sqlBuilder.append("select ");
@@ -554,17 +970,118 @@ public class SecondaryIndexTableHelper {
     sqlBuilder.append(" from ");
     sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
     sqlBuilder.append(" where ");
-    if (!includeQuarantine) {
-      sqlBuilder.append(typeHelper.quote("quarantined"));
-      sqlBuilder.append(" = 'N' AND ");
+    sqlBuilder.append(StringHelper.join(" and ", clauses));
+
+    return sqlBuilder.toString();
+  }
+
+  public String getCountQuery(String type, String indexName, String groupName,
+      String storeName, String partitionName) {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select count(*) from ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    sqlBuilder.append(typeHelper.quote("quarantined"));
+    sqlBuilder.append(" = 'N'");
+
+    return sqlBuilder.toString();
+  }
+
+  /**
+   * Returns a query computing a single aggregate (e.g. "count(*)", or min / max of a column) over
+   * the non-quarantined index rows matching the terms; an empty term map matches every row.
+   */
+  public String getAggregateQuery(String type, String indexName, String aggregate,
+      Map<String, List<QueryTerm>> termMap, IndexDefinition indexDefinition, Schema schema,
+      FieldTransform transform, SqlParamBindings bindings, String groupName, String storeName,
+      String partitionName) throws Exception {
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select ");
+    sqlBuilder.append(aggregate);
+    appendAggregateSource(sqlBuilder, type, indexName, termMap, indexDefinition, schema,
+        transform, bindings, groupName, storeName, partitionName);
+
+    return sqlBuilder.toString();
+  }
+
+  /**
+   * Returns a query counting the matching index rows per value of the leading index attribute, in
+   * ascending order of that value.
+   */
+  public String getGroupCountQuery(String type, String indexName,
+      Map<String, List<QueryTerm>> termMap, IndexDefinition indexDefinition, Schema schema,
+      FieldTransform transform, SqlParamBindings bindings, String groupName, String storeName,
+      String partitionName) throws Exception {
+    String leading = getColumnName(indexDefinition.getIndexAttributes().get(0).getName());
+
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select ");
+    sqlBuilder.append(leading);
+    sqlBuilder.append(", count(*)");
+    appendAggregateSource(sqlBuilder, type, indexName, termMap, indexDefinition, schema,
+        transform, bindings, groupName, storeName, partitionName);
+    sqlBuilder.append(" group by ");
+    sqlBuilder.append(leading);
+    sqlBuilder.append(" order by ");
+    sqlBuilder.append(leading);
+    sqlBuilder.append(" ASC");
+
+    return sqlBuilder.toString();
+  }
+
+  private void appendAggregateSource(StringBuilder sqlBuilder, String type, String indexName,
+      Map<String, List<QueryTerm>> termMap, IndexDefinition indexDefinition, Schema schema,
+      FieldTransform transform, SqlParamBindings bindings, String groupName, String storeName,
+      String partitionName) throws Exception {
+    sqlBuilder.append(" from ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    sqlBuilder.append(typeHelper.quote("quarantined"));
+    sqlBuilder.append(" = 'N'");
+
+    for (String clause : getWhereClauses(termMap, indexDefinition, schema, transform, bindings)) {
+      sqlBuilder.append(" AND ");
+      sqlBuilder.append(clause);
     }
-    sqlBuilder.append(StringHelper.join(" AND ", clauses));
+  }
+
+  /**
+   * Returns a query reading the (non-id) attribute columns of the index rows in order of the
+   * leading attribute; with a stride above 1, only every stride-th block of SAMPLE_BLOCK_IDS
+   * consecutive ids is read
+   */
+  public String getScanQuery(String type, String indexName, IndexDefinition indexDefinition,
+      long stride, String groupName, String storeName, String partitionName) {
+    List<String> cols = new ArrayList<String>();
+
+    for (IndexAttribute attr : indexDefinition.getIndexAttributes()) {
+      if (!"id".equals(attr.getName())) {
+        cols.add(getColumnName(attr.getName()));
+      }
+    }
+
+    StringBuilder sqlBuilder = new StringBuilder();
+    sqlBuilder.append("select ");
+    sqlBuilder.append(StringHelper.join(", ", cols));
+    sqlBuilder.append(" from ");
+    sqlBuilder.append(getTableName(type, indexName, groupName, storeName, partitionName));
+    sqlBuilder.append(" where ");
+    sqlBuilder.append(typeHelper.quote("quarantined"));
+    sqlBuilder.append(" = 'N'");
+
+    if (stride > 1L) {
+      sqlBuilder.append(" and mod(floor(");
+      sqlBuilder.append(typeHelper.quote("_id"));
+      sqlBuilder.append(" / ");
+      sqlBuilder.append(SAMPLE_BLOCK_IDS);
+      sqlBuilder.append("), ");
+      sqlBuilder.append(stride);
+      sqlBuilder.append(") = 0");
+    }
+
     sqlBuilder.append(" order by ");
-    sqlBuilder.append(StringHelper.join(", ", sortOrders));
-    sqlBuilder.append(" limit ");
-    sqlBuilder.append(limit);
-    sqlBuilder.append(" offset ");
-    sqlBuilder.append(offset);
+    sqlBuilder.append(cols.get(0));
+    sqlBuilder.append(" ASC");
 
     return sqlBuilder.toString();
   }
@@ -640,6 +1157,17 @@ public class SecondaryIndexTableHelper {
 
   public Map<String, List<QueryTerm>> sortTerms(IndexDefinition indexDef, List<QueryTerm> terms)
       throws KazukiException {
+    return sortTerms(indexDef, terms, true);
+  }
+
+  /** As sortTerms, but unique indexes may be constrained on a subset of their attributes */
+  public Map<String, List<QueryTerm>> sortAggregateTerms(IndexDefinition indexDef,
+      List<QueryTerm> terms) throws KazukiException {
+    return sortTerms(indexDef, terms, false);
+  }
+
+  private Map<String, List<QueryTerm>> sortTerms(IndexDefinition indexDef, List<QueryTerm> terms,
+      boolean requireUnique) throws KazukiException {
     Map<String, List<QueryTerm>> termMap = new LinkedHashMap<String, List<QueryTerm>>();
 
     Set<String> termFields = new HashSet<String>();
@@ -656,7 +1184,8 @@ public class SecondaryIndexTableHelper {
     for (IndexAttribute attribute : indexDef.getIndexAttributes()) {
       String attrName = attribute.getName();
 
-      if (indexDef.isUnique() && !attrName.equals("id") && !termFields.contains(attrName)) {
+      if (requireUnique && indexDef.isUnique() && !attrName.equals("id")
+          && !termFields.contains(attrName)) {
         throw new KazukiException("unique index query must specify all fields");
       }
 
@@ -702,24 +1231,9 @@ public class SecondaryIndexTableHelper {
       SqlParamBindings bindings, int param, String attrName, ValueHolder value)
       throws KazukiException {
     if (!value.getValueType().equals(ValueType.NULL)) {
-      Object instance = value.getValue();
-      Object transformed = transform.transformValue(attrName, instance);
-
-      if (transformed != null) {
-        transformed = transformed.toString();
-      }
-
-      if (attrName.equals("id")) {
-        try {
-          transformed = KeyImpl.valueOf(transformed.toString());
-        } catch (Exception e) {
-          throw new KazukiException("invalid id: '" + instance.toString() + "'");
-        }
-      }
-
       return bindings.bind(
           "p" + param,
-          transformAttributeValue(transformed, attribute),
+          toIndexValue(attribute, transform, attrName, value),
           "id".equals(attribute.getName()) ? Attribute.Type.U64 : schema.getAttributeMap()
               .get(attribute.getName()).getType());
     }
@@ -727,6 +1241,28 @@ public class SecondaryIndexTableHelper {
     return null;
   }
 
+  /** Converts a (non-null) query value to the value stored in the index column */
+  private Object toIndexValue(IndexAttribute attribute, FieldTransform transform,
+      String attrName, ValueHolder value) throws KazukiException {
+    Object instance = value.getValue();
+    Object transformed = transform.transformValue(attrName, instance);
+
+    if (transformed != null) {
+      transformed = transformed.toString();
+    }
+
+    if (attrName.equals("id")) {
+      try {
+        transformed = KeyImpl.valueOf(transformed.toString());
+      } catch (Exception e) {
+        throw new KazukiException("invalid id: '" + instance.toString() + "'");
+      }
+    }
+
+    return transformAttributeValue(transformed, attribute);
+  }
+
+
   private String getUniqueIndexIdentifier(String type, String index) throws Exception {
     return String.format("%04d", sequences.getTypeId(type, false)) + "__" + getIndexHexId(index);
   }
@@ -16,114 +16,402 @@ package io.kazuki.v0.store.index.query;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Predicate;
 
 /**
  * QueryEvaluator class to serve as a mock implementation of secondary indexes. For database-backed
  * indexes, this will be implemented by the SQL engine. In the long run this implementation will
  * probably be most useful as a sanity check.
+ * 
+ * Queries are compiled once into typed per-term predicates: integer and decimal targets are
+ * compared against primitive long / double instance values where that is exact, IN lists are
+ * turned into sorted arrays and hash sets, and evaluating an instance allocates nothing in the
+ * common cases.
  */
 public class QueryEvaluator {
-  public boolean matches(Map<String, Object> instance, List<QueryTerm> query) {
-    boolean matches = true;
+  private static final int INCOMPARABLE = Integer.MIN_VALUE;
 
-    for (QueryTerm term : query) {
-      String field = term.getField();
-      QueryOperator operator = term.getOperator();
-      ValueHolder targetValue = term.getValue();
+  public boolean matches(Map<String, Object> instance, List<QueryTerm> query) {
+    return compile(query).apply(instance);
+  }
 
-      Object instanceValue = instance.get(field);
+  public boolean evaluate(QueryOperator operator, Object instanceValue, ValueHolder targetQueryValue) {
+    return compileTerm(operator, targetQueryValue).apply(instanceValue);
+  }
 
-      if (instanceValue == null && !targetValue.getValueType().equals(ValueType.NULL)) {
-        matches = false;
-        break;
-      }
+  /**
+   * Returns a predicate equivalent to {@link #matches(Map, List)} for the given terms, for
+   * evaluating many instances against the same query.
+   */
+  public Predicate<Map<String, Object>> compile(List<QueryTerm> query) {
+    final String[] fields = new String[query.size()];
+    final TermPredicate[] terms = new TermPredicate[query.size()];
 
-      boolean satisfied = evaluate(operator, instanceValue, targetValue);
+    for (int i = 0; i < terms.length; i++) {
+      QueryTerm term = query.get(i);
 
-      if (!satisfied) {
-        matches = false;
-        break;
-      }
+      fields[i] = term.getField();
+      terms[i] =
+          QueryOperator.IN.equals(term.getOperator()) ? new InPredicate(term.getValueList())
+              : compileTerm(term.getOperator(), term.getValue());
     }
 
-    return matches;
+    return new Predicate<Map<String, Object>>() {
+      @Override
+      public boolean apply(Map<String, Object> instance) {
+        for (int i = 0; i < terms.length; i++) {
+          if (!terms[i].apply(instance.get(fields[i]))) {
+            return false;
+          }
+        }
+
+        return true;
+      }
+    };
   }
 
-  public boolean evaluate(QueryOperator operator, Object instanceValue, ValueHolder targetQueryValue) {
-    Object targetValue = targetQueryValue.getValue();
+  private static TermPredicate compileTerm(QueryOperator operator, ValueHolder target) {
+    Object targetValue = target.getValue();
+
+    if (QueryOperator.PREFIX.equals(operator)) {
+      if (!ValueType.STRING.equals(target.getValueType())) {
+        throw new UnsupportedOperationException("Operator " + operator + " not supported for "
+            + target.getValueType());
+      }
 
-    int comparison = 0;
+      return new PrefixPredicate((String) targetValue);
+    }
 
-    switch (targetQueryValue.getValueType()) {
+    switch (target.getValueType()) {
       case INTEGER:
-        try {
-          comparison =
-              -((BigInteger) targetValue).compareTo(new BigInteger(instanceValue.toString()));
-        } catch (Exception e) {
-          return false;
-        }
-        break;
+        return new IntegerComparison(operator, (BigInteger) targetValue);
       case DECIMAL:
-        try {
-          comparison =
-              -((BigDecimal) targetValue).compareTo(new BigDecimal(instanceValue.toString()));
-        } catch (Exception e) {
-          return false;
-        }
-        break;
+        return new DecimalComparison(operator, (BigDecimal) targetValue);
       case REFERENCE:
         if (!QueryOperator.EQ.equals(operator) && !QueryOperator.NE.equals(operator)) {
           throw new UnsupportedOperationException("Operator " + operator
               + " not supported for reference type");
         }
-        comparison = instanceValue.toString().compareTo((String) targetValue);
-        break;
+        return new StringComparison(operator, (String) targetValue);
       case STRING:
-        comparison = instanceValue.toString().compareTo((String) targetValue);
-        break;
+        return new StringComparison(operator, (String) targetValue);
       case BOOLEAN:
-        try {
-          comparison =
-              -((Boolean) targetValue).compareTo(Boolean.parseBoolean(instanceValue.toString()));
-        } catch (Exception e) {
-          return false;
-        }
-        break;
+        return new BooleanComparison(operator, (Boolean) targetValue);
       case NULL:
-        comparison = (instanceValue == null) ? 0 : 1;
-        break;
+        return new NullComparison(operator);
       default:
         throw new UnsupportedOperationException("Compare to " + targetValue.getClass().getName()
             + " not supported");
     }
+  }
 
-    boolean matches = false;
-
-    switch (operator) {
-      case EQ:
-        matches = (comparison == 0);
-        break;
-      case NE:
-        matches = (comparison != 0);
-        break;
-      case GE:
-        matches = (comparison >= 0);
-        break;
-      case GT:
-        matches = (comparison > 0);
-        break;
-      case LE:
-        matches = (comparison <= 0);
-        break;
-      case LT:
-        matches = (comparison < 0);
-        break;
-      default:
-        throw new UnsupportedOperationException("Operator " + operator + " not supported");
+  private static boolean isIntegral(Object value) {
+    return value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte;
+  }
+
+  private interface TermPredicate {
+    boolean apply(Object instanceValue);
+  }
+
+  /** Compares instance values to a target; the operator is reduced to three flags */
+  private abstract static class Comparison implements TermPredicate {
+    private final boolean below;
+    private final boolean equal;
+    private final boolean above;
+
+    protected Comparison(QueryOperator operator) {
+      switch (operator) {
+        case EQ:
+          below = false;
+          equal = true;
+          above = false;
+          break;
+        case NE:
+          below = true;
+          equal = false;
+          above = true;
+          break;
+        case GE:
+          below = false;
+          equal = true;
+          above = true;
+          break;
+        case GT:
+          below = false;
+          equal = false;
+          above = true;
+          break;
+        case LE:
+          below = true;
+          equal = true;
+          above = false;
+          break;
+        case LT:
+          below = true;
+          equal = false;
+          above = false;
+          break;
+        default:
+          throw new UnsupportedOperationException("Operator " + operator + " not supported");
+      }
     }
 
-    return matches;
+    /** Sign of a non-null instance value vs. target, or INCOMPARABLE */
+    protected abstract int compare(Object instanceValue);
+
+    protected int compareNull() {
+      return INCOMPARABLE;
+    }
+
+    @Override
+    public boolean apply(Object instanceValue) {
+      int comparison = (instanceValue == null) ? compareNull() : compare(instanceValue);
+
+      if (comparison == INCOMPARABLE) {
+        return false;
+      }
+
+      return comparison < 0 ? below : (comparison == 0 ? equal : above);
+    }
+  }
+
+  private static class IntegerComparison extends Comparison {
+    private final BigInteger target;
+    private final boolean targetIsLong;
+    private final long targetLong;
+
+    public IntegerComparison(QueryOperator operator, BigInteger target) {
+      super(operator);
+      this.target = target;
+      this.targetIsLong = target.bitLength() < 64;
+      this.targetLong = target.longValue();
+    }
+
+    @Override
+    protected int compare(Object instanceValue) {
+      if (isIntegral(instanceValue)) {
+        return compareLong(((Number) instanceValue).longValue());
+      }
+
+      if (instanceValue instanceof BigInteger) {
+        return ((BigInteger) instanceValue).compareTo(target);
+      }
+
+      try {
+        return new BigInteger(instanceValue.toString()).compareTo(target);
+      } catch (NumberFormatException e) {
+        return INCOMPARABLE;
+      }
+    }
+
+    private int compareLong(long value) {
+      if (!targetIsLong) {
+        return -target.signum();
+      }
+
+      return value < targetLong ? -1 : (value == targetLong ? 0 : 1);
+    }
+  }
+
+  private static class DecimalComparison extends Comparison {
+    private static final long MAX_EXACT_LONG = 1L << 53;
+
+    private final BigDecimal target;
+    private final boolean targetIsDouble;
+    private final double targetDouble;
+
+    public DecimalComparison(QueryOperator operator, BigDecimal target) {
+      super(operator);
+      this.target = target;
+      this.targetDouble = target.doubleValue();
+      this.targetIsDouble =
+          !Double.isInfinite(targetDouble)
+              && new BigDecimal(Double.toString(targetDouble)).compareTo(target) == 0;
+    }
+
+    @Override
+    protected int compare(Object instanceValue) {
+      if (targetIsDouble && (instanceValue instanceof Double || instanceValue instanceof Float)) {
+        double value = ((Number) instanceValue).doubleValue();
+
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+          return INCOMPARABLE;
+        }
+
+        return value < targetDouble ? -1 : (value == targetDouble ? 0 : 1);
+      }
+
+      if (targetIsDouble && isIntegral(instanceValue)) {
+        long value = ((Number) instanceValue).longValue();
+
+        if (value > -MAX_EXACT_LONG && value < MAX_EXACT_LONG) {
+          return value < targetDouble ? -1 : (value == targetDouble ? 0 : 1);
+        }
+      }
+
+      if (instanceValue instanceof BigDecimal) {
+        return ((BigDecimal) instanceValue).compareTo(target);
+      }
+
+      try {
+        return new BigDecimal(instanceValue.toString()).compareTo(target);
+      } catch (NumberFormatException e) {
+        return INCOMPARABLE;
+      }
+    }
+  }
+
+  private static class StringComparison extends Comparison {
+    private final String target;
+
+    public StringComparison(QueryOperator operator, String target) {
+      super(operator);
+      this.target = target;
+    }
+
+    @Override
+    protected int compare(Object instanceValue) {
+      return Integer.signum(instanceValue.toString().compareTo(target));
+    }
+  }
+
+  private static class PrefixPredicate implements TermPredicate {
+    private final String prefix;
+
+    public PrefixPredicate(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public boolean apply(Object instanceValue) {
+      return instanceValue != null && instanceValue.toString().startsWith(prefix);
+    }
+  }
+
+  private static class BooleanComparison extends Comparison {
+    private final boolean target;
+
+    public BooleanComparison(QueryOperator operator, Boolean target) {
+      super(operator);
+      this.target = target;
+    }
+
+    @Override
+    protected int compare(Object instanceValue) {
+      boolean value =
+          (instanceValue instanceof Boolean) ? (Boolean) instanceValue : Boolean
+              .parseBoolean(instanceValue.toString());
+
+      return value == target ? 0 : (value ? 1 : -1);
+    }
+  }
+
+  private static class NullComparison extends Comparison {
+    public NullComparison(QueryOperator operator) {
+      super(operator);
+    }
+
+    @Override
+    protected int compareNull() {
+      return 0;
+    }
+
+    @Override
+    protected int compare(Object instanceValue) {
+      return 1;
+    }
+  }
+
+  /**
+   * IN list: integer values go into a sorted long array (no boxing per row), string and reference
+   * values into a hash set, anything else is checked with an equality predicate per value.
+   */
+  private static class InPredicate implements TermPredicate {
+    private final long[] longs;
+    private final Set<String> strings = new HashSet<String>();
+    private final List<TermPredicate> others = new ArrayList<TermPredicate>();
+    private final List<TermPredicate> all = new ArrayList<TermPredicate>();
+    private final boolean matchesNull;
+
+    public InPredicate(ValueHolderList values) {
+      long[] found = new long[values.getValueList().size()];
+      int longCount = 0;
+      boolean hasNull = false;
+
+      for (ValueHolder value : values.getValueList()) {
+        all.add(compileTerm(QueryOperator.EQ, value));
+
+        switch (value.getValueType()) {
+          case INTEGER:
+            BigInteger integer = (BigInteger) value.getValue();
+            if (integer.bitLength() < 64) {
+              found[longCount++] = integer.longValue();
+            } else {
+              others.add(compileTerm(QueryOperator.EQ, value));
+            }
+            break;
+          case STRING:
+          case REFERENCE:
+            strings.add((String) value.getValue());
+            break;
+          case NULL:
+            hasNull = true;
+            break;
+          default:
+            others.add(compileTerm(QueryOperator.EQ, value));
+        }
+      }
+
+      this.longs = Arrays.copyOf(found, longCount);
+      Arrays.sort(this.longs);
+      this.matchesNull = hasNull;
+    }
+
+    @Override
+    public boolean apply(Object instanceValue) {
+      if (instanceValue == null) {
+        return matchesNull;
+      }
+
+      if (isIntegral(instanceValue)) {
+        if (Arrays.binarySearch(longs, ((Number) instanceValue).longValue()) >= 0) {
+          return true;
+        }
+
+        // strings compare by text, as with EQ
+        return anyMatch(others, instanceValue)
+            || (!strings.isEmpty() && strings.contains(instanceValue.toString()));
+      }
+
+      if (instanceValue instanceof String) {
+        if (strings.contains(instanceValue)) {
+          return true;
+        }
+
+        if (longs.length == 0 && others.isEmpty()) {
+          return false;
+        }
+      }
+
+      return anyMatch(all, instanceValue);
+    }
+
+    private static boolean anyMatch(List<TermPredicate> predicates, Object instanceValue) {
+      for (TermPredicate predicate : predicates) {
+        if (predicate.apply(instanceValue)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
   }
 }
@@ -14,6 +14,8 @@
  */
 package io.kazuki.v0.store.index.query;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,10 +23,96 @@ import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 
+/**
+ * Parses query strings into terms. Parsed queries are kept in a bounded cache keyed by the query
+ * string, so repeated queries skip the lexer and parser; queries may use '?' placeholders for
+ * values, which are bound per call.
+ */
 public class QueryHelper {
+  public static final int MAX_CACHED_QUERIES = 1000;
+
+  private static final Cache<String, ParsedQuery> cache = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_QUERIES).build();
+
+  /** Returns the (immutable) terms of a query without placeholders; a blank query has none */
   public static List<QueryTerm> parseQuery(String queryString) {
+    if (queryString.trim().isEmpty()) {
+      return ImmutableList.of();
+    }
+
+    ParsedQuery parsed = getParsedQuery(queryString);
+
+    if (parsed.parameterCount > 0) {
+      throw new IllegalArgumentException("query has " + parsed.parameterCount
+          + " unbound parameters: " + queryString);
+    }
+
+    return parsed.terms;
+  }
+
+  /**
+   * Returns the terms of a query such as {@code name eq ? and age gt ?} with the placeholders
+   * replaced by the given values, in order. Values may be null, Boolean, integral or decimal
+   * numbers, or strings.
+   */
+  public static List<QueryTerm> parseQuery(String queryString, Object... parameters) {
+    ParsedQuery parsed = getParsedQuery(queryString);
+
+    if (parsed.parameterCount != parameters.length) {
+      throw new IllegalArgumentException("query has " + parsed.parameterCount
+          + " parameters, got " + parameters.length + ": " + queryString);
+    }
+
+    if (parameters.length == 0) {
+      return parsed.terms;
+    }
+
+    List<QueryTerm> bound = new ArrayList<QueryTerm>(parsed.terms.size());
+
+    for (QueryTerm term : parsed.terms) {
+      if (QueryOperator.IN.equals(term.getOperator())) {
+        List<ValueHolder> values = new ArrayList<ValueHolder>();
+
+        for (ValueHolder value : term.getValueList().getValueList()) {
+          values.add(bind(value, parameters));
+        }
+
+        bound.add(new QueryTerm(term.getOperator(), term.getField(), new ValueHolderList(values)));
+      } else if (term.getValue() instanceof ParameterValueHolder) {
+        bound.add(new QueryTerm(term.getOperator(), term.getField(), bind(term.getValue(),
+            parameters)));
+      } else {
+        bound.add(term);
+      }
+    }
+
+    return ImmutableList.copyOf(bound);
+  }
+
+  public static void clearCache() {
+    cache.invalidateAll();
+  }
+
+  private static ParsedQuery getParsedQuery(String queryString) {
+    Preconditions.checkNotNull(queryString, "query");
+
+    ParsedQuery parsed = cache.getIfPresent(queryString);
+
+    if (parsed == null) {
+      parsed = parse(queryString);
+      cache.put(queryString, parsed);
+    }
+
+    return parsed;
+  }
+
+  private static ParsedQuery parse(String queryString) {
     QueryLexer lex = new QueryLexer(new ANTLRStringStream(queryString));
     CommonTokenStream tokens = new CommonTokenStream(lex);
     QueryParser parser = new QueryParser(tokens);
@@ -36,6 +124,51 @@ public class QueryHelper {
       throw Throwables.propagate(e);
     }
 
-    return query;
+    return new ParsedQuery(ImmutableList.copyOf(query), parser.getParameterCount());
+  }
+
+  private static ValueHolder bind(ValueHolder value, Object[] parameters) {
+    if (!(value instanceof ParameterValueHolder)) {
+      return value;
+    }
+
+    return toValueHolder(parameters[((ParameterValueHolder) value).getIndex()]);
+  }
+
+  /**
+   * Returns a query value for a Java value: null, Boolean, integral or decimal numbers, or strings
+   * (characters are treated as strings).
+   */
+  public static ValueHolder toValueHolder(Object parameter) {
+    if (parameter == null) {
+      return new ValueHolder(ValueType.NULL, "null");
+    } else if (parameter instanceof Boolean) {
+      return new ValueHolder(ValueType.BOOLEAN, parameter.toString());
+    } else if (parameter instanceof Long || parameter instanceof Integer
+        || parameter instanceof Short || parameter instanceof Byte
+        || parameter instanceof BigInteger) {
+      return new ValueHolder(ValueType.INTEGER, parameter.toString());
+    } else if (parameter instanceof Double || parameter instanceof Float) {
+      return new ValueHolder(ValueType.DECIMAL, new BigDecimal(parameter.toString())
+          .toPlainString());
+    } else if (parameter instanceof BigDecimal) {
+      return new ValueHolder(ValueType.DECIMAL, ((BigDecimal) parameter).toPlainString());
+    } else if (parameter instanceof String || parameter instanceof Character) {
+      // quoted so the literal is taken as-is
+      return new ValueHolder(ValueType.STRING, "\"" + parameter + "\"");
+    }
+
+    throw new IllegalArgumentException("unsupported parameter type: "
+        + parameter.getClass().getName());
+  }
+
+  private static class ParsedQuery {
+    private final List<QueryTerm> terms;
+    private final int parameterCount;
+
+    public ParsedQuery(List<QueryTerm> terms, int parameterCount) {
+      this.terms = terms;
+      this.parameterCount = parameterCount;
+    }
   }
 }
@@ -0,0 +1,60 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count of appends that tails wait on, signalled on every append; the shards of a sharded journal
+ * share one, so that a tail following all shards is woken by an append to any of them
+ */
+class AppendSignal {
+  private final AtomicLong count = new AtomicLong();
+
+  long getCount() {
+    return count.get();
+  }
+
+  void signal() {
+    count.incrementAndGet();
+    wake();
+  }
+
+  /** Wakes the waiting tails without an append, as when one of them is closed */
+  synchronized void wake() {
+    notifyAll();
+  }
+
+  /**
+   * Waits until there is an append after the count was seen, or until woken, returning false
+   * once the deadline (in System.nanoTime() terms) has passed
+   */
+  synchronized boolean await(long seenCount, long deadline) throws InterruptedException {
+    if (count.get() != seenCount) {
+      return true;
+    }
+
+    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+    if (remaining <= 0L) {
+      return false;
+    }
+
+    wait(remaining);
+
+    return true;
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import io.kazuki.v0.internal.availability.AvailabilityManager;
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.internal.helper.LockManagerImpl;
+import io.kazuki.v0.internal.helper.SqlTypeHelper;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
+import io.kazuki.v0.store.management.KazukiComponent;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.sql.DataSource;
+
+import org.skife.jdbi.v2.IDBI;
+
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+
+@Singleton
+public class JournalStoreProvider implements Provider<JournalStore> {
+  private final JournalStore instance;
+  private final Injector inject;
+
+  @Inject
+  public JournalStoreProvider(KeyValueStoreConfiguration config,
+      AvailabilityManager availability, LockManager lockManager,
+      KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
+      SchemaStore schema, SequenceService sequence, Injector injector) {
+    this.inject = injector;
+
+    if (config.getShardCount() > 1) {
+      List<PartitionedJournalStore> shards = new ArrayList<PartitionedJournalStore>();
+      AppendSignal appendSignal = new AppendSignal();
+
+      for (int i = 0; i < config.getShardCount(); i++) {
+        String shardName = config.getStoreName() + "_s" + i;
+
+        // each shard has its own lock, so that appends to different shards run in parallel
+        LockManagerImpl shardLock =
+            new LockManagerImpl(config.getGroupName() + "-" + shardName);
+        this.inject.injectMembers(shardLock);
+
+        PartitionedJournalStore shard =
+            new PartitionedJournalStore(availability, shardLock, dataSource, database,
+                typeHelper, schema, sequence, getShardConfiguration(config, shardName), true,
+                appendSignal);
+        this.inject.injectMembers(shard);
+
+        shards.add(shard);
+      }
+
+      this.instance =
+          new ShardedJournalStore(shards, config.getGroupName(), config.getStoreName(),
+              config.getShardKey(), appendSignal);
+    } else {
+      this.instance =
+          new PartitionedJournalStore(availability, lockManager, dataSource, database,
+              typeHelper, schema, sequence, config);
+    }
+
+    this.inject.injectMembers(instance);
+  }
+
+  public JournalStore get() {
+    return instance;
+  }
+
+  /** Returns the configuration of a shard: the journal's own, under the name of the shard */
+  private static KeyValueStoreConfiguration getShardConfiguration(
+      KeyValueStoreConfiguration config, String shardName) {
+    return new KeyValueStoreConfiguration.Builder().withDbType(config.getDbType())
+        .withDataType(config.getDataType()).withGroupName(config.getGroupName())
+        .withStoreName(shardName).withPartitionName(config.getPartitionName())
+        .withPartitionSize(config.getPartitionSize())
+        .withStrictTypeCreation(config.isStrictTypeCreation())
+        .withSecondaryIndex(config.isSecondaryIndex())
+        .withMemoryIndexTypes(config.getMemoryIndexTypes())
+        .withDeferredIndexing(config.isDeferredIndexing())
+        .withBloomFilters(config.isBloomFilters()).withGroupCommit(config.isGroupCommit())
+        .withPartitionMaxAgeMillis(config.getPartitionMaxAgeMillis())
+        .withPartitionMaxBytes(config.getPartitionMaxBytes())
+        .withRetentionMillis(config.getRetentionMillis())
+        .withRetentionMaxBytes(config.getRetentionMaxBytes())
+        .withCompactionKey(config.getCompactionKey())
+        .withArchiveDirectory(config.getArchiveDirectory())
+        .withAdditionalDataTypes(config.getAdditionalDataTypes()).build();
+  }
+}
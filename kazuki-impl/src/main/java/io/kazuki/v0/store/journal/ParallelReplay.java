@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.inject.Provider;
+
+/**
+ * Reads a sequence of partitions with up to {@code parallelism} of them in flight at a time, each
+ * on its own thread (and so its own connection) with at most {@code readAhead} entries buffered.
+ * Ordered replays return the partitions one after another, which is id order since partitions
+ * hold consecutive id ranges; unordered replays interleave entries as the readers produce them.
+ */
+class ParallelReplay<T> implements KeyValueIterable<KeyValuePair<T>> {
+  private static final Object END = new Object();
+
+  private final ExecutorService executor;
+  private final List<Provider<KeyValueIterable<KeyValuePair<T>>>> partitions;
+  private final int parallelism;
+  private final int readAhead;
+  private final boolean ordered;
+  private final List<ReplayIterator> iterators = new ArrayList<ReplayIterator>();
+
+  ParallelReplay(ExecutorService executor,
+      List<Provider<KeyValueIterable<KeyValuePair<T>>>> partitions, int parallelism,
+      int readAhead, boolean ordered) {
+    Preconditions.checkArgument(parallelism > 0, "invalid parallelism");
+    Preconditions.checkArgument(readAhead > 0, "invalid readAhead");
+
+    this.executor = executor;
+    this.partitions = partitions;
+    this.parallelism = parallelism;
+    this.readAhead = readAhead;
+    this.ordered = ordered;
+  }
+
+  @Override
+  public KeyValueIterator<KeyValuePair<T>> iterator() {
+    ReplayIterator iterator = new ReplayIterator();
+
+    synchronized (iterators) {
+      iterators.add(iterator);
+    }
+
+    return iterator;
+  }
+
+  @Override
+  public void close() {
+    synchronized (iterators) {
+      for (ReplayIterator iterator : iterators) {
+        iterator.close();
+      }
+
+      iterators.clear();
+    }
+  }
+
+  private static class Failure {
+    private final Throwable cause;
+
+    private Failure(Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  /** Copies the entries of one partition into its queue, followed by END or a Failure */
+  private class PartitionReader implements Runnable {
+    private final Provider<KeyValueIterable<KeyValuePair<T>>> partition;
+    private final BlockingQueue<Object> queue;
+
+    private PartitionReader(Provider<KeyValueIterable<KeyValuePair<T>>> partition,
+        BlockingQueue<Object> queue) {
+      this.partition = partition;
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        try (KeyValueIterable<KeyValuePair<T>> entries = partition.get()) {
+          for (KeyValuePair<T> entry : entries) {
+            queue.put(entry);
+          }
+        }
+
+        queue.put(END);
+      } catch (InterruptedException e) {
+        // the replay was closed
+        Thread.currentThread().interrupt();
+      } catch (Exception e) {
+        try {
+          queue.put(new Failure(e));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  private class ReplayIterator implements KeyValueIterator<KeyValuePair<T>> {
+    private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private final BlockingQueue<Object> shared;
+    private int current = 0;
+    private int finished = 0;
+    private KeyValuePair<T> nextEntry;
+    private volatile boolean closed = false;
+
+    private ReplayIterator() {
+      this.shared = ordered ? null : new ArrayBlockingQueue<Object>(readAhead * parallelism);
+
+      for (int i = 0; i < parallelism; i++) {
+        submitNext();
+      }
+
+      advance();
+    }
+
+    private void submitNext() {
+      int index = queues.size();
+
+      if (closed || index >= partitions.size()) {
+        return;
+      }
+
+      BlockingQueue<Object> queue = ordered ? new ArrayBlockingQueue<Object>(readAhead) : shared;
+
+      queues.add(queue);
+      futures.add(executor.submit(new PartitionReader(partitions.get(index), queue)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+      nextEntry = null;
+
+      while (!closed) {
+        BlockingQueue<Object> queue;
+
+        if (ordered) {
+          if (current >= partitions.size()) {
+            return;
+          }
+
+          queue = queues.get(current);
+        } else {
+          if (finished >= partitions.size()) {
+            return;
+          }
+
+          queue = shared;
+        }
+
+        Object item;
+
+        try {
+          item = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          close();
+
+          throw Throwables.propagate(e);
+        }
+
+        if (item == END) {
+          if (ordered) {
+            queues.set(current, null);
+            current += 1;
+          } else {
+            finished += 1;
+          }
+
+          submitNext();
+        } else if (item instanceof Failure) {
+          close();
+
+          throw Throwables.propagate(((Failure) item).cause);
+        } else {
+          nextEntry = (KeyValuePair<T>) item;
+
+          return;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextEntry != null;
+    }
+
+    @Override
+    public KeyValuePair<T> next() {
+      if (nextEntry == null) {
+        throw new NoSuchElementException();
+      }
+
+      KeyValuePair<T> result = nextEntry;
+      advance();
+
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("replays are read-only");
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      nextEntry = null;
+
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Immutable, id-ordered directory of the partitions of a journal, answering id and relative
+ * offset lookups by binary search. Since only the last (active) partition changes between
+ * refreshes, its live info can be overlaid cheaply with {@link #withActive}.
+ */
+class PartitionDirectory {
+  static final PartitionDirectory EMPTY = new PartitionDirectory(
+      new PartitionInfoSnapshot[0], new long[0], new long[0], new long[1], null);
+
+  private final PartitionInfoSnapshot[] partitions;
+  private final long[] minIds;
+  private final long[] maxIds;
+  private final long[] startOffsets;
+  private final PartitionInfoSnapshot active;
+
+  private PartitionDirectory(PartitionInfoSnapshot[] partitions, long[] minIds, long[] maxIds,
+      long[] startOffsets, @Nullable PartitionInfoSnapshot active) {
+    this.partitions = partitions;
+    this.minIds = minIds;
+    this.maxIds = maxIds;
+    this.startOffsets = startOffsets;
+    this.active = active;
+  }
+
+  /** Builds a directory from the partitions in ascending order */
+  static PartitionDirectory create(List<PartitionInfoSnapshot> sorted) {
+    int count = sorted.size();
+    PartitionInfoSnapshot[] partitions = sorted.toArray(new PartitionInfoSnapshot[count]);
+    long[] minIds = new long[count];
+    long[] maxIds = new long[count];
+    long[] startOffsets = new long[count + 1];
+
+    for (int i = 0; i < count; i++) {
+      minIds[i] = partitions[i].getMinId();
+      maxIds[i] = partitions[i].getMaxId();
+      startOffsets[i + 1] = startOffsets[i] + partitions[i].getSize();
+    }
+
+    return new PartitionDirectory(partitions, minIds, maxIds, startOffsets, null);
+  }
+
+  /**
+   * Returns a view of this directory with the info of the last partition replaced by the given
+   * active partition info, if they are the same partition
+   */
+  PartitionDirectory withActive(@Nullable PartitionInfoSnapshot activeInfo) {
+    int last = partitions.length - 1;
+
+    if (activeInfo == null || last < 0
+        || !partitions[last].getPartitionId().equals(activeInfo.getPartitionId())) {
+      return this;
+    }
+
+    return new PartitionDirectory(partitions, minIds, maxIds, startOffsets, activeInfo);
+  }
+
+  int getCount() {
+    return partitions.length;
+  }
+
+  PartitionInfoSnapshot get(int index) {
+    return isActive(index) ? active : partitions[index];
+  }
+
+  long getMinId(int index) {
+    return minIds[index];
+  }
+
+  long getMaxId(int index) {
+    return isActive(index) ? active.getMaxId() : maxIds[index];
+  }
+
+  long getSize(int index) {
+    return getEndOffset(index) - startOffsets[index];
+  }
+
+  /** Returns the number of entries in the partitions before the given one */
+  long getStartOffset(int index) {
+    return startOffsets[index];
+  }
+
+  long getTotalSize() {
+    return partitions.length == 0 ? 0L : getEndOffset(partitions.length - 1);
+  }
+
+  /**
+   * Returns the index of the first partition whose max id is at least the given id (which need
+   * not contain it, if the id falls in a gap), or the partition count if there is none
+   */
+  int ceilingIndexOfId(long id) {
+    int low = 0;
+    int high = partitions.length - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if (getMaxId(mid) < id) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    return low;
+  }
+
+  /**
+   * Returns the index of the partition holding the entry at the given (ascending) offset, or -1
+   * if the offset is past the end
+   */
+  int indexOfOffset(long offset) {
+    int low = 0;
+    int high = partitions.length - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if (getEndOffset(mid) <= offset) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    return low < partitions.length ? low : -1;
+  }
+
+  private long getEndOffset(int index) {
+    return isActive(index) ? startOffsets[index] + active.getSize() : startOffsets[index + 1];
+  }
+
+  private boolean isActive(int index) {
+    return active != null && index == partitions.length - 1;
+  }
+}
@@ -17,6 +17,8 @@ package io.kazuki.v0.store.journal;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class PartitionInfoImpl implements PartitionInfo {
@@ -25,15 +27,31 @@ public class PartitionInfoImpl implements PartitionInfo {
   private AtomicLong maxId;
   private AtomicLong size;
   private AtomicBoolean closed;
+  private final long createdAt;
+  private AtomicLong closedAt;
+  private AtomicLong byteSize;
+  private final boolean compacted;
+  private final int generation;
+  private final String archivePath;
 
   public PartitionInfoImpl(@JsonProperty("partitionId") String partitionId,
       @JsonProperty("minId") long minId, @JsonProperty("maxId") long maxId,
-      @JsonProperty("size") long size, @JsonProperty("closed") boolean closed) {
+      @JsonProperty("size") long size, @JsonProperty("closed") boolean closed,
+      @JsonProperty("createdAt") long createdAt, @JsonProperty("closedAt") long closedAt,
+      @JsonProperty("byteSize") long byteSize, @JsonProperty("compacted") boolean compacted,
+      @JsonProperty("generation") int generation,
+      @JsonProperty("archivePath") @Nullable String archivePath) {
     this.partitionId = partitionId;
     this.minId = minId;
     this.maxId = new AtomicLong(maxId);
     this.size = new AtomicLong(size);
     this.closed = new AtomicBoolean(closed);
+    this.createdAt = createdAt;
+    this.closedAt = new AtomicLong(closedAt);
+    this.byteSize = new AtomicLong(byteSize);
+    this.compacted = compacted;
+    this.generation = generation;
+    this.archivePath = archivePath;
   }
 
   @Override
@@ -61,6 +79,37 @@ public class PartitionInfoImpl implements PartitionInfo {
     return this.closed.get();
   }
 
+  @Override
+  public long getCreatedAt() {
+    return this.createdAt;
+  }
+
+  @Override
+  public long getClosedAt() {
+    return this.closedAt.get();
+  }
+
+  @Override
+  public long getByteSize() {
+    return this.byteSize.get();
+  }
+
+  @Override
+  public boolean isCompacted() {
+    return this.compacted;
+  }
+
+  @Override
+  public int getGeneration() {
+    return this.generation;
+  }
+
+  @Override
+  @Nullable
+  public String getArchivePath() {
+    return this.archivePath;
+  }
+
   public synchronized void setSize(long theSize) {
     this.size.set(theSize);
   }
@@ -73,8 +122,28 @@ public class PartitionInfoImpl implements PartitionInfo {
     this.maxId.set(theMaxId);
   }
 
-  public PartitionInfo snapshot() {
+  public synchronized void setClosedAt(long theClosedAt) {
+    this.closedAt.set(theClosedAt);
+  }
+
+  public synchronized void setByteSize(long theByteSize) {
+    this.byteSize.set(theByteSize);
+  }
+
+  /** Records an append of the given id, keeping maxId and size consistent for snapshots */
+  public synchronized void recordAppend(long id) {
+    this.maxId.set(id);
+    this.size.incrementAndGet();
+  }
+
+  public synchronized void recordAppends(long lastId, long count) {
+    this.maxId.set(lastId);
+    this.size.addAndGet(count);
+  }
+
+  public synchronized PartitionInfoSnapshot snapshot() {
     return new PartitionInfoSnapshot(this.partitionId, this.minId, this.maxId.get(),
-        this.size.get(), this.closed.get());
+        this.size.get(), this.closed.get(), this.createdAt, this.closedAt.get(),
+        this.byteSize.get(), this.compacted, this.generation, this.archivePath);
   }
 }
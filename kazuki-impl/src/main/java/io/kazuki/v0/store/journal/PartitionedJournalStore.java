@@ -15,6 +15,7 @@
 package io.kazuki.v0.store.journal;
 
 import io.kazuki.v0.internal.availability.AvailabilityManager;
+import io.kazuki.v0.internal.helper.EncodingHelper;
 import io.kazuki.v0.internal.helper.LockManager;
 import io.kazuki.v0.internal.helper.LogTranslation;
 import io.kazuki.v0.internal.helper.SqlTypeHelper;
@@ -26,6 +27,7 @@ import io.kazuki.v0.store.keyvalue.KeyValuePair;
 import io.kazuki.v0.store.keyvalue.KeyValueStore;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiBaseImpl;
 import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiH2Impl;
 import io.kazuki.v0.store.lifecycle.Lifecycle;
 import io.kazuki.v0.store.lifecycle.LifecycleRegistration;
@@ -43,12 +45,29 @@ import io.kazuki.v0.store.schema.model.Schema;
 import io.kazuki.v0.store.sequence.KeyImpl;
 import io.kazuki.v0.store.sequence.ResolvedKey;
 import io.kazuki.v0.store.sequence.SequenceService;
+import io.kazuki.v0.store.sequence.VersionImpl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -60,12 +79,21 @@ import javax.sql.DataSource;
 import org.skife.jdbi.v2.IDBI;
 import org.slf4j.Logger;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Provider;
 
 public class PartitionedJournalStore implements JournalStore, LifecycleRegistration {
+  static final int PARTITION_STORE_CACHE_SIZE = 64;
+  static final long CHECKPOINT_INTERVAL_MILLIS = 1000L;
+  static final int GROUP_COMMIT_MAX_SIZE = 1000;
+  static final long RETIRED_STORE_GRACE_MILLIS = 10000L;
+  static final int COMPACTION_MAX_KEYS = 1000000;
+
   private final Logger log = LogTranslation.getLogger(getClass());
   private final AvailabilityManager availability;
   private final LockManager lockManager;
@@ -74,7 +102,7 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
   private final SqlTypeHelper typeHelper;
   private final SequenceService sequence;
   private final SchemaStore schema;
-  private KeyValueStore metaStore;
+  private KeyValueStoreJdbiBaseImpl metaStore;
   private final Lock nukeLock = new ReentrantLock();
   private final String dbType;
   private final String groupName;
@@ -82,9 +110,38 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
   private final boolean strictTypeCreation;
   private final Long partitionSize;
   private final String dataType;
+  private final Set<String> dataTypes;
+  private final boolean sparseIds;
   private final String typeName;
-  private final AtomicReference<KeyValueStore> activePartitionStore;
+  private final boolean groupCommit;
+  private final Long partitionMaxAgeMillis;
+  private final Long partitionMaxBytes;
+  private final Long retentionMillis;
+  private final Long retentionMaxBytes;
+  private final String compactionKey;
+  private final File archiveDirectory;
+  private final Lock compactionLock = new ReentrantLock();
+  private volatile int compactionMaxKeys = COMPACTION_MAX_KEYS;
+  private volatile long segmentMaxBytes = SegmentFile.MAX_FILE_SIZE;
+  private final List<RetiredStore> retiredStores = new ArrayList<RetiredStore>();
+  private final ConcurrentLinkedQueue<PendingAppend> pendingAppends =
+      new ConcurrentLinkedQueue<PendingAppend>();
+  private final AppendSignal appendSignal;
+  private final AtomicBoolean groupLeader = new AtomicBoolean();
+  private volatile PartitionDirectory partitionDirectory = PartitionDirectory.EMPTY;
+  private final Map<String, TypedDirectory> typedDirectories =
+      new ConcurrentHashMap<String, TypedDirectory>();
+  private final Map<String, Map<String, Long>> closedTypeSizes =
+      new ConcurrentHashMap<String, Map<String, Long>>();
+  private final Map<String, AtomicLong> activeTypeSizes =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicReference<KeyValueStoreJdbiBaseImpl> activePartitionStore;
   private final AtomicReference<PartitionInfoImpl> activePartitionInfo;
+  private final Map<String, KeyValueStoreJdbiBaseImpl> partitionStores;
+  private final Map<String, SegmentFile> segments;
+  private final AtomicBoolean checkpointPending = new AtomicBoolean();
+  private ScheduledExecutorService maintenance;
+  private ExecutorService replayExecutor;
   private volatile Lifecycle lifecycle;
   private final ComponentDescriptor<JournalStore> componentDescriptor;
 
@@ -92,16 +149,29 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
   public PartitionedJournalStore(AvailabilityManager availability, LockManager lockManager,
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
       SchemaStore schema, SequenceService sequence, KeyValueStoreConfiguration config) {
-    this(availability, lockManager, dataSource, database, typeHelper, schema, sequence, config
-        .getDbType(), config.getGroupName(), config.getStoreName(), config.getPartitionSize(),
-        config.getDataType(), config.isStrictTypeCreation());
+    this(availability, lockManager, dataSource, database, typeHelper, schema, sequence, config,
+        false, null);
   }
 
-  public PartitionedJournalStore(AvailabilityManager availability, LockManager lockManager,
+  /**
+   * Constructor for the shards of a sharded journal, which set sparseIds since their ids are
+   * allocated from a counter shared with the other shards, and whose appends signal the shared
+   * appendSignal
+   */
+  PartitionedJournalStore(AvailabilityManager availability, LockManager lockManager,
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
-      SchemaStore schema, SequenceService sequence, String dbType, String groupName,
-      String storeName, Long partitionSize, String dataType, boolean strictTypeCreation) {
-    Preconditions.checkNotNull(dataType, "dataType");
+      SchemaStore schema, SequenceService sequence, KeyValueStoreConfiguration config,
+      boolean sparseIds, @Nullable AppendSignal appendSignal) {
+    Preconditions.checkNotNull(config.getDataType(), "dataType");
+
+    // the additional data types share the partitions (and the id counter) of dataType
+    this.dataTypes =
+        ImmutableSet.<String>builder().add(config.getDataType())
+            .addAll(config.getAdditionalDataTypes()).build();
+
+    Preconditions.checkArgument(dataTypes.size() == 1
+        || (config.getCompactionKey() == null && config.getArchiveDirectory() == null),
+        "compaction and archiving support a single data type only");
 
     this.availability = availability;
     this.lockManager = lockManager;
@@ -110,15 +180,28 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
     this.typeHelper = typeHelper;
     this.schema = schema;
     this.sequence = sequence;
-    this.dbType = dbType;
-    this.dataType = dataType;
-    this.groupName = groupName;
-    this.storeName = storeName;
-    this.strictTypeCreation = strictTypeCreation;
-    this.partitionSize = partitionSize;
+    this.dbType = config.getDbType();
+    this.dataType = config.getDataType();
+    this.sparseIds = sparseIds;
+    this.appendSignal = appendSignal == null ? new AppendSignal() : appendSignal;
+    this.groupName = config.getGroupName();
+    this.storeName = config.getStoreName();
+    this.strictTypeCreation = config.isStrictTypeCreation();
+    this.partitionSize = config.getPartitionSize();
+    this.groupCommit = config.isGroupCommit();
+    this.partitionMaxAgeMillis = config.getPartitionMaxAgeMillis();
+    this.partitionMaxBytes = config.getPartitionMaxBytes();
+    this.retentionMillis = config.getRetentionMillis();
+    this.retentionMaxBytes = config.getRetentionMaxBytes();
+    this.compactionKey = config.getCompactionKey();
+    this.archiveDirectory =
+        config.getArchiveDirectory() == null ? null : new File(config.getArchiveDirectory());
     this.typeName = "PartitionInfo-" + groupName + "-" + storeName;
     this.activePartitionInfo = new AtomicReference<PartitionInfoImpl>();
-    this.activePartitionStore = new AtomicReference<KeyValueStore>();
+    this.activePartitionStore = new AtomicReference<KeyValueStoreJdbiBaseImpl>();
+    this.partitionStores =
+        new LinkedHashMap<String, KeyValueStoreJdbiBaseImpl>(16, 0.75f, true);
+    this.segments = new LinkedHashMap<String, SegmentFile>(16, 0.75f, true);
 
     this.componentDescriptor =
         new ComponentDescriptorImpl<JournalStore>("KZ:JournalStore:" + groupName + "-" + storeName,
@@ -153,6 +236,26 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
       public void init() {
         PartitionedJournalStore.this.initialize();
       }
+
+      @Override
+      public void start() {
+        startMaintenance();
+      }
+
+      @Override
+      public void shutdown() {
+        stopMaintenance();
+        stopReplayExecutor();
+
+        try {
+          checkpointActivePartition();
+        } catch (Exception e) {
+          log.warn("Unable to checkpoint active partition of " + PartitionedJournalStore.this, e);
+        }
+
+        destroyRetiredStores(true);
+        clearPartitionStores();
+      }
     });
   }
 
@@ -185,17 +288,18 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
             if (!partition.isClosed()) {
               log.debug("Found active partition: {}", partition.getPartitionId());
 
-              this.activePartitionInfo.set(new PartitionInfoImpl(partition.getPartitionId(),
-                  partition.getMinId(), partition.getMaxId(), partition.getSize(), partition
-                      .isClosed()));
-              this.activePartitionStore
-                  .set(getKeyValueStore(getPartitionName(sequence.resolveKey(KeyImpl
-                      .valueOf(partition.getPartitionId()))), false));
+              KeyValueStoreJdbiBaseImpl partitionStore =
+                  getKeyValueStore(getPartitionName(partition), false);
+
+              this.activePartitionInfo.set(recoverPartitionInfo(partition, partitionStore));
+              this.activePartitionStore.set(partitionStore);
 
               break;
             }
           }
         }
+
+        this.refreshPartitionDirectory();
       } catch (KazukiException e) {
         throw Throwables.propagate(e);
       }
@@ -210,65 +314,290 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
       throws KazukiException {
     availability.assertAvailable();
 
-    if (!this.dataType.equals(type)) {
-      throw new IllegalArgumentException("invalid type: expected " + this.dataType + ", was "
-          + type);
+    assertDataType(type);
+
+    if (groupCommit) {
+      return appendGrouped(type, clazz, inValue, typeSafety);
     }
 
     try (LockManager toRelease = lockManager.acquire()) {
-      Key theKey = sequence.nextKey(type);
+      Key theKey = toDataType(sequence.nextKey(this.dataType), type);
       ResolvedKey resolvedKey = sequence.resolveKey(theKey);
 
       if (theKey == null) {
         throw new IllegalStateException("unable to allocate new key of type: " + type);
       }
 
+      KeyValueStoreJdbiBaseImpl targetStore = getActivePartitionStore(resolvedKey);
+      PartitionInfoImpl theActivePartitionInfo = activePartitionInfo.get();
+
+      targetStore.create(type, clazz, inValue, resolvedKey, typeSafety);
+
+      // the stored partition info is brought up to date by the maintenance task or on close
+      theActivePartitionInfo.recordAppend(resolvedKey.getIdentifierLo());
+      recordTypeAppends(type, 1L);
+      checkpointPending.set(true);
+      signalAppended();
+
+      if (isPartitionFull(theActivePartitionInfo)) {
+        this.closeActivePartition();
+      }
+
+      return theKey;
+    }
+  }
+
+  @Override
+  public <T> List<Key> appendAll(String type, Class<T> clazz, Collection<T> inValues,
+      TypeValidation typeSafety) throws KazukiException {
+    availability.assertAvailable();
+
+    assertDataType(type);
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      return doAppendAll(type, clazz, new ArrayList<T>(inValues), typeSafety);
+    }
+  }
+
+  /**
+   * Appends the values with the store lock held: the keys are allocated in one call and each run
+   * of values that fits in the active partition is written as one batch, rolling to a new
+   * partition whenever the active one fills up. The batches of earlier partitions stay appended
+   * if a later one fails, which the exception reports.
+   */
+  private <T> List<Key> doAppendAll(String type, Class<T> clazz, List<T> values,
+      TypeValidation typeSafety) throws KazukiException {
+    List<Key> keys = new ArrayList<Key>(values.size());
+
+    for (Key key : sequence.nextKeys(this.dataType, values.size())) {
+      keys.add(toDataType(key, type));
+    }
+    int from = 0;
+
+    while (from < values.size()) {
+      KeyValueStoreJdbiBaseImpl targetStore =
+          getActivePartitionStore(sequence.resolveKey(keys.get(from)));
       PartitionInfoImpl theActivePartitionInfo = activePartitionInfo.get();
-      KeyValueStore targetStore = activePartitionStore.get();
 
-      if (theActivePartitionInfo == null) {
-        KeyImpl partitionKey = (KeyImpl) sequence.nextKey(this.typeName);
+      long room = Math.max(1L, this.partitionSize - theActivePartitionInfo.getSize());
+      int to = (int) Math.min(values.size(), from + room);
+
+      List<ResolvedKey> resolvedKeys = new ArrayList<ResolvedKey>(to - from);
+
+      for (Key key : keys.subList(from, to)) {
+        resolvedKeys.add(sequence.resolveKey(key));
+      }
+
+      try {
+        targetStore.createAll(type, clazz, values.subList(from, to), resolvedKeys, typeSafety);
+      } catch (Exception e) {
+        if (from == 0) {
+          throw e;
+        }
+
+        throw new KazukiException("appended " + from + " of " + values.size()
+            + " values (up to key " + keys.get(from - 1) + ") before failing", e);
+      }
+
+      theActivePartitionInfo.recordAppends(resolvedKeys.get(resolvedKeys.size() - 1)
+          .getIdentifierLo(), to - from);
+      recordTypeAppends(type, to - from);
+      checkpointPending.set(true);
+      signalAppended();
+
+      if (isPartitionFull(theActivePartitionInfo)) {
+        this.closeActivePartition();
+      }
+
+      from = to;
+    }
+
+    return keys;
+  }
+
+  @Override
+  public <T> JournalTail<T> tail(String type, Class<T> clazz, long offset)
+      throws KazukiException {
+    availability.assertAvailable();
+
+    assertDataType(type);
+
+    Preconditions.checkArgument(offset >= 0L, "invalid offset");
+
+    return new JournalTailImpl<T>(type, clazz, offset);
+  }
+
+  @Override
+  public <T> KeyValueIterable<KeyValuePair<T>> replay(String type, Class<T> clazz, long offset,
+      int parallelism, int readAhead, boolean ordered) throws KazukiException {
+    availability.assertAvailable();
+
+    assertDataType(type);
+
+    Preconditions.checkArgument(offset >= 0L, "invalid offset");
+    Preconditions.checkArgument(parallelism > 0, "invalid parallelism");
+    Preconditions.checkArgument(readAhead > 0, "invalid readAhead");
+
+    List<Provider<KeyValueIterable<KeyValuePair<T>>>> partitions =
+        new ArrayList<Provider<KeyValueIterable<KeyValuePair<T>>>>();
+
+    PartitionDirectory directory = getPartitionDirectory();
+
+    for (int i = directory.ceilingIndexOfId(offset + 1L); i < directory.getCount(); i++) {
+      PartitionInfo partition = directory.get(i);
+
+      if (partition.getSize() == 0L) {
+        continue;
+      }
+
+      long startId = Math.max(offset + 1L, partition.getMinId());
+      long rowOffset =
+          startId == partition.getMinId() ? 0L : getRowOffset(partition, type, startId);
+
+      partitions.add(getIterableProvider(type, clazz, partition, SortDirection.ASCENDING,
+          rowOffset, null));
+    }
+
+    return new ParallelReplay<T>(getReplayExecutor(), partitions, parallelism, readAhead, ordered);
+  }
+
+  /** Wakes up tails waiting for appends */
+  private void signalAppended() {
+    appendSignal.signal();
+  }
+
+  /**
+   * Queues the append and waits for it to be written. One thread at a time is the group leader:
+   * it takes the store lock and writes the queued appends in groups until its own is written,
+   * then hands leadership over to the oldest append still queued (if any).
+   */
+  private <T> Key appendGrouped(String type, Class<T> clazz, T inValue, TypeValidation typeSafety)
+      throws KazukiException {
+    PendingAppend request = new PendingAppend(type, clazz, inValue, typeSafety);
+    pendingAppends.add(request);
+
+    while (!request.isDone()) {
+      if (groupLeader.compareAndSet(false, true)) {
+        try (LockManager toRelease = lockManager.acquire()) {
+          while (!request.isDone()) {
+            commitPendingAppends();
+          }
+        } finally {
+          groupLeader.set(false);
+        }
+
+        // an append queued before leadership was released would otherwise wait forever
+        PendingAppend next = pendingAppends.peek();
 
-        if (partitionKey == null) {
-          throw new IllegalStateException("unable to allocate new partition key of type: "
-              + this.typeName);
+        if (next != null) {
+          next.wake();
         }
+      } else {
+        request.await();
+      }
+    }
 
-        ResolvedKey resolvedPartitionKey = sequence.resolveKey(partitionKey);
-        String partitionName = getPartitionName(resolvedPartitionKey);
+    if (request.error != null) {
+      throw request.error;
+    }
+
+    return request.key;
+  }
 
-        theActivePartitionInfo =
-            new PartitionInfoImpl(partitionKey.getInternalIdentifier(),
-                resolvedKey.getIdentifierLo(), resolvedKey.getIdentifierLo(), 0L, false);
+  /**
+   * Writes the longest run of queued appends of the same type and class, up to
+   * GROUP_COMMIT_MAX_SIZE and the room left in the active partition: a group is written to a
+   * single partition in one transaction, so it succeeds or fails as a whole.
+   */
+  @SuppressWarnings("unchecked")
+  private void commitPendingAppends() {
+    List<PendingAppend> group = new ArrayList<PendingAppend>();
+    PendingAppend first = pendingAppends.peek();
+
+    if (first == null) {
+      return;
+    }
 
-        this.activePartitionInfo.set(theActivePartitionInfo);
+    PartitionInfoImpl theActivePartitionInfo = activePartitionInfo.get();
+    long room =
+        theActivePartitionInfo == null ? this.partitionSize : Math.max(1L, this.partitionSize
+            - theActivePartitionInfo.getSize());
+    int limit = (int) Math.min(GROUP_COMMIT_MAX_SIZE, room);
 
-        this.metaStore.create(this.typeName, PartitionInfo.class,
-            theActivePartitionInfo.snapshot(), resolvedPartitionKey, TypeValidation.STRICT);
+    for (int i = 0; i < limit; i++) {
+      PendingAppend next = pendingAppends.peek();
 
-        targetStore = getKeyValueStore(partitionName, true);
-        this.activePartitionStore.set(targetStore);
+      if (next == null || !first.type.equals(next.type) || !first.clazz.equals(next.clazz)
+          || first.typeSafety != next.typeSafety) {
+        break;
       }
 
-      targetStore.create(type, clazz, inValue, resolvedKey, typeSafety);
+      group.add(pendingAppends.poll());
+    }
 
-      theActivePartitionInfo.setMaxId(resolvedKey.getIdentifierLo());
-      theActivePartitionInfo.setSize(theActivePartitionInfo.getSize() + 1L);
+    List<Object> values = new ArrayList<Object>(group.size());
 
-      boolean success =
-          this.metaStore.update(KeyImpl.valueOf(theActivePartitionInfo.getPartitionId()),
-              PartitionInfo.class, theActivePartitionInfo.snapshot());
+    for (PendingAppend request : group) {
+      values.add(request.value);
+    }
 
-      if (!success) {
-        throw new KazukiException("unable to update partition info");
+    try {
+      List<Key> keys =
+          doAppendAll(first.type, (Class<Object>) first.clazz, values, first.typeSafety);
+
+      for (int i = 0; i < group.size(); i++) {
+        group.get(i).key = keys.get(i);
       }
+    } catch (Exception e) {
+      KazukiException error =
+          (e instanceof KazukiException) ? (KazukiException) e : new KazukiException(e);
 
-      if (theActivePartitionInfo.getSize() >= this.partitionSize) {
-        this.closeActivePartition();
+      for (PendingAppend request : group) {
+        request.error = error;
+      }
+    } finally {
+      for (PendingAppend request : group) {
+        request.complete();
       }
+    }
+  }
 
-      return theKey;
+  /**
+   * Returns the store of the active partition, first creating the partition (starting at the given
+   * key) if there is none
+   */
+  private KeyValueStoreJdbiBaseImpl getActivePartitionStore(ResolvedKey resolvedKey)
+      throws KazukiException {
+    KeyValueStoreJdbiBaseImpl targetStore = activePartitionStore.get();
+
+    if (activePartitionInfo.get() == null) {
+      KeyImpl partitionKey = (KeyImpl) sequence.nextKey(this.typeName);
+
+      if (partitionKey == null) {
+        throw new IllegalStateException("unable to allocate new partition key of type: "
+            + this.typeName);
+      }
+
+      ResolvedKey resolvedPartitionKey = sequence.resolveKey(partitionKey);
+      String partitionName = getPartitionName(resolvedPartitionKey);
+
+      PartitionInfoImpl theActivePartitionInfo =
+          new PartitionInfoImpl(partitionKey.getInternalIdentifier(),
+              resolvedKey.getIdentifierLo(), resolvedKey.getIdentifierLo(), 0L, false,
+              System.currentTimeMillis(), 0L, 0L, false, 0, null);
+
+      this.activePartitionInfo.set(theActivePartitionInfo);
+      this.activeTypeSizes.clear();
+
+      this.metaStore.create(this.typeName, PartitionInfo.class,
+          theActivePartitionInfo.snapshot(), resolvedPartitionKey, TypeValidation.STRICT);
+      this.refreshPartitionDirectory();
+
+      targetStore = getKeyValueStore(partitionName, true);
+      this.activePartitionStore.set(targetStore);
     }
+
+    return targetStore;
   }
 
   @Override
@@ -280,10 +609,7 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
       throw new IllegalArgumentException("absolute iterator only supports order ASCENDING");
     }
 
-    if (!this.dataType.equals(type)) {
-      throw new IllegalArgumentException("invalid type: expected " + this.dataType + ", was "
-          + type);
-    }
+    assertDataType(type);
 
     long idOffset = 0L;
     if (offset != null) {
@@ -295,27 +621,42 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
     List<KeyValueIterable<KeyValuePair<T>>> iters =
         new ArrayList<KeyValueIterable<KeyValuePair<T>>>();
 
-    try (KeyValueIterator<PartitionInfoSnapshot> iter =
-        this.getAllPartitions(sortDirection).iterator()) {
-      while (iter.hasNext() && (limit == null || limit > 0L)) {
-        PartitionInfo partition = iter.next();
+    PartitionDirectory directory = getPartitionDirectory(type);
 
-        if (idOffset >= partition.getMinId() && idOffset <= partition.getMaxId()) {
-          Long specificLimit = limit == null ? null : limit;
+    for (int i = directory.ceilingIndexOfId(idOffset); i < directory.getCount()
+        && (limit == null || limit > 0L); i++) {
+      PartitionInfo partition = directory.get(i);
 
-          if (specificLimit != null) {
-            long contained = 1 + partition.getMaxId() - idOffset;
-            specificLimit = Math.min(contained, specificLimit);
-            limit -= specificLimit;
-          }
+      if (sparseIds && idOffset < partition.getMinId()) {
+        // the ids in between went to other shards
+        idOffset = partition.getMinId();
+      }
 
-          iters.add(new LazyIterable<KeyValuePair<T>>(getIterableProvider(type, clazz,
-              getPartitionName(sequence.resolveKey(KeyImpl.valueOf(partition.getPartitionId()))),
-              sortDirection, idOffset - partition.getMinId(), specificLimit)));
+      if (idOffset < partition.getMinId() || idOffset > partition.getMaxId()) {
+        break;
+      }
 
-          idOffset = partition.getMaxId() + 1;
-        }
+      long rowOffset = getRowOffset(partition, type, idOffset);
+      long contained =
+          hasConsecutiveIds(partition) ? 1 + partition.getMaxId() - idOffset : partition
+              .getSize() - rowOffset;
+
+      if (contained <= 0L) {
+        idOffset = partition.getMaxId() + 1;
+        continue;
+      }
+
+      Long specificLimit = limit == null ? null : limit;
+
+      if (specificLimit != null) {
+        specificLimit = Math.min(contained, specificLimit);
+        limit -= specificLimit;
       }
+
+      iters.add(new LazyIterable<KeyValuePair<T>>(getIterableProvider(type, clazz, partition,
+          sortDirection, rowOffset, specificLimit)));
+
+      idOffset = partition.getMaxId() + 1;
     }
 
     if (iters.isEmpty()) {
@@ -330,10 +671,7 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
       SortDirection sortDirection, Long offset, Long limit) throws KazukiException {
     availability.assertAvailable();
 
-    if (!this.dataType.equals(type)) {
-      throw new IllegalArgumentException("invalid type: expected " + this.dataType + ", was "
-          + type);
-    }
+    assertDataType(type);
 
     long sizeOffset = 0L;
 
@@ -344,32 +682,40 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
     List<KeyValueIterable<KeyValuePair<T>>> iters =
         new ArrayList<KeyValueIterable<KeyValuePair<T>>>();
 
-    try (KeyValueIterator<PartitionInfoSnapshot> iter =
-        this.getAllPartitions(sortDirection).iterator()) {
-      while (iter.hasNext() && (limit == null || limit > 0L)) {
-        PartitionInfo partition = iter.next();
-        long size = partition.getSize();
-        long toIgnore = Math.min(sizeOffset, size);
-
-        if (toIgnore == size) {
-          sizeOffset -= size;
-          continue;
-        }
+    PartitionDirectory directory = getPartitionDirectory(type);
+    boolean descending = SortDirection.DESCENDING.equals(sortDirection);
+    long ascendingOffset =
+        descending ? directory.getTotalSize() - 1L - sizeOffset : sizeOffset;
+    int i = ascendingOffset < 0L ? -1 : directory.indexOfOffset(ascendingOffset);
+
+    if (i >= 0) {
+      // the offset within the first partition, counted in the iteration direction
+      sizeOffset =
+          descending ? directory.getStartOffset(i) + directory.getSize(i) - 1L - ascendingOffset
+              : ascendingOffset - directory.getStartOffset(i);
+    }
 
-        Long specificLimit = limit == null ? null : limit;
+    for (; i >= 0 && i < directory.getCount() && (limit == null || limit > 0L); i +=
+        descending ? -1 : 1) {
+      PartitionInfo partition = directory.get(i);
+      long size = directory.getSize(i);
 
-        if (specificLimit != null) {
-          long toTake = size - toIgnore;
-          specificLimit = Math.min(toTake, specificLimit);
-          limit -= specificLimit;
-        }
+      if (size == 0L) {
+        continue;
+      }
 
-        iters.add(new LazyIterable<KeyValuePair<T>>(getIterableProvider(type, clazz,
-            getPartitionName(sequence.resolveKey(KeyImpl.valueOf(partition.getPartitionId()))),
-            sortDirection, sizeOffset, specificLimit)));
+      Long specificLimit = limit == null ? null : limit;
 
-        sizeOffset = 0L;
+      if (specificLimit != null) {
+        long toTake = size - sizeOffset;
+        specificLimit = Math.min(toTake, specificLimit);
+        limit -= specificLimit;
       }
+
+      iters.add(new LazyIterable<KeyValuePair<T>>(getIterableProvider(type, clazz, partition,
+          sortDirection, sizeOffset, specificLimit)));
+
+      sizeOffset = 0L;
     }
 
     if (iters.isEmpty()) {
@@ -383,15 +729,7 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
   public Long approximateSize() throws KazukiException {
     availability.assertAvailable();
 
-    long size = 0L;
-
-    try (KeyValueIterable<PartitionInfoSnapshot> parts = this.getAllPartitions()) {
-      for (PartitionInfo partition : parts) {
-        size += partition.getSize();
-      }
-    }
-
-    return size;
+    return getPartitionDirectory().getTotalSize();
   }
 
   @Override
@@ -426,6 +764,10 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
 
         this.activePartitionInfo.set(null);
         this.activePartitionStore.set(null);
+        this.activeTypeSizes.clear();
+        this.closedTypeSizes.clear();
+        this.destroyRetiredStores(true);
+        this.clearPartitionStores();
 
         this.initialize();
       } finally {
@@ -449,14 +791,36 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
         return false;
       }
 
-      this.activePartitionInfo.set(null);
-      this.activePartitionStore.set(null);
-
       partition.setClosed(true);
 
-      boolean result =
-          metaStore.update(KeyImpl.valueOf(partition.getPartitionId()), PartitionInfo.class,
-              partition);
+      boolean result;
+
+      try {
+        partition.setClosedAt(System.currentTimeMillis());
+        partition.setByteSize(measureByteSize());
+
+        result =
+            metaStore.update(KeyImpl.valueOf(partition.getPartitionId()), PartitionInfo.class,
+                partition.snapshot());
+
+        if (dataTypes.size() > 1) {
+          Map<String, Long> typeSizes = new ConcurrentHashMap<String, Long>();
+
+          for (Map.Entry<String, AtomicLong> entry : activeTypeSizes.entrySet()) {
+            typeSizes.put(entry.getKey(), entry.getValue().get());
+          }
+
+          closedTypeSizes.put(partition.getPartitionId(), typeSizes);
+        }
+
+        // refreshed while the active info still overlays it, so readers never see stale info
+        this.refreshPartitionDirectory();
+      } finally {
+        this.activePartitionInfo.set(null);
+        this.activePartitionStore.set(null);
+        this.activeTypeSizes.clear();
+        this.checkpointPending.set(false);
+      }
 
       if (result) {
         log.debug("Closed Active Partition for PartitionedJournalStore {}", this);
@@ -484,12 +848,24 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
         throw new IllegalStateException("drop() applies to closed partitions only");
       }
 
-      ResolvedKey resolvedKey = sequence.resolveKey(partitionKey);
-      KeyValueStore keyValue = getKeyValueStore(getPartitionName(resolvedKey), false);
+      String partitionName = getPartitionName(partition);
 
-      keyValue.destroy();
+      if (partition.getArchivePath() != null) {
+        // the table was retired when the partition was sealed
+        retirePartitionData(partition, partitionName);
+      } else {
+        KeyValueStoreJdbiBaseImpl keyValue = getKeyValueStore(partitionName, false);
+
+        keyValue.destroy();
+
+        synchronized (partitionStores) {
+          partitionStores.remove(partitionName);
+        }
+      }
 
       boolean result = metaStore.delete(partitionKey);
+      this.closedTypeSizes.remove(partitionId);
+      this.refreshPartitionDirectory();
 
       if (result) {
         log.debug("Dropped Partition {} of PartitionedJournalStore {}", partitionId, this);
@@ -519,130 +895,1094 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
       throws KazukiException {
     availability.assertAvailable();
 
-    return metaStore.iterators().values(this.typeName, PartitionInfoSnapshot.class, sortDirection);
-  }
-
-  private KeyValueStore getKeyValueStore(String partitionName, boolean initialize) {
-    KeyValueStoreConfiguration.Builder config = new KeyValueStoreConfiguration.Builder();
-
-    config.withDbType(this.dbType);
-    config.withGroupName(this.groupName);
-    config.withStoreName(this.storeName);
-    config.withPartitionName(partitionName);
-    config.withPartitionSize(this.partitionSize);
-    config.withStrictTypeCreation(this.strictTypeCreation);
-
-    KeyValueStore keyValueStore =
-        new KeyValueStoreJdbiH2Impl(availability, lockManager, dataSource, database, typeHelper,
-            schema, sequence, config.build());
-
-    if (initialize) {
-      keyValueStore.initialize();
-    }
-
-    return keyValueStore;
-  }
-
-  private static String getPartitionName(ResolvedKey resolvedKey) {
-    return String.format("%016x", resolvedKey.getIdentifierLo());
-  }
+    final KeyValueIterable<PartitionInfoSnapshot> stored =
+        metaStore.iterators().values(this.typeName, PartitionInfoSnapshot.class, sortDirection);
 
-  private static <T> KeyValueIterable<T> emptyKeyValueIterable() {
-    return new KeyValueIterable<T>() {
+    // the stored info of the active partition may predate the latest appends
+    return new KeyValueIterable<PartitionInfoSnapshot>() {
       @Override
-      public KeyValueIterator<T> iterator() {
-        return new KeyValueIterator<T>() {
+      public KeyValueIterator<PartitionInfoSnapshot> iterator() {
+        final KeyValueIterator<PartitionInfoSnapshot> inner = stored.iterator();
+
+        return new KeyValueIterator<PartitionInfoSnapshot>() {
           @Override
           public boolean hasNext() {
-            return false;
+            return inner.hasNext();
           }
 
           @Override
-          public T next() {
-            throw new IllegalStateException();
+          public PartitionInfoSnapshot next() {
+            PartitionInfoSnapshot partition = inner.next();
+            PartitionInfoImpl active = activePartitionInfo.get();
+
+            if (active != null && active.getPartitionId().equals(partition.getPartitionId())) {
+              return active.snapshot();
+            }
+
+            return partition;
           }
 
           @Override
           public void remove() {
-            throw new UnsupportedOperationException();
+            inner.remove();
           }
 
           @Override
-          public void close() {}
+          public void close() {
+            inner.close();
+          }
         };
       }
 
       @Override
-      public void close() {}
+      public void close() {
+        stored.close();
+      }
     };
   }
 
-  private static <T> KeyValueIterable<T> concatKeyValueIterables(
-      final Collection<KeyValueIterable<T>> iterables) {
-    return new KeyValueIterable<T>() {
-      private final List<KeyValueIterable<T>> innerIterables = ImmutableList.copyOf(iterables);
-      private boolean instantiated = false;
+  /** Returns the partition directory, overlaid with the latest info of the active partition */
+  private PartitionDirectory getPartitionDirectory() {
+    PartitionDirectory directory = partitionDirectory;
+    PartitionInfoImpl active = activePartitionInfo.get();
 
-      @SuppressWarnings("unchecked")
-      @Override
-      public KeyValueIterator<T> iterator() {
-        if (instantiated) {
-          throw new IllegalStateException("iterable may only be used once!");
-        }
+    return directory.withActive(active == null ? null : active.snapshot());
+  }
 
-        if (iterables.isEmpty()) {
-          return (KeyValueIterator<T>) emptyKeyValueIterable().iterator();
-        }
+  /**
+   * Returns the partition directory as seen by reads of the type: with several data types, the
+   * partition sizes are those of the type alone. The typed directory is derived once per refresh
+   * of the partition directory, from per-type sizes kept for closed partitions, and overlaid with
+   * the size of the type in the active partition, which is counted on append.
+   */
+  private PartitionDirectory getPartitionDirectory(String type) throws KazukiException {
+    if (dataTypes.size() == 1) {
+      return getPartitionDirectory();
+    }
 
-        return new KeyValueIterator<T>() {
-          private final Iterator<KeyValueIterable<T>> outerIter = innerIterables.iterator();
-          private KeyValueIterator<T> innerIter = null;
-          private boolean initialized = false;
+    PartitionDirectory directory = partitionDirectory;
+    TypedDirectory typed = typedDirectories.get(type);
 
-          private void advance() {
-            while (outerIter.hasNext() && (innerIter == null || !innerIter.hasNext())) {
-              innerIter = outerIter.next().iterator();
-              if (innerIter.hasNext()) {
-                break;
-              }
-            }
-          }
+    if (typed == null || typed.base != directory) {
+      List<PartitionInfoSnapshot> partitions = new ArrayList<PartitionInfoSnapshot>();
 
-          @Override
-          public boolean hasNext() {
-            if (!initialized) {
-              advance();
-              initialized = true;
-            }
+      for (int i = 0; i < directory.getCount(); i++) {
+        PartitionInfo partition = directory.get(i);
 
-            return innerIter.hasNext();
-          }
+        partitions.add(withSize(partition, partition.isClosed() ? getClosedTypeSize(partition,
+            type) : 0L));
+      }
 
-          @Override
-          public T next() {
-            if (!hasNext()) {
-              throw new IllegalStateException("iterator has no next()");
-            }
+      typed = new TypedDirectory(directory, PartitionDirectory.create(partitions));
+      typedDirectories.put(type, typed);
+    }
 
-            T nextVal = innerIter.next();
+    PartitionInfoImpl active = activePartitionInfo.get();
+    AtomicLong activeSize = activeTypeSizes.get(type);
 
-            if (!innerIter.hasNext()) {
-              advance();
-            }
+    return typed.directory.withActive(active == null ? null : withSize(active.snapshot(),
+        activeSize == null ? 0L : activeSize.get()));
+  }
 
-            return nextVal;
-          }
+  /** Returns the number of entries of the type in the closed partition, counting them once */
+  private long getClosedTypeSize(PartitionInfo partition, String type) throws KazukiException {
+    Map<String, Long> typeSizes = closedTypeSizes.get(partition.getPartitionId());
 
-          @Override
-          public void remove() {
-            throw new UnsupportedOperationException();
-          }
+    if (typeSizes == null) {
+      typeSizes = new ConcurrentHashMap<String, Long>();
+      closedTypeSizes.put(partition.getPartitionId(), typeSizes);
+    }
 
-          @Override
-          public void close() {
-            for (KeyValueIterable<T> iter : innerIterables) {
-              iter.close();
-            }
+    Long size = typeSizes.get(type);
+
+    if (size == null) {
+      size = 0L;
+
+      if (sequence.hasType(type) && partition.getSize() > 0L) {
+        size = getKeyValueStore(getPartitionName(partition), false).countOfType(type);
+      }
+
+      typeSizes.put(type, size);
+    }
+
+    return size;
+  }
+
+  /** Counts appends of the type to the active partition; called under the lock */
+  private void recordTypeAppends(String type, long count) {
+    if (dataTypes.size() == 1) {
+      return;
+    }
+
+    AtomicLong size = activeTypeSizes.get(type);
+
+    if (size == null) {
+      size = new AtomicLong();
+      activeTypeSizes.put(type, size);
+    }
+
+    size.addAndGet(count);
+  }
+
+  private static PartitionInfoSnapshot withSize(PartitionInfo partition, long size) {
+    return new PartitionInfoSnapshot(partition.getPartitionId(), partition.getMinId(),
+        partition.getMaxId(), size, partition.isClosed(), partition.getCreatedAt(),
+        partition.getClosedAt(), partition.getByteSize(), partition.isCompacted(),
+        partition.getGeneration(), partition.getArchivePath());
+  }
+
+  private void assertDataType(String type) {
+    if (!this.dataTypes.contains(type)) {
+      throw new IllegalArgumentException("invalid type: expected "
+          + Joiner.on(" or ").join(this.dataTypes) + ", was " + type);
+    }
+  }
+
+  /**
+   * Returns the key allocated from the counter of dataType as a key of the given type, which
+   * shares that counter
+   */
+  private Key toDataType(Key key, String type) throws KazukiException {
+    if (key == null || type.equals(this.dataType)) {
+      return key;
+    }
+
+    sequence.getTypeId(type, true);
+
+    return KeyImpl.createInternal(type, ((KeyImpl) key).getInternalId());
+  }
+
+  /** Reloads the partition directory; called under the lock when partitions are added or removed */
+  private void refreshPartitionDirectory() throws KazukiException {
+    List<PartitionInfoSnapshot> partitions = new ArrayList<PartitionInfoSnapshot>();
+
+    try (KeyValueIterable<PartitionInfoSnapshot> stored =
+        metaStore.iterators().values(this.typeName, PartitionInfoSnapshot.class,
+            SortDirection.ASCENDING)) {
+      for (PartitionInfoSnapshot partition : stored) {
+        partitions.add(partition);
+      }
+    }
+
+    this.partitionDirectory = PartitionDirectory.create(partitions);
+  }
+
+  /**
+   * Returns the info of the active partition as found at startup, with the size and max id taken
+   * from the partition itself since the stored info is only checkpointed periodically
+   */
+  private PartitionInfoImpl recoverPartitionInfo(PartitionInfo stored,
+      KeyValueStoreJdbiBaseImpl partitionStore) throws KazukiException {
+    long maxId = stored.getMaxId();
+    long size = stored.getSize();
+
+    long count = 0L;
+    long countedMaxId = 0L;
+
+    activeTypeSizes.clear();
+
+    for (String type : this.dataTypes) {
+      if (sequence.hasType(type)) {
+        long typeCount = partitionStore.countOfType(type);
+
+        count += typeCount;
+        recordTypeAppends(type, typeCount);
+        countedMaxId = Math.max(countedMaxId, partitionStore.maxIdOfType(type));
+      }
+    }
+
+    if (count > 0L) {
+      size = count;
+      maxId = countedMaxId;
+    }
+
+    PartitionInfoImpl recovered =
+        new PartitionInfoImpl(stored.getPartitionId(), stored.getMinId(), maxId, size, false,
+            stored.getCreatedAt(), 0L, stored.getByteSize(), false, 0, null);
+
+    if (size != stored.getSize() || maxId != stored.getMaxId()) {
+      log.info("Recovered active partition {} of {}: size {}, max id {}",
+          stored.getPartitionId(), this, size, maxId);
+
+      if (!metaStore.update(KeyImpl.valueOf(stored.getPartitionId()), PartitionInfo.class,
+          recovered.snapshot())) {
+        throw new KazukiException("unable to update partition info");
+      }
+    }
+
+    return recovered;
+  }
+
+  /** Writes the in-memory info of the active partition if it has changed since the last write */
+  private void checkpointActivePartition() throws KazukiException {
+    try (LockManager toRelease = lockManager.acquire()) {
+      PartitionInfoImpl partition = activePartitionInfo.get();
+
+      if (partition == null || !checkpointPending.getAndSet(false)) {
+        return;
+      }
+
+      boolean success = false;
+
+      try {
+        // measuring scans the partition, so it is skipped unless a byte limit needs it
+        if (partitionMaxBytes != null || retentionMaxBytes != null) {
+          partition.setByteSize(measureByteSize());
+        }
+
+        success =
+            metaStore.update(KeyImpl.valueOf(partition.getPartitionId()), PartitionInfo.class,
+                partition.snapshot());
+      } finally {
+        if (!success) {
+          checkpointPending.set(true);
+        }
+      }
+
+      if (!success) {
+        throw new KazukiException("unable to update partition info");
+      }
+    }
+  }
+
+  /** Returns the encoded size of the entries of the active partition; called under the lock */
+  private long measureByteSize() throws KazukiException {
+    KeyValueStoreJdbiBaseImpl partitionStore = activePartitionStore.get();
+
+    if (partitionStore == null) {
+      return 0L;
+    }
+
+    long byteSize = 0L;
+
+    for (String type : this.dataTypes) {
+      if (sequence.hasType(type)) {
+        byteSize += partitionStore.bytesOfType(type);
+      }
+    }
+
+    return byteSize;
+  }
+
+  /**
+   * Whether the partition has reached partitionSize or partitionMaxAgeMillis; partitionMaxBytes
+   * is applied to the size measured at the last checkpoint
+   */
+  private boolean isPartitionFull(PartitionInfo partition) {
+    if (partition.getSize() >= this.partitionSize) {
+      return true;
+    }
+
+    if (partitionMaxAgeMillis != null && partition.getCreatedAt() > 0L
+        && System.currentTimeMillis() - partition.getCreatedAt() >= partitionMaxAgeMillis) {
+      return true;
+    }
+
+    return partitionMaxBytes != null && partition.getByteSize() >= partitionMaxBytes;
+  }
+
+  /**
+   * Checkpoints the active partition, closes it if it is due for rolling and applies the
+   * retention policy; run periodically by the maintenance task
+   */
+  void runMaintenance() throws KazukiException {
+    destroyRetiredStores(false);
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      checkpointActivePartition();
+
+      PartitionInfoImpl partition = activePartitionInfo.get();
+
+      if (partition != null && isPartitionFull(partition)) {
+        closeActivePartition();
+      }
+
+      applyRetention();
+    }
+
+    if (compactionKey != null) {
+      compactPartitions();
+    }
+
+    if (archiveDirectory != null) {
+      sealPartitions();
+    }
+  }
+
+  /**
+   * Compacts the closed partitions that are not compacted yet to the last entry of each
+   * compaction key. The oldest of them is the compaction watermark: older partitions were
+   * compacted already and are neither scanned nor rewritten again. Partitions from the newest
+   * (the active one included, though it is never rewritten) down to the watermark are scanned,
+   * collecting the keys seen so far; entries superseded within their partition or by a newer one
+   * are left out when it is rewritten. At most compactionMaxKeys keys are tracked, so entries of
+   * keys beyond that are kept rather than compacted. Only the metadata swap takes the store lock.
+   */
+  void compactPartitions() throws KazukiException {
+    compactionLock.lock();
+
+    try {
+      PartitionDirectory directory = getPartitionDirectory();
+      int watermark = -1;
+
+      for (int i = 0; i < directory.getCount() && watermark < 0; i++) {
+        if (directory.get(i).isClosed() && !directory.get(i).isCompacted()) {
+          watermark = i;
+        }
+      }
+
+      if (watermark < 0 || !sequence.hasType(this.dataType)) {
+        return;
+      }
+
+      Set<Object> seen = new HashSet<Object>();
+
+      for (int i = directory.getCount() - 1; i >= watermark; i--) {
+        PartitionInfo partition = directory.get(i);
+        String partitionName = getPartitionName(partition);
+        Map<Object, Long> lastIds = new HashMap<Object, Long>();
+        long untracked = 0L;
+
+        try (KeyValueIterable<KeyValuePair<Map>> entries =
+            openEntries(partition, this.dataType, Map.class, SortDirection.ASCENDING, null, null)) {
+          for (KeyValuePair<Map> entry : entries) {
+            Object keyValue = entry.getValue().get(compactionKey);
+
+            if (keyValue != null
+                && (lastIds.containsKey(keyValue) || lastIds.size() < compactionMaxKeys)) {
+              lastIds.put(keyValue, sequence.resolveKey(entry.getKey()).getIdentifierLo());
+            } else {
+              untracked += 1;
+            }
+          }
+        }
+
+        if (partition.isClosed() && !partition.isCompacted()) {
+          long retained = untracked;
+
+          for (Object keyValue : lastIds.keySet()) {
+            if (!seen.contains(keyValue)) {
+              retained += 1;
+            }
+          }
+
+          compactPartition(partition, partitionName, lastIds, seen, retained);
+        }
+
+        for (Object keyValue : lastIds.keySet()) {
+          if (seen.size() >= compactionMaxKeys) {
+            break;
+          }
+
+          seen.add(keyValue);
+        }
+      }
+    } finally {
+      compactionLock.unlock();
+    }
+  }
+
+  /** Bounds the compaction keys tracked in memory; for testing */
+  void setCompactionMaxKeys(int compactionMaxKeys) {
+    Preconditions.checkArgument(compactionMaxKeys > 0, "invalid compactionMaxKeys");
+
+    this.compactionMaxKeys = compactionMaxKeys;
+  }
+
+  /**
+   * Rewrites the entries of the partition to be retained into the table of its next generation
+   * (unless all of them are retained) and swaps the partition info over to it. Entries without a
+   * tracked key (no compaction key, or past compactionMaxKeys) are all retained.
+   */
+  private void compactPartition(PartitionInfo partition, String partitionName,
+      Map<Object, Long> lastIds, Set<Object> seen, long retained) throws KazukiException {
+    KeyValueStoreJdbiBaseImpl target = null;
+    String targetName = null;
+    long byteSize = partition.getByteSize();
+
+    if (retained < partition.getSize()) {
+      targetName = getPartitionName(partition, partition.getGeneration() + 1);
+      target = getKeyValueStore(targetName, true);
+
+      // discards anything left over by an interrupted compaction
+      target.destroy();
+      target.initialize();
+
+      List<Map> values = new ArrayList<Map>();
+      List<ResolvedKey> keys = new ArrayList<ResolvedKey>();
+
+      try (KeyValueIterable<KeyValuePair<Map>> entries =
+          openEntries(partition, this.dataType, Map.class, SortDirection.ASCENDING, null, null)) {
+        for (KeyValuePair<Map> entry : entries) {
+          Object keyValue = entry.getValue().get(compactionKey);
+          ResolvedKey resolvedKey = sequence.resolveKey(entry.getKey());
+          Long lastId = lastIds.get(keyValue);
+
+          if (lastId == null
+              || (!seen.contains(keyValue) && lastId == resolvedKey.getIdentifierLo())) {
+            values.add(entry.getValue());
+            keys.add(resolvedKey);
+          }
+
+          if (values.size() >= GROUP_COMMIT_MAX_SIZE) {
+            target.createAll(this.dataType, Map.class, values, keys, TypeValidation.STRICT);
+            values.clear();
+            keys.clear();
+          }
+        }
+      }
+
+      target.createAll(this.dataType, Map.class, values, keys, TypeValidation.STRICT);
+
+      byteSize = target.bytesOfType(this.dataType);
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      Key partitionKey = KeyImpl.valueOf(partition.getPartitionId());
+      PartitionInfo current = metaStore.retrieve(partitionKey, PartitionInfoSnapshot.class);
+
+      // the partition was dropped or changed while it was being rewritten
+      if (current == null || current.getGeneration() != partition.getGeneration()) {
+        if (target != null) {
+          retireStore(targetName);
+        }
+
+        return;
+      }
+
+      int generation = target == null ? partition.getGeneration() : partition.getGeneration() + 1;
+
+      if (!metaStore.update(partitionKey, PartitionInfo.class, new PartitionInfoSnapshot(
+          partition.getPartitionId(), partition.getMinId(), partition.getMaxId(), retained, true,
+          partition.getCreatedAt(), partition.getClosedAt(), byteSize, true, generation,
+          target == null ? partition.getArchivePath() : null))) {
+        throw new KazukiException("unable to update partition info");
+      }
+
+      this.refreshPartitionDirectory();
+
+      if (target != null) {
+        retirePartitionData(partition, partitionName);
+
+        log.info("Compacted partition {} of {} from {} to {} entries",
+            partition.getPartitionId(), this, partition.getSize(), retained);
+      }
+    }
+  }
+
+  /**
+   * Seals the closed partitions (once compacted, with compactionKey set) into segment files in
+   * the archive directory, swapping the partition info over to the file and retiring the table
+   */
+  void sealPartitions() throws KazukiException {
+    compactionLock.lock();
+
+    try {
+      PartitionDirectory directory = getPartitionDirectory();
+
+      for (int i = 0; i < directory.getCount(); i++) {
+        PartitionInfo partition = directory.get(i);
+
+        if (partition.isClosed() && partition.getArchivePath() == null
+            && (compactionKey == null || partition.isCompacted())) {
+          sealPartition(partition);
+        }
+      }
+    } finally {
+      compactionLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the partition to a segment file and reopens it, checking its entry count and id range
+   * against what was read, before swapping the partition info over to it. A partition too large
+   * for a segment file stays in its table.
+   */
+  private void sealPartition(PartitionInfo partition) throws KazukiException {
+    String partitionName = getPartitionName(partition);
+
+    if (!archiveDirectory.isDirectory() && !archiveDirectory.mkdirs()) {
+      throw new KazukiException("unable to create archive directory: " + archiveDirectory);
+    }
+
+    File file =
+        new File(archiveDirectory, groupName + "-" + storeName + "-" + partitionName + ".kzseg");
+    SegmentFile segment;
+
+    try (KeyValueIterable<KeyValuePair<Map>> entries =
+        openEntries(partition, this.dataType, Map.class, SortDirection.ASCENDING, null, null)) {
+      SealingIterator sealing = new SealingIterator(entries.iterator());
+
+      SegmentFile.write(file, sealing, segmentMaxBytes);
+
+      segment = SegmentFile.open(file);
+
+      boolean matches =
+          segment.getEntryCount() == sealing.count && sealing.count == partition.getSize();
+
+      if (matches && sealing.count > 0L) {
+        matches =
+            sealing.firstId.equals(segment.getFirstId())
+                && sealing.lastId.equals(segment.getLastId())
+                && sealing.firstId >= partition.getMinId()
+                && sealing.lastId <= partition.getMaxId();
+      }
+
+      if (!matches) {
+        deleteSegmentFile(file);
+
+        throw new KazukiException("segment file of partition " + partition.getPartitionId()
+            + " does not match its entries: " + file);
+      }
+    } catch (SegmentFile.SegmentTooLargeException e) {
+      log.warn("Partition {} of {} is too large to seal, keeping it in its table",
+          partition.getPartitionId(), this);
+
+      return;
+    } catch (IOException e) {
+      deleteSegmentFile(file);
+
+      throw new KazukiException("unable to seal partition " + partition.getPartitionId(), e);
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      Key partitionKey = KeyImpl.valueOf(partition.getPartitionId());
+      PartitionInfo current = metaStore.retrieve(partitionKey, PartitionInfoSnapshot.class);
+
+      // the partition was dropped or changed while it was being sealed
+      if (current == null || current.getGeneration() != partition.getGeneration()
+          || current.getArchivePath() != null) {
+        deleteSegmentFile(file);
+
+        return;
+      }
+
+      if (!metaStore.update(partitionKey, PartitionInfo.class, new PartitionInfoSnapshot(
+          current.getPartitionId(), current.getMinId(), current.getMaxId(), current.getSize(),
+          true, current.getCreatedAt(), current.getClosedAt(), current.getByteSize(), current
+              .isCompacted(), current.getGeneration(), file.getPath()))) {
+        throw new KazukiException("unable to update partition info");
+      }
+
+      cacheSegment(file.getPath(), segment);
+      this.refreshPartitionDirectory();
+      retireStore(partitionName);
+
+      log.info("Sealed partition {} of {} into {}", partition.getPartitionId(), this, file);
+    }
+  }
+
+  private void deleteSegmentFile(File file) {
+    if (!file.delete() && file.exists()) {
+      log.warn("Unable to delete unused segment file {}", file);
+    }
+  }
+
+  /** Limits the size of segment files written when sealing; for testing */
+  void setSegmentMaxBytes(long segmentMaxBytes) {
+    Preconditions.checkArgument(segmentMaxBytes > 0L, "invalid segmentMaxBytes");
+
+    this.segmentMaxBytes = segmentMaxBytes;
+  }
+
+  /** Opens the entries of the partition, whether sealed or held in its table */
+  private <T> KeyValueIterable<KeyValuePair<T>> openEntries(PartitionInfo partition,
+      final String type, final Class<T> clazz, final SortDirection sortDirection,
+      @Nullable final Long offset, @Nullable final Long limit) throws KazukiException {
+    if (partition.getArchivePath() == null) {
+      return getKeyValueStore(getPartitionName(partition), false).iterators().entries(type, clazz,
+          sortDirection, offset, limit);
+    }
+
+    final SegmentFile segment = openSegment(partition);
+    final Key schemaKey = KeyImpl.valueOf("$schema:" + sequence.getTypeId(type, false));
+
+    return new KeyValueIterable<KeyValuePair<T>>() {
+      private final List<KeyValueIterator<KeyValuePair<T>>> opened =
+          new ArrayList<KeyValueIterator<KeyValuePair<T>>>();
+      private boolean closed = false;
+
+      @Override
+      public synchronized KeyValueIterator<KeyValuePair<T>> iterator() {
+        Preconditions.checkState(!closed, "iterable is closed");
+
+        KeyValueIterator<KeyValuePair<T>> iter = new KeyValueIterator<KeyValuePair<T>>() {
+          private Iterator<SegmentFile.Entry> entries = segment.iterator(sortDirection, offset,
+              limit);
+
+          @Override
+          public boolean hasNext() {
+            return entries != null && entries.hasNext();
+          }
+
+          @Override
+          public KeyValuePair<T> next() {
+            if (entries == null) {
+              throw new NoSuchElementException("iterator is closed");
+            }
+
+            SegmentFile.Entry entry = entries.next();
+            Key key = KeyImpl.createInternal(type, entry.id);
+
+            try {
+              return new KeyValuePair<T>(key, VersionImpl.createInternal(key, entry.version),
+                  VersionImpl.createInternal(schemaKey, entry.schemaVersion),
+                  EncodingHelper.asValue(
+                      (Map<String, Object>) EncodingHelper.parseSmile(entry.value, Object.class),
+                      clazz));
+            } catch (Exception e) {
+              throw Throwables.propagate(e);
+            }
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("sealed partitions are immutable");
+          }
+
+          @Override
+          public void close() {
+            // drops the decompressed block held by the segment iterator
+            entries = null;
+          }
+        };
+
+        opened.add(iter);
+
+        return iter;
+      }
+
+      @Override
+      public synchronized void close() {
+        closed = true;
+
+        for (KeyValueIterator<KeyValuePair<T>> iter : opened) {
+          iter.close();
+        }
+
+        opened.clear();
+      }
+    };
+  }
+
+  /**
+   * Returns the (cached) segment file of the sealed partition. Segments are kept in access order
+   * and the least recently used ones are evicted beyond PARTITION_STORE_CACHE_SIZE; an evicted
+   * segment stays mapped for anyone still reading it.
+   */
+  private SegmentFile openSegment(PartitionInfo partition) throws KazukiException {
+    String path = partition.getArchivePath();
+
+    synchronized (segments) {
+      SegmentFile segment = segments.get(path);
+
+      if (segment != null) {
+        return segment;
+      }
+    }
+
+    try {
+      SegmentFile segment = SegmentFile.open(new File(path));
+
+      cacheSegment(path, segment);
+
+      return segment;
+    } catch (IOException e) {
+      throw new KazukiException("unable to open segment of partition "
+          + partition.getPartitionId(), e);
+    }
+  }
+
+  private void cacheSegment(String path, SegmentFile segment) {
+    synchronized (segments) {
+      segments.put(path, segment);
+
+      Iterator<SegmentFile> iter = segments.values().iterator();
+
+      while (segments.size() > PARTITION_STORE_CACHE_SIZE && iter.hasNext()) {
+        iter.next();
+        iter.remove();
+      }
+    }
+  }
+
+  /** Returns whether the segment file is cached, without changing its access order */
+  boolean isSegmentCached(String path) {
+    synchronized (segments) {
+      return segments.containsKey(path);
+    }
+  }
+
+  /**
+   * Returns the offset among the entries of the type within the partition of the given id, which
+   * unless the partition has consecutive ids means counting the entries before it
+   */
+  private long getRowOffset(PartitionInfo partition, String type, long id)
+      throws KazukiException {
+    if (hasConsecutiveIds(partition)) {
+      return id - partition.getMinId();
+    }
+
+    if (partition.getArchivePath() != null) {
+      return openSegment(partition).rowOffsetOf(id);
+    }
+
+    return getKeyValueStore(getPartitionName(partition), false).countOfTypeBelow(type, id);
+  }
+
+  /**
+   * Whether the entries of a type in the partition have consecutive ids; not so once compacted,
+   * with several data types, or in a shard
+   */
+  private boolean hasConsecutiveIds(PartitionInfo partition) {
+    return partition.getGeneration() == 0 && !sparseIds && dataTypes.size() == 1;
+  }
+
+  /** Retires the segment file or table holding the entries of the partition */
+  private void retirePartitionData(PartitionInfo partition, String partitionName) {
+    if (partition.getArchivePath() != null) {
+      synchronized (segments) {
+        segments.remove(partition.getArchivePath());
+      }
+
+      synchronized (retiredStores) {
+        retiredStores.add(new RetiredStore(null, new File(partition.getArchivePath()), System
+            .currentTimeMillis()));
+      }
+    } else {
+      retireStore(partitionName);
+    }
+  }
+
+  /**
+   * Takes a replaced partition table out of use; it is destroyed after a grace period, since
+   * readers may still be iterating it
+   */
+  private void retireStore(String partitionName) {
+    KeyValueStoreJdbiBaseImpl retired;
+
+    synchronized (partitionStores) {
+      retired = partitionStores.remove(partitionName);
+    }
+
+    if (retired == null) {
+      retired = createKeyValueStore(partitionName);
+    }
+
+    synchronized (retiredStores) {
+      retiredStores.add(new RetiredStore(retired, null, System.currentTimeMillis()));
+    }
+  }
+
+  private void destroyRetiredStores(boolean all) {
+    List<RetiredStore> toDestroy = new ArrayList<RetiredStore>();
+    long cutoff = System.currentTimeMillis() - RETIRED_STORE_GRACE_MILLIS;
+
+    synchronized (retiredStores) {
+      for (Iterator<RetiredStore> iter = retiredStores.iterator(); iter.hasNext();) {
+        RetiredStore retired = iter.next();
+
+        if (all || retired.retiredAt <= cutoff) {
+          toDestroy.add(retired);
+          iter.remove();
+        }
+      }
+    }
+
+    for (RetiredStore retired : toDestroy) {
+      try {
+        if (retired.store != null) {
+          retired.store.destroy();
+        }
+
+        if (retired.file != null && !retired.file.delete() && retired.file.exists()) {
+          log.warn("Unable to delete retired segment file {}", retired.file);
+        }
+      } catch (Exception e) {
+        log.warn("Unable to destroy retired partition store of " + this, e);
+      }
+    }
+  }
+
+  /**
+   * Drops the oldest closed partitions while they are past retentionMillis or the journal is
+   * above retentionMaxBytes; partitions are dropped in order, so a retained partition is never
+   * followed by a dropped one
+   */
+  private void applyRetention() throws KazukiException {
+    if (retentionMillis == null && retentionMaxBytes == null) {
+      return;
+    }
+
+    PartitionDirectory directory = getPartitionDirectory();
+    long totalBytes = 0L;
+
+    for (int i = 0; i < directory.getCount(); i++) {
+      totalBytes += directory.get(i).getByteSize();
+    }
+
+    long now = System.currentTimeMillis();
+
+    for (int i = 0; i < directory.getCount(); i++) {
+      PartitionInfo partition = directory.get(i);
+
+      if (!partition.isClosed()) {
+        break;
+      }
+
+      boolean expired =
+          retentionMillis != null && partition.getClosedAt() > 0L
+              && now - partition.getClosedAt() >= retentionMillis;
+      boolean overCap = retentionMaxBytes != null && totalBytes > retentionMaxBytes;
+
+      if (!expired && !overCap) {
+        break;
+      }
+
+      log.info("Dropping partition {} of {} per retention policy", partition.getPartitionId(),
+          this);
+
+      if (dropPartition(partition.getPartitionId())) {
+        totalBytes -= partition.getByteSize();
+      }
+    }
+  }
+
+  private synchronized void startMaintenance() {
+    if (maintenance != null) {
+      return;
+    }
+
+    maintenance =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("kz-jrnlmaint-" + groupName + "-" + storeName + "-%d").build());
+
+    maintenance.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          runMaintenance();
+        } catch (Exception e) {
+          log.warn("Unable to maintain partitions of " + PartitionedJournalStore.this, e);
+        }
+      }
+    }, CHECKPOINT_INTERVAL_MILLIS, CHECKPOINT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized ExecutorService getReplayExecutor() {
+    if (replayExecutor == null) {
+      replayExecutor =
+          Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kz-jrnlreplay-" + groupName + "-" + storeName + "-%d").build());
+    }
+
+    return replayExecutor;
+  }
+
+  private synchronized void stopReplayExecutor() {
+    if (replayExecutor != null) {
+      replayExecutor.shutdownNow();
+      replayExecutor = null;
+    }
+  }
+
+  private synchronized void stopMaintenance() {
+    if (maintenance != null) {
+      maintenance.shutdownNow();
+      maintenance = null;
+    }
+  }
+
+  /**
+   * Returns the (cached) store of the partition. Stores are kept in access order and the least
+   * recently used ones are evicted beyond PARTITION_STORE_CACHE_SIZE, except for the active
+   * partition and the metadata store; an evicted store stays usable by anyone still holding it.
+   */
+  private KeyValueStoreJdbiBaseImpl getKeyValueStore(String partitionName, boolean initialize) {
+    KeyValueStoreJdbiBaseImpl keyValueStore;
+
+    synchronized (partitionStores) {
+      keyValueStore = partitionStores.get(partitionName);
+
+      if (keyValueStore == null) {
+        keyValueStore = createKeyValueStore(partitionName);
+        partitionStores.put(partitionName, keyValueStore);
+
+        evictPartitionStores();
+      }
+    }
+
+    if (initialize) {
+      keyValueStore.initialize();
+    }
+
+    return keyValueStore;
+  }
+
+  /** Returns the (cached) store of the partition's current generation */
+  KeyValueStoreJdbiBaseImpl getPartitionStore(PartitionInfo partition) throws KazukiException {
+    return getKeyValueStore(getPartitionName(partition), false);
+  }
+
+  /** Returns whether the partition's store is cached, without changing its access order */
+  boolean isPartitionStoreCached(PartitionInfo partition) throws KazukiException {
+    String partitionName = getPartitionName(partition);
+
+    synchronized (partitionStores) {
+      return partitionStores.containsKey(partitionName);
+    }
+  }
+
+  private void evictPartitionStores() {
+    KeyValueStoreJdbiBaseImpl active = activePartitionStore.get();
+    Iterator<KeyValueStoreJdbiBaseImpl> iter = partitionStores.values().iterator();
+
+    while (partitionStores.size() > PARTITION_STORE_CACHE_SIZE && iter.hasNext()) {
+      KeyValueStoreJdbiBaseImpl candidate = iter.next();
+
+      if (candidate != active && candidate != metaStore) {
+        iter.remove();
+      }
+    }
+  }
+
+  private void clearPartitionStores() {
+    synchronized (partitionStores) {
+      partitionStores.clear();
+    }
+
+    synchronized (segments) {
+      segments.clear();
+    }
+  }
+
+  private KeyValueStoreJdbiBaseImpl createKeyValueStore(String partitionName) {
+    KeyValueStoreConfiguration.Builder config = new KeyValueStoreConfiguration.Builder();
+
+    config.withDbType(this.dbType);
+    config.withGroupName(this.groupName);
+    config.withStoreName(this.storeName);
+    config.withPartitionName(partitionName);
+    config.withPartitionSize(this.partitionSize);
+    config.withStrictTypeCreation(this.strictTypeCreation);
+
+    return new KeyValueStoreJdbiH2Impl(availability, lockManager, dataSource, database,
+        typeHelper, schema, sequence, config.build());
+  }
+
+  private static String getPartitionName(ResolvedKey resolvedKey) {
+    return String.format("%016x", resolvedKey.getIdentifierLo());
+  }
+
+  private String getPartitionName(PartitionInfo partition) throws KazukiException {
+    return getPartitionName(partition, partition.getGeneration());
+  }
+
+  /** Returns the name of the table of the given generation of the partition */
+  private String getPartitionName(PartitionInfo partition, int generation)
+      throws KazukiException {
+    String partitionName =
+        getPartitionName(sequence.resolveKey(KeyImpl.valueOf(partition.getPartitionId())));
+
+    return generation == 0 ? partitionName : partitionName + "_" + generation;
+  }
+
+  private static <T> KeyValueIterable<T> emptyKeyValueIterable() {
+    return new KeyValueIterable<T>() {
+      @Override
+      public KeyValueIterator<T> iterator() {
+        return new KeyValueIterator<T>() {
+          @Override
+          public boolean hasNext() {
+            return false;
+          }
+
+          @Override
+          public T next() {
+            throw new IllegalStateException();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void close() {}
+        };
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  private static <T> KeyValueIterable<T> concatKeyValueIterables(
+      final Collection<KeyValueIterable<T>> iterables) {
+    return new KeyValueIterable<T>() {
+      private final List<KeyValueIterable<T>> innerIterables = ImmutableList.copyOf(iterables);
+      private boolean instantiated = false;
+
+      @SuppressWarnings("unchecked")
+      @Override
+      public KeyValueIterator<T> iterator() {
+        if (instantiated) {
+          throw new IllegalStateException("iterable may only be used once!");
+        }
+
+        if (iterables.isEmpty()) {
+          return (KeyValueIterator<T>) emptyKeyValueIterable().iterator();
+        }
+
+        return new KeyValueIterator<T>() {
+          private final Iterator<KeyValueIterable<T>> outerIter = innerIterables.iterator();
+          private KeyValueIterator<T> innerIter = null;
+          private boolean initialized = false;
+
+          private void advance() {
+            while (outerIter.hasNext() && (innerIter == null || !innerIter.hasNext())) {
+              innerIter = outerIter.next().iterator();
+              if (innerIter.hasNext()) {
+                break;
+              }
+            }
+          }
+
+          @Override
+          public boolean hasNext() {
+            if (!initialized) {
+              advance();
+              initialized = true;
+            }
+
+            return innerIter.hasNext();
+          }
+
+          @Override
+          public T next() {
+            if (!hasNext()) {
+              throw new IllegalStateException("iterator has no next()");
+            }
+
+            T nextVal = innerIter.next();
+
+            if (!innerIter.hasNext()) {
+              advance();
+            }
+
+            return nextVal;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+
+          @Override
+          public void close() {
+            for (KeyValueIterable<T> iter : innerIterables) {
+              iter.close();
+            }
           }
         };
       }
@@ -657,14 +1997,13 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
   }
 
   private <T> Provider<KeyValueIterable<KeyValuePair<T>>> getIterableProvider(final String type,
-      final Class<T> clazz, final String partitionName, final SortDirection sortDirection,
+      final Class<T> clazz, final PartitionInfo partition, final SortDirection sortDirection,
       final Long offset, final Long limit) {
     return new Provider<KeyValueIterable<KeyValuePair<T>>>() {
       @Override
       public KeyValueIterable<KeyValuePair<T>> get() {
         try {
-          return getKeyValueStore(partitionName, false).iterators().entries(type, clazz,
-              sortDirection, offset, limit);
+          return openEntries(partition, type, clazz, sortDirection, offset, limit);
         } catch (Exception e) {
           throw Throwables.propagate(e);
         }
@@ -672,12 +2011,232 @@ public class PartitionedJournalStore implements JournalStore, LifecycleRegistrat
 
       @Override
       public String toString() {
-        return "Provider<Iterable>(t=" + type + ",c=" + clazz.getName() + ",p=" + partitionName
-            + ",o=" + offset + ",l=" + limit + ")";
+        return "Provider<Iterable>(t=" + type + ",c=" + clazz.getName() + ",p="
+            + partition.getPartitionId() + ",o=" + offset + ",l=" + limit + ")";
       }
     };
   }
 
+  /**
+   * Reads the entries following its position partition by partition, using the same id to row
+   * offset mapping as entriesAbsolute. When caught up it waits for the append signal rather than
+   * polling; the append count read before each read guards against missed signals.
+   */
+  private class JournalTailImpl<T> implements JournalTail<T> {
+    private final String type;
+    private final Class<T> clazz;
+    private volatile long position;
+    private volatile boolean closed = false;
+
+    private JournalTailImpl(String type, Class<T> clazz, long offset) {
+      this.type = type;
+      this.clazz = clazz;
+      this.position = offset;
+    }
+
+    @Override
+    public List<KeyValuePair<T>> poll(int maxEntries, long timeout, TimeUnit unit)
+        throws KazukiException, InterruptedException {
+      Preconditions.checkArgument(maxEntries > 0, "invalid maxEntries");
+
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+      while (true) {
+        if (closed) {
+          throw new IllegalStateException("tail is closed");
+        }
+
+        long seenAppends = appendSignal.getCount();
+        List<KeyValuePair<T>> entries = read(maxEntries);
+
+        if (!entries.isEmpty()) {
+          return entries;
+        }
+
+        if (!appendSignal.await(seenAppends, deadline)) {
+          return Collections.emptyList();
+        }
+      }
+    }
+
+    private List<KeyValuePair<T>> read(int maxEntries) throws KazukiException {
+      availability.assertAvailable();
+
+      List<KeyValuePair<T>> entries = new ArrayList<KeyValuePair<T>>();
+
+      PartitionDirectory directory = getPartitionDirectory();
+      long nextId = position + 1L;
+
+      for (int i = directory.ceilingIndexOfId(nextId); i < directory.getCount(); i++) {
+        PartitionInfo partition = directory.get(i);
+
+        if (partition.getSize() == 0L) {
+          continue;
+        }
+
+        // skips any gap in the ids between partitions
+        long startId = Math.max(nextId, partition.getMinId());
+        int wanted = maxEntries - entries.size();
+
+        try (KeyValueIterable<KeyValuePair<T>> partEntries =
+            openEntries(partition, type, clazz, SortDirection.ASCENDING,
+                getRowOffset(partition, type, startId), (long) wanted)) {
+          for (KeyValuePair<T> entry : partEntries) {
+            entries.add(entry);
+            position = sequence.resolveKey(entry.getKey()).getIdentifierLo();
+          }
+        }
+
+        if (entries.size() >= maxEntries) {
+          break;
+        }
+
+        // read through: any later ids of the partition hold entries of other types, or were
+        // compacted away
+        nextId = partition.getMaxId() + 1L;
+      }
+
+      return entries;
+    }
+
+    @Override
+    public long getPosition() {
+      return position;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      appendSignal.wake();
+    }
+  }
+
+  /** A replaced partition table or segment file, awaiting destruction */
+  /**
+   * Converts the entries of a partition being sealed, counting them and recording the first and
+   * last ids for verifying the segment file
+   */
+  @SuppressWarnings("rawtypes")
+  private static class SealingIterator implements Iterator<SegmentFile.Entry> {
+    private final Iterator<KeyValuePair<Map>> iter;
+    private long count = 0L;
+    private Long firstId;
+    private Long lastId;
+
+    private SealingIterator(Iterator<KeyValuePair<Map>> iter) {
+      this.iter = iter;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return iter.hasNext();
+    }
+
+    @Override
+    public SegmentFile.Entry next() {
+      KeyValuePair<Map> entry = iter.next();
+      long id = ((KeyImpl) entry.getKey()).getInternalId();
+
+      if (firstId == null) {
+        firstId = id;
+      }
+
+      lastId = id;
+      count += 1L;
+
+      try {
+        return new SegmentFile.Entry(id, ((VersionImpl) entry.getVersion())
+            .getInternalIdentifier(), ((VersionImpl) entry.getSchemaVersion())
+            .getInternalIdentifier(), EncodingHelper.convertToSmile(entry.getValue()));
+      } catch (KazukiException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private static class RetiredStore {
+    private final KeyValueStore store;
+    private final File file;
+    private final long retiredAt;
+
+    private RetiredStore(@Nullable KeyValueStore store, @Nullable File file, long retiredAt) {
+      this.store = store;
+      this.file = file;
+      this.retiredAt = retiredAt;
+    }
+  }
+
+  /** The directory of a data type, derived from the given version of the partition directory */
+  private static class TypedDirectory {
+    private final PartitionDirectory base;
+    private final PartitionDirectory directory;
+
+    private TypedDirectory(PartitionDirectory base, PartitionDirectory directory) {
+      this.base = base;
+      this.directory = directory;
+    }
+  }
+
+  private static class PendingAppend {
+    private final String type;
+    private final Class<?> clazz;
+    private final Object value;
+    private final TypeValidation typeSafety;
+    private volatile Key key;
+    private volatile KazukiException error;
+    private boolean done = false;
+    private boolean woken = false;
+
+    private PendingAppend(String type, Class<?> clazz, Object value, TypeValidation typeSafety) {
+      this.type = type;
+      this.clazz = clazz;
+      this.value = value;
+      this.typeSafety = typeSafety;
+    }
+
+    private synchronized boolean isDone() {
+      return done;
+    }
+
+    private synchronized void complete() {
+      done = true;
+      notifyAll();
+    }
+
+    /** Asks the waiting thread to try for group leadership */
+    private synchronized void wake() {
+      woken = true;
+      notifyAll();
+    }
+
+    /**
+     * Waits until the append is written or the thread is woken; not interruptible, as the
+     * append may be written regardless
+     */
+    private synchronized void await() {
+      boolean interrupted = false;
+
+      while (!done && !woken) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+
+      woken = false;
+
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   public static class LazyIterable<T> implements KeyValueIterable<T> {
     private final Provider<KeyValueIterable<T>> provider;
     private KeyValueIterator<T> instance;
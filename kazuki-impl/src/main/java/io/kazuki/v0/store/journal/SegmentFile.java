@@ -0,0 +1,420 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Sealed copy of a closed journal partition, written once and read through a read-only memory
+ * mapping. The file holds Deflate-compressed blocks of BLOCK_ENTRIES entries, followed by a
+ * sparse index with the first row offset, first id and file position of each block:
+ * 
+ * <pre>
+ * header: magic, format version
+ * block:  uncompressed length, compressed length, deflated (id, version, schema version, value)*
+ * index:  (first row, first id, position)* per block
+ * footer: index position, block count, entry count, magic
+ * </pre>
+ * 
+ * Files are limited to MAX_FILE_SIZE (2GB) by the mapping, which write enforces.
+ */
+class SegmentFile {
+  static final int MAGIC = 0x4b5a5347;
+  static final int FORMAT_VERSION = 1;
+  static final int BLOCK_ENTRIES = 128;
+  private static final int HEADER_SIZE = 8;
+  private static final int FOOTER_SIZE = 24;
+  private static final int INDEX_ENTRY_SIZE = 24;
+  static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final long[] firstRows;
+  private final long[] firstIds;
+  private final long[] positions;
+  private final long entryCount;
+
+  private SegmentFile(File file, MappedByteBuffer buffer, long[] firstRows, long[] firstIds,
+      long[] positions, long entryCount) {
+    this.file = file;
+    this.buffer = buffer;
+    this.firstRows = firstRows;
+    this.firstIds = firstIds;
+    this.positions = positions;
+    this.entryCount = entryCount;
+  }
+
+  static class Entry {
+    final long id;
+    final long version;
+    final long schemaVersion;
+    final byte[] value;
+
+    Entry(long id, long version, long schemaVersion, byte[] value) {
+      this.id = id;
+      this.version = version;
+      this.schemaVersion = schemaVersion;
+      this.value = value;
+    }
+  }
+
+  /** Thrown by write when the entries do not fit in a segment file */
+  static class SegmentTooLargeException extends IOException {
+    private static final long serialVersionUID = 4372061958350377113L;
+
+    SegmentTooLargeException(File file, long maxFileSize) {
+      super("segment file would exceed " + maxFileSize + " bytes: " + file);
+    }
+  }
+
+  /**
+   * Writes the entries (in ascending id order) to a temporary file which is synced and then
+   * atomically moved into place; returns the number of entries written
+   */
+  static long write(File file, Iterator<Entry> entries) throws IOException {
+    return write(file, entries, MAX_FILE_SIZE);
+  }
+
+  /**
+   * Writes the entries as above, failing with SegmentTooLargeException (leaving no file behind)
+   * as soon as the file would exceed maxFileSize bytes
+   */
+  static long write(File file, Iterator<Entry> entries, long maxFileSize) throws IOException {
+    File temp = new File(file.getPath() + ".tmp");
+
+    try {
+      long count = writeTemp(temp, entries, maxFileSize);
+
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+      return count;
+    } catch (IOException | RuntimeException e) {
+      if (!temp.delete() && temp.exists()) {
+        e.addSuppressed(new IOException("unable to delete " + temp));
+      }
+
+      throw e;
+    }
+  }
+
+  private static long writeTemp(File temp, Iterator<Entry> entries, long maxFileSize)
+      throws IOException {
+    List<long[]> index = new ArrayList<long[]>();
+    long count = 0L;
+
+    try (FileOutputStream fileOut = new FileOutputStream(temp)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+      long position = HEADER_SIZE;
+
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+
+      ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+      DataOutputStream block = new DataOutputStream(blockBytes);
+      Deflater deflater = new Deflater();
+
+      try {
+        while (entries.hasNext()) {
+          Entry entry = entries.next();
+
+          if (count % BLOCK_ENTRIES == 0L) {
+            position += writeBlock(out, blockBytes, deflater);
+            checkFileSize(temp, position, index.size() + 1, maxFileSize);
+            index.add(new long[] {count, entry.id, position});
+          }
+
+          block.writeLong(entry.id);
+          block.writeLong(entry.version);
+          block.writeLong(entry.schemaVersion);
+          block.writeInt(entry.value.length);
+          block.write(entry.value);
+          count += 1;
+        }
+
+        position += writeBlock(out, blockBytes, deflater);
+        checkFileSize(temp, position, index.size(), maxFileSize);
+      } finally {
+        deflater.end();
+      }
+
+      for (long[] indexEntry : index) {
+        out.writeLong(indexEntry[0]);
+        out.writeLong(indexEntry[1]);
+        out.writeLong(indexEntry[2]);
+      }
+
+      out.writeLong(position);
+      out.writeInt(index.size());
+      out.writeLong(count);
+      out.writeInt(MAGIC);
+      out.flush();
+
+      fileOut.getFD().sync();
+    }
+
+    return count;
+  }
+
+  /** Checks that the blocks written so far still fit with an index of the given size */
+  private static void checkFileSize(File file, long position, int blockCount, long maxFileSize)
+      throws SegmentTooLargeException {
+    if (position + (long) blockCount * INDEX_ENTRY_SIZE + FOOTER_SIZE > maxFileSize) {
+      throw new SegmentTooLargeException(file, maxFileSize);
+    }
+  }
+
+  /** Writes the pending block, if any, returning the number of bytes written */
+  private static long writeBlock(DataOutputStream out, ByteArrayOutputStream blockBytes,
+      Deflater deflater) throws IOException {
+    if (blockBytes.size() == 0) {
+      return 0L;
+    }
+
+    byte[] uncompressed = blockBytes.toByteArray();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(uncompressed.length / 2 + 64);
+    byte[] chunk = new byte[8192];
+
+    deflater.reset();
+    deflater.setInput(uncompressed);
+    deflater.finish();
+
+    while (!deflater.finished()) {
+      compressed.write(chunk, 0, deflater.deflate(chunk));
+    }
+
+    out.writeInt(uncompressed.length);
+    out.writeInt(compressed.size());
+    compressed.writeTo(out);
+    blockBytes.reset();
+
+    return 8L + compressed.size();
+  }
+
+  /** Maps the segment file, checking that its layout is consistent */
+  static SegmentFile open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+
+      if (channel.size() > MAX_FILE_SIZE) {
+        throw new IOException("segment file too large: " + file);
+      }
+
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+      int footer = buffer.capacity() - FOOTER_SIZE;
+
+      if (footer < HEADER_SIZE || buffer.getInt(0) != MAGIC
+          || buffer.getInt(footer + 20) != MAGIC) {
+        throw new IOException("not a segment file: " + file);
+      }
+
+      long indexPosition = buffer.getLong(footer);
+      int blockCount = buffer.getInt(footer + 8);
+      long entryCount = buffer.getLong(footer + 12);
+
+      if (blockCount < 0 || indexPosition + (long) blockCount * INDEX_ENTRY_SIZE != footer
+          || entryCount < 0L || entryCount > (long) blockCount * BLOCK_ENTRIES) {
+        throw new IOException("corrupt segment file: " + file);
+      }
+
+      long[] firstRows = new long[blockCount];
+      long[] firstIds = new long[blockCount];
+      long[] positions = new long[blockCount];
+
+      for (int i = 0; i < blockCount; i++) {
+        int at = (int) indexPosition + i * INDEX_ENTRY_SIZE;
+
+        firstRows[i] = buffer.getLong(at);
+        firstIds[i] = buffer.getLong(at + 8);
+        positions[i] = buffer.getLong(at + 16);
+      }
+
+      return new SegmentFile(file, buffer, firstRows, firstIds, positions, entryCount);
+    }
+  }
+
+  File getFile() {
+    return file;
+  }
+
+  long getEntryCount() {
+    return entryCount;
+  }
+
+  /** Returns the id of the first entry, or null if there are none */
+  @Nullable
+  Long getFirstId() {
+    return firstIds.length == 0 ? null : firstIds[0];
+  }
+
+  /** Returns the id of the last entry, or null if there are none */
+  @Nullable
+  Long getLastId() {
+    if (positions.length == 0) {
+      return null;
+    }
+
+    List<Entry> lastBlock = readBlock(positions.length - 1);
+
+    return lastBlock.get(lastBlock.size() - 1).id;
+  }
+
+  /** Returns the number of entries with ids below the given one */
+  long rowOffsetOf(long id) {
+    int block = floorBlock(firstIds, id);
+
+    if (block < 0) {
+      return 0L;
+    }
+
+    long row = firstRows[block];
+
+    for (Entry entry : readBlock(block)) {
+      if (entry.id >= id) {
+        break;
+      }
+
+      row += 1;
+    }
+
+    return row;
+  }
+
+  /**
+   * Iterates the entries in the given direction, skipping offset entries (counted in that
+   * direction) and returning at most limit entries
+   */
+  Iterator<Entry> iterator(final SortDirection sortDirection, @Nullable Long offset,
+      @Nullable Long limit) {
+    final boolean descending = SortDirection.DESCENDING.equals(sortDirection);
+    final long start = Math.min(offset == null ? 0L : offset, entryCount);
+    final long end = limit == null || limit >= entryCount - start ? entryCount : start + limit;
+
+    return new Iterator<Entry>() {
+      private long returned = start;
+      private long row = descending ? entryCount - 1L - start : start;
+      private int block = -1;
+      private List<Entry> blockEntries;
+
+      @Override
+      public boolean hasNext() {
+        return returned < end;
+      }
+
+      @Override
+      public Entry next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+
+        int rowBlock = floorBlock(firstRows, row);
+
+        if (rowBlock != block) {
+          block = rowBlock;
+          blockEntries = readBlock(block);
+        }
+
+        Entry entry = blockEntries.get((int) (row - firstRows[block]));
+
+        row += descending ? -1L : 1L;
+        returned += 1L;
+
+        return entry;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("segment files are immutable");
+      }
+    };
+  }
+
+  private List<Entry> readBlock(int block) {
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) positions[block]);
+
+    int uncompressedLength = view.getInt();
+    byte[] compressed = new byte[view.getInt()];
+    view.get(compressed);
+
+    byte[] uncompressed = new byte[uncompressedLength];
+    Inflater inflater = new Inflater();
+
+    try {
+      inflater.setInput(compressed);
+      inflater.inflate(uncompressed);
+    } catch (DataFormatException e) {
+      throw Throwables.propagate(e);
+    } finally {
+      inflater.end();
+    }
+
+    ByteBuffer entries = ByteBuffer.wrap(uncompressed);
+    List<Entry> result = new ArrayList<Entry>(BLOCK_ENTRIES);
+
+    while (entries.hasRemaining()) {
+      long id = entries.getLong();
+      long version = entries.getLong();
+      long schemaVersion = entries.getLong();
+      byte[] value = new byte[entries.getInt()];
+      entries.get(value);
+
+      result.add(new Entry(id, version, schemaVersion, value));
+    }
+
+    return result;
+  }
+
+  /** Returns the index of the last block whose first value is at most the given one, or -1 */
+  private static int floorBlock(long[] firstValues, long value) {
+    int low = 0;
+    int high = firstValues.length - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if (firstValues[mid] <= value) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    return low - 1;
+  }
+}
@@ -0,0 +1,581 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import io.kazuki.v0.internal.helper.EncodingHelper;
+import io.kazuki.v0.internal.helper.LogTranslation;
+import io.kazuki.v0.store.KazukiException;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.lifecycle.LifecycleRegistration;
+import io.kazuki.v0.store.lifecycle.LifecycleSupportBase;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.sequence.KeyImpl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Provider;
+
+/**
+ * Journal spreading its appends over independent shards (each a partitioned journal with its own
+ * partitions and lock) by the hash of the shardKey attribute, so that appends to different shards
+ * run in parallel. Ids come from one counter, so reads merge the shards in id order; appends to
+ * different shards are not ordered with respect to each other, and appendAll() allocates ids
+ * shard by shard. Partitions are listed and managed per shard.
+ */
+public class ShardedJournalStore implements JournalStore, LifecycleRegistration {
+  private final Logger log = LogTranslation.getLogger(getClass());
+  private final List<PartitionedJournalStore> shards;
+  private final String groupName;
+  private final String storeName;
+  private final String shardKey;
+  private final AppendSignal appendSignal;
+  private ExecutorService replayExecutor;
+  private volatile Lifecycle lifecycle;
+  private final ComponentDescriptor<JournalStore> componentDescriptor;
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  ShardedJournalStore(List<PartitionedJournalStore> shards, String groupName, String storeName,
+      String shardKey, AppendSignal appendSignal) {
+    Preconditions.checkArgument(!shards.isEmpty(), "shards");
+    Preconditions.checkNotNull(shardKey, "shardKey");
+
+    this.shards = ImmutableList.copyOf(shards);
+    this.groupName = groupName;
+    this.storeName = storeName;
+    this.shardKey = shardKey;
+    this.appendSignal = appendSignal;
+
+    ImmutableList.Builder children = new ImmutableList.Builder();
+
+    for (PartitionedJournalStore shard : shards) {
+      children.add(shard.getComponentDescriptor());
+    }
+
+    this.componentDescriptor =
+        new ComponentDescriptorImpl<JournalStore>("KZ:JournalStore:" + groupName + "-" + storeName,
+            JournalStore.class, (JournalStore) this, children.build());
+  }
+
+  @Override
+  public Lifecycle getLifecycle() {
+    return this.lifecycle;
+  }
+
+  @Inject
+  public void register(Lifecycle lifecycle) {
+    if (this.lifecycle != null && !this.lifecycle.equals(lifecycle)) {
+      throw new IllegalStateException("lifecycle already registered with "
+          + System.identityHashCode(this.lifecycle));
+    }
+
+    this.lifecycle = lifecycle;
+
+    this.lifecycle.register(new LifecycleSupportBase() {
+      @Override
+      public void shutdown() {
+        stopReplayExecutor();
+      }
+    });
+  }
+
+  @Override
+  public ComponentDescriptor<JournalStore> getComponentDescriptor() {
+    return this.componentDescriptor;
+  }
+
+  @Override
+  @Inject
+  public void registerAsComponent(ComponentRegistrar manager) {
+    manager.register(this.componentDescriptor);
+  }
+
+  @Override
+  public void initialize() throws KazukiException {
+    for (PartitionedJournalStore shard : shards) {
+      shard.initialize();
+    }
+  }
+
+  @Override
+  public <T> Key append(String type, Class<T> clazz, T inValue, TypeValidation typeSafety)
+      throws KazukiException {
+    return shards.get(getShard(inValue)).append(type, clazz, inValue, typeSafety);
+  }
+
+  @Override
+  public <T> List<Key> appendAll(String type, Class<T> clazz, Collection<T> inValues,
+      TypeValidation typeSafety) throws KazukiException {
+    List<List<T>> values = new ArrayList<List<T>>();
+    List<Integer> routes = new ArrayList<Integer>(inValues.size());
+
+    for (int i = 0; i < shards.size(); i++) {
+      values.add(new ArrayList<T>());
+    }
+
+    for (T value : inValues) {
+      int shard = getShard(value);
+
+      values.get(shard).add(value);
+      routes.add(shard);
+    }
+
+    List<Iterator<Key>> keys = new ArrayList<Iterator<Key>>();
+
+    for (int i = 0; i < shards.size(); i++) {
+      List<Key> shardKeys =
+          values.get(i).isEmpty() ? Collections.<Key>emptyList() : shards.get(i).appendAll(type,
+              clazz, values.get(i), typeSafety);
+
+      keys.add(shardKeys.iterator());
+    }
+
+    List<Key> result = new ArrayList<Key>(routes.size());
+
+    for (Integer shard : routes) {
+      result.add(keys.get(shard).next());
+    }
+
+    return result;
+  }
+
+  /** Returns the shard of the value, by the hash of its shardKey attribute (if any) */
+  private <T> int getShard(T value) throws KazukiException {
+    Object keyValue;
+
+    try {
+      keyValue = EncodingHelper.asJsonMap(value).get(shardKey);
+    } catch (Exception e) {
+      throw new KazukiException("unable to read shard key of value", e);
+    }
+
+    if (keyValue == null) {
+      return 0;
+    }
+
+    return (String.valueOf(keyValue).hashCode() & Integer.MAX_VALUE) % shards.size();
+  }
+
+  @Override
+  public <T> JournalTail<T> tail(String type, Class<T> clazz, long offset)
+      throws KazukiException {
+    List<JournalTail<T>> tails = new ArrayList<JournalTail<T>>();
+
+    for (PartitionedJournalStore shard : shards) {
+      tails.add(shard.tail(type, clazz, offset));
+    }
+
+    return new ShardedTail<T>(tails);
+  }
+
+  @Override
+  public <T> KeyValueIterable<KeyValuePair<T>> replay(final String type, final Class<T> clazz,
+      final long offset, final int parallelism, final int readAhead, boolean ordered)
+      throws KazukiException {
+    if (ordered) {
+      List<KeyValueIterable<KeyValuePair<T>>> replays =
+          new ArrayList<KeyValueIterable<KeyValuePair<T>>>();
+
+      for (PartitionedJournalStore shard : shards) {
+        replays.add(shard.replay(type, clazz, offset, parallelism, readAhead, true));
+      }
+
+      return new MergedIterable<T>(replays, false, 0L, null);
+    }
+
+    Preconditions.checkArgument(parallelism > 0, "invalid parallelism");
+    Preconditions.checkArgument(readAhead > 0, "invalid readAhead");
+
+    List<Provider<KeyValueIterable<KeyValuePair<T>>>> replays =
+        new ArrayList<Provider<KeyValueIterable<KeyValuePair<T>>>>();
+
+    for (final PartitionedJournalStore shard : shards) {
+      replays.add(new Provider<KeyValueIterable<KeyValuePair<T>>>() {
+        @Override
+        public KeyValueIterable<KeyValuePair<T>> get() {
+          try {
+            return shard.replay(type, clazz, offset, parallelism, readAhead, false);
+          } catch (KazukiException e) {
+            throw Throwables.propagate(e);
+          }
+        }
+      });
+    }
+
+    return new ParallelReplay<T>(getReplayExecutor(), replays, shards.size(), readAhead, false);
+  }
+
+  @Override
+  public <T> KeyValueIterable<KeyValuePair<T>> entriesRelative(String type, Class<T> clazz,
+      SortDirection sortDirection, Long offset, Long limit) throws KazukiException {
+    long skip = offset == null ? 0L : offset;
+    Long shardLimit = limit == null ? null : skip + limit;
+
+    List<KeyValueIterable<KeyValuePair<T>>> entries =
+        new ArrayList<KeyValueIterable<KeyValuePair<T>>>();
+
+    for (PartitionedJournalStore shard : shards) {
+      entries.add(shard.entriesRelative(type, clazz, sortDirection, 0L, shardLimit));
+    }
+
+    return new MergedIterable<T>(entries, SortDirection.DESCENDING.equals(sortDirection), skip,
+        limit);
+  }
+
+  @Override
+  public <T> KeyValueIterable<KeyValuePair<T>> entriesAbsolute(String type, Class<T> clazz,
+      SortDirection sortDirection, Long offset, Long limit) throws KazukiException {
+    List<KeyValueIterable<KeyValuePair<T>>> entries =
+        new ArrayList<KeyValueIterable<KeyValuePair<T>>>();
+
+    for (PartitionedJournalStore shard : shards) {
+      entries.add(shard.entriesAbsolute(type, clazz, sortDirection, offset, limit));
+    }
+
+    return new MergedIterable<T>(entries, false, 0L, limit);
+  }
+
+  @Override
+  public KeyValueIterable<PartitionInfoSnapshot> getAllPartitions() throws KazukiException {
+    return getAllPartitions(SortDirection.ASCENDING);
+  }
+
+  /** Returns the partitions shard by shard, each shard in the given order */
+  @Override
+  public KeyValueIterable<PartitionInfoSnapshot> getAllPartitions(SortDirection sortDirection)
+      throws KazukiException {
+    final List<PartitionInfoSnapshot> partitions = new ArrayList<PartitionInfoSnapshot>();
+
+    for (PartitionedJournalStore shard : shards) {
+      try (KeyValueIterable<PartitionInfoSnapshot> parts = shard.getAllPartitions(sortDirection)) {
+        for (PartitionInfoSnapshot partition : parts) {
+          partitions.add(partition);
+        }
+      }
+    }
+
+    return new KeyValueIterable<PartitionInfoSnapshot>() {
+      @Override
+      public KeyValueIterator<PartitionInfoSnapshot> iterator() {
+        final Iterator<PartitionInfoSnapshot> iter = partitions.iterator();
+
+        return new KeyValueIterator<PartitionInfoSnapshot>() {
+          @Override
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+
+          @Override
+          public PartitionInfoSnapshot next() {
+            return iter.next();
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException("use dropPartition() instead");
+          }
+
+          @Override
+          public void close() {}
+        };
+      }
+
+      @Override
+      public void close() {}
+    };
+  }
+
+  /** Returns the active partition holding the latest entry, among those of the shards */
+  @Override
+  @Nullable
+  public PartitionInfo getActivePartition() throws KazukiException {
+    PartitionInfo latest = null;
+
+    for (PartitionedJournalStore shard : shards) {
+      PartitionInfo partition = shard.getActivePartition();
+
+      if (partition != null && (latest == null || partition.getMaxId() > latest.getMaxId())) {
+        latest = partition;
+      }
+    }
+
+    return latest;
+  }
+
+  /** Closes the active partitions of all shards; returns whether any was closed */
+  @Override
+  public boolean closeActivePartition() throws KazukiException {
+    boolean closed = false;
+
+    for (PartitionedJournalStore shard : shards) {
+      closed |= shard.closeActivePartition();
+    }
+
+    return closed;
+  }
+
+  @Override
+  public boolean dropPartition(String partitionId) throws KazukiException {
+    for (PartitionedJournalStore shard : shards) {
+      if (shard.dropPartition(partitionId)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public void clear() throws KazukiException {
+    log.debug("Clearing ShardedJournalStore {}", this);
+
+    for (PartitionedJournalStore shard : shards) {
+      shard.clear();
+    }
+  }
+
+  @Override
+  public Long approximateSize() throws KazukiException {
+    long size = 0L;
+
+    for (PartitionedJournalStore shard : shards) {
+      size += shard.approximateSize();
+    }
+
+    return size;
+  }
+
+  private synchronized ExecutorService getReplayExecutor() {
+    if (replayExecutor == null) {
+      replayExecutor =
+          Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+              .setNameFormat("kz-jrnlreplay-" + groupName + "-" + storeName + "-%d").build());
+    }
+
+    return replayExecutor;
+  }
+
+  private synchronized void stopReplayExecutor() {
+    if (replayExecutor != null) {
+      replayExecutor.shutdownNow();
+      replayExecutor = null;
+    }
+  }
+
+  private static long getId(KeyValuePair<?> entry) {
+    return ((KeyImpl) entry.getKey()).getInternalId();
+  }
+
+  /**
+   * Follows all shards, waiting on the append signal they share: each poll returns the entries of
+   * the shards that are ready, in id order; the position is the lowest of the shards, so resuming
+   * from it may repeat entries but never skips any
+   */
+  private class ShardedTail<T> implements JournalTail<T> {
+    private final List<JournalTail<T>> tails;
+    private volatile boolean closed = false;
+
+    private ShardedTail(List<JournalTail<T>> tails) {
+      this.tails = tails;
+    }
+
+    @Override
+    public List<KeyValuePair<T>> poll(int maxEntries, long timeout, TimeUnit unit)
+        throws KazukiException, InterruptedException {
+      Preconditions.checkArgument(maxEntries > 0, "invalid maxEntries");
+
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      List<KeyValuePair<T>> entries = new ArrayList<KeyValuePair<T>>();
+
+      while (true) {
+        if (closed) {
+          throw new IllegalStateException("tail is closed");
+        }
+
+        long seenAppends = appendSignal.getCount();
+
+        for (JournalTail<T> tail : tails) {
+          if (entries.size() < maxEntries) {
+            entries.addAll(tail.poll(maxEntries - entries.size(), 0L, TimeUnit.MILLISECONDS));
+          }
+        }
+
+        if (!entries.isEmpty() || !appendSignal.await(seenAppends, deadline)) {
+          break;
+        }
+      }
+
+      Collections.sort(entries, new Comparator<KeyValuePair<T>>() {
+        @Override
+        public int compare(KeyValuePair<T> a, KeyValuePair<T> b) {
+          return Long.compare(getId(a), getId(b));
+        }
+      });
+
+      return entries;
+    }
+
+    @Override
+    public long getPosition() {
+      long position = Long.MAX_VALUE;
+
+      for (JournalTail<T> tail : tails) {
+        position = Math.min(position, tail.getPosition());
+      }
+
+      return position;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+
+      for (JournalTail<T> tail : tails) {
+        tail.close();
+      }
+    }
+  }
+
+  /**
+   * Merges iterables each in id order (in the given direction) into one, skipping offset entries
+   * and returning at most limit entries
+   */
+  private static class MergedIterable<T> implements KeyValueIterable<KeyValuePair<T>> {
+    private final List<KeyValueIterable<KeyValuePair<T>>> sources;
+    private final boolean descending;
+    private final long offset;
+    private final Long limit;
+
+    private MergedIterable(List<KeyValueIterable<KeyValuePair<T>>> sources, boolean descending,
+        long offset, @Nullable Long limit) {
+      this.sources = sources;
+      this.descending = descending;
+      this.offset = offset;
+      this.limit = limit;
+    }
+
+    @Override
+    public KeyValueIterator<KeyValuePair<T>> iterator() {
+      final PriorityQueue<Head<T>> heads =
+          new PriorityQueue<Head<T>>(sources.size(), new Comparator<Head<T>>() {
+            @Override
+            public int compare(Head<T> a, Head<T> b) {
+              int result = Long.compare(getId(a.entry), getId(b.entry));
+
+              return descending ? -result : result;
+            }
+          });
+
+      for (KeyValueIterable<KeyValuePair<T>> source : sources) {
+        Iterator<KeyValuePair<T>> iter = source.iterator();
+
+        if (iter.hasNext()) {
+          heads.add(new Head<T>(iter.next(), iter));
+        }
+      }
+
+      KeyValueIterator<KeyValuePair<T>> merged = new KeyValueIterator<KeyValuePair<T>>() {
+        private long returned = 0L;
+
+        @Override
+        public boolean hasNext() {
+          return !heads.isEmpty() && (limit == null || returned < limit);
+        }
+
+        @Override
+        public KeyValuePair<T> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+
+          returned += 1;
+
+          return pollHead(heads);
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("journal entries are read-only");
+        }
+
+        @Override
+        public void close() {
+          heads.clear();
+          MergedIterable.this.close();
+        }
+      };
+
+      for (long i = 0L; i < offset && !heads.isEmpty(); i++) {
+        pollHead(heads);
+      }
+
+      return merged;
+    }
+
+    /** Removes the first entry, advancing its source */
+    private static <T> KeyValuePair<T> pollHead(PriorityQueue<Head<T>> heads) {
+      Head<T> head = heads.poll();
+
+      if (head.iter.hasNext()) {
+        heads.add(new Head<T>(head.iter.next(), head.iter));
+      }
+
+      return head.entry;
+    }
+
+    @Override
+    public void close() {
+      for (KeyValueIterable<KeyValuePair<T>> source : sources) {
+        source.close();
+      }
+    }
+  }
+
+  private static class Head<T> {
+    private final KeyValuePair<T> entry;
+    private final Iterator<KeyValuePair<T>> iter;
+
+    private Head(KeyValuePair<T> entry, Iterator<KeyValuePair<T>> iter) {
+      this.entry = entry;
+      this.iter = iter;
+    }
+  }
+}
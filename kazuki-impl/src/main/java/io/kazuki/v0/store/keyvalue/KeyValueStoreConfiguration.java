@@ -16,8 +16,11 @@ package io.kazuki.v0.store.keyvalue;
 
 import io.kazuki.v0.store.config.ConfigurationBuilder;
 
+import java.util.List;
+
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 
 public class KeyValueStoreConfiguration {
   private final String dbType;
@@ -29,6 +32,19 @@ public class KeyValueStoreConfiguration {
   private final boolean strictTypeCreation;
   private final Long partitionSize;
   private final boolean secondaryIndex;
+  private final List<String> memoryIndexTypes;
+  private final boolean deferredIndexing;
+  private final boolean bloomFilters;
+  private final boolean groupCommit;
+  private final Long partitionMaxAgeMillis;
+  private final Long partitionMaxBytes;
+  private final Long retentionMillis;
+  private final Long retentionMaxBytes;
+  private final String compactionKey;
+  private final String archiveDirectory;
+  private final List<String> additionalDataTypes;
+  private final int shardCount;
+  private final String shardKey;
 
   public KeyValueStoreConfiguration(@JsonProperty("dbType") String dbType,
       @JsonProperty("dataType") String dataType, @JsonProperty("groupName") String groupName,
@@ -36,7 +52,19 @@ public class KeyValueStoreConfiguration {
       @JsonProperty("partitionName") String partitionName,
       @JsonProperty("partitionSize") Long partitionSize,
       @JsonProperty("strictTypeCreation") boolean strictTypeCreation,
-      @JsonProperty("secondaryIndex") boolean secondaryIndex) {
+      @JsonProperty("secondaryIndex") boolean secondaryIndex,
+      @JsonProperty("memoryIndexTypes") List<String> memoryIndexTypes,
+      @JsonProperty("deferredIndexing") boolean deferredIndexing,
+      @JsonProperty("bloomFilters") boolean bloomFilters,
+      @JsonProperty("groupCommit") boolean groupCommit,
+      @JsonProperty("partitionMaxAgeMillis") Long partitionMaxAgeMillis,
+      @JsonProperty("partitionMaxBytes") Long partitionMaxBytes,
+      @JsonProperty("retentionMillis") Long retentionMillis,
+      @JsonProperty("retentionMaxBytes") Long retentionMaxBytes,
+      @JsonProperty("compactionKey") String compactionKey,
+      @JsonProperty("archiveDirectory") String archiveDirectory,
+      @JsonProperty("additionalDataTypes") List<String> additionalDataTypes,
+      @JsonProperty("shardCount") int shardCount, @JsonProperty("shardKey") String shardKey) {
     Preconditions.checkNotNull(dbType, "dbType");
     Preconditions.checkArgument(!dbType.contains("_") && !dbType.contains(":"), "invalid dbType");
     Preconditions.checkNotNull(groupName, "groupName");
@@ -45,6 +73,17 @@ public class KeyValueStoreConfiguration {
         "partitionName or partitionSize must be set");
     Preconditions
         .checkArgument(partitionSize == null || partitionSize > 1, "invalid partitionSize");
+    Preconditions.checkArgument(partitionMaxAgeMillis == null || partitionMaxAgeMillis > 0,
+        "invalid partitionMaxAgeMillis");
+    Preconditions.checkArgument(partitionMaxBytes == null || partitionMaxBytes > 0,
+        "invalid partitionMaxBytes");
+    Preconditions.checkArgument(retentionMillis == null || retentionMillis > 0,
+        "invalid retentionMillis");
+    Preconditions.checkArgument(retentionMaxBytes == null || retentionMaxBytes > 0,
+        "invalid retentionMaxBytes");
+    Preconditions.checkArgument(shardCount >= 0, "invalid shardCount");
+    Preconditions.checkArgument(shardCount <= 1 || shardKey != null,
+        "shardKey must be set for shardCount > 1");
 
     this.dbType = dbType;
     this.dataType = dataType;
@@ -55,6 +94,23 @@ public class KeyValueStoreConfiguration {
     this.partitionSize = partitionSize;
     this.strictTypeCreation = strictTypeCreation;
     this.secondaryIndex = secondaryIndex;
+    this.memoryIndexTypes =
+        memoryIndexTypes == null ? ImmutableList.<String>of() : ImmutableList
+            .copyOf(memoryIndexTypes);
+    this.deferredIndexing = deferredIndexing;
+    this.bloomFilters = bloomFilters;
+    this.groupCommit = groupCommit;
+    this.partitionMaxAgeMillis = partitionMaxAgeMillis;
+    this.partitionMaxBytes = partitionMaxBytes;
+    this.retentionMillis = retentionMillis;
+    this.retentionMaxBytes = retentionMaxBytes;
+    this.compactionKey = compactionKey;
+    this.archiveDirectory = archiveDirectory;
+    this.additionalDataTypes =
+        additionalDataTypes == null ? ImmutableList.<String>of() : ImmutableList
+            .copyOf(additionalDataTypes);
+    this.shardCount = Math.max(1, shardCount);
+    this.shardKey = shardKey;
   }
 
   public String getDbType() {
@@ -93,6 +149,107 @@ public class KeyValueStoreConfiguration {
     return secondaryIndex;
   }
 
+  /**
+   * Types whose secondary indexes are mirrored in memory (only with secondaryIndex enabled); the
+   * index tables stay the durable copy.
+   */
+  public List<String> getMemoryIndexTypes() {
+    return memoryIndexTypes;
+  }
+
+  /**
+   * Whether non-unique secondary indexes are maintained asynchronously (only with secondaryIndex
+   * enabled): writes queue their index changes in the entity transaction and a background task
+   * applies them, so index queries may briefly lag behind writes.
+   */
+  public boolean isDeferredIndexing() {
+    return deferredIndexing;
+  }
+
+  /**
+   * Whether key lookups (and unique index lookups, with secondaryIndex enabled) consult in-memory
+   * Bloom filters first, so that lookups of keys that do not exist skip the database. Filters are
+   * built in the background on first use of each type.
+   */
+  public boolean isBloomFilters() {
+    return bloomFilters;
+  }
+
+  /**
+   * Whether concurrent journal appends are committed in groups: appends queue up while another
+   * append holds the store lock, and the next one to get the lock writes all queued entries as a
+   * single batch.
+   */
+  public boolean isGroupCommit() {
+    return groupCommit;
+  }
+
+  /**
+   * Age after which the active journal partition is closed, in addition to partitionSize. Age
+   * and byte size limits are checked by a background task about once a second.
+   */
+  public Long getPartitionMaxAgeMillis() {
+    return partitionMaxAgeMillis;
+  }
+
+  /** Encoded size of the entries after which the active journal partition is closed */
+  public Long getPartitionMaxBytes() {
+    return partitionMaxBytes;
+  }
+
+  /** Time after closing at which journal partitions are dropped by the background task */
+  public Long getRetentionMillis() {
+    return retentionMillis;
+  }
+
+  /**
+   * Total encoded size of the journal above which the oldest closed partitions are dropped by the
+   * background task
+   */
+  public Long getRetentionMaxBytes() {
+    return retentionMaxBytes;
+  }
+
+  /**
+   * Attribute identifying the logical entity of journal entries; when set, closed partitions are
+   * compacted in the background to the last entry of each entity (entries without the attribute
+   * are kept). Ids are preserved, so compacted partitions have gaps in their ids.
+   */
+  public String getCompactionKey() {
+    return compactionKey;
+  }
+
+  /**
+   * Directory into which closed journal partitions (once compacted, with compactionKey set) are
+   * sealed as compressed segment files by the background task, replacing their tables
+   */
+  public String getArchiveDirectory() {
+    return archiveDirectory;
+  }
+
+  /**
+   * Types accepted by a journal besides dataType, appended to the same partitions in one id
+   * order (ids come from the counter of dataType); reads return the entries of one type.
+   * Compaction and archiving support a single type only.
+   */
+  public List<String> getAdditionalDataTypes() {
+    return additionalDataTypes;
+  }
+
+  /**
+   * Number of independent journals (each with its own partitions and lock) that a journal
+   * spreads its appends over by the hash of the shardKey attribute, so that appends to different
+   * shards run in parallel; reads merge the shards in id order
+   */
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /** Attribute whose value routes journal appends to a shard (with shardCount > 1) */
+  public String getShardKey() {
+    return shardKey;
+  }
+
   public static class Builder implements ConfigurationBuilder<KeyValueStoreConfiguration> {
     private String dbType;
     private String dataType;
@@ -102,6 +259,19 @@ public class KeyValueStoreConfiguration {
     private Long partitionSize;
     private boolean strictTypeCreation = true;
     private boolean secondaryIndex = false;
+    private List<String> memoryIndexTypes = null;
+    private boolean deferredIndexing = false;
+    private boolean bloomFilters = false;
+    private boolean groupCommit = false;
+    private Long partitionMaxAgeMillis;
+    private Long partitionMaxBytes;
+    private Long retentionMillis;
+    private Long retentionMaxBytes;
+    private String compactionKey;
+    private String archiveDirectory;
+    private List<String> additionalDataTypes = null;
+    private int shardCount = 1;
+    private String shardKey;
 
     public Builder withDbType(String dbType) {
       this.dbType = dbType;
@@ -151,9 +321,90 @@ public class KeyValueStoreConfiguration {
       return this;
     }
 
+    public Builder withMemoryIndexTypes(List<String> memoryIndexTypes) {
+      this.memoryIndexTypes = memoryIndexTypes;
+
+      return this;
+    }
+
+    public Builder withDeferredIndexing(boolean deferredIndexing) {
+      this.deferredIndexing = deferredIndexing;
+
+      return this;
+    }
+
+    public Builder withBloomFilters(boolean bloomFilters) {
+      this.bloomFilters = bloomFilters;
+
+      return this;
+    }
+
+    public Builder withGroupCommit(boolean groupCommit) {
+      this.groupCommit = groupCommit;
+
+      return this;
+    }
+
+    public Builder withPartitionMaxAgeMillis(Long partitionMaxAgeMillis) {
+      this.partitionMaxAgeMillis = partitionMaxAgeMillis;
+
+      return this;
+    }
+
+    public Builder withPartitionMaxBytes(Long partitionMaxBytes) {
+      this.partitionMaxBytes = partitionMaxBytes;
+
+      return this;
+    }
+
+    public Builder withRetentionMillis(Long retentionMillis) {
+      this.retentionMillis = retentionMillis;
+
+      return this;
+    }
+
+    public Builder withRetentionMaxBytes(Long retentionMaxBytes) {
+      this.retentionMaxBytes = retentionMaxBytes;
+
+      return this;
+    }
+
+    public Builder withCompactionKey(String compactionKey) {
+      this.compactionKey = compactionKey;
+
+      return this;
+    }
+
+    public Builder withArchiveDirectory(String archiveDirectory) {
+      this.archiveDirectory = archiveDirectory;
+
+      return this;
+    }
+
+    public Builder withAdditionalDataTypes(List<String> additionalDataTypes) {
+      this.additionalDataTypes = additionalDataTypes;
+
+      return this;
+    }
+
+    public Builder withShardCount(int shardCount) {
+      this.shardCount = shardCount;
+
+      return this;
+    }
+
+    public Builder withShardKey(String shardKey) {
+      this.shardKey = shardKey;
+
+      return this;
+    }
+
     public KeyValueStoreConfiguration build() {
       return new KeyValueStoreConfiguration(dbType, dataType, groupName, storeName, partitionName,
-          partitionSize, strictTypeCreation, secondaryIndex);
+          partitionSize, strictTypeCreation, secondaryIndex, memoryIndexTypes,
+          deferredIndexing, bloomFilters, groupCommit, partitionMaxAgeMillis, partitionMaxBytes,
+          retentionMillis, retentionMaxBytes, compactionKey, archiveDirectory,
+          additionalDataTypes, shardCount, shardKey);
     }
   }
 }
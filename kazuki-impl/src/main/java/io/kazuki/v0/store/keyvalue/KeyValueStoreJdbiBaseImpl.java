@@ -15,6 +15,9 @@
 package io.kazuki.v0.store.keyvalue;
 
 import io.kazuki.v0.internal.availability.AvailabilityManager;
+import io.kazuki.v0.internal.hash.BloomFilter;
+import io.kazuki.v0.internal.hash.BloomFilterCache;
+import io.kazuki.v0.internal.hash.MurmurHash;
 import io.kazuki.v0.internal.helper.EncodingHelper;
 import io.kazuki.v0.internal.helper.IoHelper;
 import io.kazuki.v0.internal.helper.JDBIHelper;
@@ -60,11 +63,13 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.Query;
 import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.skife.jdbi.v2.Update;
 import org.skife.jdbi.v2.exceptions.CallbackFailedException;
+import org.skife.jdbi.v2.util.LongMapper;
 import org.slf4j.Logger;
 
 import com.google.common.base.Preconditions;
@@ -110,10 +115,21 @@ public abstract class KeyValueStoreJdbiBaseImpl
 
   protected volatile Lifecycle lifecycle;
 
+  /** Per-type filters of existing keys, or null if bloom filters are disabled */
+  protected final BloomFilterCache keyFilters;
+
   public KeyValueStoreJdbiBaseImpl(AvailabilityManager availability, LockManager lockManager,
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
       SchemaStore schemaService, SequenceService sequences, String groupName, String storeName,
       String partitionName) {
+    this(availability, lockManager, dataSource, database, typeHelper, schemaService, sequences,
+        groupName, storeName, partitionName, false);
+  }
+
+  public KeyValueStoreJdbiBaseImpl(AvailabilityManager availability, LockManager lockManager,
+      KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
+      SchemaStore schemaService, SequenceService sequences, String groupName, String storeName,
+      String partitionName, boolean bloomFilters) {
     this.availability = availability;
     this.lockManager = lockManager;
     this.dataSource = dataSource;
@@ -123,6 +139,25 @@ public abstract class KeyValueStoreJdbiBaseImpl
     this.typeHelper = typeHelper;
     this.kvListeners = new ArrayList<KeyValueStoreListener>();
     this.tableName = "_" + groupName + "_" + storeName + "__kv__" + partitionName;
+    this.keyFilters =
+        bloomFilters ? new BloomFilterCache(new MurmurHash(), lockManager,
+            new BloomFilterCache.Loader() {
+              @Override
+              public long estimateSize(String type) throws Exception {
+                return approximateSize(type);
+              }
+
+              @Override
+              public void load(String type, BloomFilter filter) throws Exception {
+                try (KeyValueIterable<Key> keys =
+                    keys(type, LinkedHashMap.class, SortDirection.ASCENDING)) {
+                  for (Key key : keys) {
+                    filter.add(getKeyFilterValue(KeyValueStoreJdbiBaseImpl.this.sequences
+                        .resolveKey(key)));
+                  }
+                }
+              }
+            }, "kz-kvbloom" + tableName + "-%d") : null;
 
     this.componentDescriptor =
         new ComponentDescriptorImpl<KeyValueStore>("KZ:KeyValueStore:" + groupName + "-"
@@ -151,6 +186,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
       @Override
       public void stop() {
         availability.setAvailable(false);
+
+        if (keyFilters != null) {
+          keyFilters.shutdown();
+        }
       }
     });
   }
@@ -160,6 +199,36 @@ public abstract class KeyValueStoreJdbiBaseImpl
     this.kvListeners.add(listener);
   }
 
+  /**
+   * Runs a transaction that calls the listeners, then tells them whether it committed. Callers
+   * hold the store lock, so listeners hear about transactions in commit order.
+   */
+  private <T> T inListenedTransaction(final TransactionCallback<T> callback) {
+    final Handle[] used = new Handle[1];
+    boolean committed = false;
+
+    try {
+      T result = database.inTransaction(new TransactionCallback<T>() {
+        @Override
+        public T inTransaction(Handle handle, TransactionStatus status) throws Exception {
+          used[0] = handle;
+
+          return callback.inTransaction(handle, status);
+        }
+      });
+
+      committed = true;
+
+      return result;
+    } finally {
+      if (used[0] != null) {
+        for (KeyValueStoreListener kvListener : kvListeners) {
+          kvListener.afterTransaction(used[0], committed);
+        }
+      }
+    }
+  }
+
   @Override
   public ComponentDescriptor<KeyValueStore> getComponentDescriptor() {
     return this.componentDescriptor;
@@ -231,7 +300,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final Version schemaVersion = schemaKv == null ? null : schemaKv.getVersion();
 
       try {
-        return database.inTransaction(new TransactionCallback<KeyValuePair<T>>() {
+        return inListenedTransaction(new TransactionCallback<KeyValuePair<T>>() {
           @Override
           public KeyValuePair<T> inTransaction(Handle handle, TransactionStatus status)
               throws Exception {
@@ -264,6 +333,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
               throw new KazukiException("Entity not created!");
             }
 
+            if (keyFilters != null) {
+              keyFilters.add(type, getKeyFilterValue(resolvedKey));
+            }
+
             return new KeyValuePair<T>(newKey, VersionImpl.createInternal(newKey, 1L),
                 schemaVersion, inValue);
           }
@@ -279,6 +352,101 @@ public abstract class KeyValueStoreJdbiBaseImpl
     }
   }
 
+  /**
+   * Creates entities of the type under the given (resolved) keys in a single transaction, with
+   * one JDBC batch for the rows. Listeners see each entity as for create(); if any entity fails,
+   * none are created.
+   */
+  public <T> void createAll(final String type, final Class<T> clazz, final List<T> inValues,
+      final List<ResolvedKey> resolvedKeys, TypeValidation typeSafety) throws KazukiException {
+    availability.assertAvailable();
+
+    if (type == null || TypeValidation.STRICT.equals(typeSafety)
+        && (type.contains("@") || type.contains("$"))) {
+      throw new IllegalArgumentException("Invalid entity 'type'");
+    }
+
+    Preconditions.checkArgument(inValues.size() == resolvedKeys.size(),
+        "values and keys differ in number");
+
+    if (inValues.isEmpty()) {
+      return;
+    }
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      final KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(type);
+      final Schema schema = (schemaKv == null) ? null : schemaKv.getValue();
+      final Version schemaVersion = schemaKv == null ? null : schemaKv.getVersion();
+
+      try {
+        inListenedTransaction(new TransactionCallback<Void>() {
+          @Override
+          public Void inTransaction(Handle handle, TransactionStatus status) throws Exception {
+            FieldTransform fieldTransform = schema == null ? null : new FieldTransform(schema);
+            StructureTransform structureTransform =
+                schema == null ? null : new StructureTransform(schema);
+            long createdDt = new DateTime().withZone(DateTimeZone.UTC).getMillis() / 1000;
+            Long schemaVersionLong =
+                schemaVersion != null ? ((VersionImpl) schemaVersion).getInternalIdentifier() : 0L;
+
+            PreparedBatch batch =
+                handle.prepareBatch(getPrefix() + "kv_create").define("kv_table_name", tableName);
+
+            for (int i = 0; i < inValues.size(); i++) {
+              ResolvedKey resolvedKey = resolvedKeys.get(i);
+              Object storeValue = EncodingHelper.asJsonMap(inValues.get(i));
+
+              if (schema != null) {
+                Map<String, Object> fieldTransformed =
+                    fieldTransform.pack((Map<String, Object>) storeValue);
+
+                for (KeyValueStoreListener kvListener : kvListeners) {
+                  kvListener.enforceUnique(type, clazz, schema, resolvedKey, fieldTransformed);
+                  kvListener.onCreate(handle, type, clazz, schema, resolvedKey, fieldTransformed);
+                }
+
+                storeValue = structureTransform.pack(fieldTransformed);
+              }
+
+              batch.add().bind("key_type", resolvedKey.getTypeTag())
+                  .bind("key_id_hi", resolvedKey.getIdentifierHi())
+                  .bind("key_id_lo", resolvedKey.getIdentifierLo())
+                  .bind("created_dt", createdDt).bind("version", 1L)
+                  .bind("schema_version", schemaVersionLong)
+                  .bind("value", EncodingHelper.convertToSmile(storeValue));
+            }
+
+            for (int inserted : batch.execute()) {
+              if (inserted < 1) {
+                throw new KazukiException("Entity not created!");
+              }
+            }
+
+            if (keyFilters != null) {
+              for (ResolvedKey resolvedKey : resolvedKeys) {
+                keyFilters.add(type, getKeyFilterValue(resolvedKey));
+              }
+            }
+
+            return null;
+          }
+        });
+      } catch (CallbackFailedException e) {
+        Throwable cause = e.getCause();
+
+        if (cause != null && cause.getCause() instanceof KazukiException) {
+          cause = cause.getCause();
+        }
+
+        if (cause instanceof KazukiException) {
+          throw (KazukiException) cause;
+        }
+
+        throw e;
+      }
+    }
+  }
+
   @Override
   public <T> T retrieve(final Key realKey, final Class<T> clazz) throws KazukiException {
     KeyValuePair<T> result = retrieveVersioned(realKey, clazz);
@@ -296,6 +464,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
     final Version schemaVersion = schemaKv == null ? null : schemaKv.getVersion();
     final ResolvedKey resolvedKey = sequences.resolveKey(realKey);
 
+    if (!mightExist(realKey, resolvedKey)) {
+      return null;
+    }
+
     return database.inTransaction(new TransactionCallback<KeyValuePair<T>>() {
       @Override
       public KeyValuePair<T> inTransaction(Handle handle, TransactionStatus status)
@@ -365,6 +537,12 @@ public abstract class KeyValueStoreJdbiBaseImpl
         for (Key realKey : keys) {
           final ResolvedKey resolvedKey = sequences.resolveKey(realKey);
 
+          if (!mightExist(realKey, resolvedKey)) {
+            dbFound.put(realKey, null);
+
+            continue;
+          }
+
           Query<Map<String, Object>> select =
               JDBIHelper.getBoundQuery(handle, getPrefix(), "kv_table_name", tableName,
                   "kv_retrieve");
@@ -437,6 +615,12 @@ public abstract class KeyValueStoreJdbiBaseImpl
         for (Key realKey : keys) {
           final ResolvedKey resolvedKey = sequences.resolveKey(realKey);
 
+          if (!mightExist(realKey, resolvedKey)) {
+            dbFound.put(realKey, null);
+
+            continue;
+          }
+
           Query<Map<String, Object>> select =
               JDBIHelper.getBoundQuery(handle, getPrefix(), "kv_table_name", tableName,
                   "kv_retrieve");
@@ -495,7 +679,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final Schema schema = schemaKv == null ? null : schemaKv.getValue();
 
       try {
-        return database.inTransaction(new TransactionCallback<Boolean>() {
+        return inListenedTransaction(new TransactionCallback<Boolean>() {
           @Override
           public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
             Map<String, Object> storeValueMap = EncodingHelper.asJsonMap(inValue);
@@ -526,7 +710,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
             }
 
             int updatedCount =
-                doUpdate(handle, resolvedKey, (VersionImpl) schemaKv.getVersion(),
+                doUpdate(handle, resolvedKey,
+                    schemaKv == null ? null : (VersionImpl) schemaKv.getVersion(),
                     EncodingHelper.convertToSmile(storeValue));
             boolean updated = (updatedCount == 1);
 
@@ -563,7 +748,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final Schema schema = schemaKv == null ? null : schemaKv.getValue();
 
       try {
-        return database.inTransaction(new TransactionCallback<Version>() {
+        return inListenedTransaction(new TransactionCallback<Version>() {
           @Override
           public Version inTransaction(Handle handle, TransactionStatus status) throws Exception {
             Map<String, Object> storeValueMap = EncodingHelper.asJsonMap(inValue);
@@ -595,7 +780,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
 
             int updatedCount =
                 doUpdateVersioned(handle, resolvedKey, (VersionImpl) version,
-                    (VersionImpl) schemaKv.getVersion(), EncodingHelper.convertToSmile(storeValue));
+                    schemaKv == null ? null : (VersionImpl) schemaKv.getVersion(),
+                    EncodingHelper.convertToSmile(storeValue));
 
             boolean updated = (updatedCount == 1);
 
@@ -631,7 +817,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(type);
       final Schema schema = schemaKv == null ? null : schemaKv.getValue();
 
-      return database.inTransaction(new TransactionCallback<Boolean>() {
+      return inListenedTransaction(new TransactionCallback<Boolean>() {
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
@@ -676,7 +862,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(type);
       final Schema schema = schemaKv == null ? null : schemaKv.getValue();
 
-      return database.inTransaction(new TransactionCallback<Boolean>() {
+      return inListenedTransaction(new TransactionCallback<Boolean>() {
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
@@ -722,7 +908,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(type);
       final Schema schema = schemaKv == null ? null : schemaKv.getValue();
 
-      return database.inTransaction(new TransactionCallback<Boolean>() {
+      return inListenedTransaction(new TransactionCallback<Boolean>() {
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
@@ -768,7 +954,7 @@ public abstract class KeyValueStoreJdbiBaseImpl
       final KeyValuePair<Schema> schemaKv = schemaService.retrieveSchema(type);
       final Schema schema = schemaKv == null ? null : schemaKv.getValue();
 
-      return database.inTransaction(new TransactionCallback<Boolean>() {
+      return inListenedTransaction(new TransactionCallback<Boolean>() {
         @Override
         public Boolean inTransaction(Handle handle, TransactionStatus status) throws Exception {
           if (schema != null && !kvListeners.isEmpty()) {
@@ -814,6 +1000,38 @@ public abstract class KeyValueStoreJdbiBaseImpl
     return (nextId == null) ? 0L : resolvedKey.getIdentifierLo();
   }
 
+  /** Returns the exact number of (non-deleted) entities of the type by counting them */
+  public long countOfType(String type) throws KazukiException {
+    return selectLongOfType(type, "kv_count_of_type");
+  }
+
+  /** Returns the largest identifier of the (non-deleted) entities of the type, or 0 if none */
+  public long maxIdOfType(String type) throws KazukiException {
+    return selectLongOfType(type, "kv_max_id_of_type");
+  }
+
+  /** Returns the total size of the encoded values of the (non-deleted) entities of the type */
+  public long bytesOfType(String type) throws KazukiException {
+    return selectLongOfType(type, "kv_bytes_of_type");
+  }
+
+  /** Returns the number of (non-deleted) entities of the type with ids below the given one */
+  public long countOfTypeBelow(String type, final long idLo) throws KazukiException {
+    availability.assertAvailable();
+
+    final int typeId = sequences.getTypeId(type, false);
+
+    return database.inTransaction(new TransactionCallback<Long>() {
+      @Override
+      public Long inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        return JDBIHelper
+            .getBoundQuery(handle, getPrefix(), "kv_table_name", tableName,
+                "kv_count_of_type_below").bind("key_type", typeId).bind("key_id_lo", idLo)
+            .map(LongMapper.FIRST).first();
+      }
+    });
+  }
+
   public void clear(final boolean preserveTypes, final boolean preserveCounters) {
     log.debug("Clearing KeyValueStore {} table {}", this, tableName);
 
@@ -840,6 +1058,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
       });
 
       sequences.clear(preserveTypes, preserveCounters);
+
+      if (keyFilters != null) {
+        keyFilters.invalidateAll();
+      }
     } finally {
       nukeLock.unlock();
     }
@@ -868,6 +1090,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
         }
       });
 
+      if (keyFilters != null) {
+        keyFilters.invalidate(type);
+      }
+
       log.debug("Cleared KeyValueStore {} table {} type {}", this, tableName, type);
     } finally {
       nukeLock.unlock();
@@ -893,6 +1119,10 @@ public abstract class KeyValueStoreJdbiBaseImpl
           return null;
         }
       });
+
+      if (keyFilters != null) {
+        keyFilters.invalidateAll();
+      }
     } finally {
       nukeLock.unlock();
     }
@@ -1068,6 +1298,30 @@ public abstract class KeyValueStoreJdbiBaseImpl
     }
   }
 
+  /** Returns false if the bloom filter of the key's type says the key was never created */
+  private boolean mightExist(Key realKey, ResolvedKey resolvedKey) {
+    return keyFilters == null
+        || keyFilters.mightContain(realKey.getTypePart(), getKeyFilterValue(resolvedKey));
+  }
+
+  private static String getKeyFilterValue(ResolvedKey resolvedKey) {
+    return resolvedKey.getIdentifierHi() + ":" + resolvedKey.getIdentifierLo();
+  }
+
+  private long selectLongOfType(String type, final String queryName) throws KazukiException {
+    availability.assertAvailable();
+
+    final int typeId = sequences.getTypeId(type, false);
+
+    return database.inTransaction(new TransactionCallback<Long>() {
+      @Override
+      public Long inTransaction(Handle handle, TransactionStatus status) throws Exception {
+        return JDBIHelper.getBoundQuery(handle, getPrefix(), "kv_table_name", tableName, queryName)
+            .bind("key_type", typeId).map(LongMapper.FIRST).first();
+      }
+    });
+  }
+
   private byte[] getObjectBytes(Map<String, Object> objectMap) {
     if (objectMap == null) {
       return null;
@@ -1137,7 +1391,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
     update.bind("key_type", resolvedKey.getTypeTag());
     update.bind("key_id_hi", resolvedKey.getIdentifierHi());
     update.bind("key_id_lo", resolvedKey.getIdentifierLo());
-    update.bind("schema_version", schemaVersion.getInternalIdentifier());
+    update.bind("schema_version",
+        schemaVersion != null ? schemaVersion.getInternalIdentifier() : 0L);
     update.bind("updated_dt", getEpochSecondsNow());
     update.bind("value", valueBytes);
     int updated = update.execute();
@@ -1157,7 +1412,8 @@ public abstract class KeyValueStoreJdbiBaseImpl
     update.bind("updated_dt", getEpochSecondsNow());
     update.bind("old_version", version.getInternalIdentifier());
     update.bind("new_version", version.getInternalIdentifier() + 1L);
-    update.bind("schema_version", schemaVersion.getInternalIdentifier());
+    update.bind("schema_version",
+        schemaVersion != null ? schemaVersion.getInternalIdentifier() : 0L);
     update.bind("value", valueBytes);
     int updated = update.execute();
 
@@ -40,14 +40,23 @@ public class KeyValueStoreJdbiH2Impl extends KeyValueStoreJdbiBaseImpl {
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
       SchemaStore schemaManager, SequenceService sequences, KeyValueStoreConfiguration config) {
     this(availability, lockManager, dataSource, database, typeHelper, schemaManager, sequences,
-        config.getGroupName(), config.getStoreName(), config.getPartitionName());
+        config.getGroupName(), config.getStoreName(), config.getPartitionName(), config
+            .isBloomFilters());
   }
 
   public KeyValueStoreJdbiH2Impl(AvailabilityManager availability, LockManager lockManager,
       KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
       SchemaStore schemaManager, SequenceService sequences, String groupName, String storeName,
       String partitionName) {
+    this(availability, lockManager, dataSource, database, typeHelper, schemaManager, sequences,
+        groupName, storeName, partitionName, false);
+  }
+
+  public KeyValueStoreJdbiH2Impl(AvailabilityManager availability, LockManager lockManager,
+      KazukiComponent<DataSource> dataSource, IDBI database, SqlTypeHelper typeHelper,
+      SchemaStore schemaManager, SequenceService sequences, String groupName, String storeName,
+      String partitionName, boolean bloomFilters) {
     super(availability, lockManager, dataSource, database, typeHelper, schemaManager, sequences,
-        groupName, storeName, partitionName);
+        groupName, storeName, partitionName, bloomFilters);
   }
 }
@@ -37,4 +37,10 @@ public interface KeyValueStoreListener {
       ResolvedKey resolvedKey, Map<String, Object> oldInstance);
 
   void clear(Handle handle, Map<String, Schema> typeToSchemaMap, boolean preserveSchema);
+
+  /**
+   * Called, still under the store lock, when the transaction of the handle passed to the calls
+   * above has ended; changes made outside that transaction should only be kept if it committed.
+   */
+  void afterTransaction(Handle handle, boolean committed);
 }
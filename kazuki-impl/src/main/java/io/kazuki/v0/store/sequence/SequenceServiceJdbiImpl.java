@@ -33,7 +33,9 @@ import io.kazuki.v0.store.management.KazukiComponent;
 import io.kazuki.v0.store.management.impl.ComponentDescriptorImpl;
 import io.kazuki.v0.store.management.impl.LateBindingComponentDescriptorImpl;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -48,6 +50,7 @@ import org.skife.jdbi.v2.TransactionCallback;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 
@@ -242,6 +245,33 @@ public class SequenceServiceJdbiImpl implements SequenceService, LifecycleRegist
     }
   }
 
+  /**
+   * Allocates count keys of the type in one call. The keys ascend and are contiguous, except
+   * where the allocation runs past the end of the current counter block into a new one.
+   */
+  @Override
+  public List<Key> nextKeys(final String type, int count) throws KazukiException {
+    if (type == null) {
+      throw new IllegalArgumentException("Invalid entity 'type'");
+    }
+
+    Preconditions.checkArgument(count >= 0, "invalid count");
+
+    try (LockManager toRelease = lockManager.acquire()) {
+      List<Key> keys = new ArrayList<Key>(count);
+
+      while (keys.size() < count) {
+        Counter counter = counters.get(type);
+
+        if (counter == null || !counter.getNext(count - keys.size(), keys)) {
+          counters.put(type, createCounter(type));
+        }
+      }
+
+      return keys;
+    }
+  }
+
   @Override
   public ResolvedKey resolveKey(Key key) throws KazukiException {
     try (LockManager toRelease = lockManager.acquire()) {
@@ -487,6 +517,24 @@ public class SequenceServiceJdbiImpl implements SequenceService, LifecycleRegist
       return null;
     }
 
+    /** Adds up to count keys to the list, returning false if the block is exhausted */
+    public boolean getNext(int count, List<Key> keys) throws KazukiException {
+      long first = base + offset.get() + 1L;
+
+      if (first > max) {
+        return false;
+      }
+
+      long last = Math.min(max, first + count - 1L);
+      offset.addAndGet(last - first + 1L);
+
+      for (long id = first; id <= last; id++) {
+        keys.add(KeyImpl.createInternal(type, id));
+      }
+
+      return true;
+    }
+
     @Nullable
     public Key peekNext() throws KazukiException {
       long next = base + offset.get() + 1L;
@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.internal.hash;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class BloomFilterTest {
+  public void testNoFalseNegatives() {
+    BloomFilter filter = new BloomFilter(new MurmurHash(), 10000L, 0.01);
+
+    for (int i = 0; i < 10000; i++) {
+      filter.add("value-" + i);
+    }
+
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertTrue(filter.mightContain("value-" + i));
+    }
+
+    Assert.assertFalse(filter.isSaturated());
+    filter.add("one-too-many");
+    Assert.assertTrue(filter.isSaturated());
+  }
+
+  public void testFalsePositiveRate() {
+    BloomFilter filter = new BloomFilter(new MurmurHash(), 10000L, 0.01);
+
+    for (int i = 0; i < 10000; i++) {
+      filter.add("value-" + i);
+    }
+
+    int falsePositives = 0;
+
+    for (int i = 0; i < 100000; i++) {
+      if (filter.mightContain("other-" + i)) {
+        falsePositives++;
+      }
+    }
+
+    Assert.assertTrue(falsePositives < 2000, "false positives: " + falsePositives);
+  }
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.internal.hash;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class HyperLogLogTest {
+  public void testEmpty() {
+    Assert.assertEquals(new HyperLogLog(new MurmurHash()).cardinality(), 0L);
+  }
+
+  public void testEstimate() {
+    HyperLogLog hll = new HyperLogLog(new MurmurHash());
+
+    for (int i = 0; i < 100000; i++) {
+      hll.add("value-" + (i % 20000));
+    }
+
+    long estimate = hll.cardinality();
+
+    Assert.assertTrue(Math.abs(estimate - 20000L) < 1000L, "estimate: " + estimate);
+  }
+
+  public void testMerge() {
+    HyperLogLog a = new HyperLogLog(new MurmurHash());
+    HyperLogLog b = new HyperLogLog(new MurmurHash());
+
+    for (int i = 0; i < 1000; i++) {
+      a.add("a-" + i);
+      b.add("b-" + i);
+    }
+
+    a.merge(b);
+
+    Assert.assertTrue(Math.abs(a.cardinality() - 2000L) < 100L, "estimate: " + a.cardinality());
+  }
+}
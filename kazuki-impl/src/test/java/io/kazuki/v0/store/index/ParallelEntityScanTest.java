@@ -0,0 +1,160 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.TestSupport;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class ParallelEntityScanTest extends TestSupport {
+  private static final int PARALLELISM = 2;
+
+  private Lifecycle lifecycle;
+  private KeyValueStore store;
+  private SequenceService sequence;
+  private ExecutorService executor;
+  private ParallelEntityScan scan;
+
+  @BeforeMethod(alwaysRun = true)
+  public void setUp() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo").build())
+            .build());
+
+    lifecycle = inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("foo")));
+    store = inject.getInstance(com.google.inject.Key.get(KeyValueStore.class, Names.named("foo")));
+    sequence =
+        inject.getInstance(com.google.inject.Key.get(SequenceService.class, Names.named("foo")));
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    executor = Executors.newFixedThreadPool(PARALLELISM);
+    scan = new ParallelEntityScan(store, executor, PARALLELISM);
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  @Test
+  public void testStopsAtLimit() throws Exception {
+    List<Key> keys = new ArrayList<Key>();
+    int count = ParallelEntityScan.CHUNK_SIZE * PARALLELISM * 3;
+
+    for (int i = 0; i < count; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT)
+          .getKey());
+    }
+
+    AtomicInteger evaluated = new AtomicInteger();
+
+    try (KeyValueIterable<Key> iter =
+        scan.query("foo", counting(evaluated), SortDirection.ASCENDING, 2L, 5L)) {
+      Assert.assertEquals(ImmutableList.copyOf(iter), keys.subList(2, 7));
+    }
+
+    // only the first wave is loaded
+    Assert.assertEquals(evaluated.get(), ParallelEntityScan.CHUNK_SIZE * PARALLELISM);
+
+    evaluated.set(0);
+
+    try (KeyValueIterable<Key> iter =
+        scan.query("foo", counting(evaluated), SortDirection.DESCENDING, null, 3L)) {
+      Assert.assertEquals(ImmutableList.copyOf(iter), Lists.reverse(keys).subList(0, 3));
+    }
+
+    Assert.assertEquals(evaluated.get(), ParallelEntityScan.CHUNK_SIZE * PARALLELISM);
+  }
+
+  @Test(timeOut = 30000L)
+  public void testLargeIdGaps() throws Exception {
+    List<Key> keys = new ArrayList<Key>();
+
+    // ids ten million apart, as left by restarts that skip the rest of an id block
+    for (int i = 0; i < 12; i++) {
+      Key key = KeyImpl.createInternal("foo", i * 10000000L + 1L);
+
+      store.create("foo", Foo.class, new Foo("k" + i, "v" + i), sequence.resolveKey(key),
+          TypeValidation.STRICT);
+
+      if (i % 4 == 3) {
+        store.delete(key);
+      } else {
+        keys.add(key);
+      }
+    }
+
+    AtomicInteger evaluated = new AtomicInteger();
+
+    try (KeyValueIterable<Key> iter =
+        scan.query("foo", counting(evaluated), SortDirection.ASCENDING, null, null)) {
+      Assert.assertEquals(ImmutableList.copyOf(iter), keys);
+    }
+
+    Assert.assertEquals(evaluated.get(), keys.size());
+  }
+
+  private static Predicate<Map<String, Object>> counting(final AtomicInteger evaluated) {
+    return new Predicate<Map<String, Object>>() {
+      @Override
+      public boolean apply(Map<String, Object> entity) {
+        evaluated.incrementAndGet();
+
+        return true;
+      }
+    };
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.index.query.QueryHelper;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.management.ComponentDescriptor;
+import io.kazuki.v0.store.management.ComponentRegistrar;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+@Test
+public class SecondaryIndexQueryPlannerTest {
+  private final SecondaryIndexQueryPlanner planner = new SecondaryIndexQueryPlanner();
+
+  public void testPrefersUniqueIndex() {
+    QueryPlan plan =
+        planner.plan("foo", Foo.FOO_SCHEMA,
+            QueryHelper.parseQuery("fooKey eq \"k00\" and fooValue eq \"v55\""));
+
+    Assert.assertEquals(ImmutableList.of("uniqueFooKeyValue"), plan.getIndexNames());
+    Assert.assertTrue(plan.getResidualTerms().isEmpty());
+  }
+
+  public void testResidualTerms() {
+    QueryPlan plan =
+        planner.plan("foo", Foo.FOO_SCHEMA,
+            QueryHelper.parseQuery("fooKey eq \"k00\" and fooValue ne \"v55\""));
+
+    Assert.assertEquals(ImmutableList.of("fooKey"), plan.getIndexNames());
+    Assert.assertEquals(1, plan.getIndexTerms("fooKey").size());
+    Assert.assertEquals(1, plan.getResidualTerms().size());
+    Assert.assertEquals("fooValue", plan.getResidualTerms().get(0).getField());
+  }
+
+  public void testFullScan() {
+    QueryPlan plan =
+        planner.plan("foo", Foo.FOO_SCHEMA, QueryHelper.parseQuery("fooValue eq \"v55\""));
+
+    Assert.assertTrue(plan.isFullScan());
+    Assert.assertEquals(1, plan.getResidualTerms().size());
+  }
+
+  public void testIntersectsSelectiveIndexesOnly() {
+    Schema schema =
+        new Schema(Foo.FOO_SCHEMA.getAttributes(), ImmutableList.of(
+            new IndexDefinition("byKey", ImmutableList.of(new IndexAttribute("fooKey",
+                SortDirection.ASCENDING, AttributeTransform.NONE)), false),
+            new IndexDefinition("byValue", ImmutableList.of(new IndexAttribute("fooValue",
+                SortDirection.ASCENDING, AttributeTransform.NONE)), false)));
+    String query = "fooKey eq \"k1\" and fooValue eq \"v1\"";
+
+    // fooValue has only two distinct values, so its index would load half of the keys
+    QueryPlan plan =
+        new SecondaryIndexQueryPlanner(statistics(1000L, 2L)).plan("foo", schema,
+            QueryHelper.parseQuery(query));
+
+    Assert.assertEquals(ImmutableList.of("byKey"), plan.getIndexNames());
+    Assert.assertEquals(ImmutableList.of("byValue"), plan.getSkippedIndexNames());
+    Assert.assertEquals(1, plan.getResidualTerms().size());
+    Assert.assertEquals("fooValue", plan.getResidualTerms().get(0).getField());
+    Assert.assertTrue(plan.toString().contains("not intersected [byValue]"));
+
+    plan =
+        new SecondaryIndexQueryPlanner(statistics(1000L, 500L)).plan("foo", schema,
+            QueryHelper.parseQuery(query));
+
+    Assert.assertEquals(ImmutableList.of("byKey", "byValue"), plan.getIndexNames());
+    Assert.assertTrue(plan.getSkippedIndexNames().isEmpty());
+    Assert.assertTrue(plan.getResidualTerms().isEmpty());
+
+    // without statistics the selectivity is unknown, so nothing is intersected
+    plan = planner.plan("foo", schema, QueryHelper.parseQuery(query));
+
+    Assert.assertEquals(1, plan.getIndexNames().size());
+    Assert.assertEquals(1, plan.getSkippedIndexNames().size());
+    Assert.assertEquals(1, plan.getResidualTerms().size());
+  }
+
+  private static SecondaryIndexStatistics statistics(final long keyDistinct,
+      final long valueDistinct) {
+    return new SecondaryIndexStatistics() {
+      @Override
+      public IndexStatistics getStatistics(String type, String indexName) {
+        Map<String, Long> distinctCounts =
+            indexName.equals("byKey") ? ImmutableMap.of("fooKey", keyDistinct) : ImmutableMap
+                .of("fooValue", valueDistinct);
+
+        return new IndexStatisticsImpl(type, indexName, 1000L, distinctCounts,
+            Collections.<String>emptyList(), 0L);
+      }
+
+      @Override
+      public Map<String, IndexStatistics> collect(String type) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public ComponentDescriptor<SecondaryIndexStatistics> getComponentDescriptor() {
+        return null;
+      }
+
+      @Override
+      public void registerAsComponent(ComponentRegistrar manager) {}
+    };
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testUnknownAttribute() {
+    planner.plan("foo", Foo.FOO_SCHEMA, QueryHelper.parseQuery("nope eq 1"));
+  }
+}
@@ -0,0 +1,38 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import org.junit.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class SecondaryIndexStatisticsCollectorTest {
+  public void testScaleDistinct() {
+    // a full scan needs no scaling
+    Assert.assertEquals(10L, SecondaryIndexStatisticsCollector.scaleDistinct(10L, 100L, 100L));
+
+    // values seen thousands of times each are all in the sample already
+    Assert.assertEquals(10L,
+        SecondaryIndexStatisticsCollector.scaleDistinct(10L, 1000L, 100000L));
+
+    // a sample without repeats is taken from a unique column
+    Assert.assertEquals(100000L,
+        SecondaryIndexStatisticsCollector.scaleDistinct(1000L, 1000L, 100000L));
+
+    // 20000 values occurring 5 times each leave about 980 of them in a 1% sample
+    long scaled = SecondaryIndexStatisticsCollector.scaleDistinct(980L, 1000L, 100000L);
+    Assert.assertTrue(Math.abs(scaled - 20000L) < 400L);
+  }
+}
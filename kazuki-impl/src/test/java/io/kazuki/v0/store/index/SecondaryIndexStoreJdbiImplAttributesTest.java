@@ -31,7 +31,8 @@ public class SecondaryIndexStoreJdbiImplAttributesTest
     return Guice.createInjector(new KazukiModule.Builder("foo")
         .withJdbiConfiguration("foo", Configurations.getJdbi().build())
         .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
-        .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo").build())
+        .withKeyValueStoreConfiguration("foo",
+            Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build())
         .build());
   }
 }
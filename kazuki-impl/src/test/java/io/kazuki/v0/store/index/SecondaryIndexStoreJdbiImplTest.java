@@ -16,12 +16,53 @@ package io.kazuki.v0.store.index;
 
 
 import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.LockManager;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Version;
 import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.jdbi.JdbiDataSourceConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiBaseImpl;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.KeyImpl;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
 
 @Test
 public class SecondaryIndexStoreJdbiImplTest extends SecondaryIndexStoreTestBase {
@@ -30,7 +71,730 @@ public class SecondaryIndexStoreJdbiImplTest extends SecondaryIndexStoreTestBase
     return Guice.createInjector(new KazukiModule.Builder("foo")
         .withJdbiConfiguration("foo", Configurations.getJdbi().build())
         .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
-        .withKeyValueStoreConfiguration("foo", Configurations.getKeyValue("foo", "foo").build())
+        .withKeyValueStoreConfiguration("foo",
+            Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true).build())
         .build());
   }
+
+  public void testStatistics() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    for (int i = 0; i < 100; i++) {
+      store.create("foo", Foo.class, new Foo("k" + (i % 10), "v" + i), TypeValidation.STRICT);
+    }
+
+    index.getStatistics().collect("foo");
+
+    IndexStatistics stats = index.getStatistics().getStatistics("foo", "fooKey");
+    Assert.assertEquals(stats.getRowCount(), 100L);
+    Assert.assertEquals(stats.getDistinctCounts().get("fooKey"), Long.valueOf(10L));
+    Assert.assertFalse(stats.getLeadingAttributeBounds().isEmpty());
+
+    IndexStatistics unique = index.getStatistics().getStatistics("foo", "uniqueFooKeyValue");
+    Assert.assertTrue(Math.abs(unique.getDistinctCounts().get("fooValue") - 100L) <= 5L);
+
+    QueryPlan plan = index.explain("foo", "fooKey eq \"k1\"");
+    Assert.assertEquals(plan.getEstimatedRows(), Long.valueOf(10L));
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  public void testOnlineIndexBuild() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    int count = SecondaryIndexStoreJdbiImpl.BUILD_CHUNK_SIZE * 2 + 10;
+
+    for (int i = 0; i < count; i++) {
+      store.create("foo", Foo.class, new Foo("k" + (i % 10), "v" + i), TypeValidation.STRICT);
+    }
+
+    List<IndexDefinition> indexes = new ArrayList<IndexDefinition>(Foo.FOO_SCHEMA.getIndexes());
+    indexes.add(new IndexDefinition("fooValue", ImmutableList.of(new IndexAttribute("fooValue",
+        SortDirection.ASCENDING, AttributeTransform.NONE)), false));
+
+    manager.updateSchema("foo", version, new Schema(Foo.FOO_SCHEMA.getAttributes(), indexes));
+
+    store.create("foo", Foo.class, new Foo("k0", "vNew"), TypeValidation.STRICT);
+
+    Assert.assertTrue(index.awaitIndexBuild("foo", 60, TimeUnit.SECONDS));
+    Assert.assertNull(index.getIndexBuild("foo"));
+
+    for (String value : ImmutableList.of("v0", "v" + (count - 1), "vNew")) {
+      try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+          index.queryWithoutPagination("foo", Foo.class, "fooValue", "fooValue eq \"" + value
+              + "\"", SortDirection.ASCENDING, null, null)) {
+        Assert.assertEquals(Iterables.size(iter), 1);
+      }
+    }
+
+    try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+        index.queryWithoutPagination("foo", Foo.class, "fooKey", "fooKey eq \"k0\"",
+            SortDirection.ASCENDING, null, null)) {
+      Assert.assertEquals(Iterables.size(iter), count / 10 + 1);
+    }
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  @Test(timeOut = 60000L)
+  public void testIndexBuildAfterRolledBackWrite() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    LockManager lockManager = inject.getInstance(Key.get(LockManager.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+    List<io.kazuki.v0.store.Key> keys = new ArrayList<io.kazuki.v0.store.Key>();
+
+    for (int i = 0; i < 20; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT)
+          .getKey());
+    }
+
+    // the unique index moves to the value alone, which is enforced by its shadow table
+    List<IndexDefinition> indexes = new ArrayList<IndexDefinition>(Foo.FOO_SCHEMA.getIndexes());
+    indexes.set(0, new IndexDefinition("uniqueFooValue", ImmutableList.of(new IndexAttribute(
+        "fooValue", SortDirection.ASCENDING, AttributeTransform.NONE)), true));
+
+    // holding the store lock keeps the scan from copying any row before the writes below
+    try (LockManager toRelease = lockManager.acquire()) {
+      manager.updateSchema("foo", version, new Schema(Foo.FOO_SCHEMA.getAttributes(), indexes));
+
+      Assert.assertTrue(store.update(keys.get(3), Foo.class, new Foo("k3", "dup")));
+
+      try {
+        store.update(keys.get(7), Foo.class, new Foo("k7", "dup"));
+        Assert.fail("expected unique index constraint violation");
+      } catch (Exception expected) {
+        // the update rolled back, leaving the entity as it was
+      }
+    }
+
+    Assert.assertTrue(index.awaitIndexBuild("foo", 30, TimeUnit.SECONDS));
+    Assert.assertEquals(store.retrieve(keys.get(7), Foo.class).getFooValue(), "v7");
+
+    for (int i : ImmutableList.of(3, 7)) {
+      String value = (i == 3) ? "dup" : "v" + i;
+
+      try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+          index.queryWithoutPagination("foo", Foo.class, "uniqueFooValue", "fooValue eq \""
+              + value + "\"", SortDirection.ASCENDING, null, null)) {
+        Assert.assertEquals(ImmutableList.copyOf(iter), ImmutableList.of(keys.get(i)));
+      }
+    }
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  @Test(timeOut = 180000L)
+  public void testParallelIndexBuildResume() throws Exception {
+    JdbiDataSourceConfiguration jdbi = Configurations.getJdbi().build();
+    Injector inject = getPartitionInjector(jdbi, "default");
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    LockManager lockManager = inject.getInstance(Key.get(LockManager.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    index.setBuildThreads(2);
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    final int chunk = SecondaryIndexStoreJdbiImpl.BUILD_CHUNK_SIZE;
+    final List<io.kazuki.v0.store.Key> keys = new ArrayList<io.kazuki.v0.store.Key>();
+    List<io.kazuki.v0.store.Key> deleted = new ArrayList<io.kazuki.v0.store.Key>();
+
+    for (int i = 0; i < chunk * 4 + 10; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + (i % 10), "v" + i),
+          TypeValidation.STRICT).getKey());
+    }
+
+    List<IndexDefinition> indexes = new ArrayList<IndexDefinition>(Foo.FOO_SCHEMA.getIndexes());
+    indexes.add(new IndexDefinition("fooValue", ImmutableList.of(new IndexAttribute("fooValue",
+        SortDirection.ASCENDING, AttributeTransform.NONE)), false));
+
+    // holding the store lock keeps the build workers from writing their first wave
+    try (LockManager toRelease = lockManager.acquire()) {
+      manager.updateSchema("foo", version, new Schema(Foo.FOO_SCHEMA.getAttributes(), indexes));
+
+      SecondaryIndexBuild build = index.getIndexBuild("foo");
+      Assert.assertEquals(build.getNextId(), 0L);
+
+      // writes racing the build: their shadow rows must not be overwritten by older copies
+      for (int i = 0; i < 50; i++) {
+        store.update(keys.get(i * 61), Foo.class, new Foo("k0", "w" + i));
+        store.delete(keys.get(i * 61 + 7));
+        deleted.add(keys.get(i * 61 + 7));
+      }
+
+      // a worker of the second wave finishes before the crash, past the checkpoint
+      Assert.assertTrue(index.buildChunk(build, chunk * 2, chunk * 3 - 1) > 0);
+
+      store.update(keys.get(chunk * 2 + 5), Foo.class, new Foo("k0", "x0"));
+      store.delete(keys.get(chunk * 2 + 6));
+      deleted.add(keys.get(chunk * 2 + 6));
+
+      // the crash: the blocked workers find the pool closed once the lock is released
+      lifecycle.shutdown();
+    }
+
+    final List<io.kazuki.v0.store.Key> live = new ArrayList<io.kazuki.v0.store.Key>(keys);
+    live.removeAll(deleted);
+
+    inject = getPartitionInjector(jdbi, "default");
+
+    lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    final KeyValueStore resumedStore =
+        inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    final SecondaryIndexStoreJdbiImpl resumed =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    resumed.setBuildThreads(3);
+
+    lifecycle.init();
+
+    // the build is restored at init, so writes before start still reach the shadow table
+    Assert.assertNotNull(resumed.getIndexBuild("foo"));
+    resumedStore.update(live.get(0), Foo.class, new Foo("k1", "i0"));
+    live.add(resumedStore.create("foo", Foo.class, new Foo("k1", "i1"), TypeValidation.STRICT)
+        .getKey());
+
+    lifecycle.start();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      // updates, deletes and creates while the build resumes from its checkpoint
+      Future<Integer> writer = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          Random random = new Random(0L);
+          int n = 0;
+
+          for (; n < 300 || resumed.getIndexBuild("foo") != null; n++) {
+            io.kazuki.v0.store.Key key = live.get(random.nextInt(live.size()));
+
+            switch (n % 3) {
+              case 0:
+                resumedStore.update(key, Foo.class, new Foo("k1", "u" + n));
+                break;
+              case 1:
+                resumedStore.delete(key);
+                live.remove(key);
+                break;
+              default:
+                live.add(resumedStore.create("foo", Foo.class, new Foo("k2", "c" + n),
+                    TypeValidation.STRICT).getKey());
+                break;
+            }
+          }
+
+          return n;
+        }
+      });
+
+      Assert.assertTrue(resumed.awaitIndexBuild("foo", 120, TimeUnit.SECONDS));
+      Assert.assertTrue(writer.get() >= 300);
+    } finally {
+      executor.shutdownNow();
+    }
+
+    // the swapped-in table holds what a full rebuild would: one row per entity, by value
+    final Map<io.kazuki.v0.store.Key, String> values =
+        new HashMap<io.kazuki.v0.store.Key, String>();
+
+    try (KeyValueIterable<KeyValuePair<Foo>> entities =
+        resumedStore.iterators().entries("foo", Foo.class, SortDirection.ASCENDING)) {
+      for (KeyValuePair<Foo> entity : entities) {
+        values.put(entity.getKey(), entity.getValue().getFooValue());
+      }
+    }
+
+    List<io.kazuki.v0.store.Key> expected = new ArrayList<io.kazuki.v0.store.Key>(values.keySet());
+
+    Collections.sort(expected, new Comparator<io.kazuki.v0.store.Key>() {
+      @Override
+      public int compare(io.kazuki.v0.store.Key a, io.kazuki.v0.store.Key b) {
+        return values.get(a).compareTo(values.get(b));
+      }
+    });
+
+    try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+        resumed.queryWithoutPagination("foo", Foo.class, "fooValue", "fooValue gt \"\"",
+            SortDirection.ASCENDING, null, null)) {
+      Assert.assertEquals(ImmutableList.copyOf(iter), expected);
+    }
+
+    resumedStore.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  private Injector getPartitionInjector(JdbiDataSourceConfiguration jdbi, String partitionName) {
+    return Guice.createInjector(new KazukiModule.Builder("foo")
+        .withJdbiConfiguration("foo", jdbi)
+        .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+        .withKeyValueStoreConfiguration("foo",
+            Configurations.getKeyValue("foo", "foo").withPartitionName(partitionName)
+                .withSecondaryIndex(true).build()).build());
+  }
+
+  @Test(timeOut = 60000L)
+  public void testQueryPartitions() throws Exception {
+    // two stores over one database, differing only in partition
+    JdbiDataSourceConfiguration jdbi = Configurations.getJdbi().build();
+    List<Injector> injectors =
+        ImmutableList.of(getPartitionInjector(jdbi, "default"),
+            getPartitionInjector(jdbi, "other"));
+
+    final Map<io.kazuki.v0.store.Key, String> fooKeys =
+        new HashMap<io.kazuki.v0.store.Key, String>();
+    List<Lifecycle> lifecycles = new ArrayList<Lifecycle>();
+    List<KeyValueStore> stores = new ArrayList<KeyValueStore>();
+    List<SecondaryIndexStore> indexes = new ArrayList<SecondaryIndexStore>();
+
+    for (Injector inject : injectors) {
+      Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+      KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+      SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+
+      // the index store maintains its partition's index tables once created
+      indexes.add(inject.getInstance(Key.get(SecondaryIndexStore.class, Names.named("foo"))));
+
+      lifecycle.init();
+      lifecycle.start();
+
+      manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+      lifecycles.add(lifecycle);
+      stores.add(store);
+    }
+
+    // the partitions interleave in index order: each holds every fooKey
+    for (int i = 0; i < 30; i++) {
+      String fooKey = "k" + (i % 3);
+
+      fooKeys.put(stores.get(i % 2).create("foo", Foo.class, new Foo(fooKey, "v" + i),
+          TypeValidation.STRICT).getKey(), fooKey);
+    }
+
+    SecondaryIndexStore index = indexes.get(0);
+    List<String> partitions = ImmutableList.of("default", "other");
+    io.kazuki.v0.store.Key first = null;
+
+    for (final SortDirection direction : SortDirection.values()) {
+      List<io.kazuki.v0.store.Key> expected = new ArrayList<io.kazuki.v0.store.Key>();
+
+      for (Map.Entry<io.kazuki.v0.store.Key, String> entry : fooKeys.entrySet()) {
+        if (!entry.getValue().equals("k0")) {
+          expected.add(entry.getKey());
+        }
+      }
+
+      Collections.sort(expected, new Comparator<io.kazuki.v0.store.Key>() {
+        @Override
+        public int compare(io.kazuki.v0.store.Key a, io.kazuki.v0.store.Key b) {
+          int result = fooKeys.get(a).compareTo(fooKeys.get(b));
+
+          if (result == 0) {
+            result = ((KeyImpl) a).getInternalId().compareTo(((KeyImpl) b).getInternalId());
+          }
+
+          return SortDirection.ASCENDING.equals(direction) ? result : -result;
+        }
+      });
+
+      Assert.assertEquals(expected.size(), 20);
+
+      if (SortDirection.ASCENDING.equals(direction)) {
+        first = expected.get(0);
+      }
+
+      try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+          index.queryPartitions("foo", Foo.class, "fooKey", "fooKey gt \"k0\"", partitions,
+              direction, null, null)) {
+        Assert.assertEquals(ImmutableList.copyOf(iter), expected);
+      }
+
+      try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+          index.queryPartitions("foo", Foo.class, "fooKey", "fooKey gt \"k0\"", partitions,
+              direction, 3L, 5L)) {
+        Assert.assertEquals(ImmutableList.copyOf(iter), expected.subList(3, 8));
+      }
+    }
+
+    // each query holds a connection per partition until closed; leaking them would exhaust the
+    // pool (and time out) long before the last iteration
+    for (int i = 0; i < 100; i++) {
+      try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+          index.queryPartitions("foo", Foo.class, "fooKey", "fooKey gt \"k0\"", partitions,
+              SortDirection.ASCENDING, null, null)) {
+        for (io.kazuki.v0.store.Key key : iter) {
+          Assert.assertEquals(key, first);
+          break;
+        }
+      }
+    }
+
+    for (int i = 0; i < stores.size(); i++) {
+      stores.get(i).clear(false, false);
+      lifecycles.get(i).shutdown();
+    }
+  }
+
+  public void testBatchedIndexWrites() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStore index =
+        inject.getInstance(Key.get(SecondaryIndexStore.class, Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    io.kazuki.v0.store.Key k0 =
+        store.create("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT).getKey();
+    io.kazuki.v0.store.Key k1 =
+        store.create("foo", Foo.class, new Foo("k1", "v1"), TypeValidation.STRICT).getKey();
+
+    // only the unique index changes; the fooKey row is left alone
+    store.update(k0, Foo.class, new Foo("k0", "v9"));
+
+    Assert.assertEquals(index.count("foo", "fooKey", "fooKey eq \"k0\""), 1L);
+    Assert.assertEquals(index.count("foo", "uniqueFooKeyValue", "fooValue eq \"v0\""), 0L);
+    Assert.assertEquals(index.count("foo", "uniqueFooKeyValue", "fooValue eq \"v9\""), 1L);
+
+    try {
+      store.update(k1, Foo.class, new Foo("k0", "v9"));
+      Assert.fail("expected unique index constraint violation");
+    } catch (Exception expected) {
+      // ok
+    }
+
+    Assert.assertEquals(index.count("foo", "fooKey", "fooKey eq \"k1\""), 1L);
+
+    store.delete(k0);
+
+    Assert.assertEquals(index.count("foo", "fooKey", ""), 1L);
+    Assert.assertEquals(index.count("foo", "uniqueFooKeyValue", ""), 1L);
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  public void testDeferredIndexing() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true)
+                    .withDeferredIndexing(true).build()).build());
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    List<io.kazuki.v0.store.Key> keys = new ArrayList<io.kazuki.v0.store.Key>();
+
+    for (int i = 0; i < 50; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + (i % 5), "v" + i),
+          TypeValidation.STRICT).getKey());
+    }
+
+    // unique indexes are still maintained (and enforced) within the write
+    Assert.assertEquals(index.count("foo", "uniqueFooKeyValue", ""), 50L);
+
+    try {
+      store.create("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT);
+      Assert.fail("expected unique index constraint violation");
+    } catch (Exception expected) {
+      // ok
+    }
+
+    Assert.assertTrue(index.awaitIndexes(10, TimeUnit.SECONDS));
+    Assert.assertTrue(index.getIndexWatermark() > 0L);
+    Assert.assertEquals(index.count("foo", "fooKey", "fooKey eq \"k0\""), 10L);
+
+    store.update(keys.get(0), Foo.class, new Foo("k9", "v0"));
+    store.delete(keys.get(5));
+
+    Assert.assertTrue(index.awaitIndexes(10, TimeUnit.SECONDS));
+    Assert.assertEquals(index.count("foo", "fooKey", "fooKey eq \"k0\""), 8L);
+    Assert.assertEquals(index.count("foo", "fooKey", "fooKey eq \"k9\""), 1L);
+    Assert.assertEquals(index.count("foo", "fooKey", ""), 49L);
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  public void testDeferredIndexingAfterRolledBackWrite() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true)
+                    .withDeferredIndexing(true).build()).build());
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SequenceService sequence =
+        inject.getInstance(Key.get(SequenceService.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    for (int i = 0; i < 5; i++) {
+      store.create("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    Assert.assertTrue(index.awaitIndexes(10, TimeUnit.SECONDS));
+    long watermark = index.getIndexWatermark();
+
+    List<ResolvedKey> resolvedKeys = new ArrayList<ResolvedKey>();
+
+    for (io.kazuki.v0.store.Key key : sequence.nextKeys("foo", 2)) {
+      resolvedKeys.add(sequence.resolveKey(key));
+    }
+
+    // the second entity breaks the unique index after the first one was queued
+    try {
+      ((KeyValueStoreJdbiBaseImpl) store).createAll("foo", Foo.class,
+          ImmutableList.of(new Foo("kNew", "vNew"), new Foo("k0", "v0")), resolvedKeys,
+          TypeValidation.STRICT);
+      Assert.fail("expected unique index constraint violation");
+    } catch (Exception expected) {
+      // nothing was created or queued
+    }
+
+    Assert.assertTrue(index.awaitIndexes(10, TimeUnit.SECONDS));
+    Assert.assertEquals(index.getIndexWatermark(), watermark);
+
+    store.create("foo", Foo.class, new Foo("k5", "v5"), TypeValidation.STRICT);
+
+    Assert.assertTrue(index.awaitIndexes(10, TimeUnit.SECONDS));
+    Assert.assertTrue(index.getIndexWatermark() > watermark);
+    Assert.assertEquals(index.count("foo", "fooKey", "fooKey eq \"kNew\""), 0L);
+    Assert.assertEquals(index.count("foo", "fooKey", ""), 6L);
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void testHashedUniqueIndex() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    List<io.kazuki.v0.store.Key> keys = new ArrayList<io.kazuki.v0.store.Key>();
+
+    for (int i = 0; i < 30; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + (i % 3), "v" + i),
+          TypeValidation.STRICT).getKey());
+    }
+
+    // switching the unique index to a hashed key rebuilds it online
+    IndexDefinition unique = Foo.FOO_SCHEMA.getIndex("uniqueFooKeyValue");
+    Schema hashed =
+        new Schema(Foo.FOO_SCHEMA.getAttributes(), ImmutableList.of(new IndexDefinition(
+            unique.getName(), unique.getIndexAttributes(), true, true), Foo.FOO_SCHEMA
+            .getIndex("fooKey")));
+
+    manager.updateSchema("foo", version, hashed);
+
+    Assert.assertTrue(index.awaitIndexBuild("foo", 60, TimeUnit.SECONDS));
+    Assert.assertTrue(manager.retrieveSchema("foo").getValue().getIndex("uniqueFooKeyValue")
+        .isHashed());
+
+    try {
+      store.create("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT);
+      Assert.fail("expected unique index constraint violation");
+    } catch (Exception expected) {
+      // ok
+    }
+
+    UniqueEntityDescription k0v0 =
+        new UniqueEntityDescription("foo", Foo.class, "uniqueFooKeyValue", hashed,
+            ImmutableMap.of("fooKey", new ValueHolder(ValueType.STRING, "k0"), "fooValue",
+                new ValueHolder(ValueType.STRING, "v0")));
+    UniqueEntityDescription k0v1 =
+        new UniqueEntityDescription("foo", Foo.class, "uniqueFooKeyValue", hashed,
+            ImmutableMap.of("fooKey", new ValueHolder(ValueType.STRING, "k0"), "fooValue",
+                new ValueHolder(ValueType.STRING, "v1")));
+
+    Map<UniqueEntityDescription, io.kazuki.v0.store.Key> found =
+        index.multiRetrieveUniqueKeys((Collection<UniqueEntityDescription>) ImmutableList.of(k0v0,
+            k0v1));
+
+    Assert.assertEquals(found.get(k0v0), keys.get(0));
+    Assert.assertNull(found.get(k0v1));
+
+    store.update(keys.get(0), Foo.class, new Foo("k0", "vX"));
+    io.kazuki.v0.store.Key recreated =
+        store.create("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT).getKey();
+
+    Assert.assertEquals(
+        index.multiRetrieveUniqueKeys((Collection<UniqueEntityDescription>) ImmutableList.of(k0v0))
+            .get(k0v0), recreated);
+    Assert.assertEquals(index.count("foo", "uniqueFooKeyValue", "fooKey eq \"k0\""), 11L);
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  @SuppressWarnings({"rawtypes", "unchecked"})
+  public void testBloomFilters() throws Exception {
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("foo")
+            .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+            .withSequenceServiceConfiguration("foo",
+                Configurations.getSequence("foo", "foo").build())
+            .withKeyValueStoreConfiguration("foo",
+                Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true)
+                    .withBloomFilters(true).build()).build());
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStoreJdbiImpl index =
+        (SecondaryIndexStoreJdbiImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    List<io.kazuki.v0.store.Key> keys = new ArrayList<io.kazuki.v0.store.Key>();
+
+    for (int i = 0; i < 30; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + (i % 3), "v" + i),
+          TypeValidation.STRICT).getKey());
+    }
+
+    UniqueEntityDescription k0v0 =
+        new UniqueEntityDescription("foo", Foo.class, "uniqueFooKeyValue", Foo.FOO_SCHEMA,
+            ImmutableMap.of("fooKey", new ValueHolder(ValueType.STRING, "k0"), "fooValue",
+                new ValueHolder(ValueType.STRING, "v0")));
+    UniqueEntityDescription k0v1 =
+        new UniqueEntityDescription("foo", Foo.class, "uniqueFooKeyValue", Foo.FOO_SCHEMA,
+            ImmutableMap.of("fooKey", new ValueHolder(ValueType.STRING, "k0"), "fooValue",
+                new ValueHolder(ValueType.STRING, "v1")));
+    Collection<UniqueEntityDescription> descs =
+        (Collection<UniqueEntityDescription>) ImmutableList.of(k0v0, k0v1);
+
+    // the first lookup loads the filter in the background
+    Assert.assertEquals(index.multiRetrieveUniqueKeys(descs).get(k0v0), keys.get(0));
+
+    for (int i = 0; i < 100 && !index.isUniqueFilterLoaded("foo"); i++) {
+      Thread.sleep(50L);
+    }
+
+    Assert.assertTrue(index.isUniqueFilterLoaded("foo"));
+
+    Map<UniqueEntityDescription, io.kazuki.v0.store.Key> found =
+        index.multiRetrieveUniqueKeys(descs);
+
+    Assert.assertEquals(found.get(k0v0), keys.get(0));
+    Assert.assertNull(found.get(k0v1));
+
+    // writes after loading go into the filter
+    io.kazuki.v0.store.Key created =
+        store.create("foo", Foo.class, new Foo("k0", "v1"), TypeValidation.STRICT).getKey();
+
+    Assert.assertEquals(index.multiRetrieveUniqueKeys(descs).get(k0v1), created);
+
+    try {
+      store.create("foo", Foo.class, new Foo("k0", "v1"), TypeValidation.STRICT);
+      Assert.fail("expected unique index constraint violation");
+    } catch (Exception expected) {
+      // ok
+    }
+
+    io.kazuki.v0.store.Key missing = KeyImpl.createInternal("foo", 1000L);
+
+    for (io.kazuki.v0.store.Key key : keys) {
+      Assert.assertNotNull(store.retrieve(key, Foo.class));
+    }
+
+    Assert.assertNotNull(store.retrieve(created, Foo.class));
+    Assert.assertNull(store.retrieve(missing, Foo.class));
+    Assert.assertNull(store.multiRetrieve(ImmutableList.of(missing), Foo.class).get(missing));
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
 }
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.index;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Version;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.index.query.ValueHolder;
+import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueStore;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiBaseImpl;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.schema.model.AttributeTransform;
+import io.kazuki.v0.store.schema.model.IndexAttribute;
+import io.kazuki.v0.store.schema.model.IndexDefinition;
+import io.kazuki.v0.store.schema.model.Schema;
+import io.kazuki.v0.store.sequence.ResolvedKey;
+import io.kazuki.v0.store.sequence.SequenceService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+
+@Test
+public class SecondaryIndexStoreMemoryImplTest extends SecondaryIndexStoreTestBase {
+  @Override
+  protected Injector getInjector() {
+    return Guice.createInjector(new KazukiModule.Builder("foo")
+        .withJdbiConfiguration("foo", Configurations.getJdbi().build())
+        .withSequenceServiceConfiguration("foo", Configurations.getSequence("foo", "foo").build())
+        .withKeyValueStoreConfiguration(
+            "foo",
+            Configurations.getKeyValue("foo", "foo").withSecondaryIndex(true)
+                .withMemoryIndexTypes(ImmutableList.of("foo")).build()).build());
+  }
+
+  public void testMirror() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SecondaryIndexStoreMemoryImpl index =
+        (SecondaryIndexStoreMemoryImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    Version version = manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    List<io.kazuki.v0.store.Key> keys = new ArrayList<io.kazuki.v0.store.Key>();
+
+    for (int i = 0; i < 50; i++) {
+      keys.add(store.create("foo", Foo.class, new Foo("k" + (i % 10), "v" + i),
+          TypeValidation.STRICT).getKey());
+    }
+
+    Assert.assertTrue(index.awaitMirror("foo", 60, TimeUnit.SECONDS));
+
+    Assert.assertEquals(query(index, "fooKey", "fooKey eq \"k3\"", SortDirection.ASCENDING, null,
+        null), ImmutableList.of(keys.get(3), keys.get(13), keys.get(23), keys.get(33), keys.get(43)));
+
+    store.update(keys.get(3), Foo.class, new Foo("k9", "v3"));
+    store.delete(keys.get(13));
+
+    Assert.assertEquals(query(index, "fooKey", "fooKey eq \"k3\"", SortDirection.ASCENDING, null,
+        null), ImmutableList.of(keys.get(23), keys.get(33), keys.get(43)));
+    Assert.assertEquals(query(index, "fooKey", "fooKey ge \"k8\"", SortDirection.DESCENDING, 1L,
+        3L), ImmutableList.of(keys.get(39), keys.get(29), keys.get(19)));
+    Assert.assertEquals(query(index, "fooKey", "fooKey in (\"k9\", \"k1\") and fooKey lt \"k5\"",
+        SortDirection.ASCENDING, null, null), ImmutableList.of(keys.get(1), keys.get(11),
+        keys.get(21), keys.get(31), keys.get(41)));
+    Assert.assertEquals(query(index, "fooKey", "fooKey prefix \"k9\"", SortDirection.ASCENDING,
+        0L, 2L), ImmutableList.of(keys.get(3), keys.get(9)));
+    Assert.assertEquals(query(index, "uniqueFooKeyValue",
+        "fooKey eq \"k3\" and fooValue eq \"v33\"", SortDirection.ASCENDING, null, null),
+        ImmutableList.of(keys.get(33)));
+
+    UniqueEntityDescription<Foo> moved = unique("k9", "v3");
+    UniqueEntityDescription<Foo> gone = unique("k3", "v13");
+
+    Assert.assertEquals(new ArrayList<io.kazuki.v0.store.Key>(index.multiRetrieveUniqueKeys(
+        ImmutableList.<UniqueEntityDescription>of(moved, gone)).values()), Arrays.asList(
+        keys.get(3), null));
+
+    List<IndexDefinition> indexes = new ArrayList<IndexDefinition>(Foo.FOO_SCHEMA.getIndexes());
+    indexes.add(new IndexDefinition("fooValue", ImmutableList.of(new IndexAttribute("fooValue",
+        SortDirection.ASCENDING, AttributeTransform.UPPERCASE)), false));
+
+    manager.updateSchema("foo", version, new Schema(Foo.FOO_SCHEMA.getAttributes(), indexes));
+
+    Assert.assertTrue(index.awaitMirror("foo", 60, TimeUnit.SECONDS));
+
+    Assert.assertEquals(query(index, "fooValue", "fooValue eq \"v7\"", SortDirection.ASCENDING,
+        null, null), ImmutableList.of(keys.get(7)));
+    Assert.assertEquals(query(index, "fooValue", "fooValue prefix \"v4\"",
+        SortDirection.ASCENDING, null, null), ImmutableList.of(keys.get(4), keys.get(40),
+        keys.get(41), keys.get(42), keys.get(43), keys.get(44), keys.get(45), keys.get(46),
+        keys.get(47), keys.get(48), keys.get(49)));
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  public void testRolledBackWrite() throws Exception {
+    Injector inject = getInjector();
+
+    Lifecycle lifecycle = inject.getInstance(Key.get(Lifecycle.class, Names.named("foo")));
+    KeyValueStore store = inject.getInstance(Key.get(KeyValueStore.class, Names.named("foo")));
+    SchemaStore manager = inject.getInstance(Key.get(SchemaStore.class, Names.named("foo")));
+    SequenceService sequence =
+        inject.getInstance(Key.get(SequenceService.class, Names.named("foo")));
+    SecondaryIndexStoreMemoryImpl index =
+        (SecondaryIndexStoreMemoryImpl) inject.getInstance(Key.get(SecondaryIndexStore.class,
+            Names.named("foo")));
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+
+    io.kazuki.v0.store.Key existing =
+        store.create("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT).getKey();
+
+    Assert.assertTrue(index.awaitMirror("foo", 60, TimeUnit.SECONDS));
+
+    List<io.kazuki.v0.store.Key> newKeys = sequence.nextKeys("foo", 2);
+    List<ResolvedKey> resolvedKeys = new ArrayList<ResolvedKey>();
+
+    for (io.kazuki.v0.store.Key key : newKeys) {
+      resolvedKeys.add(sequence.resolveKey(key));
+    }
+
+    // the second entity breaks the unique index, rolling back the first one with it
+    try {
+      ((KeyValueStoreJdbiBaseImpl) store).createAll("foo", Foo.class,
+          ImmutableList.of(new Foo("kNew", "vNew"), new Foo("k0", "v0")), resolvedKeys,
+          TypeValidation.STRICT);
+      Assert.fail("expected unique index constraint violation");
+    } catch (Exception expected) {
+      // nothing was created
+    }
+
+    Assert.assertNull(store.retrieve(newKeys.get(0), Foo.class));
+    Assert.assertTrue(index.isMirrored("foo"));
+    Assert.assertEquals(query(index, "fooKey", "fooKey eq \"kNew\"", SortDirection.ASCENDING,
+        null, null), ImmutableList.of());
+    Assert.assertEquals(query(index, "fooKey", "fooKey ge \"k\"", SortDirection.ASCENDING,
+        null, null), ImmutableList.of(existing));
+
+    store.clear(false, false);
+    lifecycle.shutdown();
+  }
+
+  private static List<io.kazuki.v0.store.Key> query(SecondaryIndexStore index, String indexName,
+      String query, SortDirection sortDirection, Long offset, Long limit) throws Exception {
+    try (KeyValueIterable<io.kazuki.v0.store.Key> iter =
+        index.queryWithoutPagination("foo", Foo.class, indexName, query, sortDirection, offset,
+            limit)) {
+      return ImmutableList.copyOf(iter);
+    }
+  }
+
+  private static UniqueEntityDescription<Foo> unique(String fooKey, String fooValue) {
+    return new UniqueEntityDescription<Foo>("foo", Foo.class, "uniqueFooKeyValue",
+        Foo.FOO_SCHEMA, ImmutableMap.of("fooKey", new ValueHolder(ValueType.STRING, fooKey),
+            "fooValue", new ValueHolder(ValueType.STRING, fooValue)));
+  }
+}
@@ -8,6 +8,7 @@ import io.kazuki.v0.store.index.query.QueryBuilder;
 import io.kazuki.v0.store.index.query.QueryOperator;
 import io.kazuki.v0.store.index.query.ValueHolder;
 import io.kazuki.v0.store.index.query.ValueType;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
 import io.kazuki.v0.store.keyvalue.KeyValueIterator;
 import io.kazuki.v0.store.keyvalue.KeyValuePair;
 import io.kazuki.v0.store.keyvalue.KeyValueStore;
@@ -26,6 +27,7 @@ import org.testng.annotations.Test;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.inject.Injector;
 import com.google.inject.name.Names;
 
@@ -229,6 +231,78 @@ public abstract class SecondaryIndexStoreTestBase extends TestSupport {
 
     Assert.assertFalse(iter.hasNext());
 
+    try (KeyValueIterator<Key> planned =
+        index.queryWithoutPagination("foo", Foo.class,
+            "fooKey eq \"k00\" and fooValue ne \"v99\"", SortDirection.ASCENDING, null, null)
+            .iterator()) {
+      Assert.assertTrue(planned.hasNext());
+      Assert.assertEquals(k5, planned.next());
+
+      Assert.assertFalse(planned.hasNext());
+    }
+
+    try (KeyValueIterator<Key> planned =
+        index.queryWithoutPagination("foo", Foo.class, "fooValue eq \"v55\"",
+            SortDirection.ASCENDING, 1L, 1L).iterator()) {
+      Assert.assertTrue(planned.hasNext());
+      Assert.assertEquals(k5, planned.next());
+
+      Assert.assertFalse(planned.hasNext());
+    }
+
+    try (KeyValueIterable<Key> prefixed =
+        index.queryWithoutPagination("foo", Foo.class, "fooKey", "fooKey prefix \"k\"",
+            SortDirection.ASCENDING, null, null)) {
+      Assert.assertEquals(ImmutableSet.of(k0, k1, k2, k3, k4, k5), ImmutableSet.copyOf(prefixed));
+    }
+
+    try (KeyValueIterator<Key> prefixed =
+        index.queryWithoutPagination("foo", Foo.class, "fooKey", "fooKey prefix \"k0\"",
+            SortDirection.ASCENDING, null, null).iterator()) {
+      Assert.assertTrue(prefixed.hasNext());
+      Assert.assertEquals(k0, prefixed.next());
+
+      Assert.assertTrue(prefixed.hasNext());
+      Assert.assertEquals(k5, prefixed.next());
+
+      Assert.assertFalse(prefixed.hasNext());
+    }
+
+    try (KeyValueIterator<Key> planned =
+        index.queryWithoutPagination("foo", Foo.class, "fooValue prefix \"v5\"",
+            SortDirection.ASCENDING, null, null).iterator()) {
+      Assert.assertTrue(planned.hasNext());
+      Assert.assertEquals(k4, planned.next());
+
+      Assert.assertTrue(planned.hasNext());
+      Assert.assertEquals(k5, planned.next());
+
+      Assert.assertFalse(planned.hasNext());
+    }
+
+    Assert.assertEquals(2L, index.count("foo", "fooKey", "fooKey eq \"k00\""));
+    Assert.assertEquals(6L, index.count("foo", "fooKey", ""));
+    Assert.assertEquals(0L, index.count("foo", "fooKey", "fooKey gt \"k99\""));
+    Assert.assertEquals(2L, index.count("foo", "uniqueFooKeyValue", "fooValue eq \"v55\""));
+
+    Assert.assertEquals("v55",
+        index.min("foo", "uniqueFooKeyValue", "fooValue", "fooKey eq \"k00\""));
+    Assert.assertEquals("v99",
+        index.max("foo", "uniqueFooKeyValue", "fooValue", "fooKey eq \"k00\""));
+    Assert.assertEquals("k44", index.max("foo", "fooKey", "fooKey", ""));
+    Assert.assertNull(index.min("foo", "fooKey", "fooKey", "fooKey gt \"k99\""));
+
+    Assert.assertEquals(ImmutableList.of("k00", "k11", "k22", "k33", "k44"), ImmutableList
+        .copyOf(index.countGroupedBy("foo", "fooKey", "").keySet()));
+    Assert.assertEquals(ImmutableMap.of("k00", 2L, "k11", 1L, "k22", 1L, "k33", 1L, "k44", 1L),
+        index.countGroupedBy("foo", "fooKey", ""));
+    Assert.assertEquals(ImmutableMap.of("k00", 1L), index.countGroupedBy("foo",
+        "uniqueFooKeyValue", "fooValue eq \"v55\" and fooKey lt \"k10\""));
+
+    Assert.assertEquals(SecondaryIndexTableHelper.getPrefixUpperBound("k3"), "k4");
+    Assert.assertEquals(SecondaryIndexTableHelper.getPrefixUpperBound("k\uffff"), "l");
+    Assert.assertNull(SecondaryIndexTableHelper.getPrefixUpperBound(""));
+
     store.clear(false, false);
   }
 }
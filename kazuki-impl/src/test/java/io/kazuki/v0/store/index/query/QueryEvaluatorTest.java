@@ -14,9 +14,16 @@
  */
 package io.kazuki.v0.store.index.query;
 
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+
 @Test
 public class QueryEvaluatorTest {
   private QueryEvaluator e = new QueryEvaluator();
@@ -87,6 +94,101 @@ public class QueryEvaluatorTest {
     assertAll(false, "a", s("bbb"), QueryOperator.EQ, QueryOperator.GT, QueryOperator.GE);
   }
 
+  public void testLargeIntegerComparisons() {
+    assertAll(true, Long.MAX_VALUE, i("9223372036854775808"), QueryOperator.NE,
+        QueryOperator.LT, QueryOperator.LE);
+    assertAll(true, Integer.valueOf(-1), i("-9223372036854775809"), QueryOperator.NE,
+        QueryOperator.GT, QueryOperator.GE);
+    assertAll(true, new BigInteger("9223372036854775808"), i("9223372036854775808"),
+        QueryOperator.EQ, QueryOperator.GE, QueryOperator.LE);
+    assertAll(false, "1.5", i("1"), QueryOperator.EQ, QueryOperator.NE, QueryOperator.GT);
+  }
+
+  public void testDecimalIntegerInstances() {
+    assertAll(true, Long.valueOf(1), d("1.0"), QueryOperator.EQ, QueryOperator.GE,
+        QueryOperator.LE);
+    assertAll(true, Double.valueOf(0.1), d("0.1"), QueryOperator.EQ);
+    assertAll(true, Double.valueOf(0.1), d("0.10000000000000000001"), QueryOperator.LT);
+    assertAll(false, Double.NaN, d("1.0"), QueryOperator.EQ, QueryOperator.NE);
+  }
+
+  public void testBooleanAndNull() {
+    ValueHolder t = new ValueHolder(ValueType.BOOLEAN, "true");
+    ValueHolder n = new ValueHolder(ValueType.NULL, "null");
+
+    assertAll(true, Boolean.TRUE, t, QueryOperator.EQ);
+    assertAll(true, "true", t, QueryOperator.EQ);
+    assertAll(true, Boolean.FALSE, t, QueryOperator.NE, QueryOperator.LT);
+
+    assertAll(true, null, n, QueryOperator.EQ);
+    assertAll(true, "x", n, QueryOperator.NE);
+    assertAll(false, null, s("x"), QueryOperator.EQ, QueryOperator.NE);
+  }
+
+  public void testIn() {
+    Predicate<Map<String, Object>> ints =
+        e.compile(ImmutableList.of(new QueryTerm(QueryOperator.IN, "x", new ValueHolderList(
+            ImmutableList.of(i("3"), i("1"), i("99999999999999999999"))))));
+
+    Assert.assertTrue(ints.apply(map("x", 1L)));
+    Assert.assertTrue(ints.apply(map("x", 3)));
+    Assert.assertTrue(ints.apply(map("x", "3")));
+    Assert.assertTrue(ints.apply(map("x", new BigInteger("99999999999999999999"))));
+    Assert.assertFalse(ints.apply(map("x", 2L)));
+    Assert.assertFalse(ints.apply(map("y", 1L)));
+
+    Predicate<Map<String, Object>> strings =
+        e.compile(ImmutableList.of(new QueryTerm(QueryOperator.IN, "x", new ValueHolderList(
+            ImmutableList.of(s("a"), s("b"), new ValueHolder(ValueType.NULL, "null"))))));
+
+    Assert.assertTrue(strings.apply(map("x", "a")));
+    Assert.assertTrue(strings.apply(map("y", "a")));
+    Assert.assertFalse(strings.apply(map("x", "c")));
+  }
+
+  public void testCompiledConjunction() {
+    Predicate<Map<String, Object>> query =
+        e.compile(ImmutableList.of(new QueryTerm(QueryOperator.GE, "x", i("2")), new QueryTerm(
+            QueryOperator.EQ, "y", s("b"))));
+
+    Map<String, Object> instance = new HashMap<String, Object>();
+    instance.put("x", 2L);
+    instance.put("y", "b");
+    Assert.assertTrue(query.apply(instance));
+
+    instance.put("x", 1L);
+    Assert.assertFalse(query.apply(instance));
+  }
+
+  public void testPrefix() {
+    assertAll(true, "abc", s("ab"), QueryOperator.PREFIX);
+    assertAll(true, "ab", s("ab"), QueryOperator.PREFIX);
+    assertAll(true, "ab", s(""), QueryOperator.PREFIX);
+    assertAll(false, "a", s("ab"), QueryOperator.PREFIX);
+    assertAll(false, "xab", s("ab"), QueryOperator.PREFIX);
+    assertAll(false, null, s("ab"), QueryOperator.PREFIX);
+
+    try {
+      e.evaluate(QueryOperator.PREFIX, "1", i("1"));
+      Assert.fail("prefix requires a string value");
+    } catch (UnsupportedOperationException expected) {
+      // prefix of a number is not supported
+    }
+
+    Predicate<Map<String, Object>> query =
+        e.compile(QueryHelper.parseQuery("name prefix \"jo\""));
+
+    Assert.assertTrue(query.apply(map("name", "john")));
+    Assert.assertFalse(query.apply(map("name", "jim")));
+  }
+
+  private static Map<String, Object> map(String key, Object value) {
+    Map<String, Object> instance = new HashMap<String, Object>();
+    instance.put(key, value);
+
+    return instance;
+  }
+
   private void assertAll(boolean shouldBe, Object instance, ValueHolder target,
       QueryOperator... operators) {
     for (QueryOperator operator : operators) {
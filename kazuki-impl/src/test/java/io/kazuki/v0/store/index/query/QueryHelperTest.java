@@ -14,6 +14,7 @@
  */
 package io.kazuki.v0.store.index.query;
 
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.List;
 
@@ -47,4 +48,52 @@ public class QueryHelperTest {
     Assert.assertEquals(term2.getOperator(), QueryOperator.NE);
     Assert.assertEquals(term2.getValue().getValue(), new BigInteger("4"));
   }
+
+  public void cachedTest() {
+    List<QueryTerm> query = QueryHelper.parseQuery("a eq \"foo\" and b ne 4");
+    Assert.assertSame(query, QueryHelper.parseQuery("a eq \"foo\" and b ne 4"));
+
+    try {
+      query.add(new QueryTerm(QueryOperator.EQ, "c", new ValueHolder(ValueType.NULL, "null")));
+      Assert.fail("cached query should be immutable");
+    } catch (UnsupportedOperationException expected) {
+      // good
+    }
+  }
+
+  public void parameterTest() {
+    List<QueryTerm> query =
+        QueryHelper.parseQuery("a eq ? and b gt ? and c in (?, 7, ?) and d ne ?", "x\"y", 4L,
+            "z", 2.5, null);
+    Assert.assertEquals(query.size(), 4);
+
+    Assert.assertEquals(query.get(0).getValue().getValueType(), ValueType.STRING);
+    Assert.assertEquals(query.get(0).getValue().getValue(), "x\"y");
+
+    Assert.assertEquals(query.get(1).getOperator(), QueryOperator.GT);
+    Assert.assertEquals(query.get(1).getValue().getValue(), new BigInteger("4"));
+
+    List<ValueHolder> in = query.get(2).getValueList().getValueList();
+    Assert.assertEquals(in.get(0).getValue(), "z");
+    Assert.assertEquals(in.get(1).getValue(), new BigInteger("7"));
+    Assert.assertEquals(in.get(2).getValue(), new BigDecimal("2.5"));
+
+    Assert.assertEquals(query.get(3).getValue().getValueType(), ValueType.NULL);
+
+    List<QueryTerm> other =
+        QueryHelper.parseQuery("a eq ? and b gt ? and c in (?, 7, ?) and d ne ?", "other", 5L,
+            "z", 2.5, null);
+    Assert.assertEquals(other.get(0).getValue().getValue(), "other");
+    Assert.assertEquals(query.get(0).getValue().getValue(), "x\"y");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void unboundParameterTest() {
+    QueryHelper.parseQuery("a eq ?");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void parameterCountTest() {
+    QueryHelper.parseQuery("a eq ? and b eq ?", "x");
+  }
 }
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+public class PartitionDirectoryTest {
+  private final PartitionDirectory directory = PartitionDirectory.create(Arrays.asList(
+      new PartitionInfoSnapshot("1", 1L, 10L, 10L, true), new PartitionInfoSnapshot("2", 11L,
+          20L, 10L, true), new PartitionInfoSnapshot("3", 31L, 35L, 5L, false)));
+
+  @Test
+  public void testIdLookup() {
+    assertThat(directory.ceilingIndexOfId(0L), is(0));
+    assertThat(directory.ceilingIndexOfId(10L), is(0));
+    assertThat(directory.ceilingIndexOfId(11L), is(1));
+    assertThat(directory.ceilingIndexOfId(25L), is(2));
+    assertThat(directory.ceilingIndexOfId(35L), is(2));
+    assertThat(directory.ceilingIndexOfId(36L), is(3));
+  }
+
+  @Test
+  public void testOffsetLookup() {
+    assertThat(directory.getTotalSize(), is(25L));
+    assertThat(directory.indexOfOffset(0L), is(0));
+    assertThat(directory.indexOfOffset(9L), is(0));
+    assertThat(directory.indexOfOffset(10L), is(1));
+    assertThat(directory.indexOfOffset(24L), is(2));
+    assertThat(directory.indexOfOffset(25L), is(-1));
+    assertThat(directory.getStartOffset(2), is(20L));
+  }
+
+  @Test
+  public void testActiveOverlay() {
+    PartitionDirectory overlaid =
+        directory.withActive(new PartitionInfoSnapshot("3", 31L, 40L, 10L, false));
+
+    assertThat(overlaid.getTotalSize(), is(30L));
+    assertThat(overlaid.getSize(2), is(10L));
+    assertThat(overlaid.ceilingIndexOfId(40L), is(2));
+    assertThat(overlaid.indexOfOffset(29L), is(2));
+
+    assertThat(directory.withActive(new PartitionInfoSnapshot("4", 41L, 41L, 1L, false))
+        .getTotalSize(), is(25L));
+    assertThat(PartitionDirectory.EMPTY.getTotalSize(), is(0L));
+    assertThat(PartitionDirectory.EMPTY.indexOfOffset(0L), is(-1));
+  }
+}
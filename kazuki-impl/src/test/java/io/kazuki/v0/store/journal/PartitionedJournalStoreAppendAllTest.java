@@ -0,0 +1,132 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreAppendAllTest extends PartitionedJournalStoreTestBase {
+  @Test
+  public void testAppendAllAcrossPartitions() throws Exception {
+    start(journalConfig());
+
+    journal.append("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT);
+
+    List<Foo> values = new ArrayList<Foo>();
+    for (int i = 1; i <= 25; i++) {
+      values.add(new Foo("k" + i, "v" + i));
+    }
+
+    List<Key> keys = journal.appendAll("foo", Foo.class, values, TypeValidation.STRICT);
+
+    assertThat(keys.size(), is(25));
+
+    List<Long> sizes = new ArrayList<Long>();
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        sizes.add(partition.getSize());
+      }
+    }
+
+    assertThat(sizes.toString(), is("[10, 10, 6]"));
+    assertThat(journal.getActivePartition().getMaxId(), is(26L));
+
+    int i = 0;
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null)) {
+      for (KeyValuePair<Foo> entry : entries) {
+        assertThat(entry.getValue().getFooKey(), is("k" + i));
+
+        if (i > 0) {
+          assertThat(entry.getKey(), is(keys.get(i - 1)));
+        }
+
+        i++;
+      }
+    }
+
+    assertThat(i, is(26));
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    start(journalConfig().withGroupCommit(true));
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<List<Key>>> futures = new ArrayList<Future<List<Key>>>();
+
+    try {
+      for (int t = 0; t < 4; t++) {
+        final int thread = t;
+
+        futures.add(executor.submit(new Callable<List<Key>>() {
+          @Override
+          public List<Key> call() throws Exception {
+            List<Key> keys = new ArrayList<Key>();
+
+            for (int i = 0; i < 50; i++) {
+              keys.add(journal.append("foo", Foo.class, new Foo("t" + thread, "v" + i),
+                  TypeValidation.STRICT));
+            }
+
+            return keys;
+          }
+        }));
+      }
+
+      Set<Key> allKeys = new HashSet<Key>();
+
+      for (Future<List<Key>> future : futures) {
+        allKeys.addAll(future.get());
+      }
+
+      assertThat(allKeys.size(), is(200));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(journal.approximateSize(), is(200L));
+
+    List<String> values = new ArrayList<String>();
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null)) {
+      for (KeyValuePair<Foo> entry : entries) {
+        values.add(entry.getValue().getFooKey() + "/" + entry.getValue().getFooValue());
+      }
+    }
+
+    assertThat(values.size(), is(200));
+    assertThat(new HashSet<String>(values).size(), is(200));
+    assertThat(Collections.frequency(values, "t0/v49"), is(1));
+  }
+}
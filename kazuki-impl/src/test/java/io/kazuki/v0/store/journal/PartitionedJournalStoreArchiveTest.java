@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreArchiveTest extends PartitionedJournalStoreTestBase {
+  private File archiveDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    archiveDir = Files.createTempDirectory("kazuki-archive").toFile();
+
+    start(journalConfig().withArchiveDirectory(archiveDir.getPath()));
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void deleteArchive() {
+    for (File file : archiveDir.listFiles()) {
+      file.delete();
+    }
+
+    archiveDir.delete();
+  }
+
+  @Test
+  public void testSealedReads() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    journal.sealPartitions();
+
+    List<PartitionInfoSnapshot> partitions = getPartitions();
+    assertThat(partitions.size(), is(3));
+    assertThat(partitions.get(0).getArchivePath(), notNullValue());
+    assertThat(new File(partitions.get(0).getArchivePath()).isFile(), is(true));
+    assertThat(partitions.get(1).getArchivePath(), notNullValue());
+    assertThat(partitions.get(2).getArchivePath(), nullValue());
+
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 25; i++) {
+      expected.add("v" + i);
+    }
+
+    assertThat(values(journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null)),
+        is(expected));
+    assertThat(
+        values(journal.entriesRelative("foo", Foo.class, SortDirection.DESCENDING, 14L, 2L))
+            .toString(), is("[v10, v9]"));
+    assertThat(
+        values(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 7L, 5L))
+            .toString(), is("[v7, v8, v9, v10, v11]"));
+
+    try (JournalTail<Foo> tail = journal.tail("foo", Foo.class, 18L)) {
+      assertThat(tail.poll(3, 1, TimeUnit.SECONDS).get(0).getValue().getFooValue(), is("v18"));
+    }
+
+    // nothing left to seal
+    journal.sealPartitions();
+    assertThat(getPartitions().get(0).getArchivePath(), is(partitions.get(0).getArchivePath()));
+
+    String sealedPath = partitions.get(0).getArchivePath();
+    assertThat(journal.isSegmentCached(sealedPath), is(true));
+
+    assertThat(journal.dropPartition(partitions.get(0).getPartitionId()), is(true));
+    assertThat(journal.isSegmentCached(sealedPath), is(false));
+    assertThat(journal.approximateSize(), is(15L));
+    assertThat(values(journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, 1L))
+        .toString(), is("[v10]"));
+  }
+
+  @Test
+  public void testTooLargeToSeal() throws Exception {
+    journal.setSegmentMaxBytes(64L);
+
+    for (int i = 0; i < 15; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    journal.sealPartitions();
+
+    // the closed partition stays in its table, with nothing left in the archive
+    assertThat(getPartitions().get(0).getArchivePath(), nullValue());
+    assertThat(archiveDir.list().length, is(0));
+    assertThat(
+        values(journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 8L, 3L))
+            .toString(), is("[v8, v9, v10]"));
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreCompactionTest extends PartitionedJournalStoreTestBase {
+  @BeforeMethod
+  public void setUp() throws Exception {
+    start(journalConfig().withCompactionKey("fooKey"));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    // ids 1..30 in three closed partitions, the key cycling through k0..k4
+    for (int i = 0; i < 30; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + (i % 5), "v" + i), TypeValidation.STRICT);
+    }
+
+    journal.append("foo", Foo.class, new Foo("k0", "v30"), TypeValidation.STRICT);
+
+    journal.compactPartitions();
+
+    List<String> sizes = new ArrayList<String>();
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        sizes.add(partition.getSize() + ":" + partition.isCompacted() + ":"
+            + partition.getGeneration());
+      }
+    }
+
+    assertThat(sizes.toString(), is("[0:true:1, 0:true:1, 4:true:1, 1:false:0]"));
+    assertThat(journal.approximateSize(), is(5L));
+
+    assertThat(
+        values(journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null))
+            .toString(), is("[v26, v27, v28, v29, v30]"));
+    assertThat(
+        values(journal.entriesRelative("foo", Foo.class, SortDirection.DESCENDING, 1L, 2L))
+            .toString(), is("[v29, v28]"));
+    assertThat(
+        values(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 0L, null))
+            .toString(), is("[v26, v27, v28, v29, v30]"));
+    assertThat(
+        values(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 28L, 2L))
+            .toString(), is("[v28, v29]"));
+
+    try (JournalTail<Foo> tail = journal.tail("foo", Foo.class, 27L)) {
+      List<String> tailed = new ArrayList<String>();
+
+      for (KeyValuePair<Foo> entry : tail.poll(10, 1, TimeUnit.SECONDS)) {
+        tailed.add(entry.getValue().getFooValue());
+      }
+
+      assertThat(tailed.toString(), is("[v27, v28, v29, v30]"));
+    }
+
+    // nothing left to compact
+    journal.compactPartitions();
+    assertThat(journal.approximateSize(), is(5L));
+  }
+
+  @Test
+  public void testIncrementalCompaction() throws Exception {
+    for (int i = 0; i < 31; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + (i % 5), "v" + i), TypeValidation.STRICT);
+    }
+
+    journal.compactPartitions();
+    assertThat(partitions(), is("[0:true:1, 0:true:1, 4:true:1, 1:false:0]"));
+
+    // ids 32..51 close two more partitions, superseding every key of the compacted ones
+    for (int i = 31; i < 51; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + (i % 5), "v" + i), TypeValidation.STRICT);
+    }
+
+    journal.compactPartitions();
+
+    // the partitions below the watermark are not rewritten again
+    assertThat(partitions(), is("[0:true:1, 0:true:1, 4:true:1, 0:true:1, 4:true:1, 1:false:0]"));
+  }
+
+  @Test
+  public void testCompactionKeyBound() throws Exception {
+    journal.setCompactionMaxKeys(2);
+
+    for (int i = 0; i < 31; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + (i % 5), "v" + i), TypeValidation.STRICT);
+    }
+
+    journal.compactPartitions();
+
+    // only k0 and k1 are tracked, the entries of the other keys are all kept
+    assertThat(partitions(), is("[6:true:1, 6:true:1, 7:true:1, 1:false:0]"));
+    assertThat(
+        values(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 21L, null))
+            .toString(), is("[v22, v23, v24, v26, v27, v28, v29, v30]"));
+  }
+
+  private String partitions() throws Exception {
+    List<String> sizes = new ArrayList<String>();
+
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        sizes.add(partition.getSize() + ":" + partition.isCompacted() + ":"
+            + partition.getGeneration());
+      }
+    }
+
+    return sizes.toString();
+  }
+}
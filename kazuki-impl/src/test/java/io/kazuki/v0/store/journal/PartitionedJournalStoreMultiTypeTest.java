@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreMultiTypeTest extends PartitionedJournalStoreTestBase {
+  @BeforeMethod(alwaysRun = true)
+  public void setUp() throws Exception {
+    start(journalConfig().withAdditionalDataTypes(Arrays.asList("baz")));
+
+    manager.createSchema("baz", Foo.FOO_SCHEMA);
+  }
+
+  private List<String> typedValues(KeyValueIterable<KeyValuePair<Foo>> entries) throws Exception {
+    List<String> values = new ArrayList<String>();
+
+    try (KeyValueIterable<KeyValuePair<Foo>> toClose = entries) {
+      for (KeyValuePair<Foo> entry : entries) {
+        values.add(entry.getKey().getTypePart() + "/" + entry.getValue().getFooValue());
+      }
+    }
+
+    return values;
+  }
+
+  @Test
+  public void testTypesShareOneLog() throws Exception {
+    // every third entry is a baz: ids 3, 6, ... 24
+    for (int i = 1; i <= 25; i++) {
+      String type = i % 3 == 0 ? "baz" : "foo";
+
+      assertThat(journal.append(type, Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT)
+          .getTypePart(), is(type));
+    }
+
+    journal.appendAll("baz", Foo.class, Arrays.asList(new Foo("k26", "v26")),
+        TypeValidation.STRICT);
+
+    assertThat(journal.approximateSize(), is(26L));
+
+    List<Long> sizes = new ArrayList<Long>();
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        sizes.add(partition.getSize());
+      }
+    }
+
+    assertThat(sizes.toString(), is("[10, 10, 6]"));
+
+    assertThat(
+        typedValues(journal.entriesRelative("baz", Foo.class, SortDirection.ASCENDING, 0L, null))
+            .toString(),
+        is("[baz/v3, baz/v6, baz/v9, baz/v12, baz/v15, baz/v18, baz/v21, baz/v24, baz/v26]"));
+    assertThat(
+        typedValues(journal.entriesRelative("baz", Foo.class, SortDirection.ASCENDING, 2L, 3L))
+            .toString(), is("[baz/v9, baz/v12, baz/v15]"));
+    assertThat(
+        typedValues(journal.entriesRelative("baz", Foo.class, SortDirection.DESCENDING, 1L, 2L))
+            .toString(), is("[baz/v24, baz/v21]"));
+    assertThat(
+        typedValues(journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 15L, null))
+            .toString(), is("[foo/v23, foo/v25]"));
+
+    assertThat(
+        typedValues(journal.entriesAbsolute("baz", Foo.class, SortDirection.ASCENDING, 7L, 4L))
+            .toString(), is("[baz/v9, baz/v12, baz/v15, baz/v18]"));
+    assertThat(
+        typedValues(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 18L, null))
+            .toString(), is("[foo/v19, foo/v20, foo/v22, foo/v23, foo/v25]"));
+
+    assertThat(typedValues(journal.replay("baz", Foo.class, 10L, 2, 2, true)).toString(),
+        is("[baz/v12, baz/v15, baz/v18, baz/v21, baz/v24, baz/v26]"));
+
+    try (JournalTail<Foo> tail = journal.tail("baz", Foo.class, 20L)) {
+      List<String> tailed = new ArrayList<String>();
+
+      for (KeyValuePair<Foo> entry : tail.poll(10, 0L, TimeUnit.MILLISECONDS)) {
+        tailed.add(entry.getValue().getFooValue());
+      }
+
+      assertThat(tailed.toString(), is("[v21, v24, v26]"));
+      assertThat(tail.getPosition(), is(26L));
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testRejectsOtherTypes() throws Exception {
+    journal.append("qux", Foo.class, new Foo("k", "v"), TypeValidation.STRICT);
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreJdbiBaseImpl;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStorePartitionCacheTest extends PartitionedJournalStoreTestBase {
+  private static final int EXTRA_PARTITIONS = 6;
+
+  @BeforeMethod(alwaysRun = true)
+  public void setUp() throws Exception {
+    start(journalConfig().withPartitionSize(2L));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedStores() throws Exception {
+    int closedCount = PartitionedJournalStore.PARTITION_STORE_CACHE_SIZE + EXTRA_PARTITIONS;
+    int appendCount = closedCount * 2 + 1;
+
+    for (int i = 0; i < appendCount; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    List<PartitionInfoSnapshot> partitions = new ArrayList<PartitionInfoSnapshot>();
+
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        partitions.add(partition);
+      }
+    }
+
+    assertThat(partitions.size(), is(closedCount + 1));
+
+    PartitionInfoSnapshot active = partitions.get(closedCount);
+    assertThat(active.isClosed(), is(false));
+
+    // the active store becomes the least recently used partition store
+    KeyValueStoreJdbiBaseImpl activeStore = journal.getPartitionStore(active);
+    KeyValueStoreJdbiBaseImpl firstStore = journal.getPartitionStore(partitions.get(0));
+    assertThat(journal.getPartitionStore(partitions.get(0)) == firstStore, is(true));
+
+    for (int i = 0; i < closedCount; i++) {
+      journal.getPartitionStore(partitions.get(i));
+    }
+
+    // the cache holds the metadata store, the active store and the most recent closed stores
+    int evictedCount = closedCount + 2 - PartitionedJournalStore.PARTITION_STORE_CACHE_SIZE;
+
+    for (int i = 0; i < closedCount; i++) {
+      assertThat(journal.isPartitionStoreCached(partitions.get(i)), is(i >= evictedCount));
+    }
+
+    assertThat(journal.isPartitionStoreCached(active), is(true));
+    assertThat(journal.getPartitionStore(active) == activeStore, is(true));
+    assertThat(journal.getPartitionStore(partitions.get(0)) == firstStore, is(false));
+
+    // reads through freshly created stores still see every entry
+    int count = 0;
+
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null)) {
+      for (KeyValuePair<Foo> entry : entries) {
+        assertThat(entry.getValue().getFooValue(), is("v" + count));
+        count++;
+      }
+    }
+
+    assertThat(count, is(appendCount));
+  }
+}
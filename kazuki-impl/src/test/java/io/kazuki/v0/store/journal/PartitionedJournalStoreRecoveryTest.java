@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Iterables;
+
+public class PartitionedJournalStoreRecoveryTest extends PartitionedJournalStoreTestBase {
+  @BeforeMethod(alwaysRun = true)
+  public void setUp() throws Exception {
+    start(journalConfig());
+  }
+
+  @Test
+  public void testRecoverActivePartition() throws Exception {
+    for (int i = 0; i < 15; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    // partition info is kept in memory between checkpoints
+    assertThat(journal.getActivePartition().getSize(), is(5L));
+    assertThat(journal.getActivePartition().getMaxId(), is(15L));
+
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      assertThat(Iterables.getLast(parts).getSize(), is(5L));
+    }
+
+    // re-initializing without a shutdown recovers the exact values from the partition itself
+    lifecycle.init();
+
+    assertThat(journal.getActivePartition().getSize(), is(5L));
+    assertThat(journal.getActivePartition().getMaxId(), is(15L));
+
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.entriesRelative("foo", Foo.class, null, 12L, null)) {
+      assertThat(Iterables.size(entries), is(3));
+    }
+
+    journal.append("foo", Foo.class, new Foo("k15", "v15"), TypeValidation.STRICT);
+
+    assertThat(journal.getActivePartition().getSize(), is(6L));
+    assertThat(journal.approximateSize(), is(16L));
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValueIterator;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreReplayTest extends PartitionedJournalStoreTestBase {
+  @BeforeMethod(alwaysRun = true)
+  public void setUp() throws Exception {
+    start(journalConfig());
+
+    for (int i = 0; i < 35; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+  }
+
+  private List<String> replay(long offset, int parallelism, int readAhead, boolean ordered)
+      throws Exception {
+    List<String> values = new ArrayList<String>();
+
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.replay("foo", Foo.class, offset, parallelism, readAhead, ordered)) {
+      for (KeyValuePair<Foo> entry : entries) {
+        values.add(entry.getValue().getFooValue());
+      }
+    }
+
+    return values;
+  }
+
+  @Test
+  public void testOrderedReplay() throws Exception {
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 35; i++) {
+      expected.add("v" + i);
+    }
+
+    assertThat(replay(0L, 3, 4, true), is(expected));
+    assertThat(replay(0L, 1, 1, true), is(expected));
+    assertThat(replay(12L, 2, 4, true), is(expected.subList(12, 35)));
+    assertThat(replay(35L, 2, 4, true).size(), is(0));
+  }
+
+  @Test
+  public void testUnorderedReplay() throws Exception {
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < 35; i++) {
+      expected.add("v" + i);
+    }
+
+    List<String> values = replay(0L, 4, 2, false);
+
+    assertThat(values.size(), is(35));
+    assertThat(new HashSet<String>(values), is(expected));
+  }
+
+  @Test
+  public void testCloseEarly() throws Exception {
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.replay("foo", Foo.class, 0L, 4, 1, true)) {
+      KeyValueIterator<KeyValuePair<Foo>> iter = entries.iterator();
+
+      assertThat(iter.next().getValue().getFooValue(), is("v0"));
+      assertThat(iter.next().getValue().getFooValue(), is("v1"));
+
+      iter.close();
+
+      assertThat(iter.hasNext(), is(false));
+    }
+
+    assertThat(replay(30L, 2, 2, true).toString(), is("[v30, v31, v32, v33, v34]"));
+  }
+}
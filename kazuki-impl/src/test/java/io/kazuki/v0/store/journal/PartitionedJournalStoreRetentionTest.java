@@ -0,0 +1,112 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreRetentionTest extends PartitionedJournalStoreTestBase {
+  private void append(int count) throws Exception {
+    for (int i = 0; i < count; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+  }
+
+  @Test
+  public void testRollByAge() throws Exception {
+    start(Configurations.getKeyValue("bar", "barstore").withPartitionSize(1000L)
+        .withPartitionMaxAgeMillis(50L));
+
+    append(3);
+    Thread.sleep(100L);
+    journal.runMaintenance();
+
+    assertThat(journal.getActivePartition() == null, is(true));
+
+    append(2);
+
+    List<PartitionInfoSnapshot> partitions = getPartitions();
+    assertThat(partitions.size(), is(2));
+    assertThat(partitions.get(0).isClosed(), is(true));
+    assertThat(partitions.get(0).getSize(), is(3L));
+    assertThat(partitions.get(0).getClosedAt(), greaterThan(0L));
+    assertThat(partitions.get(1).getSize(), is(2L));
+  }
+
+  @Test
+  public void testRollByBytes() throws Exception {
+    start(Configurations.getKeyValue("bar", "barstore").withPartitionSize(1000L)
+        .withPartitionMaxBytes(1L));
+
+    append(3);
+    journal.runMaintenance();
+
+    List<PartitionInfoSnapshot> partitions = getPartitions();
+    assertThat(partitions.size(), is(1));
+    assertThat(partitions.get(0).isClosed(), is(true));
+    assertThat(partitions.get(0).getByteSize(), greaterThan(0L));
+  }
+
+  @Test
+  public void testRetentionByAge() throws Exception {
+    start(Configurations.getKeyValue("bar", "barstore").withPartitionSize(10L)
+        .withRetentionMillis(50L));
+
+    append(20);
+    Thread.sleep(100L);
+    append(5);
+    journal.runMaintenance();
+
+    List<PartitionInfoSnapshot> partitions = getPartitions();
+    assertThat(partitions.size(), is(1));
+    assertThat(partitions.get(0).getMinId(), is(21L));
+    assertThat(journal.approximateSize(), is(5L));
+
+    int count = 0;
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null)) {
+      for (KeyValuePair<Foo> entry : entries) {
+        count++;
+      }
+    }
+
+    assertThat(count, is(5));
+  }
+
+  @Test
+  public void testRetentionBySize() throws Exception {
+    start(Configurations.getKeyValue("bar", "barstore").withPartitionSize(10L)
+        .withRetentionMaxBytes(1L));
+
+    append(35);
+    journal.runMaintenance();
+
+    List<PartitionInfoSnapshot> partitions = getPartitions();
+    assertThat(partitions.size(), is(1));
+    assertThat(partitions.get(0).isClosed(), is(false));
+    assertThat(partitions.get(0).getSize(), is(5L));
+  }
+}
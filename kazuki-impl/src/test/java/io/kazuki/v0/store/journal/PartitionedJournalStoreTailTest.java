@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.schema.TypeValidation;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PartitionedJournalStoreTailTest extends PartitionedJournalStoreTestBase {
+  @BeforeMethod
+  public void setUp() throws Exception {
+    start(journalConfig());
+  }
+
+  @Test
+  public void testTailAcrossPartitions() throws Exception {
+    for (int i = 0; i < 25; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + i, "v" + i), TypeValidation.STRICT);
+    }
+
+    try (JournalTail<Foo> tail = journal.tail("foo", Foo.class, 0L)) {
+      List<KeyValuePair<Foo>> first = tail.poll(8, 1, TimeUnit.SECONDS);
+      assertThat(first.size(), is(8));
+      assertThat(first.get(0).getValue().getFooKey(), is("k0"));
+      assertThat(tail.getPosition(), is(8L));
+
+      List<KeyValuePair<Foo>> second = tail.poll(100, 1, TimeUnit.SECONDS);
+      assertThat(second.size(), is(17));
+      assertThat(second.get(0).getValue().getFooKey(), is("k8"));
+      assertThat(second.get(16).getValue().getFooKey(), is("k24"));
+      assertThat(tail.getPosition(), is(25L));
+
+      assertThat(tail.poll(10, 50, TimeUnit.MILLISECONDS).isEmpty(), is(true));
+    }
+
+    try (JournalTail<Foo> tail = journal.tail("foo", Foo.class, 12L)) {
+      List<KeyValuePair<Foo>> rest = tail.poll(100, 1, TimeUnit.SECONDS);
+      assertThat(rest.size(), is(13));
+      assertThat(rest.get(0).getValue().getFooKey(), is("k12"));
+    }
+  }
+
+  @Test
+  public void testTailWakesOnAppend() throws Exception {
+    journal.append("foo", Foo.class, new Foo("k0", "v0"), TypeValidation.STRICT);
+
+    final JournalTail<Foo> tail = journal.tail("foo", Foo.class, 1L);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try {
+      Future<List<KeyValuePair<Foo>>> polled =
+          executor.submit(new Callable<List<KeyValuePair<Foo>>>() {
+            @Override
+            public List<KeyValuePair<Foo>> call() throws Exception {
+              return tail.poll(10, 30, TimeUnit.SECONDS);
+            }
+          });
+
+      Thread.sleep(100L);
+      long appended = System.nanoTime();
+      journal.append("foo", Foo.class, new Foo("k1", "v1"), TypeValidation.STRICT);
+
+      List<KeyValuePair<Foo>> entries = polled.get(10, TimeUnit.SECONDS);
+      assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - appended), lessThan(5L));
+      assertThat(entries.size(), is(1));
+      assertThat(entries.get(0).getValue().getFooKey(), is("k1"));
+      assertThat(tail.getPosition(), is(2L));
+    } finally {
+      tail.close();
+      executor.shutdownNow();
+    }
+  }
+}
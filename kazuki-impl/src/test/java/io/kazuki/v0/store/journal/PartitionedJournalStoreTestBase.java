@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.TestSupport;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.jdbi.JdbiDataSourceConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreConfiguration;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+/**
+ * Base class of the PartitionedJournalStore tests: starts a journal store "bar" of data type foo
+ * (with the foo schema) on a fresh H2 database, and shuts it down and deletes the database after
+ * each test.
+ */
+public abstract class PartitionedJournalStoreTestBase extends TestSupport {
+  protected String dbName;
+  protected Lifecycle lifecycle;
+  protected SchemaStore manager;
+  protected PartitionedJournalStore journal;
+
+  /** The journal configuration used by most tests, partitions of 10 entries */
+  protected KeyValueStoreConfiguration.Builder journalConfig() {
+    return Configurations.getKeyValue("bar", "barstore").withPartitionSize(10L);
+  }
+
+  /** Starts the journal store with the given configuration, setting its data type and partition */
+  protected void start(KeyValueStoreConfiguration.Builder builder) throws Exception {
+    JdbiDataSourceConfiguration config = Configurations.getJdbi().build();
+    dbName = config.getJdbcUrl().substring("jdbc:h2:".length());
+
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("bar")
+            .withJdbiConfiguration("bar", config)
+            .withSequenceServiceConfiguration("bar",
+                Configurations.getSequence("bar", "barstore").build())
+            .withJournalStoreConfiguration("bar",
+                builder.withDataType("foo").withPartitionName("default").build()).build());
+
+    lifecycle = inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("bar")));
+    manager = inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("bar")));
+    journal =
+        (PartitionedJournalStore) inject.getInstance(com.google.inject.Key.get(JournalStore.class,
+            Names.named("bar")));
+
+    deleteFiles();
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void tearDown() throws Exception {
+    if (lifecycle != null) {
+      lifecycle.stop();
+      lifecycle.shutdown();
+      lifecycle = null;
+    }
+
+    if (dbName != null) {
+      deleteFiles();
+    }
+  }
+
+  private void deleteFiles() {
+    new File(dbName + ".h2.db").delete();
+    new File(dbName + ".trace.db").delete();
+    new File(dbName + ".lock.db").delete();
+  }
+
+  /** Returns the fooValue of each entry, closing the iterable */
+  protected List<String> values(KeyValueIterable<KeyValuePair<Foo>> entries) throws Exception {
+    List<String> values = new ArrayList<String>();
+
+    try (KeyValueIterable<KeyValuePair<Foo>> toClose = entries) {
+      for (KeyValuePair<Foo> entry : entries) {
+        values.add(entry.getValue().getFooValue());
+      }
+    }
+
+    return values;
+  }
+
+  protected List<PartitionInfoSnapshot> getPartitions() throws Exception {
+    List<PartitionInfoSnapshot> partitions = new ArrayList<PartitionInfoSnapshot>();
+
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        partitions.add(partition);
+      }
+    }
+
+    return partitions;
+  }
+}
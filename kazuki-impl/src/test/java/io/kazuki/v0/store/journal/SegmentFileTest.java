@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SegmentFileTest {
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    file = File.createTempFile("kazuki-segment", ".kzseg");
+    file.delete();
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void tearDown() {
+    file.delete();
+  }
+
+  private List<Long> ids(Iterator<SegmentFile.Entry> iter) {
+    List<Long> ids = new ArrayList<Long>();
+
+    while (iter.hasNext()) {
+      ids.add(iter.next().id);
+    }
+
+    return ids;
+  }
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    // even ids 2..600, spanning several blocks
+    List<SegmentFile.Entry> entries = new ArrayList<SegmentFile.Entry>();
+    for (long id = 2L; id <= 600L; id += 2L) {
+      entries.add(new SegmentFile.Entry(id, 1L, 3L, ("value" + id).getBytes("UTF-8")));
+    }
+
+    assertThat(SegmentFile.write(file, entries.iterator()), is(300L));
+    assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+
+    SegmentFile segment = SegmentFile.open(file);
+    assertThat(segment.getEntryCount(), is(300L));
+    assertThat(segment.getFirstId(), is(2L));
+    assertThat(segment.getLastId(), is(600L));
+
+    SegmentFile.Entry first = segment.iterator(SortDirection.ASCENDING, null, null).next();
+    assertThat(first.id, is(2L));
+    assertThat(first.schemaVersion, is(3L));
+    assertThat(new String(first.value, "UTF-8"), is("value2"));
+
+    assertThat(ids(segment.iterator(SortDirection.ASCENDING, null, null)).size(), is(300));
+    assertThat(ids(segment.iterator(SortDirection.ASCENDING, 127L, 3L)).toString(),
+        is("[256, 258, 260]"));
+    assertThat(ids(segment.iterator(SortDirection.DESCENDING, 0L, 2L)).toString(),
+        is("[600, 598]"));
+    assertThat(ids(segment.iterator(SortDirection.DESCENDING, 298L, null)).toString(),
+        is("[4, 2]"));
+    assertThat(ids(segment.iterator(SortDirection.ASCENDING, 400L, null)).isEmpty(), is(true));
+
+    assertThat(segment.rowOffsetOf(1L), is(0L));
+    assertThat(segment.rowOffsetOf(3L), is(1L));
+    assertThat(segment.rowOffsetOf(258L), is(128L));
+    assertThat(segment.rowOffsetOf(1000L), is(300L));
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    assertThat(SegmentFile.write(file, new ArrayList<SegmentFile.Entry>().iterator()), is(0L));
+
+    SegmentFile segment = SegmentFile.open(file);
+    assertThat(segment.getEntryCount(), is(0L));
+    assertThat(segment.getFirstId(), nullValue());
+    assertThat(segment.getLastId(), nullValue());
+    assertThat(segment.iterator(SortDirection.ASCENDING, null, null).hasNext(), is(false));
+    assertThat(segment.rowOffsetOf(5L), is(0L));
+  }
+
+  @Test
+  public void testTooLarge() throws Exception {
+    List<SegmentFile.Entry> entries = new ArrayList<SegmentFile.Entry>();
+    for (long id = 1L; id <= 600L; id++) {
+      entries.add(new SegmentFile.Entry(id, 1L, 1L, ("value" + id).getBytes("UTF-8")));
+    }
+
+    try {
+      SegmentFile.write(file, entries.iterator(), 1024L);
+      Assert.fail("expected the segment to be too large");
+    } catch (SegmentFile.SegmentTooLargeException expected) {
+      // nothing is left behind
+    }
+
+    assertThat(file.exists(), is(false));
+    assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testTruncated() throws Exception {
+    List<SegmentFile.Entry> entries = new ArrayList<SegmentFile.Entry>();
+    for (long id = 1L; id <= 300L; id++) {
+      entries.add(new SegmentFile.Entry(id, 1L, 1L, ("value" + id).getBytes("UTF-8")));
+    }
+
+    SegmentFile.write(file, entries.iterator());
+
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    byte[] footer = Arrays.copyOfRange(bytes, bytes.length - 24, bytes.length);
+
+    // drops the last index entry, keeping the footer
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(bytes, 0, bytes.length - 48);
+      out.write(footer);
+    }
+
+    SegmentFile.open(file);
+  }
+}
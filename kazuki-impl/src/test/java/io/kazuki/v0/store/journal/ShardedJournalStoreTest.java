@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The ASF licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License. You may obtain a
+ * copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.kazuki.v0.store.journal;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import io.kazuki.v0.internal.helper.Configurations;
+import io.kazuki.v0.internal.helper.TestSupport;
+import io.kazuki.v0.store.Foo;
+import io.kazuki.v0.store.Key;
+import io.kazuki.v0.store.guice.KazukiModule;
+import io.kazuki.v0.store.jdbi.JdbiDataSourceConfiguration;
+import io.kazuki.v0.store.keyvalue.KeyValueIterable;
+import io.kazuki.v0.store.keyvalue.KeyValuePair;
+import io.kazuki.v0.store.keyvalue.KeyValueStoreIteration.SortDirection;
+import io.kazuki.v0.store.lifecycle.Lifecycle;
+import io.kazuki.v0.store.schema.SchemaStore;
+import io.kazuki.v0.store.schema.TypeValidation;
+import io.kazuki.v0.store.sequence.KeyImpl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class ShardedJournalStoreTest extends TestSupport {
+  private String dbName;
+  private Lifecycle lifecycle;
+  private JournalStore journal;
+
+  @BeforeMethod(alwaysRun = true)
+  public void setUp() throws Exception {
+    JdbiDataSourceConfiguration config = Configurations.getJdbi().build();
+    dbName = config.getJdbcUrl().substring("jdbc:h2:".length());
+
+    Injector inject =
+        Guice.createInjector(new KazukiModule.Builder("bar")
+            .withJdbiConfiguration("bar", config)
+            .withSequenceServiceConfiguration("bar",
+                Configurations.getSequence("bar", "barstore").build())
+            .withJournalStoreConfiguration(
+                "bar",
+                Configurations.getKeyValue("bar", "barstore").withDataType("foo")
+                    .withPartitionName("default").withPartitionSize(5L).withShardCount(3)
+                    .withShardKey("fooKey").build()).build());
+
+    lifecycle = inject.getInstance(com.google.inject.Key.get(Lifecycle.class, Names.named("bar")));
+    SchemaStore manager =
+        inject.getInstance(com.google.inject.Key.get(SchemaStore.class, Names.named("bar")));
+    journal = inject.getInstance(com.google.inject.Key.get(JournalStore.class, Names.named("bar")));
+
+    deleteFiles();
+
+    lifecycle.init();
+    lifecycle.start();
+
+    manager.createSchema("foo", Foo.FOO_SCHEMA);
+  }
+
+  @AfterMethod(alwaysRun = true)
+  public void tearDown() throws Exception {
+    if (lifecycle != null) {
+      lifecycle.stop();
+      lifecycle.shutdown();
+      lifecycle = null;
+    }
+
+    deleteFiles();
+  }
+
+  private void deleteFiles() {
+    new File(dbName + ".h2.db").delete();
+    new File(dbName + ".trace.db").delete();
+    new File(dbName + ".lock.db").delete();
+  }
+
+  private List<Long> ids(KeyValueIterable<KeyValuePair<Foo>> entries) throws Exception {
+    List<Long> ids = new ArrayList<Long>();
+
+    try (KeyValueIterable<KeyValuePair<Foo>> toClose = entries) {
+      for (KeyValuePair<Foo> entry : entries) {
+        ids.add(((KeyImpl) entry.getKey()).getInternalId());
+      }
+    }
+
+    return ids;
+  }
+
+  private List<Long> range(long from, long to) {
+    List<Long> ids = new ArrayList<Long>();
+
+    for (long id = from; id <= to; id++) {
+      ids.add(id);
+    }
+
+    return ids;
+  }
+
+  @Test
+  public void testShardedReads() throws Exception {
+    assertThat(journal, instanceOf(ShardedJournalStore.class));
+
+    for (int i = 1; i <= 30; i++) {
+      journal.append("foo", Foo.class, new Foo("k" + (i % 7), "v" + i), TypeValidation.STRICT);
+    }
+
+    assertThat(journal.approximateSize(), is(30L));
+
+    // the shards leave gaps in each other's ids, which merged reads fill in
+    assertThat(ids(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 0L, null)),
+        is(range(1L, 30L)));
+    assertThat(ids(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 12L, 5L)),
+        is(range(13L, 17L)));
+    assertThat(ids(journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 20L, null)),
+        is(range(21L, 30L)));
+    assertThat(ids(journal.entriesRelative("foo", Foo.class, SortDirection.DESCENDING, 2L, 2L))
+        .toString(), is("[28, 27]"));
+    assertThat(ids(journal.replay("foo", Foo.class, 3L, 2, 2, true)), is(range(4L, 30L)));
+    assertThat(new HashSet<Long>(ids(journal.replay("foo", Foo.class, 0L, 2, 2, false))),
+        is((Set<Long>) new HashSet<Long>(range(1L, 30L))));
+
+    // the appends are spread over the shards, whose partitions are listed together
+    Set<String> shardTypes = new HashSet<String>();
+    try (KeyValueIterable<PartitionInfoSnapshot> parts = journal.getAllPartitions()) {
+      for (PartitionInfoSnapshot partition : parts) {
+        shardTypes.add(partition.getPartitionId().split(":")[0]);
+      }
+    }
+
+    assertThat(shardTypes.size() > 1, is(true));
+
+    try (JournalTail<Foo> tail = journal.tail("foo", Foo.class, 25L)) {
+      List<Long> tailed = new ArrayList<Long>();
+
+      for (KeyValuePair<Foo> entry : tail.poll(10, 0L, TimeUnit.MILLISECONDS)) {
+        tailed.add(((KeyImpl) entry.getKey()).getInternalId());
+      }
+
+      assertThat(tailed, is(range(26L, 30L)));
+    }
+  }
+
+  @Test(timeOut = 30000L)
+  public void testBlockingTail() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try (JournalTail<Foo> tail = journal.tail("foo", Foo.class, 0L)) {
+      // each append lands in some shard, and any of them wakes the waiting tail
+      for (int i = 1; i <= 8; i++) {
+        final int value = i;
+
+        Future<Key> appended = executor.submit(new Callable<Key>() {
+          @Override
+          public Key call() throws Exception {
+            Thread.sleep(50L);
+
+            return journal.append("foo", Foo.class, new Foo("k" + value, "v" + value),
+                TypeValidation.STRICT);
+          }
+        });
+
+        List<KeyValuePair<Foo>> entries = tail.poll(10, 20L, TimeUnit.SECONDS);
+
+        assertThat(entries.size(), is(1));
+        assertThat(entries.get(0).getKey(), is(appended.get()));
+      }
+
+      assertThat(tail.poll(10, 50L, TimeUnit.MILLISECONDS).isEmpty(), is(true));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testParallelAppends() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<List<Key>>> futures = new ArrayList<Future<List<Key>>>();
+
+    try {
+      for (int t = 0; t < 4; t++) {
+        final int thread = t;
+
+        futures.add(executor.submit(new Callable<List<Key>>() {
+          @Override
+          public List<Key> call() throws Exception {
+            List<Key> keys = new ArrayList<Key>();
+
+            for (int i = 0; i < 25; i++) {
+              keys.add(journal.append("foo", Foo.class, new Foo("t" + thread, "v" + i),
+                  TypeValidation.STRICT));
+            }
+
+            return keys;
+          }
+        }));
+      }
+
+      Set<Key> allKeys = new HashSet<Key>();
+
+      for (Future<List<Key>> future : futures) {
+        allKeys.addAll(future.get());
+      }
+
+      assertThat(allKeys.size(), is(100));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    List<Foo> batch = new ArrayList<Foo>();
+    for (int i = 0; i < 10; i++) {
+      batch.add(new Foo("b" + i, "v" + i));
+    }
+
+    List<Key> batchKeys = journal.appendAll("foo", Foo.class, batch, TypeValidation.STRICT);
+
+    assertThat(batchKeys.size(), is(10));
+    assertThat(new HashSet<Key>(batchKeys).size(), is(10));
+    assertThat(ids(journal.entriesAbsolute("foo", Foo.class, SortDirection.ASCENDING, 0L, null)),
+        is(range(1L, 110L)));
+
+    // each thread's entries share a shard key, so they stay in append order
+    List<String> thread0 = new ArrayList<String>();
+    try (KeyValueIterable<KeyValuePair<Foo>> entries =
+        journal.entriesRelative("foo", Foo.class, SortDirection.ASCENDING, 0L, null)) {
+      for (KeyValuePair<Foo> entry : entries) {
+        if (entry.getValue().getFooKey().equals("t0")) {
+          thread0.add(entry.getValue().getFooValue());
+        }
+      }
+    }
+
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 25; i++) {
+      expected.add("v" + i);
+    }
+
+    assertThat(thread0, is(expected));
+
+    journal.clear();
+
+    assertThat(journal.approximateSize(), is(0L));
+  }
+}